@@ -0,0 +1,261 @@
+package javachatapp.benchmarks;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import javachatapp.client.ChatTranscript;
+import javachatapp.client.InboundEventCoalescer;
+import javachatapp.client.RecipientList;
+import javachatapp.client.TranscriptView;
+import javafx.animation.AnimationTimer;
+import javafx.application.Platform;
+import javafx.collections.FXCollections;
+import javafx.scene.Scene;
+import javafx.scene.control.ListView;
+import javafx.scene.layout.BorderPane;
+import javafx.stage.Stage;
+
+/**
+ * ChatFrameBenchmark opens a window laid out like the chat scene and feeds
+ * it messages at a fixed rate from a stand-in listener thread, once with
+ * one Platform.runLater per message (the old dispatch) and once through an
+ * InboundEventCoalescer drained per pulse. Every 100th event is a roster
+ * update: the whole list set again in the first run, a change applied to a
+ * RecipientList in the second. Reports the frame times (pulse to pulse) while the feed runs and
+ * how long the window needed to show the last message after the feed
+ * stopped.
+ *
+ * The first run is the baseline. The coalesced run fails if its p99 frame
+ * time exceeds MAX_FRAME_P99_MILLIS or the last message shows up more than
+ * MAX_CATCH_UP_MILLIS after the feed stopped.
+ *
+ * The toolkit is started with Platform.startup rather than through an
+ * Application subclass, so the class runs from the plain class path. Needs
+ * a display. Usage:
+ * java -cp benchmarks/target/benchmarks.jar javachatapp.benchmarks.ChatFrameBenchmark
+ * [messagesPerSecond] [seconds] [users]
+ */
+public class ChatFrameBenchmark {
+
+    // Two frames at 60 Hz: a pulse may run late, but not one in a hundred
+    private static final double MAX_FRAME_P99_MILLIS = 33.4;
+
+    // The coalesced window keeps up with the feed instead of working off a backlog
+    private static final long MAX_CATCH_UP_MILLIS = 100;
+
+    private final int rate;
+    private final int seconds;
+    private final int users;
+
+    private ChatTranscript transcript;
+    private final RecipientList recipients = new RecipientList();
+    private TranscriptView transcriptView;
+    private ListView<String> userListView;
+    private final ScheduledExecutorService feed = Executors.newSingleThreadScheduledExecutor(task -> {
+        Thread thread = new Thread(task, "feed");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    // Frame intervals of the phase that is running, written on the FX thread only
+    private final List<Long> frameNanos = new ArrayList<>();
+    private long lastPulse;
+    private final AtomicLong applied = new AtomicLong();
+
+    // Frame times (sorted) of one phase, and how long the window lagged behind the feed
+    private static final class Result {
+
+        final long[] frames;
+        final long catchUpMillis;
+
+        Result(List<Long> frames, long catchUpMillis) {
+            this.frames = frames.stream().mapToLong(Long::longValue).toArray();
+            Arrays.sort(this.frames);
+            this.catchUpMillis = catchUpMillis;
+        }
+
+        double p99Millis() {
+            return frames.length == 0 ? Double.MAX_VALUE : frames[(int) (frames.length * 0.99)] / 1e6;
+        }
+
+        @Override
+        public String toString() {
+            if (frames.length == 0) {
+                return "no frames (the FX thread never got to a pulse), caught up " + catchUpMillis
+                        + " ms after the feed";
+            }
+            return String.format("%d frames, frame time p50 %.1f ms, p99 %.1f ms, max %.1f ms;"
+                    + " last message shown %d ms after the feed stopped", frames.length,
+                    frames[frames.length / 2] / 1e6, p99Millis(), frames[frames.length - 1] / 1e6, catchUpMillis);
+        }
+    }
+
+    ChatFrameBenchmark(int rate, int seconds, int users) {
+        this.rate = rate;
+        this.seconds = seconds;
+        this.users = users;
+    }
+
+    public static void main(String[] args) throws InterruptedException {
+        int rate = args.length > 0 ? Integer.parseInt(args[0]) : 5000;
+        int seconds = args.length > 1 ? Integer.parseInt(args[1]) : 10;
+        int users = args.length > 2 ? Integer.parseInt(args[2]) : 500;
+        ChatFrameBenchmark benchmark = new ChatFrameBenchmark(rate, seconds, users);
+
+        CountDownLatch shown = new CountDownLatch(1);
+        Platform.startup(() -> {
+            benchmark.show(new Stage());
+            shown.countDown();
+        });
+        shown.await();
+
+        boolean ok;
+        try {
+            // Phases run one after the other off the FX thread
+            Result perMessage = benchmark.runPhase(false);
+            Result coalesced = benchmark.runPhase(true);
+            ok = coalesced.p99Millis() <= MAX_FRAME_P99_MILLIS && coalesced.catchUpMillis <= MAX_CATCH_UP_MILLIS;
+            System.out.printf("%d msg/s for %d s, %d users:%n  runLater per message: %s%n  coalesced per frame:  %s%n",
+                    rate, seconds, users, perMessage, coalesced);
+        } finally {
+            onFxThread(() -> {
+                benchmark.transcript.close();
+                Platform.exit();
+            });
+        }
+        Checks.finish(System.out, ok,
+                String.format("coalesced frames p99 within %.1f ms, caught up within %d ms",
+                        MAX_FRAME_P99_MILLIS, MAX_CATCH_UP_MILLIS),
+                String.format("coalesced frames p99 over %.1f ms or caught up later than %d ms",
+                        MAX_FRAME_P99_MILLIS, MAX_CATCH_UP_MILLIS));
+    }
+
+    private void show(Stage stage) {
+        transcript = new ChatTranscript();
+        transcriptView = new TranscriptView(transcript);
+        userListView = new ListView<>();
+        userListView.setPrefWidth(150);
+        BorderPane root = new BorderPane(transcriptView);
+        root.setLeft(userListView);
+        stage.setScene(new Scene(root, 700, 500));
+        stage.setTitle("Chat frame benchmark");
+        stage.show();
+
+        new AnimationTimer() {
+            @Override
+            public void handle(long now) {
+                if (lastPulse != 0) {
+                    frameNanos.add(now - lastPulse);
+                }
+                lastPulse = now;
+            }
+        }.start();
+    }
+
+    private Result runPhase(boolean coalesce) throws InterruptedException {
+        InboundEventCoalescer inbound = new InboundEventCoalescer();
+        AnimationTimer pump = new AnimationTimer() {
+            @Override
+            public void handle(long now) {
+                InboundEventCoalescer.Batch batch = inbound.drain();
+                if (batch == null) {
+                    return;
+                }
+                transcriptView.append(batch.lines);
+                applied.addAndGet(batch.lines.size());
+                if (batch.rosterChanged) {
+                    recipients.applyUsers(batch.joinedUsers, batch.leftUsers);
+                }
+            }
+        };
+        Set<String> roster = new LinkedHashSet<>();
+        for (int i = 0; i < users; i++) {
+            roster.add("user" + i);
+        }
+        List<String> initial = new ArrayList<>(roster);
+        onFxThread(() -> {
+            transcript.reset();
+            recipients.reset();
+            userListView.setItems(coalesce ? recipients : FXCollections.observableArrayList(initial));
+            recipients.applyUsers(initial, List.of());
+            applied.set(0);
+            frameNanos.clear();
+            lastPulse = 0;
+            if (coalesce) {
+                pump.start();
+            }
+        });
+
+        // Events every millisecond, rate/1000 per tick
+        int perTick = Math.max(1, rate / 1000);
+        long total = (long) rate * seconds;
+        AtomicLong sent = new AtomicLong();
+        ScheduledFuture<?> ticker = feed.scheduleAtFixedRate(() -> {
+            for (int i = 0; i < perTick && sent.get() < total; i++) {
+                long n = sent.incrementAndGet();
+                String line = "user" + (n % users) + ": message " + n;
+                // Every 100th event one user leaves and another joins
+                List<String> left = List.of();
+                List<String> joined = List.of();
+                if (n % 100 == 0) {
+                    String leaving = roster.iterator().next();
+                    roster.remove(leaving);
+                    left = List.of(leaving);
+                    joined = List.of("guest" + n);
+                    roster.addAll(joined);
+                }
+                if (coalesce) {
+                    inbound.addLine(line);
+                    if (!left.isEmpty()) {
+                        inbound.usersChanged(joined, left);
+                    }
+                } else {
+                    Platform.runLater(() -> {
+                        transcriptView.append(List.of(line));
+                        applied.incrementAndGet();
+                    });
+                    if (!left.isEmpty()) {
+                        // The old roster path: a copy of the whole list, set in full
+                        List<String> all = new ArrayList<>(roster);
+                        Platform.runLater(() -> userListView.getItems().setAll(all));
+                    }
+                }
+            }
+        }, 0, 1, TimeUnit.MILLISECONDS);
+
+        while (sent.get() < total) {
+            Thread.sleep(10);
+        }
+        ticker.cancel(false);
+        long stopped = System.nanoTime();
+        List<Long> frames = new ArrayList<>();
+        onFxThread(() -> frames.addAll(frameNanos));
+        while (applied.get() < total) {
+            Thread.sleep(1);
+        }
+        long catchUpMillis = (System.nanoTime() - stopped) / 1_000_000;
+        onFxThread(pump::stop);
+        return new Result(frames, catchUpMillis);
+    }
+
+    // Run on the FX thread and wait for it
+    private static void onFxThread(Runnable task) throws InterruptedException {
+        CountDownLatch done = new CountDownLatch(1);
+        Platform.runLater(() -> {
+            try {
+                task.run();
+            } finally {
+                done.countDown();
+            }
+        });
+        done.await();
+    }
+}
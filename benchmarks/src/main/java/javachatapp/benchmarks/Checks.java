@@ -0,0 +1,79 @@
+package javachatapp.benchmarks;
+
+import java.io.PrintStream;
+import java.util.List;
+import java.util.function.BooleanSupplier;
+import javachatapp.client.ClientBackend;
+import javachatapp.server.ChatServer;
+
+/**
+ * What the end-to-end checks share: starting a server on its own thread,
+ * waiting for a condition the clients report, reporting the verdict, and a
+ * client handler that ignores every callback, for each check's recorder to
+ * extend with only what it counts.
+ */
+final class Checks {
+
+    // Far longer than anything checked takes on loopback; only reached when a check fails
+    private static final long WAIT_MILLIS = 20_000;
+
+    private Checks() {
+    }
+
+    // Start the server on a daemon thread and wait until it accepts connections
+    static ChatServer start(ChatServer server, String threadName) throws InterruptedException {
+        Thread thread = new Thread(server::start, threadName);
+        thread.setDaemon(true);
+        thread.start();
+        waitFor(server::isRunning);
+        return server;
+    }
+
+    /**
+     * Poll the condition until it holds or WAIT_MILLIS pass
+     *
+     * @return false if it never held
+     */
+    static boolean waitFor(BooleanSupplier condition) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + WAIT_MILLIS;
+        while (!condition.getAsBoolean()) {
+            if (System.currentTimeMillis() > deadline) {
+                return false;
+            }
+            Thread.sleep(10);
+        }
+        return true;
+    }
+
+    // Print the verdict; a failed check exits with status 1 so a script or build running it fails too
+    static void finish(PrintStream report, boolean ok, String passed) {
+        finish(report, ok, passed, "see above");
+    }
+
+    static void finish(PrintStream report, boolean ok, String passed, String failed) {
+        report.println(ok ? "PASS: " + passed : "FAIL: " + failed);
+        if (!ok) {
+            System.exit(1);
+        }
+    }
+
+    // Client handler that ignores everything the interface has no default for
+    static class Recorder implements ClientBackend.MessageHandler {
+
+        @Override
+        public void onMessageReceived(String sender, String content) {
+        }
+
+        @Override
+        public void onUserListUpdated(List<String> users) {
+        }
+
+        @Override
+        public void onConnectionLost() {
+        }
+
+        @Override
+        public void onError(String errorCode) {
+        }
+    }
+}
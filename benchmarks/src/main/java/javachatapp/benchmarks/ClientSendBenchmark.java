@@ -0,0 +1,272 @@
+package javachatapp.benchmarks;
+
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Supplier;
+import javachatapp.client.ChatClient;
+import javachatapp.client.ClientBackend;
+import javachatapp.server.ChatServer;
+import javachatapp.server.Histogram;
+import javachatapp.shared.Message;
+
+/**
+ * ClientSendBenchmark measures the client's send path from a stand-in UI
+ * thread (one single-threaded executor, as the JavaFX thread would be).
+ *
+ * Bursts: the UI thread sends bursts of private messages through a real
+ * server to a second client. Reports how long each send call held the UI
+ * thread, how fast the bursts were written and delivered, and how many
+ * frames went out per flush.
+ *
+ * Stalled link: the client talks to a socket that never reads, so the
+ * TCP buffers fill up. Sending must still return immediately; messages
+ * past the send queue are refused with SendQueueFullException instead of
+ * blocking the UI thread.
+ *
+ * Each call is timed on the wall clock and in UI-thread CPU time. A send
+ * that waits (for the writer, a lock or the network) shows up at p99 of
+ * the wall clock, so that is held under MAX_CALL_P99_NANOS; the single
+ * worst call is judged by its CPU time against MAX_CALL_CPU_NANOS, since
+ * its wall time also holds whatever the scheduler, JIT and GC took from
+ * the thread meanwhile (reported next to it).
+ *
+ * Usage: java -cp benchmarks/target/benchmarks.jar javachatapp.benchmarks.ClientSendBenchmark
+ * [bursts] [burstSize] [port]
+ */
+public class ClientSendBenchmark {
+
+    // A send that waited for anything would do so far more often than 1 call in 100
+    private static final long MAX_CALL_P99_NANOS = TimeUnit.MICROSECONDS.toNanos(100);
+
+    // A send only queues the message: the UI thread's own work for it stays far below a frame
+    private static final long MAX_CALL_CPU_NANOS = TimeUnit.MILLISECONDS.toNanos(1);
+
+    public static void main(String[] args) throws Exception {
+        int bursts = args.length > 0 ? Integer.parseInt(args[0]) : 20;
+        int burstSize = args.length > 1 ? Integer.parseInt(args[1]) : 2000;
+        int port = args.length > 2 ? Integer.parseInt(args[2]) : 5310;
+
+        PrintStream report = System.out;
+        System.setOut(new PrintStream(OutputStream.nullOutputStream()));
+        ExecutorService ui = Executors.newSingleThreadExecutor(task -> new Thread(task, "ui-thread"));
+
+        try {
+            boolean ok = bursts(report, ui, bursts, burstSize, port);
+            ok &= stalledLink(report, ui, port + 1);
+            Checks.finish(report, ok, "sends never block the UI thread and bursts share flushes");
+        } finally {
+            ui.shutdownNow();
+        }
+    }
+
+    private static boolean bursts(PrintStream report, ExecutorService ui, int bursts, int burstSize, int port)
+            throws Exception {
+        ChatServer server = new ChatServer(port, ChatServer.ServerMode.NIO);
+        Thread serverThread = new Thread(server::start, "send-benchmark-server");
+        serverThread.setDaemon(true);
+        serverThread.start();
+        while (!server.isRunning()) {
+            Thread.sleep(10);
+        }
+
+        AtomicInteger delivered = new AtomicInteger();
+        ClientBackend receiver = new ClientBackend();
+        receiver.connect("localhost", port, "receiver", new Counter(delivered));
+        ChatClient sender = new ChatClient("localhost", port);
+        sender.connect("sender", new ChatClient.MessageListener() {
+            @Override
+            public void onMessageReceived(Message message) {
+            }
+
+            @Override
+            public void onConnectionLost() {
+            }
+
+            @Override
+            public void onError(String errorCode) {
+            }
+        });
+        while (server.getClientCount() < 2) {
+            Thread.sleep(10);
+        }
+
+        String payload = "x".repeat(100);
+        // Warm up the send path (class loading, JIT) before anything is timed
+        CompletableFuture.allOf(ui.submit(() -> {
+            List<CompletableFuture<Void>> futures = new ArrayList<>(burstSize);
+            for (int i = 0; i < burstSize; i++) {
+                futures.add(sender.sendPrivateMessage("receiver", payload));
+            }
+            return futures;
+        }).get().toArray(new CompletableFuture<?>[0])).get(30, TimeUnit.SECONDS);
+        int warmup = burstSize;
+        while (delivered.get() < warmup) {
+            Thread.sleep(5);
+        }
+        delivered.addAndGet(-warmup);
+
+        Calls calls = new Calls();
+        long framesBefore = sender.getFramesSent();
+        long flushesBefore = sender.getFlushes();
+        long start = System.nanoTime();
+        long sentNanos = 0;
+        for (int b = 0; b < bursts; b++) {
+            List<CompletableFuture<Void>> burst = ui.submit(() -> {
+                List<CompletableFuture<Void>> futures = new ArrayList<>(burstSize);
+                for (int i = 0; i < burstSize; i++) {
+                    futures.add(calls.time(() -> sender.sendPrivateMessage("receiver", payload)));
+                }
+                return futures;
+            }).get();
+            CompletableFuture.allOf(burst.toArray(new CompletableFuture<?>[0])).get(30, TimeUnit.SECONDS);
+            sentNanos = System.nanoTime() - start;
+        }
+        int total = bursts * burstSize;
+        long deadline = System.currentTimeMillis() + 30_000;
+        while (delivered.get() < total && System.currentTimeMillis() < deadline) {
+            Thread.sleep(5);
+        }
+        long deliveredNanos = System.nanoTime() - start;
+        long frames = sender.getFramesSent() - framesBefore;
+        long flushes = sender.getFlushes() - flushesBefore;
+
+        report.printf("Bursts: %d x %d messages, UI thread per send %s%n", bursts, burstSize, calls);
+        report.printf("  written %,.0f msg/s, delivered %,.0f msg/s (%d of %d), %.1f frames per flush%n",
+                total / (sentNanos / 1e9), delivered.get() / (deliveredNanos / 1e9), delivered.get(), total,
+                frames / (double) Math.max(1, flushes));
+
+        sender.disconnect();
+        receiver.disconnect();
+        server.stop();
+        return delivered.get() == total && frames > flushes && calls.withinLimits();
+    }
+
+    private static boolean stalledLink(PrintStream report, ExecutorService ui, int port) throws Exception {
+        try (ServerSocket stalled = new ServerSocket(port)) {
+            List<Socket> accepted = new ArrayList<>();
+            Thread acceptor = new Thread(() -> {
+                try {
+                    Socket socket = stalled.accept();
+                    accepted.add(socket);
+                    // Take the handshake byte, then never read again
+                    InputStream in = socket.getInputStream();
+                    in.read();
+                } catch (Exception e) {
+                    // Benchmark is over
+                }
+            }, "stalled-server");
+            acceptor.setDaemon(true);
+            acceptor.start();
+
+            ClientBackend client = new ClientBackend();
+            client.connect("localhost", port, "stuck", new Counter(new AtomicInteger()));
+            int messages = 20_000;
+            String payload = "y".repeat(4000);
+            Calls calls = new Calls();
+            List<CompletableFuture<Void>> futures = ui.submit(() -> {
+                List<CompletableFuture<Void>> sends = new ArrayList<>(messages);
+                for (int i = 0; i < messages; i++) {
+                    sends.add(calls.time(() -> client.sendMessageAsync("anyone", payload)));
+                }
+                return sends;
+            }).get(30, TimeUnit.SECONDS);
+            Thread.sleep(500);
+
+            int[] states = new int[3]; // written, queued, refused
+            for (CompletableFuture<Void> future : futures) {
+                if (!future.isDone()) {
+                    states[1]++;
+                } else if (future.isCompletedExceptionally()) {
+                    states[2]++;
+                } else {
+                    states[0]++;
+                }
+            }
+            long t0 = System.nanoTime();
+            ui.submit(client::disconnect).get(30, TimeUnit.SECONDS);
+            long disconnectNanos = System.nanoTime() - t0;
+            for (Socket socket : accepted) {
+                socket.close();
+            }
+
+            report.printf("Stalled link: %d sends of 4 KB, UI thread per send %s;"
+                    + " %s written/queued/refused; disconnect took %.0f ms%n", messages, calls,
+                    Arrays.toString(states), disconnectNanos / 1e6);
+            return calls.withinLimits() && states[2] > 0;
+        }
+    }
+
+    // Wall-clock and CPU time of each call on the UI thread
+    private static final class Calls {
+
+        private static final ThreadMXBean THREADS = ManagementFactory.getThreadMXBean();
+
+        private final Histogram wall = new Histogram();
+        private final Histogram cpu = new Histogram();
+
+        <T> T time(Supplier<T> call) {
+            long cpuStart = THREADS.getCurrentThreadCpuTime();
+            long start = System.nanoTime();
+            T result = call.get();
+            wall.record(System.nanoTime() - start);
+            cpu.record(THREADS.getCurrentThreadCpuTime() - cpuStart);
+            return result;
+        }
+
+        boolean withinLimits() {
+            return wall.snapshot().getP99() <= MAX_CALL_P99_NANOS && cpu.snapshot().getMax() <= MAX_CALL_CPU_NANOS;
+        }
+
+        @Override
+        public String toString() {
+            Histogram.Snapshot held = wall.snapshot();
+            Histogram.Snapshot worked = cpu.snapshot();
+            return String.format("p50 %.1f us, p99 %.1f us (limit %d), longest %.1f us; CPU per send at most %.1f us"
+                    + " (limit %d)%s", held.getP50() / 1e3, held.getP99() / 1e3, MAX_CALL_P99_NANOS / 1000,
+                    held.getMax() / 1e3, worked.getMax() / 1e3, MAX_CALL_CPU_NANOS / 1000,
+                    withinLimits() ? "" : " TOO SLOW");
+        }
+    }
+
+    // Counts chat messages received
+    private static final class Counter implements ClientBackend.MessageHandler {
+
+        private final AtomicInteger count;
+
+        Counter(AtomicInteger count) {
+            this.count = count;
+        }
+
+        @Override
+        public void onMessageReceived(String sender, String content) {
+            if (!"System".equals(sender)) {
+                count.incrementAndGet();
+            }
+        }
+
+        @Override
+        public void onUserListUpdated(List<String> users) {
+        }
+
+        @Override
+        public void onConnectionLost() {
+        }
+
+        @Override
+        public void onError(String errorCode) {
+        }
+    }
+}
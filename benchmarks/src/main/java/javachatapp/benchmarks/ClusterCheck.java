@@ -0,0 +1,266 @@
+package javachatapp.benchmarks;
+
+import javachatapp.client.ClientBackend;
+import javachatapp.server.ChatServer;
+import javachatapp.server.ClientConnection;
+import javachatapp.server.ClusterNode;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * ClusterCheck runs several cluster nodes on loopback in one JVM and
+ * connects clients to each over real sockets. Every client must see the
+ * whole cluster's roster, private messages must reach users on other
+ * nodes, broadcasts and room messages must reach every node exactly once,
+ * a username in use on one node must be refused on the others (also when
+ * two nodes accept it at the same moment), a node without the cluster's
+ * secret must not get a link, and the users of a node that stops must
+ * leave everyone's roster.
+ *
+ * Usage: java -cp benchmarks/target/benchmarks.jar javachatapp.benchmarks.ClusterCheck
+ * [nodes] [clientsPerNode] [mode] [port]
+ */
+public class ClusterCheck {
+
+    private static final String SECRET = "cluster-check-secret";
+
+    public static void main(String[] args) throws Exception {
+        int nodes = args.length > 0 ? Integer.parseInt(args[0]) : 3;
+        int perNode = args.length > 1 ? Integer.parseInt(args[1]) : 20;
+        ChatServer.ServerMode mode = args.length > 2
+                ? ChatServer.ServerMode.valueOf(args[2])
+                : ChatServer.ServerMode.NIO;
+        int port = args.length > 3 ? Integer.parseInt(args[3]) : 5300;
+
+        PrintStream report = System.out;
+        System.setOut(new PrintStream(OutputStream.nullOutputStream()));
+
+        // Chat ports port..port+nodes-1, cluster ports from port+100
+        List<ChatServer> servers = new ArrayList<>();
+        for (int i = 0; i < nodes; i++) {
+            List<InetSocketAddress> peers = new ArrayList<>();
+            for (int j = 0; j < nodes; j++) {
+                if (j != i) {
+                    peers.add(InetSocketAddress.createUnresolved("localhost", port + 100 + j));
+                }
+            }
+            ChatServer server = new ChatServer(port + i, mode);
+            server.setCluster(new ClusterNode("node" + i, InetAddress.getLoopbackAddress(), port + 100 + i, peers,
+                    SECRET));
+            Thread thread = new Thread(server::start, "cluster-check-node" + i);
+            thread.setDaemon(true);
+            thread.start();
+            servers.add(server);
+        }
+        Checks.waitFor(() -> servers.stream().allMatch(s -> s.isRunning()
+                && s.getCluster().getConnectedPeers().size() == nodes - 1));
+        report.printf("%d nodes up, each linked to %d peers%n", nodes,
+                servers.get(0).getCluster().getConnectedPeers().size());
+
+        List<ClientBackend> clients = new ArrayList<>();
+        List<Recorder> recorders = new ArrayList<>();
+        for (int i = 0; i < nodes; i++) {
+            for (int j = 0; j < perNode; j++) {
+                Recorder recorder = new Recorder();
+                ClientBackend client = new ClientBackend();
+                if (client.connect("localhost", port + i, "n" + i + "-u" + j, recorder)) {
+                    clients.add(client);
+                    recorders.add(recorder);
+                }
+            }
+        }
+        int total = nodes * perNode;
+        Checks.waitFor(() -> recorders.stream().allMatch(r -> r.rosterSize == total));
+        long complete = recorders.stream().filter(r -> r.rosterSize == total).count();
+        boolean ok = clients.size() == total && complete == total;
+        report.printf("%d clients on %d nodes, %d see all %d users in their roster%n",
+                clients.size(), nodes, complete, total);
+
+        // Everyone writes to the user with the same number on the next node
+        for (int i = 0; i < nodes; i++) {
+            for (int j = 0; j < perNode; j++) {
+                clients.get(i * perNode + j).sendMessage("n" + ((i + 1) % nodes) + "-u" + j, "dm");
+            }
+        }
+        Checks.waitFor(() -> recorders.stream().allMatch(r -> r.direct.get() >= 1));
+        long gotDm = recorders.stream().filter(r -> r.direct.get() == 1).count();
+        ok &= gotDm == total;
+        report.printf("Private messages across nodes: %d of %d delivered exactly once%n", gotDm, total);
+
+        // One broadcast from node 0 reaches every other client once
+        clients.get(0).sendMessage("Broadcast", "all");
+        Checks.waitFor(() -> recorders.subList(1, total).stream().allMatch(r -> r.broadcasts.get() >= 1));
+        Thread.sleep(200);
+        long gotBroadcast = recorders.subList(1, total).stream().filter(r -> r.broadcasts.get() == 1).count();
+        ok &= gotBroadcast == total - 1 && recorders.get(0).broadcasts.get() == 0;
+        report.printf("Broadcast from node 0: %d of %d other clients got it exactly once%n",
+                gotBroadcast, total - 1);
+
+        // The first two users of every node share a room
+        for (int i = 0; i < nodes; i++) {
+            for (int j = 0; j < 2; j++) {
+                clients.get(i * perNode + j).joinRoom("#ops");
+            }
+        }
+        Checks.waitFor(() -> recorders.stream().filter(r -> r.inRoom).count() == 2L * nodes);
+        clients.get(perNode).sendMessage("#ops", "room");
+        Checks.waitFor(() -> countRoom(recorders, nodes, perNode) == 2 * nodes - 1);
+        Thread.sleep(200);
+        int gotRoom = countRoom(recorders, nodes, perNode);
+        int strays = recorders.stream().mapToInt(r -> r.room.get()).sum() - gotRoom;
+        ok &= gotRoom == 2 * nodes - 1 && strays == 0;
+        report.printf("Room message from node 1: %d of %d members on %d nodes got it, %d non-members did%n",
+                gotRoom, 2 * nodes - 1, nodes, strays);
+
+        // A name in use on node 0 is refused on the last node
+        Recorder taken = new Recorder();
+        ClientBackend impostor = new ClientBackend();
+        impostor.connect("localhost", port + nodes - 1, "n0-u0", taken);
+        Checks.waitFor(() -> taken.usernameTaken.get() > 0);
+        boolean refused = taken.usernameTaken.get() == 1;
+        ok &= refused;
+        impostor.disconnect();
+
+        // A node with the wrong secret dials node 0 and is refused: no link, its user stays unknown
+        ChatServer intruder = new ChatServer(port + nodes, mode);
+        intruder.setCluster(new ClusterNode("intruder", InetAddress.getLoopbackAddress(), port + 100 + nodes,
+                List.of(InetSocketAddress.createUnresolved("localhost", port + 100)), "wrong-secret"));
+        Checks.start(intruder, "cluster-check-intruder");
+        ClientBackend spy = new ClientBackend();
+        spy.connect("localhost", port + nodes, "spy", new Recorder());
+        Thread.sleep(500);
+        boolean shutOut = intruder.getCluster().getConnectedPeers().isEmpty()
+                && servers.get(0).getCluster().getConnectedPeers().size() == nodes - 1
+                && servers.stream().noneMatch(s -> s.isUsernameTaken("spy"));
+        ok &= shutOut;
+        spy.disconnect();
+        intruder.stop();
+        report.printf("Node with the wrong secret refused: %s%n", shutOut ? "ok" : "FAILED");
+
+        // Two nodes accepting one name at once: exactly one keeps it
+        int races = 20;
+        int kept = 0;
+        for (int r = 0; r < races; r++) {
+            String name = "race" + r;
+            Recorder first = new Recorder();
+            Recorder second = new Recorder();
+            ClientBackend a = new ClientBackend();
+            ClientBackend b = new ClientBackend();
+            CountDownLatch go = new CountDownLatch(1);
+            Thread other = new Thread(() -> {
+                try {
+                    go.await();
+                } catch (InterruptedException e) {
+                    return;
+                }
+                b.connect("localhost", port + 1, name, second);
+            });
+            other.start();
+            go.countDown();
+            a.connect("localhost", port, name, first);
+            other.join();
+            Checks.waitFor(() -> holders(servers, name) == 1
+                    && servers.stream().allMatch(s -> s.isUsernameTaken(name)));
+            Thread.sleep(50);
+            if (holders(servers, name) == 1 && servers.stream().allMatch(s -> s.isUsernameTaken(name))
+                    && first.usernameTaken.get() + second.usernameTaken.get() == 1) {
+                kept++;
+            }
+            a.disconnect();
+            b.disconnect();
+        }
+        ok &= kept == races;
+        report.printf("Name in use on another node refused: %s; simultaneous logins on two nodes settled"
+                + " to one owner: %d of %d%n", refused ? "ok" : "FAILED", kept, races);
+
+        // Stopping the last node takes its users out of everyone's roster
+        servers.get(nodes - 1).stop();
+        int remaining = (nodes - 1) * perNode;
+        List<Recorder> survivors = recorders.subList(0, remaining);
+        Checks.waitFor(() -> survivors.stream().allMatch(r -> r.rosterSize == remaining));
+        long updated = survivors.stream().filter(r -> r.rosterSize == remaining).count();
+        ok &= updated == remaining;
+        report.printf("Node %d stopped: %d of %d remaining clients see %d users%n",
+                nodes - 1, updated, remaining, remaining);
+
+        for (ClientBackend client : clients) {
+            client.disconnect();
+        }
+        for (ChatServer server : servers) {
+            server.stop();
+        }
+        Checks.finish(report, ok, "nodes share one roster and route messages between each other");
+    }
+
+    // Members of #ops (the first two clients of each node) that got the room message
+    private static int countRoom(List<Recorder> recorders, int nodes, int perNode) {
+        int count = 0;
+        for (int i = 0; i < nodes; i++) {
+            for (int j = 0; j < 2; j++) {
+                count += recorders.get(i * perNode + j).room.get();
+            }
+        }
+        return count;
+    }
+
+    // Nodes that have a client logged in under the name
+    private static int holders(List<ChatServer> servers, String name) {
+        int count = 0;
+        for (ChatServer server : servers) {
+            for (ClientConnection connection : server.getConnections()) {
+                if (name.equals(connection.getUsername())) {
+                    count++;
+                }
+            }
+        }
+        return count;
+    }
+
+    // Counts what one client receives, by kind
+    private static final class Recorder extends Checks.Recorder {
+
+        volatile int rosterSize;
+        volatile boolean inRoom;
+        final AtomicInteger direct = new AtomicInteger();
+        final AtomicInteger broadcasts = new AtomicInteger();
+        final AtomicInteger room = new AtomicInteger();
+        final AtomicInteger usernameTaken = new AtomicInteger();
+
+        @Override
+        public void onMessageReceived(String sender, String content) {
+            if ("dm".equals(content)) {
+                direct.incrementAndGet();
+            } else if ("all".equals(content)) {
+                broadcasts.incrementAndGet();
+            }
+        }
+
+        @Override
+        public void onRoomMessageReceived(String name, String sender, String content) {
+            room.incrementAndGet();
+        }
+
+        @Override
+        public void onRoomsUpdated(List<String> rooms) {
+            inRoom = rooms.contains("#ops");
+        }
+
+        @Override
+        public void onUserListUpdated(List<String> users) {
+            rosterSize = users.size();
+        }
+
+        @Override
+        public void onError(String errorCode) {
+            if ("USERNAME_TAKEN".equals(errorCode)) {
+                usernameTaken.incrementAndGet();
+            }
+        }
+    }
+}
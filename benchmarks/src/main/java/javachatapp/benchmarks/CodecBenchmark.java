@@ -0,0 +1,66 @@
+package javachatapp.benchmarks;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+import javachatapp.shared.Message;
+import javachatapp.shared.Message.MessageType;
+import javachatapp.shared.MessageCodec;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Message serialization and deserialization for both protocol versions
+ * (1 = Java serialization, 2 = binary codec): a chat line and a roster
+ * snapshot of 100 users.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class CodecBenchmark {
+
+    @Param({"1", "2"})
+    public int version;
+
+    @Param({"CHAT", "ROSTER"})
+    public String payload;
+
+    private Message message;
+    private byte[] encoded;
+
+    @Setup
+    public void setUp() throws IOException {
+        if (payload.equals("CHAT")) {
+            message = new Message(MessageType.BROADCAST, "alice", "Broadcast", "hello everyone, this is a chat line");
+        } else {
+            String[] users = new String[100];
+            for (int i = 0; i < users.length; i++) {
+                users[i] = "user" + i;
+            }
+            message = new Message(MessageType.USER_LIST, users);
+            message.setRosterVersion(42);
+        }
+        encoded = MessageCodec.encode(message, version);
+    }
+
+    @Benchmark
+    public byte[] encodeFrame() throws IOException {
+        return MessageCodec.encodeFrame(message, version);
+    }
+
+    @Benchmark
+    public Message decode() throws IOException {
+        return MessageCodec.decode(encoded, 0, encoded.length, version);
+    }
+}
@@ -0,0 +1,170 @@
+package javachatapp.benchmarks;
+
+import javachatapp.client.ChatClient;
+import javachatapp.server.ChatServer;
+import javachatapp.server.ClientConnection;
+import javachatapp.shared.Message;
+import javachatapp.shared.Message.MessageType;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * CodecMemorySoak pushes a large number of private messages through one long
+ * lived connection pair and samples the heap (after GC) along the way. With
+ * self-contained frames the per-connection codec memory must stay flat; the
+ * old ObjectOutputStream handle tables grew with every message. Then a few
+ * messages far larger than the NIO read buffer go through, and each must
+ * arrive whole.
+ *
+ * Usage: java -cp benchmarks/target/benchmarks.jar javachatapp.benchmarks.CodecMemorySoak
+ * [messages] [mode] [port]
+ */
+public class CodecMemorySoak {
+
+    // Max messages in flight. Stays below the outbound queue capacity so the
+    // soak never overruns the receiver's queue and triggers drops.
+    private static final int WINDOW = ChatServer.DEFAULT_OUTBOUND_QUEUE_CAPACITY / 2;
+
+    // Allowed heap growth between the first and the last sample
+    private static final long TOLERANCE_KB = 16 * 1024;
+
+    // Sizes (in chars) of the large messages sent after the soak
+    private static final int[] LARGE_MESSAGES = {4_000, 20_000, 100_000, 500_000};
+
+    public static void main(String[] args) throws Exception {
+        long numMessages = args.length > 0 ? Long.parseLong(args[0]) : 10_000_000L;
+        ChatServer.ServerMode mode = args.length > 1
+                ? ChatServer.ServerMode.valueOf(args[1])
+                : ChatServer.ServerMode.THREAD_PER_CLIENT;
+        int port = args.length > 2 ? Integer.parseInt(args[2]) : 5250;
+
+        // The server logs every routed message; keep stdout for the report only
+        PrintStream report = System.out;
+        System.setOut(new PrintStream(OutputStream.nullOutputStream()));
+
+        ChatServer server = new ChatServer(port, mode);
+        Checks.start(server, "soak-server");
+
+        AtomicLong received = new AtomicLong();
+        List<Integer> largeReceived = new CopyOnWriteArrayList<>();
+        ChatClient receiver = new ChatClient("localhost", port);
+        receiver.connect("receiver", new ChatClient.MessageListener() {
+            @Override
+            public void onMessageReceived(Message message) {
+                if (message.getType() == MessageType.PRIVATE_MESSAGE) {
+                    if (message.getContent().startsWith("large ")) {
+                        largeReceived.add(message.getContent().length());
+                    } else {
+                        received.incrementAndGet();
+                    }
+                }
+            }
+
+            @Override
+            public void onConnectionLost() {
+                report.println("Receiver lost connection");
+            }
+
+            @Override
+            public void onError(String errorCode) {
+                report.println("Error: " + errorCode);
+            }
+        });
+
+        ChatClient sender = new ChatClient("localhost", port);
+        sender.connect("sender", new ChatClient.MessageListener() {
+            @Override
+            public void onMessageReceived(Message message) {
+            }
+
+            @Override
+            public void onConnectionLost() {
+                report.println("Sender lost connection");
+            }
+
+            @Override
+            public void onError(String errorCode) {
+                report.println("Error: " + errorCode);
+            }
+        });
+        while (server.getClientCount() < 2) {
+            Thread.sleep(10);
+        }
+
+        long sampleEvery = Math.max(1, numMessages / 10);
+        long firstSampleKb = -1;
+        long lastSampleKb = -1;
+        long start = System.nanoTime();
+
+        for (long i = 1; i <= numMessages && sender.isConnected(); i++) {
+            while (i - received.get() > WINDOW) {
+                Thread.onSpinWait();
+            }
+            sender.sendPrivateMessage("receiver", "soak message " + i);
+
+            if (i % sampleEvery == 0) {
+                while (received.get() < i && receiver.isConnected()) {
+                    Thread.sleep(1);
+                }
+                lastSampleKb = sampleHeap(report, server, i);
+                if (firstSampleKb < 0) {
+                    firstSampleKb = lastSampleKb;
+                }
+            }
+        }
+
+        double seconds = (System.nanoTime() - start) / 1e9;
+        report.printf("Sent %d messages in %.1f s (%.0f msgs/sec)%n",
+                received.get(), seconds, received.get() / seconds);
+
+        boolean largeOk = sendLarge(report, sender, largeReceived);
+
+        sender.disconnect();
+        receiver.disconnect();
+        server.stop();
+
+        boolean flat = lastSampleKb - firstSampleKb <= TOLERANCE_KB;
+        report.printf("Heap %d KB -> %d KB (growth of at most %d KB allowed): %s%n",
+                firstSampleKb, lastSampleKb, TOLERANCE_KB, flat ? "ok" : "FAILED");
+        report.printf("Large messages arrived whole: %s%n", largeOk ? "ok" : "FAILED");
+        Checks.finish(report, flat && largeOk, "heap stayed flat and large messages arrived whole");
+    }
+
+    // Send one message of each large size and wait for all of them to arrive
+    private static boolean sendLarge(PrintStream report, ChatClient sender, List<Integer> largeReceived)
+            throws InterruptedException {
+        for (int size : LARGE_MESSAGES) {
+            StringBuilder content = new StringBuilder(size).append("large ");
+            while (content.length() < size) {
+                content.append('x');
+            }
+            sender.sendPrivateMessage("receiver", content.toString());
+        }
+        Checks.waitFor(() -> largeReceived.size() >= LARGE_MESSAGES.length);
+        boolean ok = largeReceived.size() == LARGE_MESSAGES.length;
+        for (int i = 0; i < LARGE_MESSAGES.length; i++) {
+            boolean arrived = i < largeReceived.size() && largeReceived.get(i) == LARGE_MESSAGES[i];
+            ok &= arrived;
+            report.printf("%,d char message: %s%n", LARGE_MESSAGES[i], arrived ? "arrived" : "MISSING");
+        }
+        return ok;
+    }
+
+    private static long sampleHeap(PrintStream report, ChatServer server, long sent) {
+        System.gc();
+        Runtime rt = Runtime.getRuntime();
+        long usedKb = (rt.totalMemory() - rt.freeMemory()) / 1024;
+
+        StringBuilder connections = new StringBuilder();
+        for (ClientConnection connection : server.getConnections()) {
+            connections.append(String.format(" %s[in=%d out=%d buffered=%d B]",
+                    connection.getUsername(), connection.getMessagesIn(),
+                    connection.getMessagesOut(), connection.getBufferedBytes()));
+        }
+        report.printf("%,d messages: heap used=%,d KB%s%n", sent, usedKb, connections);
+        return usedKb;
+    }
+}
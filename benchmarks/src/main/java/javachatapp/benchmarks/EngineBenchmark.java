@@ -0,0 +1,142 @@
+package javachatapp.benchmarks;
+
+import javachatapp.client.ChatClient;
+import javachatapp.server.ChatServer;
+import javachatapp.shared.Message;
+import javachatapp.shared.Message.MessageType;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * EngineBenchmark compares the server connection engines on loopback. For each
+ * ServerMode it connects N clients, counts the server threads needed to hold
+ * them and measures broadcast throughput (deliveries per second).
+ *
+ * Every engine must connect every client and deliver every broadcast at
+ * MIN_DELIVERIES_PER_SECOND or more. The NIO engine must also hold all the
+ * connections on its fixed pool of event loops, one per processor, rather
+ * than on threads that grow with the client count.
+ *
+ * Usage: java -cp benchmarks/target/benchmarks.jar javachatapp.benchmarks.EngineBenchmark
+ * [clients] [broadcasts] [basePort]
+ */
+public class EngineBenchmark {
+
+    private static final String SENDER = "bench-sender";
+
+    // Loopback fan-out runs well above this on one core; below it a broadcast is waiting on something else
+    private static final double MIN_DELIVERIES_PER_SECOND = 5_000;
+
+    public static void main(String[] args) throws Exception {
+        int numClients = args.length > 0 ? Integer.parseInt(args[0]) : 1000;
+        int numBroadcasts = args.length > 1 ? Integer.parseInt(args[1]) : 100;
+        int port = args.length > 2 ? Integer.parseInt(args[2]) : 5100;
+
+        List<String> results = new ArrayList<>();
+        boolean ok = true;
+        for (ChatServer.ServerMode mode : ChatServer.ServerMode.values()) {
+            ok &= run(mode, port++, numClients, numBroadcasts, results);
+        }
+
+        System.out.println("\n=== Engine benchmark: " + numClients + " clients, " + numBroadcasts + " broadcasts ===");
+        for (String line : results) {
+            System.out.println(line);
+        }
+        Checks.finish(System.out, ok, "every engine holds all clients and delivers every broadcast");
+    }
+
+    private static boolean run(ChatServer.ServerMode mode, int port, int numClients, int numBroadcasts,
+            List<String> results) throws InterruptedException {
+        ChatServer server = new ChatServer(port, mode);
+        Thread serverThread = new Thread(server::start, "bench-server");
+        serverThread.setDaemon(true);
+        serverThread.start();
+        while (!server.isRunning()) {
+            Thread.sleep(10);
+        }
+
+        AtomicLong delivered = new AtomicLong();
+        ChatClient.MessageListener counter = new ChatClient.MessageListener() {
+            @Override
+            public void onMessageReceived(Message message) {
+                if (message.getType() == MessageType.BROADCAST && SENDER.equals(message.getSender())) {
+                    delivered.incrementAndGet();
+                }
+            }
+
+            @Override
+            public void onConnectionLost() {
+            }
+
+            @Override
+            public void onError(String errorCode) {
+                System.err.println("Error: " + errorCode);
+            }
+        };
+
+        // Connect all clients
+        List<ChatClient> clients = new ArrayList<>();
+        long connectStart = System.nanoTime();
+        for (int i = 0; i < numClients; i++) {
+            ChatClient client = new ChatClient("localhost", port);
+            if (client.connect("bench" + i, counter)) {
+                clients.add(client);
+            }
+        }
+        while (server.getClientCount() < clients.size()) {
+            Thread.sleep(10);
+        }
+        long connectMillis = (System.nanoTime() - connectStart) / 1_000_000;
+        int serverThreads = countServerThreads();
+
+        ChatClient sender = new ChatClient("localhost", port);
+        sender.connect(SENDER, counter);
+
+        // Let the join notifications and roster updates drain
+        Thread.sleep(1000);
+
+        long expected = (long) numBroadcasts * clients.size();
+        long sendStart = System.nanoTime();
+        for (int i = 0; i < numBroadcasts; i++) {
+            sender.sendBroadcastMessage("benchmark message " + i);
+        }
+
+        long deadline = System.currentTimeMillis() + 60_000;
+        while (delivered.get() < expected && System.currentTimeMillis() < deadline) {
+            Thread.sleep(1);
+        }
+        double seconds = (System.nanoTime() - sendStart) / 1e9;
+        double rate = delivered.get() / seconds;
+
+        sender.disconnect();
+        for (ChatClient client : clients) {
+            client.disconnect();
+        }
+        server.stop();
+
+        int maxThreads = mode == ChatServer.ServerMode.NIO
+                ? Runtime.getRuntime().availableProcessors()
+                : Integer.MAX_VALUE;
+        boolean ok = clients.size() == numClients && delivered.get() == expected
+                && rate >= MIN_DELIVERIES_PER_SECOND && serverThreads <= maxThreads;
+        results.add(String.format("%-18s connected=%d/%d in %d ms, server threads=%d%s, delivered=%d/%d,"
+                + " %.0f deliveries/sec (at least %.0f): %s", mode, clients.size(), numClients, connectMillis,
+                serverThreads, maxThreads == Integer.MAX_VALUE ? "" : " (at most " + maxThreads + ")",
+                delivered.get(), expected, rate, MIN_DELIVERIES_PER_SECOND, ok ? "ok" : "FAILED"));
+        return ok;
+    }
+
+    // Threads the server engine is using to hold the connections
+    private static int countServerThreads() {
+        int count = 0;
+        for (Thread thread : Thread.getAllStackTraces().keySet()) {
+            String name = thread.getName();
+            if (name.startsWith("client-handler") || name.startsWith("client-writer")
+                    || name.startsWith("nio-loop")) {
+                count++;
+            }
+        }
+        return count;
+    }
+}
@@ -0,0 +1,67 @@
+package javachatapp.benchmarks;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+import javachatapp.server.EncodedMessage;
+import javachatapp.shared.Message;
+import javachatapp.shared.Message.MessageType;
+import javachatapp.shared.MessageCodec;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * The encoding cost of one broadcast fan-out: encoding the message
+ * separately for every recipient versus encoding it once through
+ * EncodedMessage and sharing the frame. Each operation is one broadcast to
+ * all recipients (divide by recipients for the cost per recipient); only
+ * the frame bytes are produced, so queueing and socket cost are excluded.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class FanoutBenchmark {
+
+    @Param({"10", "1000"})
+    public int recipients;
+
+    @Param({"1", "2"})
+    public int version;
+
+    private Message message;
+
+    @Setup
+    public void setUp() {
+        message = new Message(MessageType.BROADCAST, "sender", "Broadcast", "hello everyone, this is a chat line");
+    }
+
+    @Benchmark
+    public long encodePerRecipient() throws IOException {
+        long bytes = 0;
+        for (int i = 0; i < recipients; i++) {
+            bytes += MessageCodec.encodeFrame(message, version).length;
+        }
+        return bytes;
+    }
+
+    @Benchmark
+    public long encodeOnce() throws IOException {
+        EncodedMessage encoded = new EncodedMessage(message);
+        long bytes = 0;
+        for (int i = 0; i < recipients; i++) {
+            bytes += encoded.frameBytes(version).length;
+        }
+        return bytes;
+    }
+}
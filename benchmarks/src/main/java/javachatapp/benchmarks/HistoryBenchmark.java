@@ -0,0 +1,217 @@
+package javachatapp.benchmarks;
+
+import javachatapp.server.HistoryStore;
+import javachatapp.shared.Message;
+import javachatapp.shared.Message.MessageType;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.Stream;
+
+/**
+ * HistoryBenchmark measures what HistoryStore.append() costs the routing
+ * threads and how well the writer batches, then checks the stored history:
+ * every message readable in order while writes continue, recovery after a
+ * restart with a torn last record, and size-based retention. It fails if an
+ * append costs the caller more than MAX_APPEND_NANOS on average or the
+ * writer commits fewer than MIN_BATCH messages per write.
+ *
+ * Usage: java -cp benchmarks/target/benchmarks.jar javachatapp.benchmarks.HistoryBenchmark
+ * [threads] [messagesPerThread] [fsync]
+ */
+public class HistoryBenchmark {
+
+    // An append only hands the message to the writer thread; a disk write, let alone an fsync, is far slower
+    private static final double MAX_APPEND_NANOS = 10_000;
+
+    // Appenders outrun the disk, so every group commit should carry a batch
+    private static final double MIN_BATCH = 10;
+
+    public static void main(String[] args) throws Exception {
+        int threads = args.length > 0 ? Integer.parseInt(args[0]) : 4;
+        int perThread = args.length > 1 ? Integer.parseInt(args[1]) : 10_000;
+        boolean fsync = args.length > 2 ? Boolean.parseBoolean(args[2]) : true;
+
+        File dir = Files.createTempDirectory("chat-history").toFile();
+        boolean ok = true;
+        try {
+            ok &= appendAndRead(new File(dir, "main"), threads, perThread, fsync);
+            ok &= recovery(new File(dir, "main"));
+            ok &= retention(new File(dir, "retention"));
+        } finally {
+            delete(dir);
+        }
+        Checks.finish(System.out, ok, "appends do not wait for the disk; history complete, ordered and recoverable");
+    }
+
+    // Routing threads append while a reader keeps reading the tail
+    private static boolean appendAndRead(File dir, int threads, int perThread, boolean fsync) throws Exception {
+        HistoryStore store = new HistoryStore(dir, 1024 * 1024, Long.MAX_VALUE, Long.MAX_VALUE, fsync);
+        store.start();
+
+        AtomicBoolean writing = new AtomicBoolean(true);
+        AtomicLong tailReads = new AtomicLong();
+        AtomicBoolean readerOk = new AtomicBoolean(true);
+        Thread reader = new Thread(() -> {
+            while (writing.get()) {
+                try {
+                    // A tail is a contiguous run of offsets, never a partial batch
+                    List<HistoryStore.Record> tail = store.readTail(50);
+                    for (int i = 1; i < tail.size(); i++) {
+                        if (tail.get(i).getOffset() != tail.get(i - 1).getOffset() + 1) {
+                            readerOk.set(false);
+                        }
+                    }
+                    tailReads.incrementAndGet();
+                } catch (IOException e) {
+                    System.out.println("Tail read failed: " + e);
+                    readerOk.set(false);
+                }
+            }
+        }, "history-tail-reader");
+        reader.start();
+
+        CountDownLatch start = new CountDownLatch(1);
+        List<Thread> writers = new ArrayList<>();
+        for (int t = 0; t < threads; t++) {
+            String sender = "t" + t;
+            Thread writer = new Thread(() -> {
+                try {
+                    start.await();
+                } catch (InterruptedException e) {
+                    return;
+                }
+                for (int i = 0; i < perThread; i++) {
+                    store.append(new Message(MessageType.BROADCAST, sender, "Broadcast", Integer.toString(i)));
+                }
+            }, "history-appender-" + t);
+            writer.start();
+            writers.add(writer);
+        }
+        long begin = System.nanoTime();
+        start.countDown();
+        for (Thread writer : writers) {
+            writer.join();
+        }
+        double appendNanos = (double) (System.nanoTime() - begin) / ((long) threads * perThread);
+
+        long expected = (long) threads * perThread - store.getDroppedCount();
+        while (store.getEndOffset() < expected) {
+            Thread.sleep(5);
+        }
+        double commitSeconds = (System.nanoTime() - begin) / 1e9;
+        writing.set(false);
+        reader.join();
+
+        double perCommit = (double) expected / Math.max(1, store.getBatchCount());
+        boolean fast = appendNanos <= MAX_APPEND_NANOS && perCommit >= MIN_BATCH;
+        System.out.printf("%d threads x %,d appends (fsync=%b): %.0f ns/append on the caller (limit %.0f),"
+                + " all stored after %.2f s (%,.0f msg/s)%n", threads, perThread, fsync, appendNanos, MAX_APPEND_NANOS,
+                commitSeconds, expected / commitSeconds);
+        System.out.printf("  %,d group commits (%.1f messages each, at least %.0f expected, largest %d), %,d dropped,"
+                + " %d segments, %,d bytes, %,d tail reads while writing: %s%n", store.getBatchCount(), perCommit,
+                MIN_BATCH, store.getLargestBatch(), store.getDroppedCount(), store.getSegmentCount(),
+                store.getSizeBytes(), tailReads.get(), fast ? "ok" : "TOO SLOW");
+
+        // Every offset once, every sender's messages in the order it sent them
+        // (a full queue may drop some, which is counted above, but never reorders)
+        boolean ok = fast && readerOk.get();
+        int[] next = new int[threads];
+        long offset = 0;
+        long readStart = System.nanoTime();
+        while (offset < store.getEndOffset()) {
+            List<HistoryStore.Record> page = store.read(offset, 1000);
+            for (HistoryStore.Record record : page) {
+                Message message = record.getMessage();
+                int t = Integer.parseInt(message.getSender().substring(1));
+                ok &= record.getOffset() == offset++;
+                int sequence = Integer.parseInt(message.getContent());
+                ok &= sequence >= next[t];
+                next[t] = sequence + 1;
+            }
+        }
+        ok &= offset == expected;
+        System.out.printf("  read back %,d messages in %.0f ms: %s%n", offset,
+                (System.nanoTime() - readStart) / 1e6, ok ? "complete and in order" : "MISSING OR OUT OF ORDER");
+        store.close();
+        return ok;
+    }
+
+    // Reopen after appending half a record to the active segment
+    private static boolean recovery(File dir) throws IOException {
+        HistoryStore before = new HistoryStore(dir);
+        long end = before.getEndOffset();
+        HistoryStore.Record last = before.read(end - 1, 1).get(0);
+        before.close();
+
+        File[] logs = dir.listFiles((d, name) -> name.endsWith(".log"));
+        File active = logs[0];
+        for (File log : logs) {
+            if (log.getName().compareTo(active.getName()) > 0) {
+                active = log;
+            }
+        }
+        try (FileOutputStream out = new FileOutputStream(active, true)) {
+            out.write(new byte[] {0, 0, 0, 100, 1, 2, 3, 4, 5, 6, 7});
+        }
+
+        long openStart = System.nanoTime();
+        HistoryStore after = new HistoryStore(dir);
+        double openMillis = (System.nanoTime() - openStart) / 1e6;
+        HistoryStore.Record recovered = after.read(end - 1, 1).get(0);
+        boolean ok = after.getEndOffset() == end
+                && recovered.getMessage().getContent().equals(last.getMessage().getContent())
+                && recovered.getMessage().getSender().equals(last.getMessage().getSender());
+        after.start();
+        after.append(new Message(MessageType.BROADCAST, "late", "Broadcast", "after restart"));
+        after.close();
+        HistoryStore reopened = new HistoryStore(dir);
+        ok &= reopened.getEndOffset() == end + 1
+                && reopened.read(end, 1).get(0).getMessage().getContent().equals("after restart");
+        reopened.close();
+        System.out.printf("Recovery: reopened %,d messages in %.1f ms, torn tail cut off, appends continue: %s%n",
+                end, openMillis, ok ? "ok" : "FAILED");
+        return ok;
+    }
+
+    // Small segments and a small size limit: old segments go, reads start at the oldest kept
+    private static boolean retention(File dir) throws Exception {
+        long segmentBytes = 64 * 1024;
+        long retentionBytes = 256 * 1024;
+        HistoryStore store = new HistoryStore(dir, segmentBytes, retentionBytes, Long.MAX_VALUE, false);
+        store.start();
+        int total = 20_000;
+        for (int i = 0; i < total; i++) {
+            while (!store.append(new Message(MessageType.BROADCAST, "r", "Broadcast", "retained message " + i))) {
+                Thread.sleep(1);
+            }
+        }
+        while (store.getEndOffset() < total) {
+            Thread.sleep(5);
+        }
+        List<HistoryStore.Record> oldest = store.read(0, 1);
+        boolean ok = store.getSizeBytes() <= retentionBytes + segmentBytes
+                && store.getStartOffset() > 0
+                && oldest.get(0).getOffset() == store.getStartOffset()
+                && store.readTail(1).get(0).getMessage().getContent().equals("retained message " + (total - 1));
+        System.out.printf("Retention: %,d messages, kept offsets %,d to %,d in %d segments (%,d bytes, limit %,d): %s%n",
+                total, store.getStartOffset(), store.getEndOffset(), store.getSegmentCount(), store.getSizeBytes(),
+                retentionBytes, ok ? "ok" : "FAILED");
+        store.close();
+        return ok;
+    }
+
+    private static void delete(File dir) throws IOException {
+        try (Stream<Path> paths = Files.walk(dir.toPath())) {
+            paths.sorted(Comparator.reverseOrder()).map(Path::toFile).forEach(File::delete);
+        }
+    }
+}
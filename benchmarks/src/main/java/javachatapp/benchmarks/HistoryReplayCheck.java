@@ -0,0 +1,181 @@
+package javachatapp.benchmarks;
+
+import javachatapp.client.ClientBackend;
+import javachatapp.server.ChatServer;
+import javachatapp.server.HistoryStore;
+import javachatapp.shared.Message;
+import javachatapp.shared.Message.MessageType;
+import java.io.File;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+
+/**
+ * HistoryReplayCheck fills a server's history with broadcasts and a few
+ * private messages, then checks what clients get back: a joining client
+ * receives the last K broadcasts in order, paging backwards returns every
+ * older broadcast exactly once and no private message, and a storm of joins
+ * is served from one shared replay and the tail cache rather than a disk
+ * read per client.
+ *
+ * Usage: java -cp benchmarks/target/benchmarks.jar javachatapp.benchmarks.HistoryReplayCheck
+ * [messages] [joiningClients] [mode] [port]
+ */
+public class HistoryReplayCheck {
+
+    // Long enough that a replay spans several HISTORY_PAGE frames
+    private static final String PADDING = "x".repeat(600);
+
+    public static void main(String[] args) throws Exception {
+        int messages = args.length > 0 ? Integer.parseInt(args[0]) : 500;
+        int joining = args.length > 1 ? Integer.parseInt(args[1]) : 200;
+        ChatServer.ServerMode mode = args.length > 2
+                ? ChatServer.ServerMode.valueOf(args[2])
+                : ChatServer.ServerMode.NIO;
+        int port = args.length > 3 ? Integer.parseInt(args[3]) : 5291;
+
+        PrintStream report = System.out;
+        System.setOut(new PrintStream(OutputStream.nullOutputStream()));
+
+        File dir = Files.createTempDirectory("chat-replay").toFile();
+        ChatServer server = new ChatServer(port, mode);
+        server.setHistoryDirectory(dir);
+        Checks.start(server, "replay-check-server");
+        int replayCount = server.getHistoryReplayCount();
+        boolean ok = true;
+
+        try {
+            // Fill the history: broadcasts from one client, every tenth followed by a private message
+            Recorder peer = new Recorder();
+            ClientBackend sender = new ClientBackend();
+            ClientBackend receiver = new ClientBackend();
+            sender.connect("localhost", port, "sender", new Recorder());
+            receiver.connect("localhost", port, "peer", peer);
+            for (int i = 0; i < messages; i++) {
+                sender.sendMessage("Broadcast", "message " + i + " " + PADDING);
+                if (i % 10 == 0) {
+                    sender.sendMessage("peer", "private " + i);
+                }
+            }
+            HistoryStore store = server.getHistory();
+            long expected = messages + (messages + 9) / 10;
+            Checks.waitFor(() -> store.getEndOffset() >= expected);
+            report.printf("History holds %,d messages (%,d broadcasts)%n", store.getEndOffset(), messages);
+
+            // A new client gets the last K broadcasts, oldest first
+            Recorder reader = new Recorder();
+            ClientBackend client = new ClientBackend();
+            client.connect("localhost", port, "reader", reader);
+            List<Message> replayed = reader.pages.poll(5, TimeUnit.SECONDS);
+            int first = messages - Math.min(replayCount, messages);
+            boolean replayOk = replayed != null && inOrder(replayed, first, messages);
+            report.printf("Join replay: %d messages, %d..%d expected: %s%n",
+                    replayed == null ? 0 : replayed.size(), first, messages - 1, replayOk ? "ok" : "FAILED");
+            ok &= replayOk;
+
+            // Page backwards until the start of the history
+            int end = first;
+            int pageCount = 0;
+            boolean pagesOk = true;
+            while (client.hasOlderHistory()) {
+                if (!client.requestOlderHistory()) {
+                    pagesOk = false;
+                    break;
+                }
+                List<Message> page = reader.pages.poll(5, TimeUnit.SECONDS);
+                if (page == null || page.isEmpty()) {
+                    pagesOk = false;
+                    break;
+                }
+                pagesOk &= inOrder(page, end - page.size(), end);
+                end -= page.size();
+                pageCount++;
+            }
+            pagesOk &= end == 0;
+            report.printf("Paging back: %d pages down to message %d, no private messages: %s%n",
+                    pageCount, end, pagesOk ? "ok" : "FAILED");
+            ok &= pagesOk;
+
+            // Join storm: every client gets the same replay, built once
+            long builtBefore = server.getHistoryReplaysBuilt();
+            long diskBefore = store.getDiskReads();
+            long framesBefore = server.getMetrics().getMessagesOut(MessageType.HISTORY_PAGE);
+            List<ClientBackend> storm = new ArrayList<>();
+            List<Recorder> stormRecorders = new ArrayList<>();
+            long stormStart = System.nanoTime();
+            for (int i = 0; i < joining; i++) {
+                Recorder recorder = new Recorder();
+                ClientBackend joiner = new ClientBackend();
+                if (joiner.connect("localhost", port, "join" + i, recorder)) {
+                    storm.add(joiner);
+                    stormRecorders.add(recorder);
+                }
+            }
+            int complete = 0;
+            for (Recorder recorder : stormRecorders) {
+                List<Message> page = recorder.pages.poll(10, TimeUnit.SECONDS);
+                if (page != null && inOrder(page, first, messages)) {
+                    complete++;
+                }
+            }
+            double stormMillis = (System.nanoTime() - stormStart) / 1e6;
+            long built = server.getHistoryReplaysBuilt() - builtBefore;
+            long diskReads = store.getDiskReads() - diskBefore;
+            long frames = server.getMetrics().getMessagesOut(MessageType.HISTORY_PAGE) - framesBefore;
+            report.printf("Join storm: %d clients replayed in %.0f ms, %d complete, %d frames (%.1f per client),"
+                    + " replay built %d times, %d disk reads%n", storm.size(), stormMillis, complete, frames,
+                    (double) frames / Math.max(1, storm.size()), built, diskReads);
+            ok &= complete == storm.size() && built <= 1 && diskReads == 0;
+
+            report.printf("History reads: %,d from the tail cache, %,d from disk%n",
+                    store.getCacheReads(), store.getDiskReads());
+
+            for (ClientBackend joiner : storm) {
+                joiner.disconnect();
+            }
+            client.disconnect();
+            sender.disconnect();
+            receiver.disconnect();
+        } finally {
+            server.stop();
+            try (Stream<Path> paths = Files.walk(dir.toPath())) {
+                paths.sorted(Comparator.reverseOrder()).map(Path::toFile).forEach(File::delete);
+            }
+        }
+        Checks.finish(report, ok, "replay and paging return the stored broadcasts in order");
+    }
+
+    // Broadcasts "message from" .. "message (to - 1)", nothing else
+    private static boolean inOrder(List<Message> page, int from, int to) {
+        if (page.size() != to - from) {
+            return false;
+        }
+        for (int i = 0; i < page.size(); i++) {
+            Message message = page.get(i);
+            if (message.getType() != MessageType.BROADCAST
+                    || !message.getContent().startsWith("message " + (from + i) + " ")) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    // Collects history pages
+    private static final class Recorder extends Checks.Recorder {
+
+        final BlockingQueue<List<Message>> pages = new LinkedBlockingQueue<>();
+
+        @Override
+        public void onHistoryReceived(List<Message> messages, boolean older) {
+            pages.add(messages);
+        }
+    }
+}
@@ -0,0 +1,102 @@
+package javachatapp.benchmarks;
+
+import javachatapp.server.ChatServer;
+import javachatapp.shared.MessageCodec;
+import javachatapp.shared.VirtualThreads;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * IdleConnectionSoak holds a large number of idle connections against a server
+ * on loopback and checks that the server keeps all of them open. The client
+ * side uses plain SocketChannels (no thread per connection) so only the
+ * server's threads are being measured.
+ *
+ * The connections complete the protocol handshake but do not log in, so the
+ * soak measures the cost of holding sockets and handler threads without the
+ * roster traffic a login storm would create.
+ *
+ * It fails if a connection cannot be opened or is dropped, and, for the NIO
+ * engine and for virtual threads where the JVM has them, if the platform
+ * thread count grows by more than MAX_PLATFORM_THREAD_GROWTH while holding
+ * the connections.
+ *
+ * Usage: java -cp benchmarks/target/benchmarks.jar javachatapp.benchmarks.IdleConnectionSoak
+ * [connections] [seconds] [mode] [port]
+ * (raise the open file limit first, e.g. ulimit -n 120000)
+ */
+public class IdleConnectionSoak {
+
+    // Event loops and the server's own timers; a thread per connection would exceed this at once
+    private static final int MAX_PLATFORM_THREAD_GROWTH = 64;
+
+    public static void main(String[] args) throws Exception {
+        int numConnections = args.length > 0 ? Integer.parseInt(args[0]) : 50_000;
+        int holdSeconds = args.length > 1 ? Integer.parseInt(args[1]) : 60;
+        ChatServer.ServerMode mode = args.length > 2
+                ? ChatServer.ServerMode.valueOf(args[2])
+                : ChatServer.ServerMode.VIRTUAL_THREADS;
+        int port = args.length > 3 ? Integer.parseInt(args[3]) : 5200;
+
+        // Thread-per-client, and virtual threads on a JVM without them, use a platform thread per connection
+        boolean fixedThreads = mode == ChatServer.ServerMode.NIO
+                || (mode == ChatServer.ServerMode.VIRTUAL_THREADS && VirtualThreads.isSupported());
+        int threadsBefore = ManagementFactory.getThreadMXBean().getThreadCount();
+
+        ChatServer server = new ChatServer(port, mode);
+        Checks.start(server, "soak-server");
+
+        List<SocketChannel> channels = new ArrayList<>(numConnections);
+        ByteBuffer handshake = ByteBuffer.wrap(new byte[]{(byte) MessageCodec.PROTOCOL_VERSION});
+        long start = System.nanoTime();
+        try {
+            for (int i = 0; i < numConnections; i++) {
+                SocketChannel channel = SocketChannel.open(new InetSocketAddress("localhost", port));
+                handshake.rewind();
+                channel.write(handshake);
+                channels.add(channel);
+            }
+        } catch (IOException e) {
+            System.err.println("Stopped opening connections after " + channels.size() + ": " + e.getMessage());
+        }
+        System.out.printf("Opened %d of %d connections in %d ms%n",
+                channels.size(), numConnections, (System.nanoTime() - start) / 1_000_000);
+
+        boolean ok = channels.size() == numConnections;
+        int maxGrowth = 0;
+        long end = System.currentTimeMillis() + holdSeconds * 1000L;
+        while (System.currentTimeMillis() < end) {
+            Thread.sleep(5000);
+            int held = server.getConnectionCount();
+            int platformThreads = printStats(mode, held);
+            maxGrowth = Math.max(maxGrowth, platformThreads - threadsBefore);
+            if (held < channels.size()) {
+                ok = false;
+            }
+        }
+        if (fixedThreads) {
+            System.out.printf("Platform threads grew by at most %d (limit %d)%n", maxGrowth, MAX_PLATFORM_THREAD_GROWTH);
+            ok &= maxGrowth <= MAX_PLATFORM_THREAD_GROWTH;
+        }
+
+        for (SocketChannel channel : channels) {
+            channel.close();
+        }
+        server.stop();
+        Checks.finish(System.out, ok, "all connections held");
+    }
+
+    private static int printStats(ChatServer.ServerMode mode, int held) {
+        Runtime rt = Runtime.getRuntime();
+        long usedMb = (rt.totalMemory() - rt.freeMemory()) / (1024 * 1024);
+        int platformThreads = ManagementFactory.getThreadMXBean().getThreadCount();
+        System.out.printf("[%s] connections held=%d, platform threads=%d, heap used=%d MB%n",
+                mode, held, platformThreads, usedMb);
+        return platformThreads;
+    }
+}
@@ -0,0 +1,47 @@
+package javachatapp.benchmarks;
+
+import javachatapp.server.ChatServer;
+import javachatapp.server.ClientConnection;
+import javachatapp.server.OutboundQueue;
+import javachatapp.shared.MessageCodec;
+
+/**
+ * Connection stand-in whose "writer" drains the outbound queue as soon as a
+ * frame is queued and discards it. A send therefore costs what it
+ * costs on a real connection (encode or cache hit, queue offer, metrics)
+ * minus the socket write, and the queue never backs up.
+ */
+class InMemoryConnection extends ClientConnection {
+
+    InMemoryConnection(ChatServer server, String username, int protocolVersion) {
+        super(server);
+        this.username = username;
+        this.protocolVersion = protocolVersion;
+    }
+
+    InMemoryConnection(ChatServer server, String username) {
+        this(server, username, MessageCodec.PROTOCOL_VERSION);
+    }
+
+    @Override
+    protected void onQueued() {
+        OutboundQueue.Entry entry;
+        while ((entry = outbound.poll()) != null) {
+            recordFrameOut(entry);
+        }
+    }
+
+    @Override
+    protected void closeTransport() {
+    }
+
+    @Override
+    public long getBufferedBytes() {
+        return 0;
+    }
+
+    @Override
+    protected String getRemoteAddress() {
+        return "in-memory";
+    }
+}
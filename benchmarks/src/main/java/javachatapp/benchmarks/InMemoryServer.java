@@ -0,0 +1,35 @@
+package javachatapp.benchmarks;
+
+import javachatapp.server.ChatServer;
+import javachatapp.shared.Log;
+
+/**
+ * Builds a ChatServer that is never started, populated with in-memory
+ * connections. The server's timer thread still runs, so presence batching
+ * works as it does on a live server.
+ */
+final class InMemoryServer {
+
+    // Long enough that a whole population joins within one presence window
+    private static final long SETUP_PRESENCE_WINDOW_MILLIS = 500;
+
+    private InMemoryServer() {
+    }
+
+    /**
+     * A server with users "user0".."user{n-1}" connected and the roster
+     * published to all of them
+     */
+    static ChatServer withUsers(int users) throws InterruptedException {
+        Log.setLevel(Log.Level.WARN);
+        ChatServer server = new ChatServer(0);
+        server.setPresenceWindow(SETUP_PRESENCE_WINDOW_MILLIS);
+        for (int i = 0; i < users; i++) {
+            server.addClient("user" + i, new InMemoryConnection(server, "user" + i));
+        }
+        // The last join's window closes at most one window after the loop
+        Thread.sleep(2 * SETUP_PRESENCE_WINDOW_MILLIS);
+        server.setPresenceWindow(ChatServer.DEFAULT_PRESENCE_WINDOW_MILLIS);
+        return server;
+    }
+}
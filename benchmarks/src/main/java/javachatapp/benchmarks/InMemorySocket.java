@@ -0,0 +1,46 @@
+package javachatapp.benchmarks;
+
+import java.io.ByteArrayInputStream;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.Socket;
+
+/**
+ * Socket stand-in for ClientHandler: reads a prepared byte stream (handshake
+ * and frames) and discards everything written to it.
+ */
+class InMemorySocket extends Socket {
+
+    private final InputStream in;
+    private volatile boolean closed;
+
+    InMemorySocket(byte[] input) {
+        this.in = new ByteArrayInputStream(input);
+    }
+
+    @Override
+    public InputStream getInputStream() {
+        return in;
+    }
+
+    @Override
+    public OutputStream getOutputStream() {
+        return OutputStream.nullOutputStream();
+    }
+
+    @Override
+    public InetAddress getInetAddress() {
+        return InetAddress.getLoopbackAddress();
+    }
+
+    @Override
+    public synchronized void close() {
+        closed = true;
+    }
+
+    @Override
+    public boolean isClosed() {
+        return closed;
+    }
+}
@@ -0,0 +1,161 @@
+package javachatapp.benchmarks;
+
+import javachatapp.client.ClientBackend;
+import javachatapp.server.ChatServer;
+import javachatapp.server.ClientConnection;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * JoinStormBenchmark connects N clients as fast as possible (a reconnect
+ * storm after a deploy), waits until every client's roster shows all N
+ * users, then disconnects half of them and waits again. It runs once with
+ * presence batching off (window 0) and once with the given window, and
+ * reports the presence traffic the clients received: roster updates, join
+ * and leave notifications, and the bytes the server sent during the joins.
+ * Every roster must converge both times, and batching must cut the presence
+ * frames per client by at least MIN_REDUCTION.
+ *
+ * Usage: java -cp benchmarks/target/benchmarks.jar javachatapp.benchmarks.JoinStormBenchmark
+ * [users] [mode] [basePort] [windowMillis]
+ */
+public class JoinStormBenchmark {
+
+    // Unbatched, every client gets a frame per join and leave; a window folds a storm into a few
+    private static final double MIN_REDUCTION = 10;
+
+    public static void main(String[] args) throws Exception {
+        int numUsers = args.length > 0 ? Integer.parseInt(args[0]) : 2000;
+        ChatServer.ServerMode mode = args.length > 1
+                ? ChatServer.ServerMode.valueOf(args[1])
+                : ChatServer.ServerMode.NIO;
+        int port = args.length > 2 ? Integer.parseInt(args[2]) : 5270;
+        long window = args.length > 3 ? Long.parseLong(args[3]) : ChatServer.DEFAULT_PRESENCE_WINDOW_MILLIS;
+
+        // The server logs every join; keep stdout for the report only
+        PrintStream report = System.out;
+        System.setOut(new PrintStream(OutputStream.nullOutputStream()));
+
+        Result unbatched = run(report, mode, port, numUsers, 0);
+        Result batched = run(report, mode, port + 1, numUsers, window);
+
+        double reduction = unbatched.framesPerClient() / Math.max(1e-9, batched.framesPerClient());
+        report.printf("%nPresence frames per client: %.1f -> %.1f (%.0fx fewer, at least %.0fx expected),"
+                + " join storm bytes %,d -> %,d%n", unbatched.framesPerClient(), batched.framesPerClient(),
+                reduction, MIN_REDUCTION, unbatched.bytesOut, batched.bytesOut);
+        Checks.finish(report, unbatched.converged && batched.converged && reduction >= MIN_REDUCTION,
+                "all rosters converged and batching cut the presence traffic");
+    }
+
+    private static Result run(PrintStream report, ChatServer.ServerMode mode, int port, int numUsers, long window)
+            throws InterruptedException {
+        ChatServer server = new ChatServer(port, mode);
+        server.setPresenceWindow(window);
+        Checks.start(server, "storm-server");
+
+        AtomicLong rosterUpdates = new AtomicLong();
+        AtomicLong notifications = new AtomicLong();
+        ClientBackend.MessageHandler counter = new Checks.Recorder() {
+            @Override
+            public void onMessageReceived(String sender, String content) {
+                if ("System".equals(sender)) {
+                    notifications.incrementAndGet();
+                }
+            }
+
+            @Override
+            public void onUserListUpdated(List<String> users) {
+                rosterUpdates.incrementAndGet();
+            }
+
+            @Override
+            public void onError(String errorCode) {
+                report.println("Error: " + errorCode);
+            }
+        };
+
+        // Join storm
+        long start = System.nanoTime();
+        List<ClientBackend> clients = new ArrayList<>();
+        for (int i = 0; i < numUsers; i++) {
+            ClientBackend client = new ClientBackend();
+            if (client.connect("localhost", port, "storm" + i, counter)) {
+                clients.add(client);
+            }
+        }
+        boolean converged = awaitRosters(clients, clients.size());
+        double joinSeconds = (System.nanoTime() - start) / 1e9;
+
+        // Bytes sent during the join storm (leavers take their counters with them)
+        long bytesOut = 0;
+        for (ClientConnection connection : server.getConnections()) {
+            bytesOut += connection.getBytesOut();
+        }
+
+        // Leave storm: half of the clients disconnect
+        List<ClientBackend> leaving = clients.subList(0, clients.size() / 2);
+        List<ClientBackend> staying = new ArrayList<>(clients.subList(clients.size() / 2, clients.size()));
+        start = System.nanoTime();
+        for (ClientBackend client : leaving) {
+            client.disconnect();
+        }
+        converged &= awaitRosters(staying, staying.size());
+        double leaveSeconds = (System.nanoTime() - start) / 1e9;
+
+        for (ClientBackend client : staying) {
+            client.disconnect();
+        }
+        server.stop();
+
+        Result result = new Result(clients.size(), rosterUpdates.get(), notifications.get(), bytesOut, converged);
+        report.printf("%s window=%d ms: %d users joined in %.2f s, %d left in %.2f s | roster updates=%,d"
+                + " notifications=%,d (%.1f frames per client) | join storm sent %,d bytes | %s%n",
+                mode, window, clients.size(), joinSeconds, leaving.size(), leaveSeconds,
+                result.rosterUpdates, result.notifications, result.framesPerClient(), bytesOut,
+                converged ? "converged" : "NOT converged");
+        return result;
+    }
+
+    // Wait until every client's roster shows the expected number of users
+    private static boolean awaitRosters(List<ClientBackend> clients, int expected) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 120_000;
+        while (System.currentTimeMillis() < deadline) {
+            boolean done = true;
+            for (ClientBackend client : clients) {
+                if (client.getConnectedUsers().size() != expected) {
+                    done = false;
+                    break;
+                }
+            }
+            if (done) {
+                return true;
+            }
+            Thread.sleep(50);
+        }
+        return false;
+    }
+
+    private static class Result {
+
+        final int clients;
+        final long rosterUpdates;
+        final long notifications;
+        final long bytesOut;
+        final boolean converged;
+
+        Result(int clients, long rosterUpdates, long notifications, long bytesOut, boolean converged) {
+            this.clients = clients;
+            this.rosterUpdates = rosterUpdates;
+            this.notifications = notifications;
+            this.bytesOut = bytesOut;
+            this.converged = converged;
+        }
+
+        double framesPerClient() {
+            return clients == 0 ? 0 : (double) (rosterUpdates + notifications) / clients;
+        }
+    }
+}
@@ -0,0 +1,144 @@
+package javachatapp.benchmarks;
+
+import javachatapp.shared.Log;
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+
+/**
+ * LoggingBenchmark measures what the per-message log line in routeMessage
+ * costs the calling thread: the old System.out.println with string
+ * concatenation, Log.debug() while DEBUG is disabled, and Log.debug() while
+ * enabled (queued for the drainer thread). Output goes to a temporary file
+ * through a PrintStream set up like System.out, which the println path
+ * writes to directly and Log is given with Log.setOutput().
+ *
+ * Enabled logging is measured twice. A flood outruns the drainer, so most
+ * entries are dropped: it reports the caller's cost and the entries
+ * actually written per second. The drained run writes one ring at a time
+ * and waits for the drainer in between, so nothing is dropped and its
+ * figure is the cost of an entry that reaches the file.
+ *
+ * It fails if a disabled Log.debug() costs more than MAX_DISABLED_NANOS, an
+ * enabled one costs the caller more than MAX_ENABLED_NANOS in the flood, or
+ * the drained run drops or fails to write any entry.
+ *
+ * Usage: java -cp benchmarks/target/benchmarks.jar javachatapp.benchmarks.LoggingBenchmark
+ * [threads] [callsPerThread]
+ */
+public class LoggingBenchmark {
+
+    // A disabled call is one volatile read of the level
+    private static final double MAX_DISABLED_NANOS = 20;
+    private static final int DISABLED_RUNS = 5;
+
+    // An enabled call claims a ring slot and stores four references; formatting happens on the drainer
+    private static final double MAX_ENABLED_NANOS = 1_000;
+
+    private interface Call {
+        void run(String sender, String recipient);
+    }
+
+    public static void main(String[] args) throws Exception {
+        int threads = args.length > 0 ? Integer.parseInt(args[0]) : 4;
+        int calls = args.length > 1 ? Integer.parseInt(args[1]) : 500_000;
+
+        File file = File.createTempFile("chat-log-bench", ".log");
+        file.deleteOnExit();
+        PrintStream sink = new PrintStream(new BufferedOutputStream(new FileOutputStream(file), 128), true);
+        Log.setOutput(sink);
+
+        Call println = (sender, recipient) -> sink.println("Message routed from " + sender + " to " + recipient);
+        Call logDebug = (sender, recipient) -> Log.debug("Message routed from {} to {}", sender, recipient);
+
+        // Warm up every path once, the disabled level included
+        Log.setLevel(Log.Level.DEBUG);
+        run(threads, calls / 10, println);
+        run(threads, calls / 10, logDebug);
+        Log.flush(10_000);
+        Log.setLevel(Log.Level.INFO);
+        run(threads, calls / 10, logDebug);
+
+        System.out.printf("%d threads x %,d calls%n", threads, calls);
+
+        double nanos = run(threads, calls, println);
+        System.out.printf("%-28s %8.1f ns/call%n", "System.out.println", nanos);
+
+        Log.setLevel(Log.Level.INFO);
+        // A run this short is easily skewed by a JIT compile or a context switch: keep the best of a few
+        nanos = Double.MAX_VALUE;
+        for (int i = 0; i < DISABLED_RUNS; i++) {
+            nanos = Math.min(nanos, run(threads, calls, logDebug));
+        }
+        boolean ok = nanos <= MAX_DISABLED_NANOS;
+        System.out.printf("%-28s %8.1f ns/call (best of %d, limit %.0f)%n", "Log.debug (disabled)", nanos, DISABLED_RUNS, MAX_DISABLED_NANOS);
+
+        Log.setLevel(Log.Level.DEBUG);
+        long total = (long) threads * calls;
+        long droppedBefore = Log.getDroppedCount();
+        long start = System.nanoTime();
+        nanos = run(threads, calls, logDebug);
+        boolean drained = Log.flush(60_000);
+        double seconds = (System.nanoTime() - start) / 1e9;
+        long dropped = Log.getDroppedCount() - droppedBefore;
+        ok &= nanos <= MAX_ENABLED_NANOS;
+        System.out.printf("%-28s %8.1f ns/call (limit %.0f; %,d of %,d entries written, %,.0f/s%s)%n",
+                "Log.debug (enabled, flood)", nanos, MAX_ENABLED_NANOS, total - dropped, total,
+                (total - dropped) / seconds, drained ? "" : ", NOT fully drained");
+
+        // Rounds that fit the ring, each written out before the next
+        int perRound = Math.max(1, Log.getCapacity() / threads);
+        droppedBefore = Log.getDroppedCount();
+        long written = 0;
+        start = System.nanoTime();
+        for (int done = 0; done < calls; done += perRound) {
+            int round = Math.min(perRound, calls - done);
+            run(threads, round, logDebug);
+            drained &= Log.flush(60_000);
+            written += (long) threads * round;
+        }
+        seconds = (System.nanoTime() - start) / 1e9;
+        dropped = Log.getDroppedCount() - droppedBefore;
+        System.out.printf("%-28s %8.1f ns/entry (%,d entries written, %,.0f/s, %,d dropped%s)%n",
+                "Log.debug (enabled, drained)", seconds * 1e9 / written, written - dropped,
+                (written - dropped) / seconds, dropped, drained ? "" : ", NOT fully drained");
+        ok &= drained && dropped == 0;
+
+        Log.setOutput(null);
+        sink.close();
+        Checks.finish(System.out, ok, "logging stays off the caller's path and the drained run keeps every entry");
+    }
+
+    // Run the call on every thread, return wall-clock nanoseconds per call
+    private static double run(int threads, int calls, Call call) throws InterruptedException {
+        CountDownLatch start = new CountDownLatch(1);
+        List<Thread> workers = new ArrayList<>();
+
+        for (int t = 0; t < threads; t++) {
+            int id = t;
+            Thread worker = new Thread(() -> {
+                String sender = "user" + id;
+                try {
+                    start.await();
+                } catch (InterruptedException e) {
+                    return;
+                }
+                for (int i = 0; i < calls; i++) {
+                    call.run(sender, "recipient");
+                }
+            }, "log-bench-" + t);
+            worker.start();
+            workers.add(worker);
+        }
+        long begin = System.nanoTime();
+        start.countDown();
+        for (Thread worker : workers) {
+            worker.join();
+        }
+        return (double) (System.nanoTime() - begin) / ((long) threads * calls);
+    }
+}
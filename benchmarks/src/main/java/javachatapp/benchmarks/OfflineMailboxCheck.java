@@ -0,0 +1,256 @@
+package javachatapp.benchmarks;
+
+import javachatapp.client.ClientBackend;
+import javachatapp.server.ChatServer;
+import javachatapp.server.OfflineMailbox;
+import javachatapp.shared.Message;
+import javachatapp.shared.Message.MessageType;
+import java.io.File;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Stream;
+
+/**
+ * OfflineMailboxCheck sends private messages to users who are offline and
+ * checks that they survive a server restart and arrive in order when the
+ * user logs in, that messages sent while the user is logging in never
+ * overtake stored ones, that a full mailbox refuses further messages with
+ * MAILBOX_FULL, that expired messages are not delivered, and that opening a
+ * directory with many waiting mailboxes takes no longer than an empty one.
+ *
+ * Usage: java -cp benchmarks/target/benchmarks.jar javachatapp.benchmarks.OfflineMailboxCheck
+ * [messages] [waitingMailboxes] [mode] [port]
+ */
+public class OfflineMailboxCheck {
+
+    public static void main(String[] args) throws Exception {
+        int messages = args.length > 0 ? Integer.parseInt(args[0]) : 100;
+        int waiting = args.length > 1 ? Integer.parseInt(args[1]) : 10_000;
+        ChatServer.ServerMode mode = args.length > 2
+                ? ChatServer.ServerMode.valueOf(args[2])
+                : ChatServer.ServerMode.NIO;
+        int port = args.length > 3 ? Integer.parseInt(args[3]) : 5293;
+
+        PrintStream report = System.out;
+        System.setOut(new PrintStream(OutputStream.nullOutputStream()));
+
+        File dir = Files.createTempDirectory("chat-mailbox").toFile();
+        boolean ok = true;
+        try {
+            ok &= storeRestartDeliver(report, dir, messages, mode, port);
+            ok &= capAndExpiry(report, new File(dir, "limits"), mode, port + 1);
+            ok &= sendDuringLogin(report, new File(dir, "login"), messages, mode, port + 2);
+            ok &= lazyStartup(report, new File(dir, "many"), waiting);
+        } finally {
+            try (Stream<Path> paths = Files.walk(dir.toPath())) {
+                paths.sorted(Comparator.reverseOrder()).map(Path::toFile).forEach(File::delete);
+            }
+        }
+        Checks.finish(report, ok, "offline messages are kept, capped, expired and delivered in order");
+    }
+
+    // Messages to an offline user survive a restart and arrive in the order they were sent
+    private static boolean storeRestartDeliver(PrintStream report, File dir, int messages,
+            ChatServer.ServerMode mode, int port) throws Exception {
+        ChatServer server = start(port, mode, dir, null);
+        ClientBackend sender = new ClientBackend();
+        sender.connect("localhost", port, "alice", new Recorder());
+        for (int i = 0; i < messages; i++) {
+            sender.sendMessage("bob", "offline " + i);
+        }
+        Checks.waitFor(() -> server.getMailbox().getStoredCount() >= messages);
+        sender.disconnect();
+        server.stop();
+
+        ChatServer restarted = start(port, mode, dir, null);
+        Recorder bob = new Recorder();
+        ClientBackend receiver = new ClientBackend();
+        receiver.connect("localhost", port, "bob", bob);
+        Checks.waitFor(() -> bob.size() >= messages);
+        List<String> received = bob.contents();
+        boolean ok = received.size() == messages;
+        for (int i = 0; ok && i < messages; i++) {
+            ok = received.get(i).equals("alice: offline " + i);
+        }
+        receiver.disconnect();
+
+        // Delivered mail is gone: logging in again brings nothing
+        Recorder again = new Recorder();
+        ClientBackend second = new ClientBackend();
+        second.connect("localhost", port, "bob", again);
+        Thread.sleep(300);
+        ok &= again.size() == 0;
+        second.disconnect();
+        restarted.stop();
+
+        report.printf("Stored %d messages for offline bob, restarted, %d delivered in order on login: %s%n",
+                messages, received.size(), ok ? "ok" : "FAILED");
+        return ok;
+    }
+
+    // A capped mailbox refuses the overflow and a short TTL drops what waited too long
+    private static boolean capAndExpiry(PrintStream report, File dir, ChatServer.ServerMode mode, int port)
+            throws Exception {
+        int cap = 10;
+        OfflineMailbox mailbox = new OfflineMailbox(dir, cap, 64 * 1024, 500, false);
+        ChatServer server = start(port, mode, null, mailbox);
+        Recorder alice = new Recorder();
+        ClientBackend sender = new ClientBackend();
+        sender.connect("localhost", port, "alice", alice);
+        for (int i = 0; i < cap + 5; i++) {
+            sender.sendMessage("carol", "capped " + i);
+        }
+        Checks.waitFor(() -> mailbox.getRejectedCount() >= 5 && alice.errors.get() >= 5);
+        boolean capOk = mailbox.getStoredCount() == cap && mailbox.getRejectedCount() == 5
+                && alice.errors.get() == 5;
+
+        // Wait out the TTL, then log in: nothing is delivered
+        Thread.sleep(700);
+        Recorder carol = new Recorder();
+        ClientBackend receiver = new ClientBackend();
+        receiver.connect("localhost", port, "carol", carol);
+        Checks.waitFor(() -> mailbox.getExpiredCount() >= cap);
+        Thread.sleep(200);
+        boolean expiryOk = carol.size() == 0 && mailbox.getExpiredCount() == cap;
+
+        receiver.disconnect();
+        sender.disconnect();
+        server.stop();
+        report.printf("Cap of %d: %d stored, %d refused with MAILBOX_FULL: %s; after the TTL %d expired,"
+                + " %d delivered: %s%n", cap, mailbox.getStoredCount(), mailbox.getRejectedCount(),
+                capOk ? "ok" : "FAILED", mailbox.getExpiredCount(), carol.size(), expiryOk ? "ok" : "FAILED");
+        return capOk && expiryOk;
+    }
+
+    // A sender that keeps going while the recipient logs in: stored and live messages arrive in send order
+    private static boolean sendDuringLogin(PrintStream report, File dir, int messages, ChatServer.ServerMode mode,
+            int port) throws Exception {
+        int live = messages * 20;
+        // Room for everything, so a message can only go missing by being lost or overtaken
+        OfflineMailbox mailbox = new OfflineMailbox(dir, messages + live, 16 * 1024 * 1024,
+                OfflineMailbox.DEFAULT_TTL_MILLIS, false);
+        ChatServer server = start(port, mode, null, mailbox);
+        ClientBackend sender = new ClientBackend();
+        sender.connect("localhost", port, "alice", new Recorder());
+        for (int i = 0; i < messages; i++) {
+            sender.sendMessage("dave", "message " + i);
+        }
+        Checks.waitFor(() -> mailbox.getStoredCount() >= messages);
+
+        Thread sending = new Thread(() -> {
+            for (int i = messages; i < messages + live; i++) {
+                sender.sendMessage("dave", "message " + i);
+                if (i % 10 == 0) {
+                    try {
+                        Thread.sleep(1);
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                }
+            }
+        }, "mailbox-check-sender");
+        sending.start();
+        Thread.sleep(20);
+        Recorder dave = new Recorder();
+        ClientBackend receiver = new ClientBackend();
+        receiver.connect("localhost", port, "dave", dave);
+        sending.join();
+        Checks.waitFor(() -> dave.size() >= messages + live);
+
+        List<String> received = dave.contents();
+        boolean ok = received.size() == messages + live;
+        for (int i = 0; ok && i < received.size(); i++) {
+            ok = received.get(i).equals("alice: message " + i);
+        }
+        receiver.disconnect();
+        sender.disconnect();
+        server.stop();
+        report.printf("%d stored and %d live messages, recipient logged in mid-stream: %d stored, %d received"
+                + " in send order: %s%n", messages, live, mailbox.getStoredCount(), received.size(),
+                ok ? "ok" : "FAILED");
+        return ok;
+    }
+
+    // Opening the mailboxes reads nothing, however many are waiting
+    private static boolean lazyStartup(PrintStream report, File dir, int waiting) throws Exception {
+        OfflineMailbox filler = new OfflineMailbox(dir, 10, 64 * 1024, Long.MAX_VALUE, false);
+        filler.start(name -> null);
+        for (int i = 0; i < waiting; i++) {
+            filler.store(new Message(MessageType.PRIVATE_MESSAGE, "alice", "user" + i, "hello " + i));
+        }
+        filler.close();
+
+        File empty = new File(dir.getParentFile(), "empty");
+        long emptyNanos = timeOpen(empty);
+        long fullNanos = timeOpen(dir);
+        long files;
+        try (Stream<Path> list = Files.list(dir.toPath())) {
+            files = list.count();
+        }
+        boolean ok = files == waiting && fullNanos < Math.max(emptyNanos * 10, 50_000_000L);
+        report.printf("Startup with %,d waiting mailboxes: %.2f ms (empty directory %.2f ms): %s%n",
+                files, fullNanos / 1e6, emptyNanos / 1e6, ok ? "ok" : "FAILED");
+        return ok;
+    }
+
+    private static long timeOpen(File dir) throws Exception {
+        long start = System.nanoTime();
+        OfflineMailbox mailbox = new OfflineMailbox(dir);
+        mailbox.start(name -> null);
+        long nanos = System.nanoTime() - start;
+        mailbox.close();
+        return nanos;
+    }
+
+    private static ChatServer start(int port, ChatServer.ServerMode mode, File mailboxDir, OfflineMailbox mailbox)
+            throws InterruptedException {
+        ChatServer server = new ChatServer(port, mode);
+        if (mailbox != null) {
+            server.setMailbox(mailbox);
+        } else {
+            server.setMailboxDirectory(mailboxDir);
+        }
+        Checks.start(server, "mailbox-check-server");
+        Checks.waitFor(() -> server.getMailbox() != null);
+        return server;
+    }
+
+    // Collects chat lines (not presence notices) and counts MAILBOX_FULL errors
+    private static final class Recorder extends Checks.Recorder {
+
+        private final List<String> lines = Collections.synchronizedList(new ArrayList<>());
+        final AtomicInteger errors = new AtomicInteger();
+
+        int size() {
+            return lines.size();
+        }
+
+        List<String> contents() {
+            synchronized (lines) {
+                return new ArrayList<>(lines);
+            }
+        }
+
+        @Override
+        public void onMessageReceived(String sender, String content) {
+            // Presence notices are not part of the check
+            if (!"System".equals(sender)) {
+                lines.add(sender + ": " + content);
+            }
+        }
+
+        @Override
+        public void onError(String errorCode) {
+            if ("MAILBOX_FULL".equals(errorCode)) {
+                errors.incrementAndGet();
+            }
+        }
+    }
+}
@@ -0,0 +1,75 @@
+package javachatapp.benchmarks;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+import javachatapp.server.ChatServer;
+import javachatapp.server.ClientHandler;
+import javachatapp.shared.Message;
+import javachatapp.shared.Message.MessageType;
+import javachatapp.shared.MessageCodec;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * ClientHandler's blocking read loop over an InMemorySocket: handshake,
+ * CONNECT, FRAMES private messages to an in-memory recipient, DISCONNECT.
+ * Reported per frame; each invocation also starts and stops the handler's
+ * writer thread, which is amortized over the frames.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class ReadLoopBenchmark {
+
+    private static final int FRAMES = 1000;
+
+    @Param({"1", "2"})
+    public int version;
+
+    private ChatServer server;
+    private byte[] input;
+
+    @Setup
+    public void setUp() throws IOException, InterruptedException {
+        server = InMemoryServer.withUsers(1);
+
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        out.write(version);
+        MessageCodec.writeFrame(out, new Message(MessageType.CONNECT, "reader"), version);
+        Message line = new Message(MessageType.PRIVATE_MESSAGE, "reader", "user0", "hello, this is a chat line");
+        for (int i = 0; i < FRAMES; i++) {
+            MessageCodec.writeFrame(out, line, version);
+        }
+        MessageCodec.writeFrame(out, new Message(MessageType.DISCONNECT, "reader"), version);
+        out.flush();
+        input = bytes.toByteArray();
+    }
+
+    @TearDown
+    public void tearDown() {
+        server.stop();
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(FRAMES)
+    public void readLoop() {
+        new ClientHandler(new InMemorySocket(input), server).run();
+    }
+}
@@ -0,0 +1,93 @@
+package javachatapp.benchmarks;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import javachatapp.server.ChatServer;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Logins under contention on a server with 10k users: every benchmark
+ * thread logs connections in and out with ChatServer.addClient and
+ * removeClient as fast as it can. connectDisconnect uses a different name
+ * per login, so threads only contend on shared state, never on a name;
+ * sameName has every thread racing for one name, where exactly one login
+ * can hold it at a time. Run with -t to compare thread counts.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@Threads(16)
+@State(Scope.Benchmark)
+public class RegistryBenchmark {
+
+    @Param({"10000"})
+    public int users;
+
+    private ChatServer server;
+    private final AtomicInteger threadIds = new AtomicInteger();
+
+    // Each thread cycles through its own connections and names
+    @State(Scope.Thread)
+    public static class Logins {
+
+        private static final int NAMES = 1024;
+
+        InMemoryConnection[] connections;
+        String[] names;
+        int next;
+
+        @Setup
+        public void setUp(RegistryBenchmark benchmark) {
+            int thread = benchmark.threadIds.getAndIncrement();
+            connections = new InMemoryConnection[NAMES];
+            names = new String[NAMES];
+            for (int i = 0; i < NAMES; i++) {
+                names[i] = "t" + thread + "-" + i;
+                connections[i] = new InMemoryConnection(benchmark.server, names[i]);
+            }
+        }
+    }
+
+    @Setup
+    public void setUp() throws InterruptedException {
+        server = InMemoryServer.withUsers(users);
+    }
+
+    @TearDown
+    public void tearDown() {
+        server.stop();
+    }
+
+    @Benchmark
+    public boolean connectDisconnect(Logins logins) {
+        int i = logins.next++ & (Logins.NAMES - 1);
+        InMemoryConnection connection = logins.connections[i];
+        boolean added = server.addClient(logins.names[i], connection);
+        server.removeClient(logins.names[i], connection);
+        return added;
+    }
+
+    @Benchmark
+    public boolean sameName(Logins logins) {
+        InMemoryConnection connection = logins.connections[0];
+        boolean added = server.addClient("contended", connection);
+        if (added) {
+            server.removeClient("contended", connection);
+        }
+        return added;
+    }
+}
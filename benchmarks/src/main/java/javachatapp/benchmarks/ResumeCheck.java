@@ -0,0 +1,267 @@
+package javachatapp.benchmarks;
+
+import javachatapp.client.ClientBackend;
+import javachatapp.server.ChatServer;
+import javachatapp.shared.Message;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * ResumeCheck puts a TCP proxy between one client (the roamer) and the
+ * server, and cuts the roamer's connection several times while another
+ * client streams broadcasts and private messages at it. Bytes in flight
+ * inside the proxy are lost with the cut, as on a real network drop.
+ *
+ * The roamer must reconnect and resume every time, receive every message
+ * exactly once and in order, and an observer must never see it leave or
+ * join again. Then the proxy refuses connections for longer than the
+ * session grace period: the session must expire (the observer sees the
+ * roamer leave) and the roamer must come back as a new login. Finally the
+ * roamer logs out, which must end its session at once.
+ *
+ * Usage: java -cp benchmarks/target/benchmarks.jar javachatapp.benchmarks.ResumeCheck
+ * [messages] [mode] [port]
+ * (both engines when no mode is given)
+ */
+public class ResumeCheck {
+
+    private static final int CUTS = 3;
+    private static final long SHORT_GRACE_MILLIS = 1000;
+
+    public static void main(String[] args) throws Exception {
+        int messages = args.length > 0 ? Integer.parseInt(args[0]) : 3000;
+        List<ChatServer.ServerMode> modes = args.length > 1
+                ? List.of(ChatServer.ServerMode.valueOf(args[1]))
+                : List.of(ChatServer.ServerMode.NIO, ChatServer.ServerMode.THREAD_PER_CLIENT);
+        int port = args.length > 2 ? Integer.parseInt(args[2]) : 5297;
+
+        PrintStream report = System.out;
+        System.setOut(new PrintStream(OutputStream.nullOutputStream()));
+
+        boolean ok = true;
+        for (ChatServer.ServerMode mode : modes) {
+            ok &= run(report, mode, messages, port);
+            port += 2;
+        }
+        Checks.finish(report, ok, "sessions resume without gaps, duplicates or presence changes");
+    }
+
+    private static boolean run(PrintStream report, ChatServer.ServerMode mode, int messages, int port)
+            throws Exception {
+        ChatServer server = new ChatServer(port, mode);
+        Checks.start(server, "resume-check-server");
+        long graceMillis = server.getResumeGraceMillis();
+        int replayFrames = server.getResumeReplayFrames();
+        Proxy proxy = new Proxy(port + 1, port);
+
+        Recorder observer = new Recorder();
+        ClientBackend observerClient = new ClientBackend();
+        observerClient.connect("localhost", port, "observer", observer);
+        Recorder roamer = new Recorder();
+        ClientBackend roamerClient = new ClientBackend();
+        roamerClient.connect("localhost", port + 1, "roamer", roamer);
+        ClientBackend sender = new ClientBackend();
+        sender.connect("localhost", port, "sender", new Recorder());
+        Checks.waitFor(() -> observer.joins.get() == 1 && roamer.users.contains("sender"));
+
+        // Half broadcasts, half private messages, with cuts spread over the stream
+        long start = System.nanoTime();
+        for (int i = 0; i < messages; i++) {
+            if (i % 2 == 0) {
+                sender.sendMessage("Broadcast", "m" + i);
+            } else {
+                sender.sendMessage("roamer", "m" + i);
+            }
+            if (i > 0 && i % (messages / (CUTS + 1)) == 0 && proxy.cuts < CUTS) {
+                proxy.cut();
+            }
+            if (i % 2 == 1) {
+                Thread.sleep(1);
+            }
+        }
+        Checks.waitFor(() -> roamer.received.size() >= messages && roamer.resumed.get() == CUTS);
+        double millis = (System.nanoTime() - start) / 1e6;
+
+        List<String> received = roamer.copyReceived();
+        int gaps = 0;
+        int next = 0;
+        for (String content : received) {
+            if (!content.equals("m" + next)) {
+                gaps++;
+            }
+            next = Integer.parseInt(content.substring(1)) + 1;
+        }
+        boolean ok = received.size() == messages && gaps == 0 && roamer.resumed.get() == CUTS
+                && roamer.relogins.get() == 0 && observer.joins.get() == 1 && observer.leaves.get() == 0
+                && server.getClientCount() == 3;
+        report.printf("%s: %d cuts, %d resumes; roamer got %d of %d messages in %.0f ms, %d out of order;"
+                + " observer saw %d joins, %d leaves%n", mode, proxy.cuts, roamer.resumed.get(), received.size(),
+                messages, millis, gaps, observer.joins.get(), observer.leaves.get());
+
+        // Gone for longer than the grace period: the session ends and the roamer logs in again
+        server.setSessionResume(SHORT_GRACE_MILLIS, replayFrames);
+        proxy.refusing = true;
+        proxy.cut();
+        Checks.waitFor(() -> observer.leaves.get() == 1);
+        proxy.refusing = false;
+        Checks.waitFor(() -> roamer.relogins.get() == 1 && observer.joins.get() == 2);
+        sender.sendMessage("roamer", "after");
+        Checks.waitFor(() -> roamer.copyReceived().contains("after"));
+        boolean expired = observer.leaves.get() == 1 && roamer.relogins.get() == 1 && observer.joins.get() == 2
+                && roamer.copyReceived().contains("after");
+        report.printf("%s: away past the grace period: session %s, roamer %s%n", mode,
+                observer.leaves.get() == 1 ? "ended" : "NOT ENDED",
+                expired ? "logged in again" : "DID NOT COME BACK");
+
+        // A DISCONNECT logs out at once, nothing is parked
+        server.setSessionResume(graceMillis, replayFrames);
+        long logoutStart = System.nanoTime();
+        roamerClient.disconnect();
+        Checks.waitFor(() -> observer.leaves.get() == 2);
+        double logoutMillis = (System.nanoTime() - logoutStart) / 1e6;
+        boolean loggedOut = observer.leaves.get() == 2 && logoutMillis < graceMillis;
+        report.printf("%s: logout seen by the observer after %.0f ms%n", mode, logoutMillis);
+
+        observerClient.disconnect();
+        sender.disconnect();
+        proxy.close();
+        server.stop();
+        return ok && expired && loggedOut;
+    }
+
+    // Records chat messages, reconnects and the other users' presence
+    private static final class Recorder extends Checks.Recorder {
+
+        final List<String> received = new ArrayList<>();
+        final List<String> users = new ArrayList<>();
+        final AtomicInteger resumed = new AtomicInteger();
+        final AtomicInteger relogins = new AtomicInteger();
+        final AtomicInteger joins = new AtomicInteger();
+        final AtomicInteger leaves = new AtomicInteger();
+
+        @Override
+        public synchronized void onMessageReceived(String sender, String content) {
+            // Join and leave notices come from the server
+            if (sender.equals("sender")) {
+                received.add(content);
+            }
+        }
+
+        @Override
+        public void onHistoryReceived(List<Message> messages, boolean older) {
+            // Only live messages count
+        }
+
+        synchronized List<String> copyReceived() {
+            return new ArrayList<>(received);
+        }
+
+        @Override
+        public void onUserListChanged(ClientBackend.RosterChange change) {
+            synchronized (users) {
+                users.addAll(change.getJoined());
+                users.removeAll(change.getLeft());
+            }
+            if (change.getJoined().contains("roamer")) {
+                joins.incrementAndGet();
+            }
+            if (change.getLeft().contains("roamer")) {
+                leaves.incrementAndGet();
+            }
+        }
+
+        @Override
+        public void onReconnected(boolean resumed) {
+            (resumed ? this.resumed : relogins).incrementAndGet();
+        }
+    }
+
+    // Forwards connections to the server; cut() drops all of them at once
+    private static final class Proxy {
+
+        private final ServerSocket listener;
+        private final int target;
+        private final List<Socket> open = new ArrayList<>();
+        volatile boolean refusing;
+        volatile int cuts;
+
+        Proxy(int port, int target) throws IOException {
+            this.listener = new ServerSocket(port);
+            this.target = target;
+            Thread acceptor = new Thread(this::accept, "resume-check-proxy");
+            acceptor.setDaemon(true);
+            acceptor.start();
+        }
+
+        private void accept() {
+            try {
+                while (true) {
+                    Socket client = listener.accept();
+                    if (refusing) {
+                        client.close();
+                        continue;
+                    }
+                    Socket upstream = new Socket("localhost", target);
+                    synchronized (open) {
+                        open.add(client);
+                        open.add(upstream);
+                    }
+                    pump(client, upstream);
+                    pump(upstream, client);
+                }
+            } catch (IOException e) {
+                // Closed
+            }
+        }
+
+        private static void pump(Socket from, Socket to) throws IOException {
+            InputStream in = from.getInputStream();
+            OutputStream out = to.getOutputStream();
+            Thread thread = new Thread(() -> {
+                byte[] buffer = new byte[8192];
+                try {
+                    int n;
+                    while ((n = in.read(buffer)) != -1) {
+                        out.write(buffer, 0, n);
+                    }
+                } catch (IOException e) {
+                    // Cut
+                }
+                closeQuietly(from);
+                closeQuietly(to);
+            }, "resume-check-pump");
+            thread.setDaemon(true);
+            thread.start();
+        }
+
+        void cut() {
+            synchronized (open) {
+                for (Socket socket : open) {
+                    closeQuietly(socket);
+                }
+                open.clear();
+            }
+            cuts++;
+        }
+
+        void close() {
+            closeQuietly(listener);
+            cut();
+        }
+
+        private static void closeQuietly(java.io.Closeable closeable) {
+            try {
+                closeable.close();
+            } catch (IOException e) {
+                // Already closed
+            }
+        }
+    }
+}
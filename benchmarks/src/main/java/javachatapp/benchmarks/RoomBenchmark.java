@@ -0,0 +1,86 @@
+package javachatapp.benchmarks;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+import javachatapp.server.ChatServer;
+import javachatapp.server.ClientConnection;
+import javachatapp.shared.Message;
+import javachatapp.shared.Message.MessageType;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Room routing on a 10k-user server with 500 rooms (20 members each): a
+ * room message reads the room's member array and sends to its members
+ * only, so it should cost about what 20 private messages cost, not what a
+ * broadcast to 10k users costs. joinAndLeave is the copy-on-write price of
+ * a membership change.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class RoomBenchmark {
+
+    @Param({"10000"})
+    public int users;
+
+    @Param({"500"})
+    public int rooms;
+
+    private ChatServer server;
+    private ClientConnection visitor;
+    private Message roomMessage;
+    private Message broadcastMessage;
+
+    @Setup
+    public void setUp() throws InterruptedException {
+        server = InMemoryServer.withUsers(users);
+        List<ClientConnection> connections = server.getConnections().stream()
+                .sorted((a, b) -> a.getUsername().compareTo(b.getUsername()))
+                .collect(Collectors.toList());
+        for (int i = 0; i < connections.size(); i++) {
+            server.joinRoom(connections.get(i), "#room" + (i % rooms));
+        }
+        // Sends to #room0 come from one of its members
+        ClientConnection sender = connections.get(0);
+        visitor = connections.get(1);
+        roomMessage = new Message(MessageType.ROOM_MESSAGE, sender.getUsername(), "#room0", "hello room");
+        broadcastMessage = new Message(MessageType.BROADCAST, sender.getUsername(), "Broadcast",
+                "hello everyone, this is a chat line");
+    }
+
+    @TearDown
+    public void tearDown() {
+        server.stop();
+    }
+
+    @Benchmark
+    public void sendToRoom() {
+        server.sendToRoom(roomMessage, System.nanoTime());
+    }
+
+    @Benchmark
+    public void routeBroadcast() {
+        server.routeMessage(broadcastMessage, System.nanoTime());
+    }
+
+    @Benchmark
+    public void joinAndLeave() {
+        server.joinRoom(visitor, "#room" + (rooms - 1));
+        server.leaveRoom(visitor, "#room" + (rooms - 1));
+    }
+}
@@ -0,0 +1,130 @@
+package javachatapp.benchmarks;
+
+import javachatapp.client.ClientBackend;
+import javachatapp.server.ChatServer;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * RoomCheck connects clients over real sockets, spreads them over rooms and
+ * has every client send one message to its room. Each client must receive
+ * exactly the messages of its own room, a message to a room the sender is
+ * not in must be refused with NOT_IN_ROOM, and rooms must disappear when
+ * their last member leaves.
+ *
+ * Usage: java -cp benchmarks/target/benchmarks.jar javachatapp.benchmarks.RoomCheck
+ * [clients] [rooms] [mode] [port]
+ */
+public class RoomCheck {
+
+    public static void main(String[] args) throws Exception {
+        int numClients = args.length > 0 ? Integer.parseInt(args[0]) : 200;
+        int numRooms = args.length > 1 ? Integer.parseInt(args[1]) : 10;
+        ChatServer.ServerMode mode = args.length > 2
+                ? ChatServer.ServerMode.valueOf(args[2])
+                : ChatServer.ServerMode.NIO;
+        int port = args.length > 3 ? Integer.parseInt(args[3]) : 5296;
+
+        PrintStream report = System.out;
+        System.setOut(new PrintStream(OutputStream.nullOutputStream()));
+
+        ChatServer server = new ChatServer(port, mode);
+        Checks.start(server, "room-check-server");
+
+        List<ClientBackend> clients = new ArrayList<>();
+        List<Recorder> recorders = new ArrayList<>();
+        for (int i = 0; i < numClients; i++) {
+            Recorder recorder = new Recorder("#room" + (i % numRooms));
+            ClientBackend client = new ClientBackend();
+            if (client.connect("localhost", port, "member" + i, recorder)) {
+                client.joinRoom(recorder.room);
+                clients.add(client);
+                recorders.add(recorder);
+            }
+        }
+        Checks.waitFor(() -> recorders.stream().allMatch(r -> r.joined));
+        report.printf("%d clients joined %d rooms (server has %d rooms)%n",
+                clients.size(), numRooms, server.getRoomCount());
+
+        long start = System.nanoTime();
+        for (int i = 0; i < clients.size(); i++) {
+            clients.get(i).sendMessage(recorders.get(i).room, "hello from member" + i);
+        }
+        // Every member hears from everyone else in its room
+        int perRoom = clients.size() / numRooms;
+        Checks.waitFor(() -> recorders.stream().allMatch(r -> r.received.get() >= perRoom - 1));
+        double millis = (System.nanoTime() - start) / 1e6;
+
+        boolean ok = server.getRoomCount() == numRooms;
+        int complete = 0;
+        int strays = 0;
+        for (Recorder recorder : recorders) {
+            if (recorder.received.get() == perRoom - 1) {
+                complete++;
+            }
+            strays += recorder.strays.get();
+        }
+        ok &= complete == recorders.size() && strays == 0;
+        report.printf("%d room messages delivered in %.0f ms: %d of %d clients got exactly their room's %d,"
+                + " %d messages from other rooms%n", clients.size() * (perRoom - 1), millis, complete,
+                recorders.size(), perRoom - 1, strays);
+
+        // Talking in a room you are not in is refused
+        clients.get(0).sendMessage("#room" + (numRooms - 1), "not a member");
+        Checks.waitFor(() -> recorders.get(0).notInRoom.get() > 0);
+        ok &= recorders.get(0).notInRoom.get() == 1;
+
+        // Leaving every room removes them
+        for (int i = 0; i < clients.size(); i++) {
+            clients.get(i).leaveRoom(recorders.get(i).room);
+        }
+        Checks.waitFor(() -> server.getRoomCount() == 0);
+        ok &= server.getRoomCount() == 0;
+        report.printf("NOT_IN_ROOM for a non-member: %s; rooms left after everyone left: %d%n",
+                recorders.get(0).notInRoom.get() == 1 ? "ok" : "FAILED", server.getRoomCount());
+
+        for (ClientBackend client : clients) {
+            client.disconnect();
+        }
+        server.stop();
+        Checks.finish(report, ok, "room messages reach exactly the room's members");
+    }
+
+    // Counts messages from the client's own room and from anywhere else
+    private static final class Recorder extends Checks.Recorder {
+
+        final String room;
+        volatile boolean joined;
+        final AtomicInteger received = new AtomicInteger();
+        final AtomicInteger strays = new AtomicInteger();
+        final AtomicInteger notInRoom = new AtomicInteger();
+
+        Recorder(String room) {
+            this.room = room;
+        }
+
+        @Override
+        public void onRoomsUpdated(List<String> rooms) {
+            joined = rooms.contains(room);
+        }
+
+        @Override
+        public void onRoomMessageReceived(String room, String sender, String content) {
+            if (room.equals(this.room)) {
+                received.incrementAndGet();
+            } else {
+                strays.incrementAndGet();
+            }
+        }
+
+        @Override
+        public void onError(String errorCode) {
+            if ("NOT_IN_ROOM".equals(errorCode)) {
+                notInRoom.incrementAndGet();
+            }
+        }
+    }
+}
@@ -0,0 +1,129 @@
+package javachatapp.benchmarks;
+
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import javachatapp.client.RecipientList;
+import javafx.collections.FXCollections;
+import javafx.collections.ListChangeListener;
+import javafx.collections.ObservableList;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * One user leaving and another joining on a client that shows 10k users.
+ * fullRebuild is the old path: the backend copies its roster, the client
+ * builds the recipient list and setAll()s it, then finds the selection
+ * again. incremental applies the change to a RecipientList. A list change
+ * listener stands in for the ListView and touches every row a change
+ * reports, which is what the view pays for (setAll reports all of them).
+ * Runs without a display.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class RosterBenchmark {
+
+    private static final int CHURN = 1024;
+
+    @Param({"10000"})
+    public int users;
+
+    // Old path
+    private Set<String> connectedUsers;
+    private ObservableList<String> items;
+
+    // New path
+    private RecipientList recipients;
+
+    // Names in the roster that take turns leaving, and names waiting to join
+    private String[] present;
+    private String[] absent;
+    private int next;
+    private long rowsTouched;
+
+    @Setup
+    public void setUp() {
+        connectedUsers = new LinkedHashSet<>();
+        for (int i = 0; i < users; i++) {
+            connectedUsers.add("user" + i);
+        }
+        items = FXCollections.observableArrayList();
+        items.add(RecipientList.BROADCAST);
+        items.addAll(connectedUsers);
+        items.addListener(this::touch);
+
+        recipients = new RecipientList();
+        recipients.setSelf("user0");
+        recipients.applyUsers(new ArrayList<>(connectedUsers), List.of());
+        recipients.addListener(this::touch);
+
+        present = new String[CHURN];
+        absent = new String[CHURN];
+        for (int i = 0; i < CHURN; i++) {
+            present[i] = "user" + (users - 1 - i);
+            absent[i] = "guest" + i;
+        }
+    }
+
+    private void touch(ListChangeListener.Change<? extends String> change) {
+        while (change.next()) {
+            for (String row : change.getAddedSubList()) {
+                rowsTouched += row.length();
+            }
+            for (String row : change.getRemoved()) {
+                rowsTouched += row.length();
+            }
+        }
+    }
+
+    @Benchmark
+    public long fullRebuild() {
+        int i = next++ & (CHURN - 1);
+        String leaving = present[i];
+        String joining = absent[i];
+        present[i] = joining;
+        absent[i] = leaving;
+
+        connectedUsers.remove(leaving);
+        connectedUsers.add(joining);
+        List<String> copy = new ArrayList<>(connectedUsers);
+
+        String selected = "user1";
+        List<String> list = new ArrayList<>(copy.size() + 1);
+        list.add(RecipientList.BROADCAST);
+        for (String user : copy) {
+            if (!user.equals("user0")) {
+                list.add(user);
+            }
+        }
+        items.setAll(list);
+        return (list.contains(selected) ? items.indexOf(selected) : 0) + rowsTouched;
+    }
+
+    @Benchmark
+    public long incremental() {
+        int i = next++ & (CHURN - 1);
+        String leaving = present[i];
+        String joining = absent[i];
+        present[i] = joining;
+        absent[i] = leaving;
+
+        recipients.applyUsers(List.of(joining), List.of(leaving));
+        return rowsTouched;
+    }
+}
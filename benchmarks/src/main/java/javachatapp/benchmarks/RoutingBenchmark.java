@@ -0,0 +1,79 @@
+package javachatapp.benchmarks;
+
+import java.util.concurrent.TimeUnit;
+import javachatapp.server.ChatServer;
+import javachatapp.shared.Message;
+import javachatapp.shared.Message.MessageType;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * ChatServer.routeMessage for a private message (one lookup, one send)
+ * versus a broadcast (encode once, send to every other user). Recipients are
+ * InMemoryConnections, so the time covers routing, encoding, queueing and
+ * metrics but not socket writes.
+ *
+ * Each route is measured twice: with receivedAt taken the way the read
+ * loops take it (the decode time for one in DEFAULT_ROUTE_LATENCY_SAMPLING
+ * messages, 0 for the rest), and with 0 for every message, which turns
+ * route latency tracking off. The difference is what the sampled tracking
+ * costs; message and fan-out counters run in both.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class RoutingBenchmark {
+
+    @Param({"10", "1000"})
+    public int users;
+
+    private ChatServer server;
+    private Message privateMessage;
+    private Message broadcastMessage;
+    private long messageNumber;
+
+    @Setup
+    public void setUp() throws InterruptedException {
+        server = InMemoryServer.withUsers(users);
+        privateMessage = new Message(MessageType.PRIVATE_MESSAGE, "user0", "user" + (users - 1), "hi, a private line");
+        broadcastMessage = new Message(MessageType.BROADCAST, "user0", "Broadcast", "hello everyone, this is a chat line");
+    }
+
+    @TearDown
+    public void tearDown() {
+        server.stop();
+    }
+
+    @Benchmark
+    public void routePrivate() {
+        server.routeMessage(privateMessage, server.receivedAt(++messageNumber));
+    }
+
+    @Benchmark
+    public void routeBroadcast() {
+        server.routeMessage(broadcastMessage, server.receivedAt(++messageNumber));
+    }
+
+    @Benchmark
+    public void routePrivateUntracked() {
+        server.routeMessage(privateMessage, 0);
+    }
+
+    @Benchmark
+    public void routeBroadcastUntracked() {
+        server.routeMessage(broadcastMessage, 0);
+    }
+}
@@ -0,0 +1,266 @@
+package javachatapp.benchmarks;
+
+import javachatapp.client.ChatClient;
+import javachatapp.server.ChatServer;
+import javachatapp.shared.Message;
+import javachatapp.shared.Message.MessageType;
+import javachatapp.shared.MessageCodec;
+import java.io.DataOutputStream;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * SlowConsumerLoadTest runs healthy clients next to a deliberately stalled
+ * reader (a client that logs in and never reads) and compares the healthy
+ * clients' broadcast latency with and without the stalled reader, for every
+ * SlowConsumerPolicy. The healthy latency must stay flat, every healthy
+ * client must stay connected and receive every broadcast, and under the
+ * DISCONNECT policy the stalled reader must be the one disconnected.
+ *
+ * Usage: java -cp benchmarks/target/benchmarks.jar javachatapp.benchmarks.SlowConsumerLoadTest
+ * [healthyClients] [messages] [mode] [basePort]
+ */
+public class SlowConsumerLoadTest {
+
+    private static final String SENDER = "load-sender";
+
+    // Padding so the stalled reader's socket buffers fill quickly
+    private static final String PADDING = new String(new char[2048]).replace('\0', 'x');
+
+    // Small backlog limits so the stalled reader trips the policy within one phase
+    private static final int QUEUE_CAPACITY = 256;
+    private static final int THRESHOLD = 64;
+
+    // Broadcasts the sender may be ahead of the slowest healthy client, well
+    // below THRESHOLD so only the stalled reader ever backs up that far
+    private static final int WINDOW = THRESHOLD / 4;
+
+    // p99 may grow by this much (or double) before the run counts as degraded
+    private static final long TOLERANCE_NANOS = 25_000_000L;
+
+    public static void main(String[] args) throws Exception {
+        int healthyClients = args.length > 0 ? Integer.parseInt(args[0]) : 20;
+        int numMessages = args.length > 1 ? Integer.parseInt(args[1]) : 3000;
+        ChatServer.ServerMode mode = args.length > 2
+                ? ChatServer.ServerMode.valueOf(args[2])
+                : ChatServer.ServerMode.THREAD_PER_CLIENT;
+        int port = args.length > 3 ? Integer.parseInt(args[3]) : 5260;
+
+        // The server logs every broadcast; keep stdout for the report only
+        PrintStream report = System.out;
+        System.setOut(new PrintStream(OutputStream.nullOutputStream()));
+
+        boolean allPassed = true;
+        for (ChatServer.SlowConsumerPolicy policy : ChatServer.SlowConsumerPolicy.values()) {
+            ChatServer server = new ChatServer(port++, mode);
+            server.setOutboundQueueCapacity(QUEUE_CAPACITY);
+            server.setSlowConsumerPolicy(policy, THRESHOLD);
+            Checks.start(server, "load-server");
+
+            LatencyRecorder recorder = new LatencyRecorder(healthyClients * numMessages);
+            List<ChatClient> clients = new ArrayList<>();
+            List<Healthy> healthy = new ArrayList<>();
+            for (int i = 0; i < healthyClients; i++) {
+                ChatClient client = new ChatClient("localhost", server.getPort());
+                Healthy listener = new Healthy(recorder);
+                client.connect("healthy" + i, listener);
+                clients.add(client);
+                healthy.add(listener);
+            }
+            ChatClient sender = new ChatClient("localhost", server.getPort());
+            sender.connect(SENDER, recorder);
+            while (server.getClientCount() < healthyClients + 1) {
+                Thread.sleep(10);
+            }
+            Thread.sleep(500);
+
+            long[] baseline = runPhase(sender, recorder, healthy, numMessages);
+            int baselineShort = shortfall(healthy, numMessages);
+
+            // Log in a client that never reads anything
+            Socket stalled = new Socket();
+            stalled.setReceiveBufferSize(4096);
+            stalled.connect(new java.net.InetSocketAddress("localhost", server.getPort()));
+            DataOutputStream stalledOut = new DataOutputStream(stalled.getOutputStream());
+            MessageCodec.writeHandshake(stalledOut);
+            MessageCodec.writeFrame(stalledOut, new Message(MessageType.CONNECT, "stalled"), MessageCodec.PROTOCOL_VERSION);
+            Thread.sleep(500);
+
+            long[] withStall = runPhase(sender, recorder, healthy, numMessages);
+            int stallShort = shortfall(healthy, numMessages);
+
+            long baseP99 = percentile(baseline, 0.99);
+            long stallP99 = percentile(withStall, 0.99);
+            boolean flat = stallP99 <= Math.max(2 * baseP99, baseP99 + TOLERANCE_NANOS);
+
+            // Only the stalled reader may be disconnected, and under DISCONNECT it must be
+            int healthyLost = 0;
+            for (Healthy listener : healthy) {
+                if (listener.lost) {
+                    healthyLost++;
+                }
+            }
+            long stalledDisconnects = server.getSlowConsumerDisconnects() - healthyLost;
+            boolean complete = baselineShort == 0 && stallShort == 0 && healthyLost == 0;
+            boolean stalledHandled = policy != ChatServer.SlowConsumerPolicy.DISCONNECT || stalledDisconnects == 1;
+            boolean passed = flat && complete && stalledHandled;
+            allPassed &= passed;
+
+            report.printf("%-18s baseline p50=%.2f ms p99=%.2f ms | with stalled reader p50=%.2f ms p99=%.2f ms"
+                    + " | slow-consumer events=%d, stalled disconnected %d, healthy disconnected %d,"
+                    + " healthy messages missing %d | %s%n",
+                    policy, millis(percentile(baseline, 0.5)), millis(baseP99),
+                    millis(percentile(withStall, 0.5)), millis(stallP99),
+                    server.getSlowConsumerEvents(), stalledDisconnects, healthyLost,
+                    baselineShort + stallShort, passed ? "PASS" : "FAIL");
+
+            stalled.close();
+            sender.disconnect();
+            for (ChatClient client : clients) {
+                client.disconnect();
+            }
+            server.stop();
+        }
+        Checks.finish(report, allPassed, "healthy clients kept up with flat latency and lost nothing");
+    }
+
+    // Broadcast messages at a steady pace and return the healthy clients' latencies
+    private static long[] runPhase(ChatClient sender, LatencyRecorder recorder, List<Healthy> healthy,
+            int numMessages) throws InterruptedException {
+        recorder.reset();
+        for (Healthy listener : healthy) {
+            listener.received.set(0);
+        }
+        long deadline = System.currentTimeMillis() + 30_000;
+        for (int i = 0; i < numMessages && System.currentTimeMillis() < deadline; i++) {
+            while (i - slowest(healthy) >= WINDOW && System.currentTimeMillis() < deadline) {
+                Thread.onSpinWait();
+            }
+            sender.sendBroadcastMessage(System.nanoTime() + " " + PADDING);
+        }
+        while (shortfall(healthy, numMessages) > 0 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        return recorder.snapshot();
+    }
+
+    // Broadcasts of this phase received by the healthy client furthest behind
+    private static int slowest(List<Healthy> healthy) {
+        int min = Integer.MAX_VALUE;
+        for (Healthy listener : healthy) {
+            if (!listener.lost) {
+                min = Math.min(min, listener.received.get());
+            }
+        }
+        return min;
+    }
+
+    // Broadcasts of this phase the healthy clients have not received
+    private static int shortfall(List<Healthy> healthy, int numMessages) {
+        int missing = 0;
+        for (Healthy listener : healthy) {
+            missing += Math.max(0, numMessages - listener.received.get());
+        }
+        return missing;
+    }
+
+    private static long percentile(long[] sorted, double p) {
+        if (sorted.length == 0) {
+            return 0;
+        }
+        int index = (int) Math.min(sorted.length - 1, Math.ceil(p * sorted.length) - 1);
+        return sorted[Math.max(0, index)];
+    }
+
+    private static double millis(long nanos) {
+        return nanos / 1e6;
+    }
+
+    /**
+     * One healthy client: counts the sender's broadcasts it got and notices
+     * if the server disconnects it
+     */
+    private static class Healthy implements ChatClient.MessageListener {
+
+        private final LatencyRecorder recorder;
+        final AtomicInteger received = new AtomicInteger();
+        volatile boolean lost;
+
+        Healthy(LatencyRecorder recorder) {
+            this.recorder = recorder;
+        }
+
+        @Override
+        public void onMessageReceived(Message message) {
+            if (message.getType() == MessageType.BROADCAST && SENDER.equals(message.getSender())) {
+                received.incrementAndGet();
+                recorder.onMessageReceived(message);
+            }
+        }
+
+        @Override
+        public void onConnectionLost() {
+            lost = true;
+        }
+
+        @Override
+        public void onError(String errorCode) {
+            if ("SLOW_CONSUMER".equals(errorCode)) {
+                lost = true;
+            }
+        }
+    }
+
+    /**
+     * Records send-to-receive latency of the sender's broadcasts
+     */
+    private static class LatencyRecorder implements ChatClient.MessageListener {
+
+        private final long[] samples;
+        private final AtomicInteger next = new AtomicInteger();
+
+        LatencyRecorder(int capacity) {
+            this.samples = new long[capacity];
+        }
+
+        @Override
+        public void onMessageReceived(Message message) {
+            if (message.getType() != MessageType.BROADCAST || !SENDER.equals(message.getSender())) {
+                return;
+            }
+            String content = message.getContent();
+            long sentAt = Long.parseLong(content.substring(0, content.indexOf(' ')));
+            int index = next.getAndIncrement();
+            if (index < samples.length) {
+                samples[index] = System.nanoTime() - sentAt;
+            }
+        }
+
+        @Override
+        public void onConnectionLost() {
+        }
+
+        @Override
+        public void onError(String errorCode) {
+        }
+
+        void reset() {
+            next.set(0);
+        }
+
+        int count() {
+            return Math.min(next.get(), samples.length);
+        }
+
+        long[] snapshot() {
+            long[] copy = Arrays.copyOf(samples, count());
+            Arrays.sort(copy);
+            return copy;
+        }
+    }
+}
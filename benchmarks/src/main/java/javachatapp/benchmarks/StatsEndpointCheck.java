@@ -0,0 +1,128 @@
+package javachatapp.benchmarks;
+
+import javachatapp.client.ClientBackend;
+import javachatapp.server.ChatServer;
+import javachatapp.shared.Message.MessageType;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.lang.management.ManagementFactory;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+/**
+ * StatsEndpointCheck starts a server with the stats listener enabled,
+ * connects a few clients that broadcast some messages, then reads the
+ * statistics back through both exports (an HTTP GET on the stats port and
+ * the platform MBean) and checks them against what the clients did.
+ *
+ * Usage: java -cp benchmarks/target/benchmarks.jar javachatapp.benchmarks.StatsEndpointCheck
+ * [clients] [mode] [port] [statsPort]
+ */
+public class StatsEndpointCheck {
+
+    private static final int MESSAGES_PER_CLIENT = 20;
+
+    public static void main(String[] args) throws Exception {
+        int numClients = args.length > 0 ? Integer.parseInt(args[0]) : 5;
+        ChatServer.ServerMode mode = args.length > 1
+                ? ChatServer.ServerMode.valueOf(args[1])
+                : ChatServer.ServerMode.NIO;
+        int port = args.length > 2 ? Integer.parseInt(args[2]) : 5290;
+        int statsPort = args.length > 3 ? Integer.parseInt(args[3]) : 9290;
+
+        PrintStream report = System.out;
+        System.setOut(new PrintStream(OutputStream.nullOutputStream()));
+
+        ChatServer server = new ChatServer(port, mode);
+        server.setStatsPort(statsPort);
+        Checks.start(server, "stats-check-server");
+
+        ClientBackend.MessageHandler ignore = new Checks.Recorder() {
+            @Override
+            public void onError(String errorCode) {
+                report.println("Error: " + errorCode);
+            }
+        };
+
+        List<ClientBackend> clients = new ArrayList<>();
+        for (int i = 0; i < numClients; i++) {
+            ClientBackend client = new ClientBackend();
+            if (client.connect("localhost", port, "stats" + i, ignore)) {
+                clients.add(client);
+            }
+        }
+        for (int m = 0; m < MESSAGES_PER_CLIENT; m++) {
+            for (ClientBackend client : clients) {
+                client.sendMessage("Broadcast", "message " + m);
+            }
+        }
+        long expectedText = (long) clients.size() * MESSAGES_PER_CLIENT;
+        Checks.waitFor(() -> server.getMetrics().getMessagesIn(MessageType.BROADCAST) >= expectedText);
+        Thread.sleep(200);
+        // Close the interval now instead of waiting for the timer
+        server.getStats().sample();
+
+        // Text export over HTTP
+        String response = fetch(statsPort, "GET /metrics HTTP/1.0\r\n\r\n");
+        Map<String, String> values = parse(response);
+        report.println(response.trim());
+        report.println();
+
+        // JMX export
+        MBeanServer beans = ManagementFactory.getPlatformMBeanServer();
+        ObjectName name = new ObjectName("javachatapp:type=ChatServer,port=" + port);
+        Object jmxClients = beans.getAttribute(name, "ConnectedClients");
+        Object jmxIn = beans.getAttribute(name, "MessagesIn");
+        report.printf("JMX %s: ConnectedClients=%s MessagesIn=%s Mode=%s%n",
+                name, jmxClients, jmxIn, beans.getAttribute(name, "Mode"));
+
+        boolean ok = response.startsWith("HTTP/1.0 200");
+        ok &= String.valueOf(clients.size()).equals(values.get("chat_connected_clients"));
+        ok &= parseLong(values.get("chat_messages_in_total{type=\"BROADCAST\"}")) >= expectedText;
+        ok &= parseLong(values.get("chat_messages_out_total")) >= expectedText;
+        ok &= Integer.valueOf(clients.size()).equals(jmxClients);
+        ok &= ((Long) jmxIn) >= expectedText;
+
+        for (ClientBackend client : clients) {
+            client.disconnect();
+        }
+        server.stop();
+        ok &= !beans.isRegistered(name);
+
+        Checks.finish(report, ok, "stats endpoint and MBean agree with the traffic sent",
+                "stats did not match the traffic sent");
+    }
+
+    private static String fetch(int statsPort, String request) throws Exception {
+        try (Socket socket = new Socket(InetAddress.getLoopbackAddress(), statsPort)) {
+            socket.getOutputStream().write(request.getBytes(StandardCharsets.US_ASCII));
+            socket.getOutputStream().flush();
+            InputStream in = socket.getInputStream();
+            return new String(in.readAllBytes(), StandardCharsets.UTF_8);
+        }
+    }
+
+    // "name value" lines of the response body
+    private static Map<String, String> parse(String response) {
+        Map<String, String> values = new HashMap<>();
+        for (String line : response.split("\r?\n")) {
+            int space = line.lastIndexOf(' ');
+            if (space > 0 && line.startsWith("chat_")) {
+                values.put(line.substring(0, space), line.substring(space + 1));
+            }
+        }
+        return values;
+    }
+
+    private static long parseLong(String value) {
+        return value == null ? -1 : Long.parseLong(value);
+    }
+}
@@ -0,0 +1,154 @@
+package javachatapp.benchmarks;
+
+import javachatapp.client.ChatTranscript;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * TranscriptSoak appends a long session's worth of lines to a ChatTranscript
+ * (default 5M, in batches of 50 as the per-frame pump would) and samples the
+ * heap (after GC) and the append cost along the way: both must stay flat,
+ * the heap within TOLERANCE_KB and the cost of the last sample within
+ * COST_GROWTH times that of the cheapest (the first also pays for the JIT).
+ * It then scrolls back through the store page by page, puts a history page
+ * in front, and scrolls forward again, checking every line it sees.
+ *
+ * Runs without a display; only javafx-base is needed on the class path.
+ *
+ * Usage: java -cp benchmarks/target/benchmarks.jar javachatapp.benchmarks.TranscriptSoak [lines]
+ */
+public class TranscriptSoak {
+
+    private static final int BATCH = 50;
+    private static final int SAMPLES = 10;
+
+    // Allowed heap growth between the first and the last sample
+    private static final long TOLERANCE_KB = 8 * 1024;
+
+    // Allowed growth of the append cost per line from the cheapest to the last sample
+    private static final double COST_GROWTH = 2;
+
+    public static void main(String[] args) throws Exception {
+        long lines = args.length > 0 ? Long.parseLong(args[0]) : 5_000_000L;
+        long perSample = Math.max(BATCH, lines / SAMPLES);
+
+        ChatTranscript transcript = new ChatTranscript();
+        boolean ok = true;
+        try {
+            long firstHeap = -1;
+            long lastHeap = 0;
+            long firstCost = -1;
+            long lastCost = 0;
+            long minCost = Long.MAX_VALUE;
+            long next = 0;
+            while (next < lines) {
+                long sampleEnd = Math.min(lines, next + perSample);
+                long start = System.nanoTime();
+                long appended = sampleEnd - next;
+                while (next < sampleEnd) {
+                    int n = (int) Math.min(BATCH, sampleEnd - next);
+                    List<String> batch = new ArrayList<>(n);
+                    for (int i = 0; i < n; i++) {
+                        batch.add(line(next++));
+                    }
+                    transcript.append(batch);
+                }
+                long cost = (System.nanoTime() - start) / appended;
+                long heap = usedHeapKb();
+                if (firstHeap < 0) {
+                    firstHeap = heap;
+                    firstCost = cost;
+                }
+                lastHeap = heap;
+                lastCost = cost;
+                minCost = Math.min(minCost, cost);
+                System.out.printf("%,12d lines: %,8d KB heap, %4d ns per line, %d in view%n", next, heap, cost,
+                        transcript.size());
+            }
+            boolean flat = lastHeap - firstHeap < TOLERANCE_KB && transcript.size() <= ChatTranscript.DEFAULT_CAPACITY
+                    && lastCost <= COST_GROWTH * minCost;
+            System.out.printf("Heap %+,d KB from first to last sample (limit %,d), append cost %d -> %d ns per line"
+                    + " (cheapest %d, limit %.0fx): %s%n", lastHeap - firstHeap, TOLERANCE_KB, firstCost, lastCost,
+                    minCost, COST_GROWTH, flat ? "flat" : "GREW");
+            ok &= flat;
+
+            ok &= scrollBack(transcript, lines);
+        } finally {
+            transcript.close();
+        }
+        Checks.finish(System.out, ok, "memory and append cost stay flat, paging shows every line in order");
+    }
+
+    private static boolean scrollBack(ChatTranscript transcript, long lines) {
+        // Scrolled up: new lines only go to the store
+        transcript.setFollowing(false);
+        List<String> late = new ArrayList<>();
+        for (long i = lines; i < lines + 100; i++) {
+            late.add(line(i));
+        }
+        transcript.append(late);
+        long total = lines + late.size();
+
+        int pages = 0;
+        long oldestShown = lines - transcript.size();
+        boolean ok = checkWindow(transcript, oldestShown, "after scrolling up");
+        long start = System.nanoTime();
+        while (pages < 1000) {
+            int added = transcript.pageOlder();
+            if (added == 0) {
+                break;
+            }
+            pages++;
+            oldestShown -= added;
+            ok &= checkWindow(transcript, oldestShown, "after page " + pages);
+        }
+        long pageMicros = (System.nanoTime() - start) / 1000 / Math.max(1, pages);
+
+        // A history page in front is shown only once the window reaches the start
+        List<String> history = List.of("history 1", "history 2", "history 3");
+        transcript.prependHistory(history);
+        boolean atStart = oldestShown == 0;
+        if (atStart && !transcript.get(0).equals("history 1")) {
+            System.out.println("History page not shown at the start: " + transcript.get(0));
+            ok = false;
+        }
+
+        // And back down to the newest line
+        while (!transcript.isAtEnd()) {
+            transcript.pageNewer();
+        }
+        ok &= transcript.get(transcript.size() - 1).equals(line(total - 1));
+        transcript.setFollowing(true);
+        transcript.append(List.of(line(total)));
+        ok &= transcript.get(transcript.size() - 1).equals(line(total));
+
+        System.out.printf("Scrolled back %d pages of %d lines (%d us per page), history page %s%n", pages,
+                ChatTranscript.PAGE_LINES, pageMicros, atStart ? "shown at the start" : "stored for later");
+        return ok;
+    }
+
+    // Lines in view must be consecutive, starting at oldest
+    private static boolean checkWindow(ChatTranscript transcript, long oldest, String when) {
+        for (int i = 0; i < transcript.size(); i++) {
+            if (!transcript.get(i).equals(line(oldest + i))) {
+                System.out.println("Wrong line " + when + ": expected '" + line(oldest + i) + "', got '"
+                        + transcript.get(i) + "'");
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static String line(long n) {
+        return "user" + (n % 500) + ": message " + n + " éè";
+    }
+
+    private static long usedHeapKb() throws InterruptedException {
+        Runtime runtime = Runtime.getRuntime();
+        for (int i = 0; i < 3; i++) {
+            System.gc();
+            Thread.sleep(20);
+        }
+        return (runtime.totalMemory() - runtime.freeMemory()) / 1024;
+    }
+}
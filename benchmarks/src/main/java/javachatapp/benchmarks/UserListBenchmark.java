@@ -0,0 +1,64 @@
+package javachatapp.benchmarks;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+import javachatapp.server.ChatServer;
+import javachatapp.server.ClientConnection;
+import javachatapp.shared.Message;
+import javachatapp.shared.Message.MessageType;
+import javachatapp.shared.MessageCodec;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * ChatServer.broadcastUserList at 10, 1k and 10k users: the cached roster
+ * snapshot sent to every connection. encodeSnapshot is the cost of building
+ * that snapshot frame after a roster change.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class UserListBenchmark {
+
+    @Param({"10", "1000", "10000"})
+    public int users;
+
+    private ChatServer server;
+    private Message snapshot;
+
+    @Setup
+    public void setUp() throws InterruptedException {
+        server = InMemoryServer.withUsers(users);
+        String[] names = server.getConnections().stream().map(ClientConnection::getUsername).toArray(String[]::new);
+        snapshot = new Message(MessageType.USER_LIST, names);
+        snapshot.setRosterVersion(server.getRosterVersion());
+    }
+
+    @TearDown
+    public void tearDown() {
+        server.stop();
+    }
+
+    @Benchmark
+    public void broadcastUserList() {
+        server.broadcastUserList();
+    }
+
+    @Benchmark
+    public byte[] encodeSnapshot() throws IOException {
+        return MessageCodec.encodeFrame(snapshot, MessageCodec.PROTOCOL_VERSION);
+    }
+}
@@ -1,5 +1,6 @@
 package javachatapp;
 
+import javachatapp.server.ChatServer;
 import javachatapp.server.HostServer;
 import javachatapp.client.ClientBackend;
 import java.util.List;
@@ -43,8 +44,17 @@ public class JavaChatApp {
             return;
         }
 
+        System.out.print("Engine - 1. Thread per client  2. Virtual threads  3. NIO (default 1): ");
+        String engine = scanner.nextLine().trim();
+        ChatServer.ServerMode mode = ChatServer.ServerMode.THREAD_PER_CLIENT;
+        if (engine.equals("2")) {
+            mode = ChatServer.ServerMode.VIRTUAL_THREADS;
+        } else if (engine.equals("3")) {
+            mode = ChatServer.ServerMode.NIO;
+        }
+
         int port = Integer.parseInt(portString);
-        if (serverGUI.startServer(port)) {
+        if (serverGUI.startServer(port, mode)) {
             System.out.println("Server started successfully on port " + port);
             System.out.println("Press Enter to stop server...");
             scanner.nextLine();
@@ -77,7 +87,7 @@ public class JavaChatApp {
         }
 
         if (!ClientBackend.isValidUsername(username)) {
-            System.out.println("Invalid username (max 20 characters)");
+            System.out.println("Invalid username (max 20 characters, no leading '#')");
             return;
         }
 
@@ -3,23 +3,98 @@ package javachatapp.client;
 
 import javachatapp.shared.Message;
 import javachatapp.shared.Message.MessageType;
+import javachatapp.shared.MessageCodec;
+import javachatapp.shared.VirtualThreads;
 import java.io.*;
 import java.net.Socket;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
  * ChatClient handles the networking for a single client.
- * Connects to server, sends/receives messages via Java serialization.
+ * Connects to server, sends/receives binary message frames (see MessageCodec).
+ *
+ * Sending never touches the socket on the caller's thread: messages go into
+ * a bounded outbound queue and a writer thread writes whatever has queued
+ * up with one flush, so a burst costs one syscall rather than one per
+ * message, and a congested link cannot block the UI. Each send returns a
+ * CompletableFuture that completes (on the writer thread) once the frame
+ * has been flushed, or fails if the queue is full or the connection is
+ * lost.
+ *
+ * The server hands out a resumable session on login and numbers the chat
+ * frames it writes; the client counts the ones it receives. When the
+ * connection drops, the listener may ask for a reconnect(): the session is
+ * resumed from the last counted frame, so nothing sent meanwhile is missed
+ * and the other users never see us leave. Messages still in the send
+ * queue are sent once reconnected.
+ *
+ * Only server-to-client delivery is gap-free. Frames we send carry no
+ * sequence number: one flushed into a connection that then died has its
+ * future completed, yet may never have reached the server, and it is not
+ * sent again.
  */
 public class ChatClient {
     private String serverAddress;
     private int serverPort;
     private Socket socket;
-    private ObjectOutputStream out;
-    private ObjectInputStream in;
+    private DataOutputStream out;
+    private DataInputStream in;
     private String username;
     private MessageListener messageListener;
-    private boolean connected;
+    private volatile boolean connected;
     private Thread listenerThread;
+    private Thread writerThread;
+    private boolean useVirtualThreads;
+    private BlockingQueue<Outgoing> outbound;
+    private final AtomicLong framesSent = new AtomicLong();
+    private final AtomicLong flushes = new AtomicLong();
+
+    // Resumable session: the token from the server's SESSION frame and the
+    // sequenced frames received since (listener thread only writes them)
+    private volatile String sessionToken;
+    private volatile long framesReceived;
+
+    // Messages waiting for the writer before sends fail with SendQueueFullException
+    public static final int SEND_QUEUE_CAPACITY = 4096;
+
+    // Most frames written between two flushes
+    private static final int MAX_BATCH = 256;
+
+    // How long disconnect() waits for queued messages to go out
+    private static final long DISCONNECT_LINGER_MILLIS = 1000;
+
+    // How long reconnect() waits for the server to answer RESUME
+    private static final int RESUME_TIMEOUT_MILLIS = 10_000;
+
+    // Tells the writer to close the socket once everything before it is written
+    private static final Outgoing CLOSE = new Outgoing(null);
+
+    /**
+     * A send that failed because the outbound queue was full (the server is
+     * not keeping up, or the link is congested)
+     */
+    public static class SendQueueFullException extends IOException {
+        private static final long serialVersionUID = 1L;
+
+        public SendQueueFullException() {
+            super("Send queue full");
+        }
+    }
+
+    // A queued message and the future completed once it is flushed
+    private static final class Outgoing {
+        final Message message;
+        final CompletableFuture<Void> sent = new CompletableFuture<>();
+
+        Outgoing(Message message) {
+            this.message = message;
+        }
+    }
 
     /**
      * Interface for receiving messages from the server
@@ -28,6 +103,15 @@ public class ChatClient {
         void onMessageReceived(Message message);
         void onConnectionLost();
         void onError(String errorCode);
+
+        /**
+         * The connection dropped but the session can be resumed. Return true
+         * to call reconnect() (from another thread) until it succeeds or
+         * disconnect() instead; false gives up and onConnectionLost() follows.
+         */
+        default boolean onConnectionInterrupted() {
+            return false;
+        }
     }
 
     public ChatClient(String serverAddress, int serverPort) {
@@ -36,6 +120,15 @@ public class ChatClient {
         this.connected = false;
     }
 
+    /**
+     * Run the listener on a virtual thread (Java 21+) instead of a platform
+     * thread. Useful when one process holds many clients, e.g. load tests.
+     * Must be called before connect().
+     */
+    public void setUseVirtualThreads(boolean useVirtualThreads) {
+        this.useVirtualThreads = useVirtualThreads;
+    }
+
     /**
      * Connect to the server with the specified username
      * @param username The username for this client
@@ -49,19 +142,23 @@ public class ChatClient {
         try {
             // Connect to server
             socket = new Socket(serverAddress, serverPort);
+            // The writer already batches, Nagle would only hold the last frame of a burst back
+            socket.setTcpNoDelay(true);
 
-            // Initialize streams (output first to avoid deadlock)
-            out = new ObjectOutputStream(socket.getOutputStream());
+            // Initialize streams and announce the protocol version
+            out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream(), 64 * 1024));
+            in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+            MessageCodec.writeHandshake(out);
             out.flush();
-            in = new ObjectInputStream(socket.getInputStream());
 
             // Set connected flag BEFORE sending CONNECT message
-            // (sendMessage() checks this flag)
+            // (send() checks this flag)
+            outbound = new LinkedBlockingQueue<>(SEND_QUEUE_CAPACITY);
             connected = true;
+            startWriter();
 
-            // Send CONNECT message with username
-            Message connectMsg = new Message(MessageType.CONNECT, username);
-            sendMessage(connectMsg);
+            // Send CONNECT message with username, asking for a resumable session
+            send(new Message(MessageType.CONNECT, username, null, MessageCodec.CONNECT_RESUMABLE));
 
             // Start listening for messages in a separate thread
             startMessageListener();
@@ -91,8 +188,7 @@ public class ChatClient {
 
         try {
             // Send new CONNECT message with new username
-            Message connectMsg = new Message(MessageType.CONNECT, newUsername);
-            sendMessage(connectMsg);
+            send(new Message(MessageType.CONNECT, newUsername, null, MessageCodec.CONNECT_RESUMABLE));
             System.out.println("Retrying connection with username: " + newUsername);
             return true;
         } catch (Exception e) {
@@ -105,10 +201,23 @@ public class ChatClient {
      * Start a thread to listen for incoming messages
      */
     private void startMessageListener() {
-        listenerThread = new Thread(() -> {
+        DataInputStream stream = in;
+        Runnable listenTask = () -> {
             try {
-                while (connected) {
-                    Message message = (Message) in.readObject();
+                while (true) {
+                    Message message = MessageCodec.readFrame(stream, MessageCodec.PROTOCOL_VERSION);
+                    if (!connected) {
+                        // Disconnecting: read on until the server closes, so it gets our DISCONNECT
+                        continue;
+                    }
+                    if (message.getType() == MessageType.SESSION) {
+                        sessionToken = message.getContent();
+                        framesReceived = message.getSequence();
+                        continue;
+                    }
+                    if (sessionToken != null && MessageCodec.isSequenced(message.getType())) {
+                        framesReceived++;
+                    }
                     if (messageListener != null) {
                         // Check if this is an ERROR message
                         if (message.getType() == MessageType.ERROR) {
@@ -119,8 +228,10 @@ public class ChatClient {
                     }
                 }
             } catch (EOFException e) {
-                System.out.println("Connection closed by server");
-            } catch (IOException | ClassNotFoundException e) {
+                if (connected) {
+                    System.out.println("Connection closed by server");
+                }
+            } catch (IOException e) {
                 if (connected) {
                     System.err.println("Error receiving message: " + e.getMessage());
                 }
@@ -129,6 +240,13 @@ public class ChatClient {
                 MessageListener listener = messageListener;
                 boolean wasConnected = connected;
 
+                if (wasConnected && sessionToken != null && listener != null) {
+                    // Keep the session and the send queue for reconnect()
+                    suspend();
+                    if (listener.onConnectionInterrupted()) {
+                        return;
+                    }
+                }
                 disconnect();
 
                 // Only notify if we were connected and have a listener
@@ -136,87 +254,353 @@ public class ChatClient {
                     listener.onConnectionLost();
                 }
             }
-        });
-        listenerThread.setDaemon(true);
+        };
+
+        if (useVirtualThreads) {
+            listenerThread = VirtualThreads.newThread("chat-client-listener", listenTask);
+        } else {
+            listenerThread = new Thread(listenTask, "chat-client-listener");
+            listenerThread.setDaemon(true);
+        }
         listenerThread.start();
     }
 
+    // Write queued messages, flushing once per burst
+    private void startWriter() {
+        BlockingQueue<Outgoing> queue = outbound;
+        DataOutputStream stream = out;
+        Runnable writeTask = () -> writeLoop(queue, stream);
+        if (useVirtualThreads) {
+            writerThread = VirtualThreads.newThread("chat-client-writer", writeTask);
+        } else {
+            writerThread = new Thread(writeTask, "chat-client-writer");
+            writerThread.setDaemon(true);
+        }
+        writerThread.start();
+    }
+
+    private void writeLoop(BlockingQueue<Outgoing> queue, DataOutputStream stream) {
+        List<Outgoing> batch = new ArrayList<>(MAX_BATCH);
+        try {
+            while (true) {
+                batch.add(queue.take());
+                queue.drainTo(batch, MAX_BATCH - 1);
+                boolean close = false;
+                for (Outgoing outgoing : batch) {
+                    if (outgoing == CLOSE) {
+                        close = true;
+                        break;
+                    }
+                    stream.write(MessageCodec.encodeFrame(outgoing.message, MessageCodec.PROTOCOL_VERSION));
+                }
+                stream.flush();
+                flushes.incrementAndGet();
+                for (Outgoing outgoing : batch) {
+                    if (outgoing != CLOSE) {
+                        framesSent.incrementAndGet();
+                        outgoing.sent.complete(null);
+                    }
+                }
+                batch.clear();
+                if (close) {
+                    // Half-close: the server closes once it has read DISCONNECT
+                    shutdownOutput();
+                    break;
+                }
+            }
+        } catch (IOException e) {
+            if (connected) {
+                System.err.println("Error sending message: " + e.getMessage());
+            }
+            failAll(batch, e);
+            // The listener sees the closed socket and reports the lost connection
+            closeSocket();
+        } catch (InterruptedException e) {
+            failAll(batch, new InterruptedIOException("Writer stopped"));
+        }
+        if (!connected) {
+            failAll(new ArrayList<>(queue), new IOException("Disconnected"));
+            queue.clear();
+        }
+        // Otherwise the connection was lost and the queue waits for reconnect()
+    }
+
+    private static void failAll(List<Outgoing> pending, IOException cause) {
+        for (Outgoing outgoing : pending) {
+            if (outgoing != CLOSE) {
+                outgoing.sent.completeExceptionally(cause);
+            }
+        }
+    }
+
     /**
      * Send a text message to a specific recipient
      * @param recipient Username of recipient (or "Broadcast" for all)
      * @param content The message content
+     * @return completes once the message has been written to the socket
      */
-    public void sendTextMessage(String recipient, String content) {
+    public CompletableFuture<Void> sendTextMessage(String recipient, String content) {
         Message message = new Message(MessageType.TEXT, username, recipient, content);
-        sendMessage(message);
+        return send(message);
     }
 
     /**
      * Send a private message to a specific user
      * @param recipient Username of recipient
      * @param content The message content
+     * @return completes once the message has been written to the socket
      */
-    public void sendPrivateMessage(String recipient, String content) {
+    public CompletableFuture<Void> sendPrivateMessage(String recipient, String content) {
         Message message = new Message(MessageType.PRIVATE_MESSAGE, username, recipient, content);
-        sendMessage(message);
+        return send(message);
     }
 
     /**
      * Send a broadcast message to all users
      * @param content The message content
+     * @return completes once the message has been written to the socket
      */
-    public void sendBroadcastMessage(String content) {
+    public CompletableFuture<Void> sendBroadcastMessage(String content) {
         Message message = new Message(MessageType.BROADCAST, username, "Broadcast", content);
-        sendMessage(message);
+        return send(message);
+    }
+
+    /**
+     * Ask the server for a full user list snapshot (after a missed roster delta)
+     */
+    public void requestUserList() {
+        send(new Message(MessageType.USER_LIST_REQUEST, username));
+    }
+
+    /**
+     * Join a room (created if nobody is in it yet)
+     * @param room Room name, '#' followed by letters, digits, '-' or '_'
+     */
+    public void joinRoom(String room) {
+        send(new Message(MessageType.JOIN_ROOM, username, room, null));
     }
 
     /**
-     * Send a message object to the server
+     * Leave a room
+     * @param room Room name
+     */
+    public void leaveRoom(String room) {
+        send(new Message(MessageType.LEAVE_ROOM, username, room, null));
+    }
+
+    /**
+     * Send a message to every member of a room this client is in
+     * @param room Room name
+     * @param content The message content
+     * @return completes once the message has been written to the socket
+     */
+    public CompletableFuture<Void> sendRoomMessage(String room, String content) {
+        return send(new Message(MessageType.ROOM_MESSAGE, username, room, content));
+    }
+
+    /**
+     * Ask the server for older public messages
+     * @param before History offset to read before (0 = the newest)
+     * @param max Most messages to return (the server caps this)
+     */
+    public void requestHistory(long before, int max) {
+        Message message = new Message(MessageType.HISTORY_REQUEST, username, null, Integer.toString(max));
+        message.setHistoryOffset(before);
+        send(message);
+    }
+
+    /**
+     * Queue a message for the writer thread; never blocks
      * @param message The message to send
+     * @return completes once the message has been written to the socket,
+     * fails with SendQueueFullException if too much is already queued
      */
-    private void sendMessage(Message message) {
-        try {
-            if (out != null && connected) {
-                out.writeObject(message);
-                out.flush();
-            }
-        } catch (IOException e) {
-            System.err.println("Error sending message: " + e.getMessage());
-            disconnect();
+    public CompletableFuture<Void> send(Message message) {
+        BlockingQueue<Outgoing> queue = outbound;
+        if (queue == null || !connected) {
+            return CompletableFuture.failedFuture(new IOException("Not connected"));
+        }
+        Outgoing outgoing = new Outgoing(message);
+        if (!queue.offer(outgoing)) {
+            return CompletableFuture.failedFuture(new SendQueueFullException());
         }
+        return outgoing.sent;
     }
 
     /**
-     * Disconnect from the server
+     * Disconnect from the server. Messages already queued are still sent,
+     * followed by DISCONNECT. Returns at once (it is called on the UI
+     * thread): a background thread gives the writer at most a second to
+     * send them and the server another to close its side, then closes the
+     * socket and fails whatever was not sent.
      */
     public void disconnect() {
-        if (connected) {
-            try {
-                // Send disconnect message
-                if (out != null) {
-                    Message disconnectMsg = new Message(MessageType.DISCONNECT, username);
-                    out.writeObject(disconnectMsg);
-                    out.flush();
-                }
-            } catch (IOException e) {
-                // Ignore errors during disconnect
+        BlockingQueue<Outgoing> queue = outbound;
+        Thread writer;
+        Thread listener;
+        Socket closing;
+        // Never held during I/O: a reconnect only takes it to swap in its streams
+        synchronized (this) {
+            if (!connected) {
+                return;
             }
-
             connected = false;
+            // Past a full queue the server gets no DISCONNECT, it sees the socket close
+            queue.offer(new Outgoing(new Message(MessageType.DISCONNECT, username)));
+            queue.offer(CLOSE);
+            writer = writerThread;
+            listener = listenerThread;
+            closing = socket;
+            sessionToken = null;
+        }
+        // Not a daemon: closing the window right after logging out still sends DISCONNECT
+        new Thread(() -> linger(queue, writer, listener, closing), "chat-client-linger").start();
+
+        System.out.println("Disconnected from server");
+    }
+
+    // Wait for the writer to send DISCONNECT and for the server to close, then close the socket
+    private static void linger(BlockingQueue<Outgoing> queue, Thread writer, Thread listener, Socket closing) {
+        try {
+            if (writer != null) {
+                writer.join(DISCONNECT_LINGER_MILLIS);
+                writer.interrupt();
+            }
+            // The listener drains until the server closes
+            if (listener != null) {
+                listener.join(DISCONNECT_LINGER_MILLIS);
+            }
+        } catch (InterruptedException e) {
+            // Close now
+        }
+        closeQuietly(closing);
+        // The writer may have stopped earlier, when the connection was lost
+        failAll(new ArrayList<>(queue), new IOException("Disconnected"));
+        queue.clear();
+    }
 
-            // Close resources
+    // Stop using a lost connection; the send queue is kept
+    private void suspend() {
+        closeSocket();
+        Thread writer = writerThread;
+        if (writer != null && writer != Thread.currentThread()) {
+            writer.interrupt();
             try {
-                if (in != null) in.close();
-                if (out != null) out.close();
-                if (socket != null && !socket.isClosed()) socket.close();
-            } catch (IOException e) {
-                System.err.println("Error closing connection: " + e.getMessage());
+                writer.join(DISCONNECT_LINGER_MILLIS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    /**
+     * Open a new connection after onConnectionInterrupted() and resume the
+     * session: the server sends every chat message since the last one
+     * received, then a fresh user list. If the server no longer has the
+     * session (it expired, or the server restarted), this logs in again
+     * with CONNECT instead; messages sent meanwhile are then missed.
+     *
+     * @return true if the session was resumed, false if logged in again
+     * @throws IOException if the server cannot be reached; try again later
+     */
+    public boolean reconnect() throws IOException {
+        String token = sessionToken;
+        if (!connected || token == null) {
+            throw new IOException("No session to resume");
+        }
+        // Connect and handshake without the lock: either can take a full timeout
+        Socket fresh = new Socket(serverAddress, serverPort);
+        try {
+            fresh.setTcpNoDelay(true);
+            DataOutputStream freshOut =
+                    new DataOutputStream(new BufferedOutputStream(fresh.getOutputStream(), 64 * 1024));
+            DataInputStream freshIn = new DataInputStream(new BufferedInputStream(fresh.getInputStream()));
+            MessageCodec.writeHandshake(freshOut);
+            Message resume = new Message(MessageType.RESUME, username, null, token);
+            resume.setSequence(framesReceived);
+            MessageCodec.writeFrame(freshOut, resume, MessageCodec.PROTOCOL_VERSION);
+
+            // The answer is SESSION, or ERROR RESUME_FAILED
+            fresh.setSoTimeout(RESUME_TIMEOUT_MILLIS);
+            Message reply = MessageCodec.readFrame(freshIn, MessageCodec.PROTOCOL_VERSION);
+            fresh.setSoTimeout(0);
+            boolean resumed = reply.getType() == MessageType.SESSION;
+            if (resumed) {
+                framesReceived = reply.getSequence();
+            } else {
+                // Log in again on this connection; the new session comes with the login
+                sessionToken = null;
+                framesReceived = 0;
+                MessageCodec.writeFrame(freshOut,
+                        new Message(MessageType.CONNECT, username, null, MessageCodec.CONNECT_RESUMABLE),
+                        MessageCodec.PROTOCOL_VERSION);
+            }
+
+            // Only the swap is locked, so disconnect() sees either the old streams or the new ones
+            synchronized (this) {
+                if (!connected) {
+                    throw new IOException("Disconnected while reconnecting");
+                }
+                socket = fresh;
+                out = freshOut;
+                in = freshIn;
+                startWriter();
+                startMessageListener();
             }
+            System.out.println((resumed ? "Resumed session as " : "Logged in again as ") + username);
+            return resumed;
+        } catch (IOException e) {
+            fresh.close();
+            throw e;
+        }
+    }
+
+    private void shutdownOutput() {
+        try {
+            if (socket != null && !socket.isClosed()) {
+                socket.shutdownOutput();
+            }
+        } catch (IOException e) {
+            closeSocket();
+        }
+    }
+
+    private static void closeQuietly(Socket closing) {
+        try {
+            if (closing != null) closing.close();
+        } catch (IOException e) {
+            // Already closed
+        }
+    }
 
-            System.out.println("Disconnected from server");
+    private void closeSocket() {
+        try {
+            if (socket != null && !socket.isClosed()) socket.close();
+        } catch (IOException e) {
+            System.err.println("Error closing connection: " + e.getMessage());
         }
     }
 
+    // Frames written to the socket, and the flushes they took (one per burst)
+    public long getFramesSent() {
+        return framesSent.get();
+    }
+
+    public long getFlushes() {
+        return flushes.get();
+    }
+
+    // Messages queued and not yet written
+    public int getQueuedCount() {
+        BlockingQueue<Outgoing> queue = outbound;
+        return queue != null ? queue.size() : 0;
+    }
+
+    // True while a session is held that reconnect() can resume
+    public boolean isResumable() {
+        return sessionToken != null;
+    }
+
     /**
      * Check if client is connected
      */
@@ -0,0 +1,266 @@
+package javachatapp.client;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import javafx.collections.ObservableListBase;
+
+/**
+ * ChatTranscript is the list behind the transcript view: a window of at most
+ * CAPACITY consecutive lines of the session, held in a ring buffer, over a
+ * TranscriptStore that has all of them.
+ *
+ * While following, new lines join the window and the oldest leave it, which
+ * is O(1) per line however long the session runs. Once the user scrolls
+ * away from the newest line, new lines only go to the store; pageOlder()
+ * and pageNewer() slide the window as the user scrolls. The view is a
+ * virtualized ListView, so only the visible cells are laid out.
+ *
+ * If the store cannot be created (no writable temp directory), the window
+ * is all there is and lines that leave it are gone.
+ *
+ * FX thread only.
+ */
+public class ChatTranscript extends ObservableListBase<String> {
+
+    // Lines held in memory
+    public static final int DEFAULT_CAPACITY = 2000;
+
+    // Lines read from the store per page
+    public static final int PAGE_LINES = 200;
+
+    private final String[] ring;
+    private int head;
+    private int size;
+    private long firstLine; // Store number of get(0)
+    private boolean following = true;
+    private TranscriptStore store;
+    private boolean storeFailed;
+
+    public ChatTranscript() {
+        this(DEFAULT_CAPACITY);
+    }
+
+    public ChatTranscript(int capacity) {
+        ring = new String[capacity];
+    }
+
+    @Override
+    public String get(int index) {
+        if (index < 0 || index >= size) {
+            throw new IndexOutOfBoundsException(index);
+        }
+        return ring[(head + index) % ring.length];
+    }
+
+    @Override
+    public int size() {
+        return size;
+    }
+
+    // New lines join the window (only while following)
+    public void append(List<String> lines) {
+        if (lines.isEmpty()) {
+            return;
+        }
+        boolean atEnd = isAtEnd();
+        TranscriptStore current = store();
+        if (current != null) {
+            try {
+                for (String line : lines) {
+                    current.append(line);
+                }
+            } catch (IOException e) {
+                storeFailed(e);
+            }
+        }
+        if (following && atEnd) {
+            int n = Math.min(lines.size(), ring.length);
+            addLast(lines.subList(lines.size() - n, lines.size()));
+        }
+    }
+
+    /**
+     * Put history (oldest first) in front of the transcript. It is shown if
+     * the window starts at the oldest line, otherwise it pages in on scroll.
+     */
+    public void prependHistory(List<String> lines) {
+        if (lines.isEmpty()) {
+            return;
+        }
+        TranscriptStore current = store();
+        if (current == null) {
+            // Only what fits: the newest lines stay
+            int room = ring.length - size;
+            addFirst(lines.subList(Math.max(0, lines.size() - room), lines.size()));
+            return;
+        }
+        boolean atStart = firstLine == current.firstLine();
+        try {
+            current.prepend(lines);
+        } catch (IOException e) {
+            storeFailed(e);
+            return;
+        }
+        if (atStart) {
+            pageOlder(lines.size());
+        }
+    }
+
+    /**
+     * Slide the window up by a page
+     *
+     * @return lines added at the top
+     */
+    public int pageOlder() {
+        return pageOlder(PAGE_LINES);
+    }
+
+    private int pageOlder(int lines) {
+        if (store == null) {
+            return 0;
+        }
+        long from = Math.max(store.firstLine(), firstLine - Math.min(lines, ring.length));
+        int n = (int) (firstLine - from);
+        if (n == 0) {
+            return 0;
+        }
+        try {
+            addFirst(store.read(from, n));
+        } catch (IOException e) {
+            storeFailed(e);
+            return 0;
+        }
+        return n;
+    }
+
+    /**
+     * Slide the window down by a page
+     *
+     * @return lines dropped at the top
+     */
+    public int pageNewer() {
+        if (store == null || isAtEnd()) {
+            return 0;
+        }
+        long from = firstLine + size;
+        int n = (int) Math.min(PAGE_LINES, store.endLine() - from);
+        int dropped = Math.max(0, size + n - ring.length);
+        try {
+            addLast(store.read(from, n));
+        } catch (IOException e) {
+            storeFailed(e);
+            return 0;
+        }
+        return dropped;
+    }
+
+    // True if the window ends with the newest line
+    public boolean isAtEnd() {
+        return store == null || firstLine + size == store.endLine();
+    }
+
+    public boolean isFollowing() {
+        return following;
+    }
+
+    /**
+     * Whether new lines are added to the window. The view follows while the
+     * newest line is on screen.
+     */
+    public void setFollowing(boolean following) {
+        this.following = following;
+    }
+
+    // Empty the transcript and delete its store
+    public void reset() {
+        if (size > 0) {
+            beginChange();
+            nextRemove(0, new ArrayList<>(this));
+            Arrays.fill(ring, null);
+            head = 0;
+            size = 0;
+            endChange();
+        }
+        close();
+        firstLine = 0;
+        following = true;
+        storeFailed = false;
+    }
+
+    // Delete the store (on exit)
+    public void close() {
+        if (store != null) {
+            store.close();
+            store = null;
+        }
+    }
+
+    // Lines (oldest first) after the window; the oldest lines of the window make room
+    private void addLast(List<String> lines) {
+        beginChange();
+        int dropped = Math.max(0, size + lines.size() - ring.length);
+        if (dropped > 0) {
+            List<String> removed = new ArrayList<>(dropped);
+            for (int i = 0; i < dropped; i++) {
+                removed.add(ring[head]);
+                ring[head] = null;
+                head = (head + 1) % ring.length;
+            }
+            size -= dropped;
+            firstLine += dropped;
+            nextRemove(0, removed);
+        }
+        for (String line : lines) {
+            ring[(head + size) % ring.length] = line;
+            size++;
+        }
+        nextAdd(size - lines.size(), size);
+        endChange();
+    }
+
+    // Lines (oldest first) before the window; the newest lines of the window make room
+    private void addFirst(List<String> lines) {
+        beginChange();
+        int dropped = Math.max(0, size + lines.size() - ring.length);
+        if (dropped > 0) {
+            List<String> removed = new ArrayList<>(dropped);
+            for (int i = size - dropped; i < size; i++) {
+                int slot = (head + i) % ring.length;
+                removed.add(ring[slot]);
+                ring[slot] = null;
+            }
+            size -= dropped;
+            nextRemove(size, removed);
+        }
+        for (int i = lines.size() - 1; i >= 0; i--) {
+            head = (head - 1 + ring.length) % ring.length;
+            ring[head] = lines.get(i);
+            size++;
+        }
+        firstLine -= lines.size();
+        nextAdd(0, lines.size());
+        endChange();
+    }
+
+    // The store, created on first use; null if it cannot be
+    private TranscriptStore store() {
+        if (store == null && !storeFailed) {
+            try {
+                store = TranscriptStore.create();
+                firstLine = 0;
+            } catch (IOException e) {
+                storeFailed(e);
+            }
+        }
+        return store;
+    }
+
+    private void storeFailed(IOException e) {
+        System.out.println("Transcript store unavailable, keeping the last " + ring.length + " lines only: "
+                + e.getMessage());
+        close();
+        storeFailed = true;
+    }
+}
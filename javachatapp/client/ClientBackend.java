@@ -2,8 +2,15 @@
 package javachatapp.client;
 
 import javachatapp.shared.Message;
+import javachatapp.shared.RoomNames;
+import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashSet;
 import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ThreadLocalRandom;
 
 /**
  * ClientBackend - Backend logic for client interface. The frontend developer
@@ -12,14 +19,44 @@ import java.util.List;
  * Backend responsibilities: - Connect/disconnect functionality - Send messages
  * to other users or broadcast - Manage user list updates - Handle incoming
  * messages
+ *
+ * A dropped connection is retried with jittered exponential backoff and
+ * the server session is resumed from the last message received, so nothing
+ * is missed and nobody sees us leave and rejoin. Messages sent while
+ * reconnecting wait in ChatClient's send queue.
  */
 public class ClientBackend {
 
     private ChatClient client;
     private String username;
-    private List<String> connectedUsers;
+    private final Set<String> connectedUsers;
     private MessageHandler messageHandler;
 
+    // Roster version of connectedUsers, -1 until the first snapshot arrives
+    private long rosterVersion = -1;
+    // A delta was missed, deltas are ignored until the requested snapshot arrives
+    private boolean awaitingSnapshot;
+
+    // Rooms the server confirmed we are in
+    private final Set<String> joinedRooms = new LinkedHashSet<>();
+
+    // HISTORY_PAGE frames of the page being received (listener thread only)
+    private final List<Message> historyFrames = new ArrayList<>();
+    // Offset to ask for older history from, 0 if there is none (or none known yet)
+    private volatile long olderHistoryOffset;
+    // A requestOlderHistory() page is on its way
+    private volatile boolean historyRequested;
+
+    // Messages per requestOlderHistory() page
+    private static final int HISTORY_PAGE_SIZE = 50;
+
+    // Reconnect delays start around this and double per attempt up to the max
+    private static final long RECONNECT_BASE_MILLIS = 250;
+    private static final long RECONNECT_MAX_MILLIS = 8_000;
+
+    // Reconnecting gives up (onConnectionLost) after this long
+    private static final long RECONNECT_GIVE_UP_MILLIS = 120_000;
+
     /**
      * Interface for handling UI updates (to be implemented by frontend)
      */
@@ -29,13 +66,85 @@ public class ClientBackend {
 
         void onUserListUpdated(List<String> users);
 
+        /**
+         * The roster changed: who joined and who left since the last call (a
+         * snapshot arrives as its difference to the roster before it). By
+         * default the whole list is copied and passed to onUserListUpdated().
+         */
+        default void onUserListChanged(RosterChange change) {
+            onUserListUpdated(change.getUsers());
+        }
+
         void onConnectionLost();
 
         void onError(String errorCode);
+
+        // The connection dropped and reconnect attempt 1, 2, ... is about to be made
+        default void onReconnecting(int attempt) {
+        }
+
+        /**
+         * Connected again: resumed is true if the session was resumed and no
+         * message was missed, false if the server no longer had it and we
+         * logged in again (rooms have to be joined again).
+         */
+        default void onReconnected(boolean resumed) {
+        }
+
+        /**
+         * Stored messages, oldest first: the recent history sent on joining
+         * (older = false) or a page asked for with requestOlderHistory()
+         * (older = true), which precedes everything received so far. By
+         * default they are passed to onMessageReceived() one by one.
+         */
+        default void onHistoryReceived(List<Message> messages, boolean older) {
+            for (Message message : messages) {
+                onMessageReceived(message.getSender(), message.getContent());
+            }
+        }
+
+        // A message to one of our rooms; by default shown as from "sender #room"
+        default void onRoomMessageReceived(String room, String sender, String content) {
+            onMessageReceived(sender + " " + room, content);
+        }
+
+        // The rooms we are in changed (after a join or leave was confirmed)
+        default void onRoomsUpdated(List<String> rooms) {
+        }
+    }
+
+    /**
+     * One roster update: the users that joined and left. A name is never in
+     * both lists.
+     */
+    public static final class RosterChange {
+
+        private final ClientBackend backend;
+        private final List<String> joined;
+        private final List<String> left;
+
+        RosterChange(ClientBackend backend, List<String> joined, List<String> left) {
+            this.backend = backend;
+            this.joined = Collections.unmodifiableList(joined);
+            this.left = Collections.unmodifiableList(left);
+        }
+
+        public List<String> getJoined() {
+            return joined;
+        }
+
+        public List<String> getLeft() {
+            return left;
+        }
+
+        // A copy of the whole roster as of now (call it from the handler, not later)
+        public List<String> getUsers() {
+            return backend.getConnectedUsers();
+        }
     }
 
     public ClientBackend() {
-        this.connectedUsers = new ArrayList<>();
+        this.connectedUsers = new LinkedHashSet<>();
     }
 
     /**
@@ -57,6 +166,11 @@ public class ClientBackend {
             return false;
         }
 
+        if (RoomNames.isReservedUsername(username)) {
+            System.err.println("Username cannot start with '#'");
+            return false;
+        }
+
         if (serverAddress == null || serverAddress.trim().isEmpty()) {
             System.err.println("Server address cannot be empty");
             return false;
@@ -79,6 +193,15 @@ public class ClientBackend {
                     }
                 }
 
+                @Override
+                public boolean onConnectionInterrupted() {
+                    // A history page cut off halfway will not be finished
+                    historyFrames.clear();
+                    historyRequested = false;
+                    startReconnect(client);
+                    return true;
+                }
+
                 @Override
                 public void onError(String errorCode) {
                     if (messageHandler != null) {
@@ -95,6 +218,57 @@ public class ClientBackend {
         }
     }
 
+    private void startReconnect(ChatClient lost) {
+        Thread thread = new Thread(() -> reconnect(lost), "chat-client-reconnect");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    // Retry until the session is back, disconnect() is called, or it is time to give up
+    private void reconnect(ChatClient lost) {
+        long giveUpAt = System.currentTimeMillis() + RECONNECT_GIVE_UP_MILLIS;
+        for (int attempt = 1; System.currentTimeMillis() < giveUpAt; attempt++) {
+            if (messageHandler != null) {
+                messageHandler.onReconnecting(attempt);
+            }
+            // Half fixed, half random, so clients cut off together do not all come back at once
+            long ceiling = Math.min(RECONNECT_MAX_MILLIS, RECONNECT_BASE_MILLIS << Math.min(attempt - 1, 10));
+            long delay = ceiling / 2 + ThreadLocalRandom.current().nextLong(ceiling / 2 + 1);
+            try {
+                Thread.sleep(delay);
+            } catch (InterruptedException e) {
+                return;
+            }
+            if (client != lost || !lost.isConnected()) {
+                // Disconnected meanwhile
+                return;
+            }
+            try {
+                boolean resumed = lost.reconnect();
+                if (!resumed) {
+                    // A new login: the server has no rooms for us any more
+                    List<String> rooms = List.of();
+                    synchronized (joinedRooms) {
+                        joinedRooms.clear();
+                    }
+                    if (messageHandler != null) {
+                        messageHandler.onRoomsUpdated(rooms);
+                    }
+                }
+                if (messageHandler != null) {
+                    messageHandler.onReconnected(resumed);
+                }
+                return;
+            } catch (IOException e) {
+                System.err.println("Reconnect attempt " + attempt + " failed: " + e);
+            }
+        }
+        lost.disconnect();
+        if (messageHandler != null) {
+            messageHandler.onConnectionLost();
+        }
+    }
+
     /**
      * Handle incoming messages from the server
      */
@@ -110,8 +284,28 @@ public class ClientBackend {
                 break;
 
             case USER_LIST:
-                // Update connected users list
-                updateUserList(message.getUserList());
+            case USER_JOINED:
+            case USER_LEFT:
+                // Full snapshot or incremental roster change
+                updateUserList(message);
+                break;
+
+            case ROOM_MESSAGE:
+                if (messageHandler != null) {
+                    messageHandler.onRoomMessageReceived(message.getRecipient(), message.getSender(),
+                            message.getContent());
+                }
+                break;
+
+            case JOIN_ROOM:
+            case LEAVE_ROOM:
+                // The server confirmed a join or leave
+                updateRooms(message);
+                break;
+
+            case HISTORY_PAGE:
+                // Stored messages, possibly split over several frames
+                receiveHistory(message);
                 break;
 
             case DISCONNECT:
@@ -126,20 +320,139 @@ public class ClientBackend {
         }
     }
 
+    private void updateRooms(Message message) {
+        List<String> rooms;
+        synchronized (joinedRooms) {
+            if (message.getType() == Message.MessageType.JOIN_ROOM) {
+                joinedRooms.add(message.getRecipient());
+            } else {
+                joinedRooms.remove(message.getRecipient());
+            }
+            rooms = new ArrayList<>(joinedRooms);
+        }
+        if (messageHandler != null) {
+            messageHandler.onRoomsUpdated(rooms);
+        }
+    }
+
+    /**
+     * Collect the frames of a history page and hand the page over once the
+     * last one (content not MORE) has arrived
+     */
+    private void receiveHistory(Message frame) {
+        historyFrames.add(frame);
+        if ("MORE".equals(frame.getContent())) {
+            return;
+        }
+        List<Message> messages = new ArrayList<>();
+        for (Message part : historyFrames) {
+            if (part.getHistory() != null) {
+                for (Message stored : part.getHistory()) {
+                    messages.add(stored);
+                }
+            }
+        }
+        historyFrames.clear();
+        boolean older = historyRequested;
+        olderHistoryOffset = frame.getHistoryOffset();
+        historyRequested = false;
+
+        if (messageHandler != null && (!messages.isEmpty() || older)) {
+            messageHandler.onHistoryReceived(messages, older);
+        }
+    }
+
+    /**
+     * Ask for the page of messages before the oldest one received so far.
+     * The page arrives through MessageHandler.onHistoryReceived().
+     *
+     * @return false if there is nothing older or a page is already on its way
+     */
+    public boolean requestOlderHistory() {
+        long before = olderHistoryOffset;
+        if (client == null || !client.isConnected() || before == 0 || historyRequested) {
+            return false;
+        }
+        historyRequested = true;
+        client.requestHistory(before, HISTORY_PAGE_SIZE);
+        return true;
+    }
+
+    // True if the server said older messages exist than those received so far
+    public boolean hasOlderHistory() {
+        return olderHistoryOffset != 0;
+    }
+
     /**
-     * Update the list of connected users
+     * Update the list of connected users from a USER_LIST snapshot or a
+     * USER_JOINED/USER_LEFT delta. Deltas must arrive in version order; on a
+     * gap the backend asks for a fresh snapshot instead of guessing.
      */
-    private void updateUserList(String[] users) {
-        connectedUsers.clear();
-        if (users != null) {
-            for (String user : users) {
-                connectedUsers.add(user);
+    private void updateUserList(Message message) {
+        long version = message.getRosterVersion();
+        List<String> joined = new ArrayList<>();
+        List<String> left = new ArrayList<>();
+        boolean missed;
+
+        // Only the listener thread writes, the lock keeps getConnectedUsers() consistent
+        synchronized (connectedUsers) {
+            if (message.getType() == Message.MessageType.USER_LIST) {
+                // Snapshots replace everything (older servers send version 0);
+                // the handler only hears the difference
+                Set<String> snapshot = new LinkedHashSet<>();
+                if (message.getUserList() != null) {
+                    Collections.addAll(snapshot, message.getUserList());
+                }
+                for (String user : connectedUsers) {
+                    if (!snapshot.contains(user)) {
+                        left.add(user);
+                    }
+                }
+                for (String user : snapshot) {
+                    if (!connectedUsers.contains(user)) {
+                        joined.add(user);
+                    }
+                }
+                for (String user : left) {
+                    connectedUsers.remove(user);
+                }
+                connectedUsers.addAll(joined);
+                rosterVersion = version;
+                awaitingSnapshot = false;
+            } else if (rosterVersion < 0 || awaitingSnapshot || version <= rosterVersion) {
+                // No base roster yet, or already covered by a snapshot
+                return;
+            } else if (version != rosterVersion + 1) {
+                awaitingSnapshot = true;
+            } else {
+                // A delta lists every user that joined (or left) in one presence window
+                String[] names = message.getUserList() != null
+                        ? message.getUserList()
+                        : new String[]{message.getSender()};
+                for (String name : names) {
+                    if (message.getType() == Message.MessageType.USER_JOINED) {
+                        if (connectedUsers.add(name)) {
+                            joined.add(name);
+                        }
+                    } else if (connectedUsers.remove(name)) {
+                        left.add(name);
+                    }
+                }
+                rosterVersion = version;
             }
+            missed = awaitingSnapshot;
         }
 
-        // Notify UI of updated user list
+        if (missed) {
+            System.err.println("Missed roster update " + (version - 1) + ", requesting user list");
+            client.requestUserList();
+            return;
+        }
+
+        // Notify UI of the change (listener thread is the only writer, so the
+        // roster stays as described until the next message)
         if (messageHandler != null) {
-            messageHandler.onUserListUpdated(new ArrayList<>(connectedUsers));
+            messageHandler.onUserListChanged(new RosterChange(this, joined, left));
         }
     }
 
@@ -150,23 +463,83 @@ public class ClientBackend {
      * @param content Message content
      */
     public void sendMessage(String recipient, String content) {
+        sendMessageAsync(recipient, content).whenComplete((sent, error) -> {
+            if (error != null) {
+                System.err.println("Error sending message: " + error.getMessage());
+            }
+        });
+    }
+
+    /**
+     * Send a message without waiting for the network: the message is queued
+     * for ChatClient's writer thread, so this is safe to call from the UI
+     * thread even when the link is congested.
+     *
+     * @param recipient Username of recipient, room, or "Broadcast" for all users
+     * @param content Message content
+     * @return completes on the writer thread once the message has been
+     * written to the socket (which does not mean the server got it: a
+     * message written just before the connection is lost may be lost with
+     * it, even when the session resumes); fails if not connected, the
+     * content is empty or the send queue is full
+     * (ChatClient.SendQueueFullException)
+     */
+    public CompletableFuture<Void> sendMessageAsync(String recipient, String content) {
         if (client == null || !client.isConnected()) {
-            System.err.println("Not connected to server");
-            return;
+            return CompletableFuture.failedFuture(new IllegalStateException("Not connected to server"));
         }
 
         if (content == null || content.trim().isEmpty()) {
-            System.err.println("Message content cannot be empty");
-            return;
+            return CompletableFuture.failedFuture(new IllegalArgumentException("Message content cannot be empty"));
         }
 
         if (recipient.equals("Broadcast")) {
-            client.sendBroadcastMessage(content);
+            return client.sendBroadcastMessage(content);
+        } else if (isRoom(recipient)) {
+            return client.sendRoomMessage(recipient, content);
         } else {
-            client.sendPrivateMessage(recipient, content);
+            return client.sendPrivateMessage(recipient, content);
         }
     }
 
+    /**
+     * Join a room; the server confirms through MessageHandler.onRoomsUpdated()
+     * or answers with an error (INVALID_ROOM, TOO_MANY_ROOMS)
+     *
+     * @param room Room name, "#" is added if missing
+     * @return false if not connected or the name is not a valid room name
+     */
+    public boolean joinRoom(String room) {
+        if (client == null || !client.isConnected() || room == null) {
+            return false;
+        }
+        String name = room.trim().startsWith("#") ? room.trim() : "#" + room.trim();
+        if (!RoomNames.isValid(name)) {
+            return false;
+        }
+        client.joinRoom(name);
+        return true;
+    }
+
+    // Leave a room we are in
+    public void leaveRoom(String room) {
+        if (client != null && client.isConnected()) {
+            client.leaveRoom(room);
+        }
+    }
+
+    // Rooms we are in, in the order they were joined
+    public List<String> getJoinedRooms() {
+        synchronized (joinedRooms) {
+            return new ArrayList<>(joinedRooms);
+        }
+    }
+
+    // Room names start with '#', usernames and "Broadcast" do not
+    public static boolean isRoom(String recipient) {
+        return recipient != null && recipient.startsWith("#");
+    }
+
     /**
      * Retry connection with a new username (after USERNAME_TAKEN error)
      * @param newUsername The new username to try
@@ -194,7 +567,16 @@ public class ClientBackend {
         if (client != null) {
             client.disconnect();
         }
-        connectedUsers.clear();
+        synchronized (connectedUsers) {
+            connectedUsers.clear();
+            rosterVersion = -1;
+            awaitingSnapshot = false;
+        }
+        olderHistoryOffset = 0;
+        historyRequested = false;
+        synchronized (joinedRooms) {
+            joinedRooms.clear();
+        }
     }
 
     /**
@@ -215,7 +597,9 @@ public class ClientBackend {
      * Get list of connected users
      */
     public List<String> getConnectedUsers() {
-        return new ArrayList<>(connectedUsers);
+        synchronized (connectedUsers) {
+            return new ArrayList<>(connectedUsers);
+        }
     }
 
     /**
@@ -274,7 +658,8 @@ public class ClientBackend {
      * @return true if valid, false otherwise
      */
     public static boolean isValidUsername(String username) {
-        return username != null && !username.trim().isEmpty() && username.length() <= 20;
+        return username != null && !username.trim().isEmpty() && username.length() <= 20
+                && !RoomNames.isReservedUsername(username);
     }
 
 }
@@ -1,5 +1,6 @@
 package javachatapp.client;
 
+import javafx.animation.AnimationTimer;
 import javafx.application.Application;
 import javafx.application.Platform;
 import javafx.geometry.Insets;
@@ -9,6 +10,7 @@ import javafx.scene.control.*;
 import javafx.scene.layout.*;
 import javafx.stage.Stage;
 
+import javachatapp.shared.Message;
 import java.util.ArrayList;
 import java.util.List;
 
@@ -32,7 +34,11 @@ public class ClientFXApp extends Application implements ClientBackend.MessageHan
 
     // Chat UI controls
     private ListView<String> userListView;
-    private TextArea chatArea;
+    private final ChatTranscript transcript = new ChatTranscript();
+    private TranscriptView transcriptView;
+    private Button olderButton;
+    private TextField roomField;
+    private final RecipientList recipients = new RecipientList();
     private TextField messageField;
     private Button sendButton;
     private boolean manualDisconnect = false;
@@ -40,6 +46,10 @@ public class ClientFXApp extends Application implements ClientBackend.MessageHan
     // Backend
     private ClientBackend clientBackend;
 
+    // Lines and list updates from the listener thread, applied once per frame
+    private final InboundEventCoalescer inbound = new InboundEventCoalescer();
+    private AnimationTimer inboundPump;
+
     private String serverAddress;
     private int serverPort;
     private String username;
@@ -64,9 +74,21 @@ public class ClientFXApp extends Application implements ClientBackend.MessageHan
             if (clientBackend != null && clientBackend.isConnected()) {
                 clientBackend.disconnect();
             }
+            inboundPump.stop();
+            transcript.close();
             Platform.exit();
         });
 
+        // Runs on every pulse (at most the display's frame rate), so a burst
+        // of messages is one text update and one layout pass
+        inboundPump = new AnimationTimer() {
+            @Override
+            public void handle(long now) {
+                applyInbound();
+            }
+        };
+        inboundPump.start();
+
         primaryStage.show();
     }
 
@@ -195,11 +217,12 @@ public class ClientFXApp extends Application implements ClientBackend.MessageHan
         String name = usernameField.getText() != null ? usernameField.getText().trim() : "";
 
         if (!ClientBackend.isValidUsername(name)) {
-            showError("Invalid Username", "Username cannot be empty and must be at most 20 characters.");
+            showError("Invalid Username", "Username cannot be empty, start with '#' or be longer than 20 characters.");
             return;
         }
 
         this.username = name;
+        recipients.setSelf(name);
 
         // Check if we're retrying after USERNAME_TAKEN error
         if ("USERNAME_TAKEN".equals(lastErrorCode) && clientBackend.isConnected()) {
@@ -240,14 +263,30 @@ public class ClientFXApp extends Application implements ClientBackend.MessageHan
 
         // LEFT: user list
         Label usersLabel = new Label("Users");
-        userListView = new ListView<>();
+        userListView = new ListView<>(recipients);
         userListView.setPrefWidth(150);
 
         // Default Broadcast entry so user can send immediately
-        userListView.getItems().setAll("Broadcast");
-        userListView.getSelectionModel().select("Broadcast");
+        userListView.getSelectionModel().select(RecipientList.BROADCAST);
+
+        // Rooms: join by name, leave the selected one
+        roomField = new TextField();
+        roomField.setPromptText("#room");
+        roomField.setPrefColumnCount(6);
+        Button joinButton = new Button("Join");
+        joinButton.setOnAction(e -> handleJoinRoom());
+        roomField.setOnAction(e -> handleJoinRoom());
+        Button leaveButton = new Button("Leave");
+        leaveButton.setOnAction(e -> {
+            String selected = userListView.getSelectionModel().getSelectedItem();
+            if (clientBackend != null && ClientBackend.isRoom(selected)) {
+                clientBackend.leaveRoom(selected);
+            }
+        });
+        HBox roomBox = new HBox(5, roomField, joinButton, leaveButton);
+        HBox.setHgrow(roomField, Priority.ALWAYS);
 
-        VBox usersBox = new VBox(5, usersLabel, userListView);
+        VBox usersBox = new VBox(5, usersLabel, userListView, roomBox);
         usersBox.setPrefWidth(180);
         VBox.setVgrow(userListView, Priority.ALWAYS);
         root.setLeft(usersBox);
@@ -255,12 +294,20 @@ public class ClientFXApp extends Application implements ClientBackend.MessageHan
 
         // CENTER: chat area
         Label chatLabel = new Label("Chat");
-        chatArea = new TextArea();
-        chatArea.setEditable(false);
-        chatArea.setWrapText(true);
+        transcriptView = new TranscriptView(transcript);
+
+        // Shown once the server says there is older history than what was replayed
+        olderButton = new Button("Load older messages");
+        olderButton.setVisible(false);
+        olderButton.managedProperty().bind(olderButton.visibleProperty());
+        olderButton.setOnAction(e -> {
+            if (clientBackend != null && clientBackend.requestOlderHistory()) {
+                olderButton.setDisable(true);
+            }
+        });
 
-        VBox chatBox = new VBox(5, chatLabel, chatArea);
-        VBox.setVgrow(chatArea, Priority.ALWAYS);
+        VBox chatBox = new VBox(5, chatLabel, olderButton, transcriptView);
+        VBox.setVgrow(transcriptView, Priority.ALWAYS);
         root.setCenter(chatBox);
 
         // Bottom: message input + Send + Logout
@@ -305,19 +352,37 @@ public class ClientFXApp extends Application implements ClientBackend.MessageHan
             return;
         }
 
-        // Actually send via backend
-        clientBackend.sendMessage(recipient, text);
+        // Queued for the client's writer thread, never blocks this (FX) thread
+        clientBackend.sendMessageAsync(recipient, text).whenComplete((sent, error) -> {
+            if (error != null) {
+                Platform.runLater(() -> appendChatLine("(not sent: " + error.getMessage() + ")"));
+            }
+        });
 
-        // Show our own message locally
+        // Show our own message locally, in order with what is still pending
         if ("Broadcast".equals(recipient)) {
-            appendChatLine("Me (Broadcast): " + text);
+            inbound.addLine("Me (Broadcast): " + text);
+        } else if (ClientBackend.isRoom(recipient)) {
+            inbound.addLine("[" + recipient + "] Me: " + text);
         } else {
-            appendChatLine("Me -> " + recipient + ": " + text);
+            inbound.addLine("Me -> " + recipient + ": " + text);
         }
 
         messageField.clear();
     }
 
+    private void handleJoinRoom() {
+        String room = roomField.getText() != null ? roomField.getText().trim() : "";
+        if (room.isEmpty() || clientBackend == null) {
+            return;
+        }
+        if (!clientBackend.joinRoom(room)) {
+            showError("Invalid Room", "Room names are letters, digits, '-' or '_' (up to 31), e.g. #general.");
+            return;
+        }
+        roomField.clear();
+    }
+
     private void handleLogout() {
         manualDisconnect = true;  // mark that this was intentional
 
@@ -326,9 +391,11 @@ public class ClientFXApp extends Application implements ClientBackend.MessageHan
         }
 
         // Reset UI
-        chatArea.clear();
-        userListView.getItems().setAll("Broadcast");
-        userListView.getSelectionModel().select("Broadcast");
+        inbound.clear();
+        transcript.reset();
+        olderButton.setVisible(false);
+        recipients.reset();
+        userListView.getSelectionModel().select(RecipientList.BROADCAST);
 
         primaryStage.setScene(hostScene);
         primaryStage.setTitle("Java Chat Client - Connect");
@@ -337,38 +404,98 @@ public class ClientFXApp extends Application implements ClientBackend.MessageHan
     //  MessageHandler impl
     @Override
     public void onMessageReceived(String sender, String content) {
-        // Called from network listener thread – wrap in Platform.runLater
-        Platform.runLater(() -> appendChatLine(sender + ": " + content));
+        // Called from network listener thread – applied with the next frame
+        inbound.addLine(sender + ": " + content);
     }
 
     @Override
-    public void onUserListUpdated(List<String> users) {
-        // Called from network listener thread – wrap in Platform.runLater
+    public void onHistoryReceived(List<Message> messages, boolean older) {
+        List<String> lines = new ArrayList<>(messages.size());
+        for (Message message : messages) {
+            lines.add(message.getSender() + ": " + message.getContent());
+        }
+        boolean more = clientBackend != null && clientBackend.hasOlderHistory();
         Platform.runLater(() -> {
-            List<String> displayUsers = new ArrayList<>();
-            displayUsers.add("Broadcast");
-
-            for (String user : users) {
-                // Optionally hide current user from list
-                if (!user.equals(username)) {
-                    displayUsers.add(user);
-                }
+            if (older || !transcript.isEmpty()) {
+                // An older page goes above everything shown so far
+                transcriptView.prependHistory(lines);
+            } else {
+                transcriptView.append(lines);
             }
+            olderButton.setVisible(more);
+            olderButton.setDisable(false);
+        });
+    }
 
-            userListView.getItems().setAll(displayUsers);
+    @Override
+    public void onUserListUpdated(List<String> users) {
+        // Not used: the roster arrives as changes through onUserListChanged()
+    }
 
-            // Ensure something is selected (default to Broadcast)
-            if (userListView.getSelectionModel().getSelectedItem() == null) {
-                userListView.getSelectionModel().select("Broadcast");
-            }
+    @Override
+    public void onUserListChanged(ClientBackend.RosterChange change) {
+        // Called from network listener thread – merged with the other changes of the frame
+        inbound.usersChanged(change.getJoined(), change.getLeft());
+    }
 
-            // If we're still on username scene, it means connection was successful (after retry)
-            // Transition to chat scene
-            if (primaryStage.getScene() == usernameScene) {
-                primaryStage.setScene(chatScene);
-                primaryStage.setTitle("Java Chat Client - " + username);
+    @Override
+    public void onRoomMessageReceived(String room, String sender, String content) {
+        inbound.addLine("[" + room + "] " + sender + ": " + content);
+    }
+
+    @Override
+    public void onRoomsUpdated(List<String> rooms) {
+        inbound.setRooms(rooms);
+    }
+
+    // FX thread, once per pulse: apply everything the listener thread queued since the last frame
+    private void applyInbound() {
+        InboundEventCoalescer.Batch batch = inbound.drain();
+        if (batch == null) {
+            return;
+        }
+        if (batch.dropped > 0) {
+            appendChatLine("(" + batch.dropped + " messages skipped, the window could not keep up)");
+        }
+        transcriptView.append(batch.lines);
+        if (batch.rooms != null || batch.rosterChanged) {
+            String selected = userListView.getSelectionModel().getSelectedItem();
+            if (batch.rooms != null) {
+                recipients.setRooms(batch.rooms);
             }
-        });
+            recipients.applyUsers(batch.joinedUsers, batch.leftUsers);
+            keepSelection(selected);
+        }
+
+        // A roster while still on the username scene means the connection was
+        // accepted (after a retry): move on to the chat scene
+        if (batch.rosterChanged && primaryStage.getScene() == usernameScene) {
+            primaryStage.setScene(chatScene);
+            primaryStage.setTitle("Java Chat Client - " + username);
+        }
+    }
+
+    // The selection moves with the rows around it; if the selected recipient is gone, fall back to Broadcast
+    private void keepSelection(String selected) {
+        MultipleSelectionModel<String> selection = userListView.getSelectionModel();
+        if (selected == null || selected.equals(selection.getSelectedItem())) {
+            return;
+        }
+        int at = recipients.indexOf(selected);
+        selection.select(at >= 0 ? at : 0);
+    }
+
+    @Override
+    public void onReconnecting(int attempt) {
+        if (attempt == 1) {
+            inbound.addLine("(connection lost, reconnecting...)");
+        }
+    }
+
+    @Override
+    public void onReconnected(boolean resumed) {
+        inbound.addLine(resumed ? "(reconnected)"
+                : "(reconnected as a new login, messages sent while away may be missing)");
     }
 
     @Override
@@ -389,8 +516,11 @@ public class ClientFXApp extends Application implements ClientBackend.MessageHan
 
             primaryStage.setScene(hostScene);
             primaryStage.setTitle("Java Chat Client - Connect");
-            chatArea.clear();
-            userListView.getItems().clear();
+            inbound.clear();
+            transcript.reset();
+            olderButton.setVisible(false);
+            recipients.reset();
+            userListView.getSelectionModel().select(RecipientList.BROADCAST);
         });
     }
 
@@ -405,6 +535,12 @@ public class ClientFXApp extends Application implements ClientBackend.MessageHan
                 // Just return user to username scene to enter a new name
                 primaryStage.setScene(usernameScene);
                 primaryStage.setTitle("Java Chat Client - Username");
+            } else if ("NOT_IN_ROOM".equals(errorMessage) || "INVALID_ROOM".equals(errorMessage)) {
+                showError("Room", "You are not in that room (or the name is not valid). Join it first.");
+            } else if ("TOO_MANY_ROOMS".equals(errorMessage)) {
+                showError("Room", "You are in too many rooms. Leave one before joining another.");
+            } else if ("MAILBOX_FULL".equals(errorMessage)) {
+                showError("Mailbox Full", "That user is offline and cannot receive more messages until they log in.");
             } else {
                 // Generic error case
                 showError("Error", errorMessage);
@@ -414,15 +550,12 @@ public class ClientFXApp extends Application implements ClientBackend.MessageHan
 
     //  Helpers
     private void appendChatLine(String line) {
-        if (chatArea == null) {
+        if (transcriptView == null) {
             // Should not happen once chatScene is active, but guard anyway
             System.out.println(line);
             return;
         }
-        if (!chatArea.getText().isEmpty()) {
-            chatArea.appendText("\n");
-        }
-        chatArea.appendText(line);
+        transcriptView.append(List.of(line));
     }
 
     private void showError(String title, String message) {
@@ -1,65 +1,442 @@
 package javachatapp.client;
 
+import javachatapp.server.Histogram;
+import javachatapp.shared.Message;
+import javachatapp.shared.Message.MessageType;
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.io.PrintWriter;
+import java.time.Instant;
 import java.util.ArrayList;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
 
+/**
+ * ClientLoadTest drives a running server with a chat workload and measures
+ * end-to-end delivery latency.
+ *
+ * Clients connect over a ramp-up period, then sender threads send messages
+ * open-loop: message k is due at start + k / rate no matter how long earlier
+ * sends took, so a stalled server builds up a backlog instead of quietly
+ * slowing the generator down. Every message carries its due time and its
+ * actual send time. Receivers record latency from the due time (corrected
+ * for coordinated omission) and from the send time (what a naive closed-loop
+ * tool would report).
+ *
+ * Usage: java javachatapp.client.ClientLoadTest [key=value ...]
+ *   host=localhost port=5000   server to load
+ *   clients=100 rampup=10      clients, connected evenly over rampup seconds
+ *   duration=30 rate=200       seconds of sending, messages per second (all clients)
+ *   broadcast=0.1              fraction of broadcasts, the rest are private messages
+ *   size=uniform:20:200        message size in chars: fixed:N, uniform:MIN:MAX or exp:MEAN
+ *   threads=4 virtual=false    sender threads, virtual listener threads (Java 21+)
+ *   out=results.csv            append the results to a .csv or write a .json file
+ */
 public class ClientLoadTest {
 
-    public static void main(String[] args) throws InterruptedException {
-        String serverAddress = "localhost";
-        int serverPort = 5000;
-        int numClients = 100;
+    // Content prefix of load messages: LT<due nanos>:<sent nanos>:<padding>
+    private static final String PREFIX = "LT";
 
-        List<ClientBackend> clients = new ArrayList<>();
+    // Give up waiting for in-flight deliveries after this long without progress
+    private static final long DRAIN_TIMEOUT_MILLIS = 5000;
 
-        // Create dummy message handler
-        ClientBackend.MessageHandler dummyHandler = new ClientBackend.MessageHandler() {
-            @Override
-            public void onMessageReceived(String sender, String content) {
-                // Silent or print if needed
+    private final Map<String, String> options;
+    private final String host;
+    private final int port;
+    private final int numClients;
+    private final double rampUpSeconds;
+    private final double durationSeconds;
+    private final double rate;
+    private final double broadcastFraction;
+    private final SizeDistribution sizes;
+    private final int senderThreads;
+    private final boolean virtualThreads;
+
+    private final List<ChatClient> clients = new CopyOnWriteArrayList<>();
+    private final AtomicInteger liveClients = new AtomicInteger();
+    private final Histogram correctedLatency = new Histogram();
+    private final Histogram uncorrectedLatency = new Histogram();
+    private final LongAdder sent = new LongAdder();
+    private final LongAdder sentBroadcast = new LongAdder();
+    private final LongAdder expectedDeliveries = new LongAdder();
+    private final LongAdder delivered = new LongAdder();
+    private final LongAdder sendFailures = new LongAdder();
+    private final LongAdder errors = new LongAdder();
+    private final LongAdder disconnects = new LongAdder();
+    private final AtomicInteger connectFailures = new AtomicInteger();
+    private final AtomicLong maxSendLag = new AtomicLong();
+    private volatile boolean measuring;
+
+    ClientLoadTest(Map<String, String> options) {
+        this.options = options;
+        this.host = options.getOrDefault("host", "localhost");
+        this.port = Integer.parseInt(options.getOrDefault("port", "5000"));
+        this.numClients = Integer.parseInt(options.getOrDefault("clients", "100"));
+        this.rampUpSeconds = Double.parseDouble(options.getOrDefault("rampup", "10"));
+        this.durationSeconds = Double.parseDouble(options.getOrDefault("duration", "30"));
+        this.rate = Double.parseDouble(options.getOrDefault("rate", "200"));
+        this.broadcastFraction = Double.parseDouble(options.getOrDefault("broadcast", "0.1"));
+        this.sizes = SizeDistribution.parse(options.getOrDefault("size", "uniform:20:200"));
+        this.senderThreads = Integer.parseInt(options.getOrDefault("threads", "4"));
+        this.virtualThreads = Boolean.parseBoolean(options.getOrDefault("virtual", "false"));
+        if (numClients < 2 || rate <= 0 || senderThreads < 1) {
+            throw new IllegalArgumentException("Need clients >= 2, rate > 0 and threads >= 1");
+        }
+    }
+
+    public static void main(String[] args) throws Exception {
+        Map<String, String> options = new LinkedHashMap<>();
+        for (String arg : args) {
+            int eq = arg.indexOf('=');
+            if (eq <= 0) {
+                System.err.println("Arguments are key=value, got: " + arg);
+                System.exit(1);
             }
+            options.put(arg.substring(0, eq), arg.substring(eq + 1));
+        }
+
+        // ChatClient reports every connect and disconnect; keep stdout for the report
+        PrintStream report = System.out;
+        System.setOut(new PrintStream(OutputStream.nullOutputStream()));
+
+        ClientLoadTest test = new ClientLoadTest(options);
+        Map<String, Object> results = test.run(report);
+        test.print(report, results);
+
+        String out = options.get("out");
+        if (out != null) {
+            write(new File(out), results);
+            report.println("Results written to " + out);
+        }
+    }
+
+    Map<String, Object> run(PrintStream report) throws InterruptedException {
+        report.printf("Connecting %d clients to %s:%d over %.1f s%n", numClients, host, port, rampUpSeconds);
+        rampUp();
+        report.printf("%d clients connected (%d failed), sending %.0f msg/s for %.1f s%n",
+                clients.size(), connectFailures.get(), rate, durationSeconds);
+
+        // Let the join storm settle before measuring
+        Thread.sleep(1000);
+        measuring = true;
+        long start = System.nanoTime();
+        long end = start + (long) (durationSeconds * 1e9);
+        List<Thread> senders = new ArrayList<>();
+        for (int s = 0; s < senderThreads; s++) {
+            int slot = s;
+            Thread sender = new Thread(() -> sendLoop(slot, start, end), "load-sender-" + s);
+            sender.start();
+            senders.add(sender);
+        }
+        for (Thread sender : senders) {
+            sender.join();
+        }
+        double sendSeconds = (System.nanoTime() - start) / 1e9;
+        drain();
+        double totalSeconds = (System.nanoTime() - start) / 1e9;
+        measuring = false;
 
-            @Override
-            public void onUserListUpdated(List<String> users) {
-                // Silent
+        Map<String, Object> results = results(sendSeconds, totalSeconds);
+        for (ChatClient client : clients) {
+            client.disconnect();
+        }
+        return results;
+    }
+
+    // Connect client i at start + i * rampup / clients
+    private void rampUp() {
+        long start = System.nanoTime();
+        long step = numClients > 1 ? (long) (rampUpSeconds * 1e9 / (numClients - 1)) : 0;
+        for (int i = 0; i < numClients; i++) {
+            parkUntil(start + i * step);
+            ChatClient client = new ChatClient(host, port);
+            client.setUseVirtualThreads(virtualThreads);
+            if (client.connect("load" + i, new Receiver())) {
+                clients.add(client);
+                liveClients.incrementAndGet();
+            } else {
+                connectFailures.incrementAndGet();
             }
+        }
+    }
 
-            @Override
-            public void onConnectionLost() {
-                System.out.println("Connection lost");
+    // Send every senderThreads-th message of the open-loop schedule
+    private void sendLoop(int slot, long start, long end) {
+        long interval = (long) (1e9 / rate);
+        for (long k = slot; ; k += senderThreads) {
+            long due = start + k * interval;
+            if (due >= end) {
+                return;
+            }
+            parkUntil(due);
+            long lag = System.nanoTime() - due;
+            if (lag > maxSendLag.get()) {
+                maxSendLag.accumulateAndGet(lag, Math::max);
             }
+            send(due);
+        }
+    }
 
-            @Override
-            public void onError(String errorMessage) {
-                System.err.println("Error: " + errorMessage);
+    private void send(long due) {
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        int count = clients.size();
+        ChatClient sender = clients.get(random.nextInt(count));
+        if (!sender.isConnected()) {
+            sendFailures.increment();
+            return;
+        }
+
+        boolean broadcast = random.nextDouble() < broadcastFraction;
+        String recipient = null;
+        if (!broadcast) {
+            int index = random.nextInt(count - 1);
+            ChatClient target = clients.get(index);
+            if (target == sender) {
+                target = clients.get(count - 1);
             }
-        };
+            recipient = target.getUsername();
+        }
 
-        // Connect 100 clients
-        for (int i = 0; i < numClients; i++) {
-            ClientBackend client = new ClientBackend();
-            String username = "TestUser" + i;
+        long sentAt = System.nanoTime();
+        String content = content(due, sentAt, sizes.next(random));
+        if (broadcast) {
+            expectedDeliveries.add(Math.max(0, liveClients.get() - 1));
+            sender.sendBroadcastMessage(content);
+            sentBroadcast.increment();
+        } else {
+            expectedDeliveries.increment();
+            sender.sendPrivateMessage(recipient, content);
+        }
+        sent.increment();
+        if (!sender.isConnected()) {
+            sendFailures.increment();
+        }
+    }
 
-            boolean connected = client.connect(serverAddress, serverPort, username, dummyHandler);
+    private static String content(long due, long sentAt, int size) {
+        StringBuilder content = new StringBuilder(Math.max(size, 48));
+        content.append(PREFIX).append(due).append(':').append(sentAt).append(':');
+        while (content.length() < size) {
+            content.append('x');
+        }
+        return content.toString();
+    }
 
-            if (connected) {
-                clients.add(client);
-                System.out.println("Connected: " + username);
-            } else {
-                System.err.println("Failed to connect: " + username);
+    // Wait for in-flight messages until everything expected arrived or progress stops
+    private void drain() throws InterruptedException {
+        long lastDelivered = -1;
+        long lastProgress = System.currentTimeMillis();
+        while (delivered.sum() < expectedDeliveries.sum()
+                && System.currentTimeMillis() - lastProgress < DRAIN_TIMEOUT_MILLIS) {
+            long now = delivered.sum();
+            if (now != lastDelivered) {
+                lastDelivered = now;
+                lastProgress = System.currentTimeMillis();
             }
+            Thread.sleep(50);
+        }
+    }
 
-            Thread.sleep(50); // Small delay to avoid overwhelming server
+    private static void parkUntil(long deadline) {
+        long wait;
+        while ((wait = deadline - System.nanoTime()) > 0) {
+            LockSupport.parkNanos(wait);
         }
+    }
+
+    /**
+     * Receives for one client: records the latency of load messages and
+     * counts errors and lost connections
+     */
+    private class Receiver implements ChatClient.MessageListener {
 
-        System.out.println("\nTotal connected: " + clients.size());
+        @Override
+        public void onMessageReceived(Message message) {
+            MessageType type = message.getType();
+            if (type != MessageType.BROADCAST && type != MessageType.PRIVATE_MESSAGE) {
+                return;
+            }
+            String content = message.getContent();
+            if (content == null || !content.startsWith(PREFIX)) {
+                return;
+            }
+            long now = System.nanoTime();
+            int first = content.indexOf(':');
+            int second = content.indexOf(':', first + 1);
+            if (first < 0 || second < 0) {
+                return;
+            }
+            long due = Long.parseLong(content, PREFIX.length(), first, 10);
+            long sentAt = Long.parseLong(content, first + 1, second, 10);
+            if (measuring) {
+                correctedLatency.record(now - due);
+                uncorrectedLatency.record(now - sentAt);
+                delivered.increment();
+            }
+        }
 
-        // Keep alive for a bit
-        Thread.sleep(100000);
+        @Override
+        public void onConnectionLost() {
+            liveClients.decrementAndGet();
+            disconnects.increment();
+        }
 
-        // Disconnect all
-        for (ClientBackend client : clients) {
-            client.disconnect();
+        @Override
+        public void onError(String errorCode) {
+            errors.increment();
+        }
+    }
+
+    private Map<String, Object> results(double sendSeconds, double totalSeconds) {
+        Histogram.Snapshot corrected = correctedLatency.snapshot();
+        Histogram.Snapshot uncorrected = uncorrectedLatency.snapshot();
+        long sentCount = sent.sum();
+        long deliveredCount = delivered.sum();
+
+        Map<String, Object> results = new LinkedHashMap<>();
+        results.put("timestamp", Instant.now().toString());
+        results.put("host", host);
+        results.put("port", port);
+        results.put("clients", numClients);
+        results.put("connected", clients.size());
+        results.put("rampup_s", rampUpSeconds);
+        results.put("duration_s", durationSeconds);
+        results.put("target_rate", rate);
+        results.put("broadcast_fraction", broadcastFraction);
+        results.put("size", sizes.toString());
+        results.put("sent", sentCount);
+        results.put("sent_broadcast", sentBroadcast.sum());
+        results.put("send_rate", sentCount / sendSeconds);
+        results.put("expected_deliveries", expectedDeliveries.sum());
+        results.put("delivered", deliveredCount);
+        results.put("delivery_rate", deliveredCount / totalSeconds);
+        results.put("lost", Math.max(0, expectedDeliveries.sum() - deliveredCount));
+        results.put("send_failures", sendFailures.sum());
+        results.put("errors", errors.sum());
+        results.put("disconnects", disconnects.sum());
+        results.put("connect_failures", connectFailures.get());
+        results.put("max_send_lag_ms", maxSendLag.get() / 1e6);
+        results.put("latency_p50_ms", corrected.getP50() / 1e6);
+        results.put("latency_p90_ms", corrected.getPercentile(0.90) / 1e6);
+        results.put("latency_p99_ms", corrected.getP99() / 1e6);
+        results.put("latency_p999_ms", corrected.getP999() / 1e6);
+        results.put("latency_max_ms", corrected.getMax() / 1e6);
+        results.put("uncorrected_p50_ms", uncorrected.getP50() / 1e6);
+        results.put("uncorrected_p99_ms", uncorrected.getP99() / 1e6);
+        results.put("uncorrected_max_ms", uncorrected.getMax() / 1e6);
+        return results;
+    }
+
+    private void print(PrintStream report, Map<String, Object> results) {
+        report.printf("Sent %,d messages (%,d broadcast) at %.1f msg/s, max send lag %.1f ms%n",
+                results.get("sent"), results.get("sent_broadcast"), results.get("send_rate"),
+                results.get("max_send_lag_ms"));
+        report.printf("Delivered %,d of %,d (%,d lost) at %.1f msg/s | errors=%d disconnects=%d"
+                + " send failures=%d connect failures=%d%n",
+                results.get("delivered"), results.get("expected_deliveries"), results.get("lost"),
+                results.get("delivery_rate"), results.get("errors"), results.get("disconnects"),
+                results.get("send_failures"), results.get("connect_failures"));
+        report.printf("Latency (from due time)  p50=%.2f p90=%.2f p99=%.2f p99.9=%.2f max=%.2f ms%n",
+                results.get("latency_p50_ms"), results.get("latency_p90_ms"), results.get("latency_p99_ms"),
+                results.get("latency_p999_ms"), results.get("latency_max_ms"));
+        report.printf("Latency (from send time) p50=%.2f p99=%.2f max=%.2f ms (not corrected)%n",
+                results.get("uncorrected_p50_ms"), results.get("uncorrected_p99_ms"),
+                results.get("uncorrected_max_ms"));
+    }
+
+    // A .json file gets one object; a .csv file gets a header (if new) and one row per run
+    private static void write(File file, Map<String, Object> results) throws IOException {
+        if (file.getName().endsWith(".json")) {
+            try (PrintWriter out = new PrintWriter(new FileWriter(file))) {
+                out.println("{");
+                int i = 0;
+                for (Map.Entry<String, Object> field : results.entrySet()) {
+                    Object value = field.getValue();
+                    String json = value instanceof String ? "\"" + value + "\"" : format(value);
+                    out.printf("  \"%s\": %s%s%n", field.getKey(), json, ++i < results.size() ? "," : "");
+                }
+                out.println("}");
+            }
+            return;
+        }
+        boolean newFile = !file.exists() || file.length() == 0;
+        try (PrintWriter out = new PrintWriter(new FileWriter(file, true))) {
+            if (newFile) {
+                out.println(String.join(",", results.keySet()));
+            }
+            List<String> row = new ArrayList<>();
+            for (Object value : results.values()) {
+                row.add(format(value));
+            }
+            out.println(String.join(",", row));
+        }
+    }
+
+    private static String format(Object value) {
+        if (value instanceof Double) {
+            return String.format(Locale.ROOT, "%.3f", (Double) value);
+        }
+        return String.valueOf(value);
+    }
+
+    /**
+     * Message size distribution in characters
+     */
+    static final class SizeDistribution {
+
+        private final String spec;
+        private final String kind;
+        private final int a;
+        private final int b;
+
+        private SizeDistribution(String spec, String kind, int a, int b) {
+            this.spec = spec;
+            this.kind = kind;
+            this.a = a;
+            this.b = b;
+        }
+
+        // fixed:N, uniform:MIN:MAX or exp:MEAN (exponential, capped at 16x the mean)
+        static SizeDistribution parse(String spec) {
+            String[] parts = spec.split(":");
+            switch (parts[0]) {
+                case "fixed":
+                    return new SizeDistribution(spec, "fixed", Integer.parseInt(parts[1]), 0);
+                case "uniform":
+                    return new SizeDistribution(spec, "uniform", Integer.parseInt(parts[1]), Integer.parseInt(parts[2]));
+                case "exp":
+                    return new SizeDistribution(spec, "exp", Integer.parseInt(parts[1]), 0);
+                default:
+                    throw new IllegalArgumentException("Unknown size distribution: " + spec);
+            }
+        }
+
+        int next(ThreadLocalRandom random) {
+            switch (kind) {
+                case "uniform":
+                    return a + random.nextInt(b - a + 1);
+                case "exp":
+                    return (int) Math.min(16L * a, Math.round(-a * Math.log(1 - random.nextDouble())));
+                case "fixed":
+                default:
+                    return a;
+            }
+        }
+
+        @Override
+        public String toString() {
+            return spec;
         }
     }
 }
@@ -0,0 +1,159 @@
+package javachatapp.client;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * InboundEventCoalescer collects what the network listener thread has for
+ * the UI (chat lines, roster and room list changes) so the UI thread can
+ * apply it once per frame instead of once per message.
+ *
+ * Lines and roster changes go into lock-free queues; the room list keeps
+ * only its newest value, since an older one would be replaced within the
+ * same frame anyway. Roster changes of one frame are merged into a single
+ * joined/left pair per frame. The UI thread calls drain() once per pulse (ClientFXApp
+ * uses an AnimationTimer) and applies the batch in one go, so a burst of N
+ * messages costs one text update and one layout pass rather than N.
+ *
+ * If the UI falls far behind, the oldest pending lines are dropped and the
+ * next batch says how many.
+ */
+public class InboundEventCoalescer {
+
+    // Lines applied per frame, the rest wait for the next one
+    static final int MAX_LINES_PER_DRAIN = 2000;
+
+    // Lines held for the UI before the oldest are dropped
+    static final int MAX_PENDING_LINES = 20_000;
+
+    private final ConcurrentLinkedQueue<String> lines = new ConcurrentLinkedQueue<>();
+    private final AtomicInteger pendingLines = new AtomicInteger();
+    private final AtomicInteger droppedLines = new AtomicInteger();
+    private final ConcurrentLinkedQueue<UserChange> userChanges = new ConcurrentLinkedQueue<>();
+    private final AtomicReference<List<String>> rooms = new AtomicReference<>();
+    private final AtomicLong events = new AtomicLong();
+    private final AtomicLong batches = new AtomicLong();
+
+    // What one frame applies; rooms is null if it did not change
+    public static final class Batch {
+        public final List<String> lines;
+        public final int dropped;
+        public final boolean rosterChanged;
+        public final List<String> joinedUsers;
+        public final List<String> leftUsers;
+        public final List<String> rooms;
+
+        Batch(List<String> lines, int dropped, boolean rosterChanged, List<String> joinedUsers,
+                List<String> leftUsers, List<String> rooms) {
+            this.lines = lines;
+            this.dropped = dropped;
+            this.rosterChanged = rosterChanged;
+            this.joinedUsers = joinedUsers;
+            this.leftUsers = leftUsers;
+            this.rooms = rooms;
+        }
+    }
+
+    private static final class UserChange {
+        final List<String> joined;
+        final List<String> left;
+
+        UserChange(List<String> joined, List<String> left) {
+            this.joined = joined;
+            this.left = left;
+        }
+    }
+
+    // Any thread: a line for the transcript
+    public void addLine(String line) {
+        events.incrementAndGet();
+        lines.add(line);
+        if (pendingLines.incrementAndGet() > MAX_PENDING_LINES && lines.poll() != null) {
+            pendingLines.decrementAndGet();
+            droppedLines.incrementAndGet();
+        }
+    }
+
+    // Any thread: users that joined and left, in roster order
+    public void usersChanged(List<String> joined, List<String> left) {
+        events.incrementAndGet();
+        userChanges.add(new UserChange(joined, left));
+    }
+
+    // Any thread: the current room list, replacing one not yet applied
+    public void setRooms(List<String> current) {
+        events.incrementAndGet();
+        rooms.set(current);
+    }
+
+    /**
+     * UI thread: take everything pending (up to MAX_LINES_PER_DRAIN lines)
+     *
+     * @return the batch, or null if nothing happened since the last drain
+     */
+    public Batch drain() {
+        boolean rosterChanged = false;
+        Map<String, Boolean> present = null; // Last word per name: joined or left
+        UserChange change;
+        while ((change = userChanges.poll()) != null) {
+            rosterChanged = true;
+            if (present == null) {
+                present = new LinkedHashMap<>();
+            }
+            for (String name : change.left) {
+                present.put(name, Boolean.FALSE);
+            }
+            for (String name : change.joined) {
+                present.put(name, Boolean.TRUE);
+            }
+        }
+        List<String> joined = Collections.emptyList();
+        List<String> left = Collections.emptyList();
+        if (present != null) {
+            joined = new ArrayList<>();
+            left = new ArrayList<>();
+            for (Map.Entry<String, Boolean> entry : present.entrySet()) {
+                (entry.getValue() ? joined : left).add(entry.getKey());
+            }
+        }
+        List<String> newRooms = rooms.getAndSet(null);
+        int dropped = droppedLines.getAndSet(0);
+        List<String> batch = new ArrayList<>(Math.min(pendingLines.get(), MAX_LINES_PER_DRAIN));
+        String line;
+        while (batch.size() < MAX_LINES_PER_DRAIN && (line = lines.poll()) != null) {
+            pendingLines.decrementAndGet();
+            batch.add(line);
+        }
+        if (batch.isEmpty() && dropped == 0 && !rosterChanged && newRooms == null) {
+            return null;
+        }
+        batches.incrementAndGet();
+        return new Batch(batch, dropped, rosterChanged, joined, left, newRooms);
+    }
+
+    // Forget everything pending (after a disconnect)
+    public void clear() {
+        while (lines.poll() != null) {
+            pendingLines.decrementAndGet();
+        }
+        droppedLines.set(0);
+        userChanges.clear();
+        rooms.set(null);
+    }
+
+    // Events offered and batches they were applied in
+    public long getEventCount() {
+        return events.get();
+    }
+
+    public long getBatchCount() {
+        return batches.get();
+    }
+}
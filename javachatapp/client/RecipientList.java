@@ -0,0 +1,151 @@
+package javachatapp.client;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import javafx.collections.ObservableListBase;
+
+/**
+ * RecipientList is the list behind the client's recipient view: Broadcast,
+ * then the rooms we are in, then the other users in name order.
+ *
+ * Roster changes come in as who joined and who left, and each batch is
+ * applied as one list change listing only those rows, so a join among 10k
+ * users is one added row for the ListView rather than a full setAll(). The
+ * selection model shifts the selected index along with such changes, so the
+ * selected recipient stays selected unless it is the one that left.
+ *
+ * FX thread only.
+ */
+public class RecipientList extends ObservableListBase<String> {
+
+    public static final String BROADCAST = "Broadcast";
+
+    // Case-insensitive, with a tie-break so distinct names never compare equal
+    static final Comparator<String> USER_ORDER =
+            String.CASE_INSENSITIVE_ORDER.thenComparing(Comparator.naturalOrder());
+
+    // Broadcast, rooms, users
+    private final List<String> items = new ArrayList<>();
+    private int roomCount;
+    private String self;
+
+    public RecipientList() {
+        items.add(BROADCAST);
+    }
+
+    @Override
+    public String get(int index) {
+        return items.get(index);
+    }
+
+    @Override
+    public int size() {
+        return items.size();
+    }
+
+    // Our own name is left out of the users
+    public void setSelf(String username) {
+        self = username;
+        int at = indexOfUser(username);
+        if (at >= 0) {
+            beginChange();
+            nextRemove(at, items.remove(at));
+            endChange();
+        }
+    }
+
+    @Override
+    public int indexOf(Object o) {
+        if (o instanceof String) {
+            int user = indexOfUser((String) o);
+            if (user >= 0) {
+                return user;
+            }
+        }
+        return items.subList(0, 1 + roomCount).indexOf(o);
+    }
+
+    @Override
+    public boolean contains(Object o) {
+        return indexOf(o) >= 0;
+    }
+
+    // The rooms section becomes rooms: left rooms go, new ones are added after the others
+    public void setRooms(List<String> rooms) {
+        beginChange();
+        for (int i = roomCount; i >= 1; i--) {
+            if (!rooms.contains(items.get(i))) {
+                nextRemove(i, items.remove(i));
+                roomCount--;
+            }
+        }
+        List<String> current = items.subList(1, 1 + roomCount);
+        for (String room : rooms) {
+            if (!current.contains(room)) {
+                int at = 1 + roomCount;
+                items.add(at, room);
+                roomCount++;
+                nextAdd(at, at + 1);
+                current = items.subList(1, 1 + roomCount);
+            }
+        }
+        endChange();
+    }
+
+    /**
+     * Apply a roster change as one list change. No name may be in both
+     * lists; names already present (or already gone) are skipped. Each name
+     * is one binary search and one array shift, so a few changes among 10k
+     * users cost microseconds.
+     */
+    public void applyUsers(Collection<String> joined, Collection<String> left) {
+        if (joined.isEmpty() && left.isEmpty()) {
+            return;
+        }
+        beginChange();
+        for (String name : left) {
+            int at = indexOfUser(name);
+            if (at >= 0) {
+                nextRemove(at, items.remove(at));
+            }
+        }
+        for (String name : joined) {
+            if (name.equals(self)) {
+                continue;
+            }
+            int firstUser = 1 + roomCount;
+            int at = Collections.binarySearch(items.subList(firstUser, items.size()), name, USER_ORDER);
+            if (at < 0) {
+                int insert = firstUser - at - 1;
+                items.add(insert, name);
+                nextAdd(insert, insert + 1);
+            }
+        }
+        endChange();
+    }
+
+    // Back to Broadcast only
+    public void reset() {
+        if (items.size() > 1) {
+            beginChange();
+            List<String> removed = new ArrayList<>(items.subList(1, items.size()));
+            items.subList(1, items.size()).clear();
+            nextRemove(1, removed);
+            endChange();
+        }
+        roomCount = 0;
+    }
+
+    // Index of a user in the sorted users section, or -1
+    private int indexOfUser(String name) {
+        if (name == null) {
+            return -1;
+        }
+        int firstUser = 1 + roomCount;
+        int at = Collections.binarySearch(items.subList(firstUser, items.size()), name, USER_ORDER);
+        return at >= 0 ? firstUser + at : -1;
+    }
+}
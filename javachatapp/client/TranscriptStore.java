@@ -0,0 +1,205 @@
+package javachatapp.client;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * TranscriptStore keeps every line of a chat session in local temp files so
+ * the transcript view only has to hold the lines on screen (ChatTranscript).
+ *
+ * Lines are numbered: those appended during the session get 0, 1, 2, ...
+ * and history pages put in front of them get -1, -2, ... Each direction is
+ * one segment of a .log file (int length, UTF-8 bytes per line) and a .idx
+ * file (one long position per line), so any range of lines is two
+ * positional reads however long the session has been. Appends go through a
+ * write buffer; nothing about the transcript is kept in memory per line.
+ *
+ * FX thread only. The files are deleted by close().
+ */
+class TranscriptStore implements Closeable {
+
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    private final File dir;
+    private final Segment newer; // Lines 0, 1, 2, ...
+    private final Segment older; // Lines -1, -2, ... (newest first)
+
+    private TranscriptStore(File dir) throws IOException {
+        this.dir = dir;
+        this.newer = new Segment(new File(dir, "newer"));
+        this.older = new Segment(new File(dir, "older"));
+    }
+
+    // A new, empty store in a fresh temp directory
+    static TranscriptStore create() throws IOException {
+        return new TranscriptStore(Files.createTempDirectory("chat-transcript").toFile());
+    }
+
+    // Number of the oldest line
+    long firstLine() {
+        return -older.count;
+    }
+
+    // One past the number of the newest line
+    long endLine() {
+        return newer.count;
+    }
+
+    void append(String line) throws IOException {
+        newer.add(line);
+    }
+
+    // Put lines (oldest first) in front of everything stored so far
+    void prepend(List<String> lines) throws IOException {
+        for (int i = lines.size() - 1; i >= 0; i--) {
+            older.add(lines.get(i));
+        }
+    }
+
+    // Lines [from, from + n), oldest first
+    List<String> read(long from, int n) throws IOException {
+        if (from < firstLine() || from + n > endLine() || n < 0) {
+            throw new IllegalArgumentException("Lines " + from + "+" + n + " not in " + firstLine() + ".." + endLine());
+        }
+        List<String> lines = new ArrayList<>(n);
+        long end = from + n;
+        if (from < 0) {
+            // older holds line -1 - k at index k, so read it backwards
+            long olderEnd = Math.min(end, 0);
+            List<String> reversed = older.read(-olderEnd, (int) (olderEnd - from));
+            for (int i = reversed.size() - 1; i >= 0; i--) {
+                lines.add(reversed.get(i));
+            }
+        }
+        if (end > 0) {
+            long newerFrom = Math.max(from, 0);
+            lines.addAll(newer.read(newerFrom, (int) (end - newerFrom)));
+        }
+        return lines;
+    }
+
+    @Override
+    public void close() {
+        newer.close();
+        older.close();
+        dir.delete();
+    }
+
+    private static final class Segment {
+
+        private final File logFile;
+        private final File indexFile;
+        private final FileChannel log;
+        private final FileChannel index;
+        private final ByteBuffer logBuffer = ByteBuffer.allocate(BUFFER_SIZE);
+        private final ByteBuffer indexBuffer = ByteBuffer.allocate(BUFFER_SIZE / 8);
+
+        private long count;
+        private long written; // Lines already in the files
+        private long logSize; // Including what is still in logBuffer
+
+        Segment(File base) throws IOException {
+            logFile = new File(base.getPath() + ".log");
+            indexFile = new File(base.getPath() + ".idx");
+            log = open(logFile);
+            index = open(indexFile);
+        }
+
+        private static FileChannel open(File file) throws IOException {
+            return FileChannel.open(file.toPath(), StandardOpenOption.CREATE_NEW, StandardOpenOption.READ,
+                    StandardOpenOption.WRITE);
+        }
+
+        void add(String line) throws IOException {
+            byte[] bytes = line.getBytes(StandardCharsets.UTF_8);
+            if (logBuffer.remaining() < 4 + bytes.length || !indexBuffer.hasRemaining()) {
+                flush();
+            }
+            indexBuffer.putLong(logSize);
+            if (4 + bytes.length > logBuffer.capacity()) {
+                // Too long to buffer: write it through
+                ByteBuffer record = ByteBuffer.allocate(4 + bytes.length).putInt(bytes.length).put(bytes);
+                record.flip();
+                writeFully(log, record, logSize);
+            } else {
+                logBuffer.putInt(bytes.length).put(bytes);
+            }
+            logSize += 4 + bytes.length;
+            count++;
+        }
+
+        // Write out what is buffered; logSize already counts it
+        private void flush() throws IOException {
+            long logEnd = logSize - logBuffer.position();
+            logBuffer.flip();
+            writeFully(log, logBuffer, logEnd);
+            logBuffer.clear();
+            int entries = indexBuffer.position() / 8;
+            indexBuffer.flip();
+            writeFully(index, indexBuffer, written * 8);
+            indexBuffer.clear();
+            written += entries;
+        }
+
+        // Lines [first, first + n) of this segment
+        List<String> read(long first, int n) throws IOException {
+            List<String> lines = new ArrayList<>(n);
+            if (n == 0) {
+                return lines;
+            }
+            if (first + n > written) {
+                flush();
+            }
+            ByteBuffer positions = ByteBuffer.allocate(8 * (n + 1));
+            positions.limit(8 * Math.min(n + 1, (int) (count - first)));
+            readFully(index, positions, first * 8);
+            positions.flip();
+            long start = positions.getLong(0);
+            long end = first + n < count ? positions.getLong(8 * n) : logSize;
+            ByteBuffer data = ByteBuffer.allocate((int) (end - start));
+            readFully(log, data, start);
+            data.flip();
+            for (int i = 0; i < n; i++) {
+                byte[] bytes = new byte[data.getInt()];
+                data.get(bytes);
+                lines.add(new String(bytes, StandardCharsets.UTF_8));
+            }
+            return lines;
+        }
+
+        void close() {
+            try {
+                log.close();
+                index.close();
+            } catch (IOException e) {
+                // Deleted below either way
+            }
+            logFile.delete();
+            indexFile.delete();
+        }
+    }
+
+    private static void writeFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            position += channel.write(buffer, position);
+        }
+    }
+
+    private static void readFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            int n = channel.read(buffer, position);
+            if (n < 0) {
+                throw new IOException("Transcript file ends at " + position);
+            }
+            position += n;
+        }
+    }
+}
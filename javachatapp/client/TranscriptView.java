@@ -0,0 +1,96 @@
+package javachatapp.client;
+
+import java.util.List;
+import javafx.scene.control.IndexedCell;
+import javafx.scene.control.ListCell;
+import javafx.scene.control.ListView;
+import javafx.scene.control.Skin;
+import javafx.scene.control.skin.ListViewSkin;
+import javafx.scene.control.skin.VirtualFlow;
+
+/**
+ * TranscriptView shows a ChatTranscript as a virtualized list of wrapped
+ * lines: only the cells on screen exist, so appending a line costs the same
+ * after ten lines as after ten million.
+ *
+ * Scrolling to the top pages older lines in from the transcript store,
+ * scrolling to the bottom pages newer ones back in. While the newest line
+ * is on screen the view follows new lines; scrolled up, it stays put.
+ */
+public class TranscriptView extends ListView<String> {
+
+    private final ChatTranscript transcript;
+    private VirtualFlow<?> flow;
+    private boolean paging;
+
+    public TranscriptView(ChatTranscript transcript) {
+        super(transcript);
+        this.transcript = transcript;
+        setCellFactory(list -> new ListCell<String>() {
+            {
+                // Wrap to the width of the list instead of scrolling sideways
+                setWrapText(true);
+                setPrefWidth(0);
+            }
+
+            @Override
+            protected void updateItem(String item, boolean empty) {
+                super.updateItem(item, empty);
+                setText(empty ? null : item);
+            }
+        });
+    }
+
+    @Override
+    protected Skin<?> createDefaultSkin() {
+        return new ListViewSkin<String>(this) {
+            {
+                flow = getVirtualFlow();
+                flow.positionProperty().addListener((obs, old, position) -> scrolled());
+            }
+        };
+    }
+
+    // Add lines at the end, keeping the newest in view while following
+    public void append(List<String> lines) {
+        transcript.append(lines);
+        if (transcript.isFollowing() && transcript.isAtEnd() && !transcript.isEmpty()) {
+            scrollTo(transcript.size() - 1);
+        }
+    }
+
+    // Put history (oldest first) in front of everything shown
+    public void prependHistory(List<String> lines) {
+        transcript.prependHistory(lines);
+    }
+
+    private void scrolled() {
+        if (paging || flow == null) {
+            return;
+        }
+        IndexedCell<?> first = flow.getFirstVisibleCell();
+        IndexedCell<?> last = flow.getLastVisibleCell();
+        if (first == null || last == null) {
+            return;
+        }
+        paging = true;
+        try {
+            int top = first.getIndex();
+            boolean atBottom = last.getIndex() >= transcript.size() - 1;
+            if (top == 0 && !atBottom) {
+                // Keep the line that was on top where it was
+                int added = transcript.pageOlder();
+                if (added > 0) {
+                    scrollTo(top + added);
+                }
+            } else if (atBottom && !transcript.isAtEnd()) {
+                int dropped = transcript.pageNewer();
+                scrollTo(Math.max(0, top - dropped));
+                atBottom = false;
+            }
+            transcript.setFollowing(atBottom && transcript.isAtEnd());
+        } finally {
+            paging = false;
+        }
+    }
+}
@@ -1,55 +1,207 @@
 package javachatapp.server;
 
+import javachatapp.shared.Log;
 import javachatapp.shared.Message;
 import javachatapp.shared.Message.MessageType;
+import javachatapp.shared.RoomNames;
+import javachatapp.shared.VirtualThreads;
+import java.io.File;
 import java.io.IOException;
+import java.lang.management.ManagementFactory;
 import java.net.ServerSocket;
 import java.net.Socket;
-import java.util.ArrayList;
-import java.util.concurrent.ConcurrentHashMap;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
 
 /**
  * ChatServer handles multiple client connections and routes messages between
- * them. Uses thread-per-client model via ClientHandler.
+ * them. The connection engine is selected at startup: blocking ClientHandlers
+ * on platform or virtual threads, or a selector-based NioServerEngine.
  */
 public class ChatServer {
 
+    // Connection engines the server can run with
+    public enum ServerMode {
+        THREAD_PER_CLIENT, // One blocking ClientHandler platform thread per socket
+        VIRTUAL_THREADS,   // One blocking ClientHandler virtual thread per socket
+        NIO                // Small pool of selector event loops
+    }
+
+    // What to do when a client's outbound backlog reaches the slow-consumer threshold
+    public enum SlowConsumerPolicy {
+        DROP_NEWEST,        // Drop new chat messages, keep control messages
+        DROP_OLDEST,        // Evict the oldest queued chat message to make room
+        COALESCE_USER_LIST, // Replace queued roster updates with one current snapshot
+        DISCONNECT          // Send ERROR "SLOW_CONSUMER" and close the connection
+    }
+
     private int port;
+    private final ServerMode mode;
     private ServerSocket serverSocket;
-    private final ConcurrentHashMap<String, ClientHandler> clients;
-    private boolean running;
+    private NioServerEngine nioEngine;
+    private final UsernameRegistry clients;
+    private final AtomicInteger openConnections = new AtomicInteger();
+    private volatile int outboundQueueCapacity = DEFAULT_OUTBOUND_QUEUE_CAPACITY;
+    private volatile SlowConsumerPolicy slowConsumerPolicy = SlowConsumerPolicy.DROP_NEWEST;
+    private volatile int slowConsumerThreshold = DEFAULT_SLOW_CONSUMER_THRESHOLD;
+    private volatile long resumeGraceMillis = Long.getLong("chat.resume.grace", Session.DEFAULT_GRACE_MILLIS);
+    private volatile int resumeReplayFrames = Integer.getInteger("chat.resume.replay", Session.DEFAULT_REPLAY_FRAMES);
+    private volatile int routeLatencySampling = Integer.getInteger("chat.latency.sampling",
+            DEFAULT_ROUTE_LATENCY_SAMPLING);
+    private final AtomicLong slowConsumerEvents = new AtomicLong();
+    private final AtomicLong slowConsumerDisconnects = new AtomicLong();
+    private final ScheduledExecutorService scheduler;
+
+    // Roster changes and their deltas are published under this lock, so every
+    // client sees USER_JOINED/USER_LEFT in version order. Logins do not take
+    // it: they read the version and the cached snapshot without locking.
+    private final Object rosterLock = new Object();
+    private final Set<String> publishedRoster = new LinkedHashSet<>(); // What clients have been told
+    private volatile long rosterVersion;
+    private volatile EncodedMessage rosterSnapshot; // Cached USER_LIST for rosterVersion
+    private final AtomicLong rosterUpdates = new AtomicLong();
+    private final PresenceAggregator presence;
+    private final ServerMetrics metrics = new ServerMetrics();
+    private final ServerStats stats = new ServerStats(this);
+    private volatile int statsPort = Integer.getInteger("chat.stats.port", 0);
+    private StatsListener statsListener;
+    private ObjectName statsName;
+    private volatile File historyDirectory = directoryProperty("chat.history.dir");
+    private volatile HistoryStore history;
+    private final HistoryReplay replay = new HistoryReplay(this);
+    private final RoomRegistry rooms = new RoomRegistry();
+    private volatile File mailboxDirectory = directoryProperty("chat.mailbox.dir");
+    private volatile OfflineMailbox mailbox;
+    private volatile ClusterNode cluster = ClusterNode.fromProperties();
+
+    // Frames a client may have queued before further frames are dropped
+    public static final int DEFAULT_OUTBOUND_QUEUE_CAPACITY = 1024;
+
+    // Backlog (in frames) at which a client counts as a slow consumer
+    public static final int DEFAULT_SLOW_CONSUMER_THRESHOLD = 512;
+
+    // Rooms a single client may be in at once
+    public static final int MAX_ROOMS_PER_CLIENT = 100;
+
+    // Joins and leaves within this window go out as one notification
+    public static final long DEFAULT_PRESENCE_WINDOW_MILLIS = 50;
+
+    // One in this many messages per connection is timed for the route latency metric
+    public static final int DEFAULT_ROUTE_LATENCY_SAMPLING = 64;
+    private volatile boolean running;
 
     public ChatServer(int port) {
+        this(port, ServerMode.THREAD_PER_CLIENT);
+    }
+
+    public ChatServer(int port, ServerMode mode) {
         this.port = port;
-        this.clients = new ConcurrentHashMap<>();
+        this.mode = mode;
+        this.clients = new UsernameRegistry();
         this.running = false;
+        this.scheduler = Executors.newSingleThreadScheduledExecutor(task -> {
+            Thread thread = new Thread(task, "server-timer");
+            thread.setDaemon(true);
+            return thread;
+        });
+        this.presence = new PresenceAggregator(this, DEFAULT_PRESENCE_WINDOW_MILLIS);
+    }
+
+    /**
+     * Run the server without the GUI
+     *
+     * Usage: java [-Dchat.stats.port=9100] [-Dchat.cluster.port=6000 -Dchat.cluster.peers=host:6001,...
+     *        -Dchat.cluster.secret=... [-Dchat.cluster.bind=address]]
+     *        [-Dchat.resume.grace=30000] [-Dchat.resume.replay=256] [-Dchat.latency.sampling=64]
+     *        javachatapp.server.ChatServer [port] [mode]
+     */
+    public static void main(String[] args) {
+        int port = args.length > 0 ? Integer.parseInt(args[0]) : 5000;
+        ServerMode mode = args.length > 1 ? ServerMode.valueOf(args[1]) : ServerMode.THREAD_PER_CLIENT;
+        new ChatServer(port, mode).start();
     }
 
     // Start the server and listen for client connections
     public void start() {
+        if (mode == ServerMode.NIO) {
+            startNio();
+        } else {
+            startBlocking();
+        }
+    }
+
+    // Run the selector-based engine, accepting on the calling thread
+    private void startNio() {
+        try {
+            nioEngine = new NioServerEngine(this, port, Runtime.getRuntime().availableProcessors());
+            nioEngine.bind();
+            running = true;
+            startHistory();
+            startMailbox();
+            startCluster();
+            startStats();
+            Log.info("Server started on port {} (NIO, {} event loops)", port, nioEngine.getLoopCount());
+            nioEngine.acceptLoop();
+        } catch (IOException e) {
+            Log.error("Could not start server on port {}: {}", port, e.getMessage());
+        } finally {
+            stop();
+        }
+    }
+
+    // Accept connections and run one blocking ClientHandler thread per client
+    private void startBlocking() {
+        boolean virtual = mode == ServerMode.VIRTUAL_THREADS;
+        if (virtual && !VirtualThreads.isSupported()) {
+            Log.warn("Virtual threads need Java 21+, falling back to platform threads");
+        }
+
         try {
             serverSocket = new ServerSocket(port);
             running = true;
-            System.out.println("Server started on port " + port);
+            startHistory();
+            startMailbox();
+            startCluster();
+            startStats();
+            Log.info("Server started on port {} ({})", port, mode);
 
             // Accept client connections in a loop
             while (running) {
                 try {
                     Socket clientSocket = serverSocket.accept();
-                    System.out.println("New connection from: " + clientSocket.getInetAddress());
+                    // Writers flush once per burst, as the NIO engine does
+                    clientSocket.setTcpNoDelay(true);
+                    Log.info("New connection from: {}", clientSocket.getInetAddress());
 
                     // Create and start a new thread for this client
                     ClientHandler handler = new ClientHandler(clientSocket, this);
-                    Thread clientThread = new Thread(handler);
-                    clientThread.start();
+                    if (virtual) {
+                        VirtualThreads.start("client-handler", handler);
+                    } else {
+                        Thread clientThread = new Thread(handler, "client-handler");
+                        clientThread.start();
+                    }
                 } catch (IOException e) {
                     if (running) {
-                        System.err.println("Error accepting client connection: " + e.getMessage());
+                        Log.warn("Error accepting client connection: {}", e.getMessage());
                     }
                 }
             }
         } catch (IOException e) {
-            System.err.println("Could not start server on port " + port + ": " + e.getMessage());
+            Log.error("Could not start server on port {}: {}", port, e.getMessage());
         } finally {
             stop();
         }
@@ -63,76 +215,585 @@ public class ChatServer {
                 serverSocket.close();
             }
             // Disconnect all clients
-            for (ClientHandler handler : clients.values()) {
-                handler.sendMessage(new Message(MessageType.DISCONNECT, "Server"));
+            EncodedMessage disconnect = new EncodedMessage(new Message(MessageType.DISCONNECT, "Server"));
+            for (ClientConnection handler : clients.connections()) {
+                handler.send(disconnect);
             }
             clients.clear();
-            System.out.println("Server stopped");
+            stopCluster();
+            if (nioEngine != null) {
+                nioEngine.stop();
+            }
+            stopStats();
+            scheduler.shutdown();
+            replay.stop();
+            stopHistory();
+            stopMailbox();
+            Log.info("Server stopped");
         } catch (IOException e) {
-            System.err.println("Error stopping server: " + e.getMessage());
+            Log.warn("Error stopping server: {}", e.getMessage());
         }
     }
 
-    // Check if a username is already taken
-    public synchronized boolean isUsernameTaken(String username) {
-        return clients.containsKey(username);
+    private static File directoryProperty(String name) {
+        String dir = System.getProperty(name);
+        return dir != null && !dir.isEmpty() ? new File(dir) : null;
+    }
+
+    // Open the history store, if one is configured
+    private void startHistory() {
+        File dir = historyDirectory;
+        if (dir == null || history != null) {
+            return;
+        }
+        try {
+            HistoryStore store = new HistoryStore(dir);
+            store.start();
+            history = store;
+            Log.info("History in {} (offsets {} to {})", dir, store.getStartOffset(), store.getEndOffset());
+        } catch (IOException e) {
+            Log.error("Could not open history in {}: {}", dir, e.getMessage());
+        }
+    }
+
+    private void stopHistory() {
+        HistoryStore store = history;
+        if (store != null) {
+            history = null;
+            store.close();
+        }
+    }
+
+    // Open the offline mailboxes, if a directory is configured
+    private void startMailbox() {
+        File dir = mailboxDirectory;
+        if (mailbox == null && dir != null) {
+            try {
+                mailbox = new OfflineMailbox(dir);
+            } catch (IOException e) {
+                Log.error("Could not open mailboxes in {}: {}", dir, e.getMessage());
+                return;
+            }
+        }
+        if (mailbox != null) {
+            mailbox.start(clients::get);
+            Log.info("Offline mailboxes in {}", mailbox.getDirectory());
+        }
+    }
+
+    private void stopMailbox() {
+        OfflineMailbox current = mailbox;
+        if (current != null) {
+            mailbox = null;
+            current.close();
+        }
+    }
+
+    // Join the cluster, if this server is a cluster node
+    private void startCluster() {
+        ClusterNode node = cluster;
+        if (node != null) {
+            try {
+                node.start(this);
+            } catch (IOException e) {
+                Log.error("Could not start cluster node on port {}: {}", node.getPort(), e.getMessage());
+                cluster = null;
+            }
+        }
+    }
+
+    private void stopCluster() {
+        ClusterNode node = cluster;
+        if (node != null) {
+            node.stop();
+        }
+    }
+
+    // Register the JMX bean, start interval sampling and the text listener
+    private void startStats() {
+        scheduleRepeating(stats::sample, ServerStats.INTERVAL_MILLIS);
+        try {
+            MBeanServer beans = ManagementFactory.getPlatformMBeanServer();
+            ObjectName name = new ObjectName("javachatapp:type=ChatServer,port=" + port);
+            beans.registerMBean(stats, name);
+            statsName = name;
+        } catch (JMException e) {
+            Log.warn("Could not register stats MBean: {}", e.getMessage());
+        }
+        if (statsPort > 0) {
+            try {
+                statsListener = new StatsListener(stats, statsPort);
+                statsListener.start();
+                Log.info("Stats available on 127.0.0.1:{}", statsPort);
+            } catch (IOException e) {
+                Log.warn("Could not start stats listener on port {}: {}", statsPort, e.getMessage());
+            }
+        }
+    }
+
+    private void stopStats() {
+        if (statsListener != null) {
+            statsListener.stop();
+            statsListener = null;
+        }
+        if (statsName != null) {
+            try {
+                ManagementFactory.getPlatformMBeanServer().unregisterMBean(statsName);
+            } catch (JMException e) {
+                // Already gone
+            }
+            statsName = null;
+        }
     }
 
-    //  Add a client to the server's client list
-    public synchronized void addClient(String username, ClientHandler handler) {
-        clients.put(username, handler);
-        System.out.println("Client added: " + username + " (Total: " + clients.size() + ")");
+    // Check if a username is already taken, here or on another cluster node
+    public boolean isUsernameTaken(String username) {
+        ClusterNode node = cluster;
+        return clients.isTaken(username) || (node != null && node.isRemote(username));
+    }
+
+    /**
+     * Add a client to the server's client list. The new client receives a
+     * USER_LIST snapshot right away; everyone else hears about the join from
+     * the PresenceAggregator at the end of the current presence window.
+     *
+     * The name is reserved with one atomic putIfAbsent in the
+     * UsernameRegistry, so logins with different names never wait for each
+     * other. In a cluster the name must also be free on the other nodes; it
+     * is claimed in the cluster directory while the reservation is pending.
+     *
+     * @return true if added, false if the username was already taken
+     */
+    public boolean addClient(String username, ClientConnection handler) {
+        UsernameRegistry.Entry entry = clients.reserve(username, handler);
+        if (entry == null) {
+            return false;
+        }
+        OfflineMailbox offline = mailbox;
+        if (offline != null) {
+            // From activation until stored mail is out, live private messages wait behind it
+            offline.hold(username);
+        }
+        ClusterNode node = cluster;
+        // activate fails if another node's earlier claim cancelled the reservation
+        if ((node != null && !node.claim(username)) || !clients.activate(entry)) {
+            if (offline != null) {
+                offline.release(username);
+            }
+            clients.cancel(entry);
+            clients.finishLeave(username, entry);
+            return false;
+        }
+        sendInitialRoster(handler);
+        Log.info("Client added: {} (Total: {})", username, clients.size());
+        presence.record(username);
+        if (offline != null) {
+            offline.deliver(username);
+        }
+        return true;
+    }
+
+    // The logged-in connection for a username, or null
+    ClientConnection getClient(String username) {
+        return clients.get(username);
     }
 
     // Remove a client from the server's client list
-    public synchronized void removeClient(String username) {
-        if (clients.remove(username) != null) {
-            System.out.println("Client removed: " + username + " (Total: " + clients.size() + ")");
+    public void removeClient(String username) {
+        removeClient(username, null);
+    }
+
+    // Remove a client only if the name is still mapped to this connection
+    public void removeClient(String username, ClientConnection handler) {
+        UsernameRegistry.Entry entry = clients.beginLeave(username, handler);
+        if (entry == null) {
+            return;
+        }
+        // The name stays taken until the leave is recorded, so a reconnect cannot overlap it
+        Log.info("Client removed: {} (Total: {})", username, clients.size());
+        ClusterNode node = cluster;
+        if (node != null) {
+            node.release(username);
+        }
+        presence.record(username);
+        clients.finishLeave(username, entry);
+    }
+
+    // Another cluster node kept a username this server had also accepted
+    void revokeUsername(String username) {
+        UsernameRegistry.Entry entry = clients.entry(username);
+        // A login still waiting for its claim is refused by addClient instead
+        if (entry != null && !clients.cancel(entry)) {
+            entry.connection.revokeUsername();
+        }
+    }
+
+    // A user logged in or out of another cluster node
+    void remotePresenceChanged(String username) {
+        presence.record(username);
+    }
+
+    /**
+     * Publish the roster changes for a batch of usernames whose presence
+     * changed since the last publish. Each name is compared with the client
+     * map (and the cluster directory), so a user who joined and left within
+     * one window produces nothing.
+     * Sends at most one USER_LEFT and one USER_JOINED delta to every client.
+     *
+     * @param joined receives the names that joined
+     * @param left receives the names that left
+     */
+    void publishPresence(Collection<String> usernames, List<String> joined, List<String> left) {
+        ClusterNode node = cluster;
+        synchronized (rosterLock) {
+            for (String username : usernames) {
+                boolean online = clients.isActive(username) || (node != null && node.isRemote(username));
+                if (online && publishedRoster.add(username)) {
+                    joined.add(username);
+                } else if (!online && publishedRoster.remove(username)) {
+                    left.add(username);
+                }
+            }
+            publishRosterDelta(MessageType.USER_LEFT, left);
+            publishRosterDelta(MessageType.USER_JOINED, joined);
+        }
+    }
+
+    // Bump the roster version and send one delta to every client
+    private void publishRosterDelta(MessageType type, List<String> usernames) {
+        if (usernames.isEmpty()) {
+            return;
+        }
+        rosterSnapshot = null;
+        rosterVersion++;
+
+        Message delta = new Message(type, usernames.toArray(new String[0]));
+        delta.setRosterVersion(rosterVersion);
+        EncodedMessage encoded = new EncodedMessage(delta);
+        for (ClientConnection handler : clients.connections()) {
+            handler.send(encoded);
+        }
+        rosterUpdates.incrementAndGet();
+    }
+
+    /**
+     * The published roster at the current version. Built at most once per
+     * roster change, no matter how many clients ask for it; reading the
+     * cached one takes no lock.
+     */
+    EncodedMessage rosterSnapshot() {
+        EncodedMessage cached = rosterSnapshot;
+        if (cached != null) {
+            return cached;
+        }
+        synchronized (rosterLock) {
+            if (rosterSnapshot == null) {
+                Message snapshot = new Message(MessageType.USER_LIST, publishedRoster.toArray(new String[0]));
+                snapshot.setRosterVersion(rosterVersion);
+                rosterSnapshot = new EncodedMessage(snapshot);
+            }
+            return rosterSnapshot;
         }
     }
 
+    /**
+     * Send a client that was just activated its first roster, without the
+     * roster lock. A delta published meanwhile either reaches the client
+     * (the publisher bumps the version, then iterates the clients, which
+     * already include this one) or moves the version past the snapshot
+     * read here, which is then sent again.
+     */
+    private void sendInitialRoster(ClientConnection handler) {
+        EncodedMessage snapshot = rosterSnapshot();
+        handler.send(snapshot);
+        while (snapshot.getMessage().getRosterVersion() != rosterVersion) {
+            snapshot = rosterSnapshot();
+            handler.send(snapshot);
+        }
+    }
+
+    // Send a client the full roster (USER_LIST_REQUEST after a version gap)
+    public void sendUserList(ClientConnection handler) {
+        synchronized (rosterLock) {
+            handler.send(rosterSnapshot());
+        }
+    }
+
+    public long getRosterVersion() {
+        return rosterVersion;
+    }
+
+    // Roster deltas published since start (one per kind per presence window)
+    public long getRosterUpdates() {
+        return rosterUpdates.get();
+    }
+
+    // Set the presence batching window, 0 publishes every join/leave immediately
+    public void setPresenceWindow(long millis) {
+        presence.setWindowMillis(millis);
+    }
+
+    public long getPresenceWindow() {
+        return presence.getWindowMillis();
+    }
+
+    public long getPresenceNotifications() {
+        return presence.getNotificationCount();
+    }
+
+    // Track sockets that are open, including ones that have not logged in yet
+    void connectionOpened() {
+        openConnections.incrementAndGet();
+    }
+
+    void connectionClosed() {
+        openConnections.decrementAndGet();
+    }
+
     //Route a message to the appropriate recipient(s)
     public void routeMessage(Message message) {
+        routeMessage(message, 0);
+    }
+
+    /**
+     * Route a message read from a client
+     *
+     * @param receivedAt System.nanoTime() when it was decoded, used for the
+     * route latency metric (0 to skip)
+     */
+    public void routeMessage(Message message, long receivedAt) {
         String recipient = message.getRecipient();
 
         if (recipient == null || recipient.equals("Broadcast")) {
             // Send to all clients
-            broadcast(message);
+            broadcast(message, receivedAt);
         } else {
+            archive(message);
             // Send to specific client
-            ClientHandler targetClient = clients.get(recipient);
+            ClientConnection targetClient = clients.get(recipient);
             if (targetClient != null) {
-                targetClient.sendMessage(message);
-                System.out.println("Message routed from " + message.getSender() + " to " + recipient);
+                if (isHeldBack(message)) {
+                    return;
+                }
+                EncodedMessage encoded = new EncodedMessage(message, receivedAt);
+                targetClient.send(encoded);
+                encoded.fanoutCompleted(metrics);
+                Log.debug("Message routed from {} to {}", message.getSender(), recipient);
             } else {
-                System.err.println("Recipient not found: " + recipient);
-                // Optionally notify sender that recipient doesn't exist
+                ClusterNode node = cluster;
+                if (node != null && node.forward(message)) {
+                    Log.debug("Message from {} forwarded to the node of {}", message.getSender(), recipient);
+                } else {
+                    keepForOffline(message);
+                }
             }
         }
     }
 
+    // True if the recipient's stored messages are still being delivered and this one now waits behind them
+    private boolean isHeldBack(Message message) {
+        OfflineMailbox offline = mailbox;
+        if (offline != null && offline.holdBack(message)) {
+            Log.debug("Message from {} to {} held until stored messages are delivered",
+                    message.getSender(), message.getRecipient());
+            return true;
+        }
+        return false;
+    }
+
+    // Store a private message for a recipient who is not logged in anywhere
+    private void keepForOffline(Message message) {
+        OfflineMailbox offline = mailbox;
+        if (offline != null) {
+            // Delivered when the recipient next logs in
+            offline.store(message);
+            Log.debug("Message from {} kept for offline user {}", message.getSender(), message.getRecipient());
+        } else {
+            Log.warn("Recipient not found: {}", message.getRecipient());
+        }
+    }
+
+    // A private message another cluster node forwarded to one of our users
+    void deliverFromPeer(Message message) {
+        ClientConnection targetClient = clients.get(message.getRecipient());
+        if (targetClient != null) {
+            if (!isHeldBack(message)) {
+                targetClient.sendMessage(message);
+            }
+        } else {
+            // Logged out while the message was on its way
+            keepForOffline(message);
+        }
+    }
+
+    // A broadcast sent on another cluster node: kept and fanned out here, not forwarded again
+    void broadcastFromPeer(Message message) {
+        archive(message);
+        fanOut(message, 0);
+    }
+
+    // Queue a routed message for the history (never waits for the disk)
+    private void archive(Message message) {
+        HistoryStore store = history;
+        if (store != null) {
+            store.append(message);
+        }
+    }
+
     // Broadcast a message to all connected clients
     public void broadcast(Message message) {
+        broadcast(message, 0);
+    }
+
+    // Broadcast a message read from a client (receivedAt as for routeMessage)
+    public void broadcast(Message message, long receivedAt) {
+        archive(message);
+        fanOut(message, receivedAt);
+        ClusterNode node = cluster;
+        if (node != null) {
+            node.publishBroadcast(message);
+        }
+    }
+
+    // Broadcast a server notice (presence), which is not kept in the history
+    void broadcastNotice(Message message) {
+        fanOut(message, 0);
+    }
+
+    private void fanOut(Message message, long receivedAt) {
         String sender = message.getSender();
         int sentCount = 0;
 
-        for (ClientHandler handler : clients.values()) {
+        // Encode once, every recipient writes the same frame bytes
+        long start = System.nanoTime();
+        EncodedMessage encoded = new EncodedMessage(message, receivedAt);
+        for (ClientConnection handler : clients.connections()) {
             if (!handler.getUsername().equals(sender)) {
-                handler.sendMessage(message);
+                handler.send(encoded);
                 sentCount++;
             }
         }
-        System.out.println("Broadcast message from " + sender + " to " + sentCount + " clients");
+        metrics.recordFanoutTime(System.nanoTime() - start);
+        encoded.fanoutCompleted(metrics);
+        // Guarded: the count would be boxed even with DEBUG off
+        if (Log.isEnabled(Log.Level.DEBUG)) {
+            Log.debug("Broadcast message from {} to {} clients", sender, sentCount);
+        }
+    }
+
+    /**
+     * Add a client to a room (created on first join) and reply with
+     * JOIN_ROOM listing the members, or an ERROR (INVALID_ROOM,
+     * TOO_MANY_ROOMS)
+     */
+    public void joinRoom(ClientConnection handler, String room) {
+        if (!RoomNames.isValid(room)) {
+            handler.sendMessage(new Message(MessageType.ERROR, "Server", handler.getUsername(), "INVALID_ROOM"));
+            return;
+        }
+        if (!handler.addRoom(room, MAX_ROOMS_PER_CLIENT)) {
+            handler.sendMessage(new Message(MessageType.ERROR, "Server", handler.getUsername(), "TOO_MANY_ROOMS"));
+            return;
+        }
+        rooms.join(room, handler);
+        if (handler.isClosed()) {
+            // Cleanup may already have run past this room
+            leaveRoom(handler, room);
+            return;
+        }
+        RoomRegistry.Room joined = rooms.get(room);
+        ClientConnection[] members = joined != null ? joined.getMembers() : new ClientConnection[0];
+        String[] names = new String[members.length];
+        for (int i = 0; i < members.length; i++) {
+            names[i] = members[i].getUsername();
+        }
+        Message reply = new Message(MessageType.JOIN_ROOM, "Server", room, null);
+        reply.setUserList(names);
+        handler.sendMessage(reply);
+        Log.debug("{} joined {} ({} members)", handler.getUsername(), room, names.length);
+    }
+
+    // Remove a client from a room and confirm with LEAVE_ROOM
+    public void leaveRoom(ClientConnection handler, String room) {
+        if (!RoomNames.isValid(room)) {
+            handler.sendMessage(new Message(MessageType.ERROR, "Server", handler.getUsername(), "INVALID_ROOM"));
+            return;
+        }
+        handler.removeRoom(room);
+        if (rooms.leave(room, handler) && !handler.isClosed()) {
+            handler.sendMessage(new Message(MessageType.LEAVE_ROOM, "Server", room, null));
+        }
+    }
+
+    /**
+     * Send a ROOM_MESSAGE to every member of the room in its recipient
+     * except the sender (receivedAt as for routeMessage). Reads the room's
+     * member array as it is, without locking or copying. Cluster peers get
+     * it too and deliver it to their own members of the room.
+     */
+    public void sendToRoom(Message message, long receivedAt) {
+        archive(message);
+        deliverToRoom(message, receivedAt);
+        ClusterNode node = cluster;
+        if (node != null) {
+            node.publishRoomMessage(message);
+        }
+    }
+
+    // A room message sent on another cluster node
+    void roomMessageFromPeer(Message message) {
+        archive(message);
+        deliverToRoom(message, 0);
+    }
+
+    private void deliverToRoom(Message message, long receivedAt) {
+        if (!RoomNames.isValid(message.getRecipient())) {
+            return;
+        }
+        RoomRegistry.Room room = rooms.get(message.getRecipient());
+        if (room == null) {
+            return;
+        }
+        String sender = message.getSender();
+        long start = System.nanoTime();
+        EncodedMessage encoded = new EncodedMessage(message, receivedAt);
+        for (ClientConnection member : room.getMembers()) {
+            if (!Objects.equals(sender, member.getUsername())) {
+                member.send(encoded);
+            }
+        }
+        metrics.recordFanoutTime(System.nanoTime() - start);
+        encoded.fanoutCompleted(metrics);
+    }
+
+    // Rooms with at least one member
+    public int getRoomCount() {
+        return rooms.getRoomCount();
     }
 
-    // Send updated user list to all connected clients
+    // Send the full user list to all connected clients. Joins and leaves
+    // only send deltas, this is for resynchronizing everyone at once.
     public void broadcastUserList() {
-        ArrayList<String> usernames = new ArrayList<>(clients.keySet());
-        String[] userArray = usernames.toArray(new String[0]);
+        synchronized (rosterLock) {
+            EncodedMessage snapshot = rosterSnapshot();
+            for (ClientConnection handler : clients.connections()) {
+                handler.send(snapshot);
+            }
+        }
+        Log.debug("User list broadcast: {} users", clients.size());
+    }
+
+    public ServerMetrics getMetrics() {
+        return metrics;
+    }
 
-        Message userListMsg = new Message(MessageType.USER_LIST, userArray);
-        broadcast(userListMsg);
-        System.out.println("User list broadcast: " + usernames);
+    public ServerStats getStats() {
+        return stats;
+    }
+
+    // Outbound queue depths across current connections
+    public Histogram.Snapshot getQueueDepths() {
+        return ServerMetrics.queueDepths(clients.connections());
     }
 
     // Get the current port
@@ -140,6 +801,208 @@ public class ChatServer {
         return port;
     }
 
+    // Keep the chat history in this directory (null = no history; applies at start)
+    public void setHistoryDirectory(File directory) {
+        this.historyDirectory = directory;
+    }
+
+    /**
+     * Use an already opened history store (e.g. one shared with a test);
+     * the server starts it and closes it on stop
+     */
+    public void setHistoryStore(HistoryStore store) {
+        store.start();
+        this.history = store;
+    }
+
+    // The history store, or null if the server keeps no history
+    public HistoryStore getHistory() {
+        return history;
+    }
+
+    // Keep private messages for offline users in this directory (null = drop them; applies at start)
+    public void setMailboxDirectory(File directory) {
+        this.mailboxDirectory = directory;
+    }
+
+    /**
+     * Use an already created mailbox (e.g. one with test limits); the server
+     * starts it and closes it on stop
+     */
+    public void setMailbox(OfflineMailbox mailbox) {
+        this.mailbox = mailbox;
+    }
+
+    /**
+     * Run this server as a node of a cluster (applies at start; normally
+     * configured with the chat.cluster.* properties)
+     */
+    public void setCluster(ClusterNode cluster) {
+        this.cluster = cluster;
+    }
+
+    // The cluster node, or null if this server runs alone
+    public ClusterNode getCluster() {
+        return cluster;
+    }
+
+    // The offline mailboxes, or null if messages to offline users are dropped
+    public OfflineMailbox getMailbox() {
+        return mailbox;
+    }
+
+    HistoryReplay getHistoryReplay() {
+        return replay;
+    }
+
+    // Stored public messages sent to every client that joins (0 = none)
+    public void setHistoryReplayCount(int count) {
+        replay.setReplayCount(count);
+    }
+
+    public int getHistoryReplayCount() {
+        return replay.getReplayCount();
+    }
+
+    // Join replays sent, and how many of them read the history rather than sharing a cached one
+    public long getHistoryReplaysSent() {
+        return replay.getReplaysSent();
+    }
+
+    public long getHistoryReplaysBuilt() {
+        return replay.getReplaysBuilt();
+    }
+
+    // Serve plain-text stats on this loopback port (0 = off; applies at start)
+    public void setStatsPort(int statsPort) {
+        this.statsPort = statsPort;
+    }
+
+    public int getStatsPort() {
+        return statsPort;
+    }
+
+    // Set the per-client outbound queue size (applies to new connections)
+    public void setOutboundQueueCapacity(int capacity) {
+        if (capacity < 1) {
+            throw new IllegalArgumentException("Queue capacity must be positive");
+        }
+        this.outboundQueueCapacity = capacity;
+    }
+
+    public int getOutboundQueueCapacity() {
+        return outboundQueueCapacity;
+    }
+
+    /**
+     * Configure slow-consumer handling
+     *
+     * @param policy What to do once a client's backlog reaches the threshold
+     * @param threshold Backlog in frames (at most the outbound queue capacity)
+     */
+    public void setSlowConsumerPolicy(SlowConsumerPolicy policy, int threshold) {
+        if (threshold < 1 || threshold > outboundQueueCapacity) {
+            throw new IllegalArgumentException("Threshold must be between 1 and the queue capacity");
+        }
+        this.slowConsumerPolicy = policy;
+        this.slowConsumerThreshold = threshold;
+    }
+
+    public SlowConsumerPolicy getSlowConsumerPolicy() {
+        return slowConsumerPolicy;
+    }
+
+    public int getSlowConsumerThreshold() {
+        return slowConsumerThreshold;
+    }
+
+    /**
+     * Configure resumable sessions (applies to new logins)
+     *
+     * @param graceMillis How long a lost client's session waits for it to
+     * resume (0 = log out at once, as before sessions)
+     * @param replayFrames Chat frames kept per session for replay (at most a
+     * quarter of the outbound queue capacity is used)
+     */
+    public void setSessionResume(long graceMillis, int replayFrames) {
+        if (graceMillis < 0 || replayFrames < 1) {
+            throw new IllegalArgumentException("Grace period must not be negative, replay must hold a frame");
+        }
+        this.resumeGraceMillis = graceMillis;
+        this.resumeReplayFrames = replayFrames;
+    }
+
+    public long getResumeGraceMillis() {
+        return resumeGraceMillis;
+    }
+
+    public int getResumeReplayFrames() {
+        return resumeReplayFrames;
+    }
+
+    /**
+     * Time one in every messages read from a connection for the route
+     * latency metric (1 = every message, 0 = none)
+     */
+    public void setRouteLatencySampling(int every) {
+        if (every < 0) {
+            throw new IllegalArgumentException("Sampling interval must not be negative");
+        }
+        this.routeLatencySampling = every;
+    }
+
+    public int getRouteLatencySampling() {
+        return routeLatencySampling;
+    }
+
+    /**
+     * The receivedAt to route a connection's n-th message with:
+     * System.nanoTime() if it is sampled, 0 (untracked) otherwise
+     */
+    public long receivedAt(long messageNumber) {
+        int every = routeLatencySampling;
+        return every > 0 && messageNumber % every == 0 ? System.nanoTime() : 0;
+    }
+
+    void recordSlowConsumerEvent() {
+        slowConsumerEvents.incrementAndGet();
+    }
+
+    void recordSlowConsumerDisconnect() {
+        slowConsumerDisconnects.incrementAndGet();
+    }
+
+    // Number of frames the slow-consumer policy had to act on
+    public long getSlowConsumerEvents() {
+        return slowConsumerEvents.get();
+    }
+
+    public long getSlowConsumerDisconnects() {
+        return slowConsumerDisconnects.get();
+    }
+
+    // Run a task on the server timer thread (ignored once the server has stopped)
+    void schedule(Runnable task, long delayMillis) {
+        try {
+            scheduler.schedule(task, delayMillis, TimeUnit.MILLISECONDS);
+        } catch (RejectedExecutionException e) {
+            // Server is shutting down
+        }
+    }
+
+    // Run a task on the server timer thread every period until the server stops
+    void scheduleRepeating(Runnable task, long periodMillis) {
+        try {
+            scheduler.scheduleAtFixedRate(task, periodMillis, periodMillis, TimeUnit.MILLISECONDS);
+        } catch (RejectedExecutionException e) {
+            // Server is shutting down
+        }
+    }
+
+    public ServerMode getMode() {
+        return mode;
+    }
+
     // Check if server is running
     public boolean isRunning() {
         return running;
@@ -148,4 +1011,13 @@ public class ChatServer {
     public int getClientCount() {
         return clients.size();
     }
+
+    public int getConnectionCount() {
+        return openConnections.get();
+    }
+
+    // Live view of the logged-in connections (for stats and monitoring)
+    public Collection<ClientConnection> getConnections() {
+        return Collections.unmodifiableCollection(clients.connections());
+    }
 }
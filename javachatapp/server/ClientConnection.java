@@ -0,0 +1,543 @@
+package javachatapp.server;
+
+import javachatapp.shared.Log;
+import javachatapp.shared.Message;
+import javachatapp.shared.Message.MessageType;
+import javachatapp.shared.MessageCodec;
+import javachatapp.shared.RoomNames;
+import java.io.IOException;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * ClientConnection holds the chat session logic shared by every server engine:
+ * the CONNECT handshake, dispatching of client messages and cleanup. Subclasses
+ * provide the transport (blocking socket streams or a non-blocking channel).
+ *
+ * Outgoing frames go through a bounded OutboundQueue, so a sender never
+ * blocks on a slow client's socket.
+ *
+ * A client that asked for a resumable session keeps its login when the
+ * transport fails: see Session. A connection that resumes a session writes
+ * its frames and speaks for its owner, the connection that logged in.
+ */
+public abstract class ClientConnection {
+
+    protected final ChatServer server;
+    protected String username;
+    protected int protocolVersion; // Set from the client's handshake byte
+    private volatile boolean registered = false; // Also cleared by a cluster revoke
+    private final AtomicBoolean cleanedUp = new AtomicBoolean(false);
+    private final AtomicBoolean slowDisconnect = new AtomicBoolean(false);
+    private final AtomicBoolean transportClosed = new AtomicBoolean(false);
+    protected final OutboundQueue outbound;
+
+    private volatile Session session; // The resumable session this connection logged in with
+    private volatile Session carried; // The session whose frames this connection writes
+    private volatile boolean detached; // The session moved away; frames left here are moved after it
+
+    // Rooms this client is in, left on cleanup
+    private final Set<String> rooms = ConcurrentHashMap.newKeySet();
+
+    // How long a slow consumer gets to receive its ERROR before being closed
+    private static final long SLOW_CONSUMER_GRACE_MILLIS = 2000;
+
+    // Per-connection traffic counters
+    private final AtomicLong messagesIn = new AtomicLong();
+    private final AtomicLong messagesOut = new AtomicLong();
+    private final AtomicLong bytesIn = new AtomicLong();
+    private final AtomicLong bytesOut = new AtomicLong();
+
+    protected ClientConnection(ChatServer server) {
+        this.server = server;
+        this.outbound = new OutboundQueue(server.getOutboundQueueCapacity());
+        server.connectionOpened();
+    }
+
+    // Sends a message to this client
+    public void sendMessage(Message message) {
+        send(new EncodedMessage(message));
+    }
+
+    /**
+     * Queues an already encoded message for this client and returns without
+     * waiting for the write. Fan-out paths pass the same EncodedMessage to
+     * every recipient so it is only encoded once.
+     */
+    public void send(EncodedMessage message) {
+        Session own = session;
+        if (own != null) {
+            // Whichever connection carries the session now, or held while it is parked
+            own.deliver(message);
+        } else {
+            queue(message, true);
+        }
+    }
+
+    /**
+     * Queue a frame on this connection's own transport.
+     *
+     * @param policy false to skip the slow-consumer policy (a session
+     * replaying frames after a resume, under its lock)
+     */
+    void queue(EncodedMessage message, boolean policy) {
+        if (isClosed() || slowDisconnect.get()) {
+            return;
+        }
+        // Older clients predate roster deltas, they get the full roster instead
+        if (!MessageCodec.isBinary(protocolVersion) && isRosterDelta(message.getMessage().getType())) {
+            message = server.rosterSnapshot();
+        }
+        if (policy && outbound.getDepth() >= server.getSlowConsumerThreshold()) {
+            message = applySlowConsumerPolicy(message);
+            if (message == null) {
+                return;
+            }
+        }
+        byte[] frame;
+        try {
+            frame = message.frameBytes(protocolVersion);
+        } catch (IOException e) {
+            Log.warn("Error encoding message for {}: {}", username, e.getMessage());
+            return;
+        }
+        // A full queue drops the frame, the drop is counted by the queue
+        message.writeQueued();
+        if (outbound.offer(message, frame)) {
+            onQueued();
+        } else {
+            message.writeDropped();
+            server.getMetrics().recordDrop();
+        }
+    }
+
+    /**
+     * The backlog has reached the slow-consumer threshold: apply the server's
+     * policy before queueing another frame.
+     *
+     * @return the message to queue instead, or null to drop it
+     */
+    private EncodedMessage applySlowConsumerPolicy(EncodedMessage message) {
+        server.recordSlowConsumerEvent();
+        MessageType type = message.getMessage().getType();
+
+        switch (server.getSlowConsumerPolicy()) {
+            case DISCONNECT:
+                disconnectSlowConsumer();
+                return null;
+
+            case DROP_OLDEST:
+                if (OutboundQueue.isChat(type) && outbound.dropOldestChat()) {
+                    server.getMetrics().recordDrop();
+                }
+                return message;
+
+            case COALESCE_USER_LIST:
+                if (OutboundQueue.isRosterUpdate(type)) {
+                    // Roster frames are published under the roster lock, so the
+                    // current snapshot already includes this update
+                    outbound.removeRosterUpdates();
+                    return server.rosterSnapshot();
+                }
+                return message;
+
+            case DROP_NEWEST:
+            default:
+                if (OutboundQueue.isChat(type)) {
+                    outbound.recordDrop();
+                    server.getMetrics().recordDrop();
+                    return null;
+                }
+                return message;
+        }
+    }
+
+    // Replace the backlog with an ERROR frame and close once it is written
+    private void disconnectSlowConsumer() {
+        if (!slowDisconnect.compareAndSet(false, true)) {
+            return;
+        }
+        Log.warn("Disconnecting slow consumer {} (backlog {} frames)", username, outbound.getDepth());
+        server.recordSlowConsumerDisconnect();
+
+        outbound.clear();
+        EncodedMessage error = new EncodedMessage(new Message(MessageType.ERROR, "Server", username, "SLOW_CONSUMER"));
+        try {
+            if (outbound.offer(error, error.frameBytes(protocolVersion), true)) {
+                onQueued();
+            }
+        } catch (IOException e) {
+            Log.warn("Error encoding message for {}: {}", username, e.getMessage());
+        }
+
+        // A client that is not reading may never take the ERROR frame
+        server.schedule(this::cleanup, SLOW_CONSUMER_GRACE_MILLIS);
+    }
+
+    // Wake the writer after a frame was queued (the writer thread needs no signal)
+    protected void onQueued() {
+    }
+
+    // Close the underlying socket/channel
+    protected abstract void closeTransport();
+
+    // Frames that can no longer be written are dropped, unless a session moves them on
+    protected void discardOutbound() {
+        if (!detached) {
+            outbound.clear();
+        }
+    }
+
+    /**
+     * Called by the writer for every frame it takes from the outbound queue.
+     *
+     * @return false if the frame must not be written here (the session it
+     * belongs to has moved to another connection and took the frame along)
+     */
+    protected boolean frameTaken(OutboundQueue.Entry entry) {
+        Session current = carried;
+        return current == null || current.taken(this, entry);
+    }
+
+    /**
+     * Bytes of codec/buffer memory this connection currently holds (read
+     * buffers, queued output). Frames carry no back-references, so this stays
+     * bounded no matter how long the connection lives.
+     */
+    public abstract long getBufferedBytes();
+
+    // Handles a message decoded from this client's transport
+    protected void onMessage(Message message) {
+        long receivedAt = server.receivedAt(messagesIn.incrementAndGet());
+        server.getMetrics().recordMessageIn(message.getType());
+        if (!registered) {
+            handleConnect(message);
+        } else {
+            handleMessage(message, receivedAt);
+        }
+    }
+
+    // Handles the CONNECT message (or a retry after USERNAME_TAKEN), or a RESUME
+    private void handleConnect(Message connectMsg) {
+        if (connectMsg.getType() == MessageType.RESUME) {
+            handleResume(connectMsg);
+            return;
+        }
+        if (connectMsg.getType() == MessageType.DISCONNECT) {
+            // A client giving up before logging in (e.g. after USERNAME_TAKEN) is not an error
+            Log.debug("Client at {} disconnected before logging in", getRemoteAddress());
+            cleanup();
+            return;
+        }
+        if (connectMsg.getType() != MessageType.CONNECT) {
+            Log.warn("Expected CONNECT but received {}. Closing connection.", connectMsg.getType());
+            cleanup();
+            return;
+        }
+
+        String requestedName = connectMsg.getSender();
+        if (requestedName == null || requestedName.isEmpty() || RoomNames.isReservedUsername(requestedName)) {
+            Log.warn("CONNECT without a valid username from {}", getRemoteAddress());
+            sendMessage(new Message(MessageType.ERROR, "Server", null, "INVALID_USERNAME"));
+            // Keep connection open for a CONNECT with a valid name
+            return;
+        }
+
+        // Set before publishing this connection in the client map (a cluster
+        // revoke can arrive as soon as it is there)
+        username = requestedName;
+        registered = true;
+
+        // Reserve the username atomically - fails if it is already taken
+        if (!server.addClient(requestedName, this)) {
+            Log.info("Username {} already exists! Rejecting connection.", requestedName);
+            registered = false;
+            username = null;
+            // Send error message to client
+            sendMessage(new Message(MessageType.ERROR, "Server", requestedName, "USERNAME_TAKEN"));
+            // Keep connection open for retry - client will send a new CONNECT
+            return;
+        }
+
+        // The join notification goes out with the next presence batch
+        Log.info("{} connected from {}", username, getRemoteAddress());
+
+        // Catch the new client up on recent public messages
+        server.getHistoryReplay().replayTo(this);
+
+        // The token goes last: chat frames are numbered from it on
+        if (MessageCodec.CONNECT_RESUMABLE.equals(connectMsg.getContent())
+                && MessageCodec.isBinary(protocolVersion) && server.getResumeGraceMillis() > 0) {
+            Session own = new Session(this, server);
+            carried = own;
+            session = own;
+            own.start();
+        }
+    }
+
+    /**
+     * Take over the session named in a RESUME frame. The user never left, so
+     * nobody hears about it; the client gets the frames it missed and a
+     * fresh roster. On failure it gets RESUME_FAILED and may log in with
+     * CONNECT on this same connection.
+     */
+    private void handleResume(Message resume) {
+        String name = resume.getSender();
+        ClientConnection owner = name != null ? server.getClient(name) : null;
+        Session target = owner != null ? owner.session : null;
+        if (target == null || !target.matches(resume.getContent())
+                || !MessageCodec.isBinary(protocolVersion) || !target.resume(this, resume.getSequence())) {
+            Log.info("Cannot resume session of {}", name);
+            sendMessage(new Message(MessageType.ERROR, "Server", name, "RESUME_FAILED"));
+            return;
+        }
+        // Deltas sent while parked may be gone with the old connection
+        server.sendUserList(owner);
+    }
+
+    // Become the carrier of a session being resumed
+    void attach(Session resumed) {
+        username = resumed.owner.getUsername();
+        carried = resumed;
+        registered = true;
+    }
+
+    // The session moved to another connection or was parked
+    void detach() {
+        detached = true;
+    }
+
+    boolean isDetached() {
+        return detached;
+    }
+
+    // The connection that logged in: itself, or the owner of the session it resumed
+    private ClientConnection self() {
+        Session current = carried;
+        return current != null ? current.owner : this;
+    }
+
+    // Handles incoming messages from a registered client
+    private void handleMessage(Message message, long receivedAt) {
+        ClientConnection self = self();
+        switch (message.getType()) {
+            case DISCONNECT:
+                // Logging out ends the session, even if a write error parked it first
+                self.logout();
+                cleanup();
+                break;
+
+            case TEXT:
+            case PRIVATE_MESSAGE:
+                // Route message through server
+                server.routeMessage(message, receivedAt);
+                break;
+
+            case BROADCAST:
+                // Send to all connected clients
+                server.broadcast(message, receivedAt);
+                break;
+
+            case USER_LIST_REQUEST:
+                // Client missed a roster delta
+                server.sendUserList(self);
+                break;
+
+            case JOIN_ROOM:
+                server.joinRoom(self, message.getRecipient());
+                break;
+
+            case LEAVE_ROOM:
+                server.leaveRoom(self, message.getRecipient());
+                break;
+
+            case ROOM_MESSAGE:
+                // Only members may talk in a room
+                if (RoomNames.isValid(message.getRecipient()) && self.rooms.contains(message.getRecipient())) {
+                    server.sendToRoom(message, receivedAt);
+                } else {
+                    self.sendMessage(new Message(MessageType.ERROR, "Server", username, "NOT_IN_ROOM"));
+                }
+                break;
+
+            case HISTORY_REQUEST:
+                // Client scrolling back past what it has
+                server.getHistoryReplay().answer(self, message);
+                break;
+
+            default:
+                Log.warn("Unhandled message type: {}", message.getType());
+        }
+    }
+
+    /**
+     * The transport failed (EOF, I/O error) without a DISCONNECT. A
+     * connection carrying a session parks it; anything else cleans up.
+     */
+    protected void connectionLost() {
+        Session current = carried;
+        if (current != null && !isClosed() && server.isRunning() && current.park(this)) {
+            releaseTransport();
+            return;
+        }
+        cleanup();
+    }
+
+    // Cleanup resources and remove client from server
+    protected void cleanup() {
+        Session current = carried;
+        if (current != null && current.owner != this) {
+            // A resumed connection logs its session's owner out, unless it was superseded
+            cleanedUp.set(true);
+            if (current.isCarrier(this)) {
+                current.owner.logout();
+            }
+            releaseTransport();
+            return;
+        }
+        if (current != null && !current.isCarrier(this) && !current.isEnded()) {
+            // Parked or resumed elsewhere: the session outlives this transport
+            releaseTransport();
+            return;
+        }
+        logout();
+    }
+
+    // Remove the client from the server and end its session
+    void logout() {
+        // Prevent duplicate cleanup (reader and writer threads can both get here)
+        if (!cleanedUp.compareAndSet(false, true)) {
+            return;
+        }
+
+        Session own = session;
+        ClientConnection carrier = own != null ? own.end() : null;
+        String name = username;
+        if (registered && name != null) {
+            // USER_LEFT and the leave notification go out with the next presence batch
+            server.removeClient(name, this);
+            Log.info("{} removed from server", name);
+            for (String room : rooms) {
+                server.leaveRoom(this, room);
+            }
+        }
+        if (carrier != null && carrier != this) {
+            carrier.releaseTransport();
+        }
+        releaseTransport();
+    }
+
+    // Close the transport once (cleanup, a park or a superseding resume)
+    void releaseTransport() {
+        if (transportClosed.compareAndSet(false, true)) {
+            closeTransport();
+            server.connectionClosed();
+        }
+    }
+
+    /**
+     * Another cluster node accepted the same username first: log this client
+     * out and send USERNAME_TAKEN, keeping the connection open for a CONNECT
+     * with another name, as after a rejected handshake
+     */
+    void revokeUsername() {
+        if (!registered || isClosed()) {
+            return;
+        }
+        registered = false;
+        String name = username;
+        server.removeClient(name, this);
+        for (String room : rooms) {
+            server.leaveRoom(this, room);
+        }
+        // The session ends, its client hears about it on the connection that carries it
+        Session own = session;
+        ClientConnection carrier = own != null ? own.end() : this;
+        session = null;
+        carried = null;
+        if (carrier != null) {
+            if (carrier != this) {
+                carrier.carried = null;
+                carrier.registered = false;
+                carrier.username = null;
+            }
+            carrier.sendMessage(new Message(MessageType.ERROR, "Server", name, "USERNAME_TAKEN"));
+        }
+    }
+
+    protected void recordBytesIn(long bytes) {
+        bytesIn.addAndGet(bytes);
+        server.getMetrics().recordBytesIn(bytes);
+    }
+
+    // Called by the writer once a queued frame is fully written
+    protected void recordFrameOut(OutboundQueue.Entry entry) {
+        messagesOut.incrementAndGet();
+        bytesOut.addAndGet(entry.frame.length);
+        ServerMetrics metrics = server.getMetrics();
+        metrics.recordFrameOut(entry.type(), entry.frame.length);
+        entry.message.writeCompleted(metrics);
+    }
+
+    public long getMessagesIn() {
+        return messagesIn.get();
+    }
+
+    public long getMessagesOut() {
+        return messagesOut.get();
+    }
+
+    public long getBytesIn() {
+        return bytesIn.get();
+    }
+
+    public long getBytesOut() {
+        return bytesOut.get();
+    }
+
+    private static boolean isRosterDelta(MessageType type) {
+        return type == MessageType.USER_JOINED || type == MessageType.USER_LEFT;
+    }
+
+    protected boolean isClosed() {
+        return cleanedUp.get();
+    }
+
+    // Remote address for log output
+    protected abstract String getRemoteAddress();
+
+    public String getUsername() {
+        return username;
+    }
+
+    // Rooms joined so far, false if already at the limit
+    boolean addRoom(String room, int limit) {
+        synchronized (rooms) {
+            if (rooms.contains(room)) {
+                return true;
+            }
+            if (rooms.size() >= limit) {
+                return false;
+            }
+            return rooms.add(room);
+        }
+    }
+
+    boolean removeRoom(String room) {
+        return rooms.remove(room);
+    }
+
+    public Set<String> getRooms() {
+        return rooms;
+    }
+
+    public int getProtocolVersion() {
+        return protocolVersion;
+    }
+
+    public OutboundQueue getOutboundQueue() {
+        return outbound;
+    }
+}
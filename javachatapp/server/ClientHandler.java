@@ -1,149 +1,168 @@
 package javachatapp.server;
 
+import javachatapp.shared.Log;
 import javachatapp.shared.Message;
-import javachatapp.shared.Message.MessageType;
+import javachatapp.shared.MessageCodec;
 import java.io.*;
 import java.net.Socket;
+import javachatapp.shared.VirtualThreads;
 
 /**
  * ClientHandler manages communication with a single connected client. Each
- * client gets its own thread via this Runnable implementation.
+ * client gets its own reader thread via this Runnable implementation (blocking
+ * I/O), either a platform thread or a virtual thread depending on the server
+ * mode. A second writer thread of the same kind drains the outbound queue, so
+ * senders never block on this client's socket.
+ *
+ * Clients from before framing (VERSION_LEGACY_STREAM) are read through one
+ * ObjectInputStream for the whole connection; the NIO engine cannot do
+ * that and turns them away.
+ *
+ * No monitors are held around socket I/O: a blocking write inside a
+ * synchronized block would pin a virtual thread to its carrier.
  */
-public class ClientHandler implements Runnable {
+public class ClientHandler extends ClientConnection implements Runnable {
 
     private final Socket socket;
-    private final ChatServer server;
-    private ObjectOutputStream out;
-    private ObjectInputStream in;
-    private String username;
-    private boolean cleanedUp = false;
+    private DataOutputStream out;
+    private DataInputStream in;
+    private Thread writerThread;
+
+    // Fixed-size stream buffers, the only codec memory a blocking connection keeps
+    private static final int BUFFER_SIZE = 8 * 1024;
 
     public ClientHandler(Socket socket, ChatServer server) {
+        super(server);
         this.socket = socket;
-        this.server = server;
     }
 
     @Override
     public void run() {
         try {
-            // Initialize streams (output first to avoid deadlock)
-            out = new ObjectOutputStream(socket.getOutputStream());
-            out.flush();
-            in = new ObjectInputStream(socket.getInputStream());
-
-            // Wait for client to send username via CONNECT message
-            Message connectMsg = (Message) in.readObject();
-            if (connectMsg.getType() == MessageType.CONNECT) {
-                username = connectMsg.getSender();
-
-                // Check if username is already taken
-                if (server.isUsernameTaken(username)) {
-                    System.err.println("Username " + username + " already exists! Rejecting connection.");
-                    // Send error message to client
-                    sendMessage(new Message(Message.MessageType.ERROR, "Server", username, "USERNAME_TAKEN"));
-                    // Don't add client or broadcast user list - client will retry with different username
-
-                    // Keep connection open for retry
-                } else {
-                    server.addClient(username, this);
-                    System.out.println(username + " connected from " + socket.getInetAddress());
-
-                    // Broadcast updated user list to all clients
-                    server.broadcastUserList();
-
-                    // Notify all users that someone joined
-                    Message joinNotification = new Message(Message.MessageType.BROADCAST, "System", "Broadcast", username + " has joined the chat");
-                    server.broadcast(joinNotification);
-                }
+            out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream(), BUFFER_SIZE));
+            in = new DataInputStream(new BufferedInputStream(new CountingInputStream(socket.getInputStream()), BUFFER_SIZE));
+
+            // Client opens with the protocol version byte
+            protocolVersion = MessageCodec.readHandshake(in);
+            if (protocolVersion == MessageCodec.VERSION_LEGACY_STREAM) {
+                // Goes out before the writer starts, ahead of every message
+                MessageCodec.writeLegacyHeader(out);
+            }
+            startWriter();
 
-                // Listen for messages from this client
-                while (true) {
-                    Message message = (Message) in.readObject();
-                    handleMessage(message);
+            // First message must be CONNECT, then listen for messages from this client
+            if (protocolVersion == MessageCodec.VERSION_LEGACY_STREAM) {
+                ObjectInputStream legacy = MessageCodec.openLegacyStream(in);
+                while (!isClosed()) {
+                    onMessage(MessageCodec.readLegacy(legacy));
+                }
+            } else {
+                while (!isClosed()) {
+                    Message message = MessageCodec.readFrame(in, protocolVersion);
+                    onMessage(message);
                 }
             }
         } catch (EOFException e) {
             // Client disconnected normally
-            System.out.println(username + " disconnected (EOF)");
+            Log.info("{} disconnected (EOF)", username);
+        } catch (StreamCorruptedException e) {
+            Log.warn("Invalid message format from {}: {}", username, e.getMessage());
         } catch (IOException e) {
-            System.err.println("IO Error with client " + username + ": " + e.getMessage());
-        } catch (ClassNotFoundException e) {
-            System.err.println("Invalid message format from " + username);
+            if (!isClosed()) {
+                Log.warn("IO Error with client {}: {}", username, e.getMessage());
+            }
         } finally {
-            cleanup();
+            connectionLost();
         }
     }
 
-    // Handles incoming messages from the client
-    private void handleMessage(Message message) {
-        switch (message.getType()) {
-            case DISCONNECT:
-                cleanup();
-                break;
-
-            case TEXT:
-            case PRIVATE_MESSAGE:
-                // Route message through server
-                server.routeMessage(message);
-                break;
-
-            case BROADCAST:
-                // Send to all connected clients
-                server.broadcast(message);
-                break;
-
-            default:
-                System.err.println("Unhandled message type: " + message.getType());
-        }
-    }
-
-    //Sends a message to this client
-    public void sendMessage(Message message) {
+    // Drains the outbound queue; flushes only once the queue is empty so bursts share one flush
+    private void writeLoop() {
         try {
-            if (out != null) {
-                out.writeObject(message);
-                out.flush();
+            while (!isClosed()) {
+                OutboundQueue.Entry entry = outbound.take();
+                if (!frameTaken(entry)) {
+                    continue;
+                }
+                out.write(entry.frame);
+                recordFrameOut(entry);
+                if (entry.closeAfter) {
+                    out.flush();
+                    break;
+                }
+                if (outbound.isEmpty()) {
+                    out.flush();
+                }
             }
+        } catch (InterruptedException e) {
+            // Connection is closing
         } catch (IOException e) {
-            System.err.println("Error sending message to " + username + ": " + e.getMessage());
-            cleanup();
+            if (!isClosed()) {
+                Log.warn("Error sending message to {}: {}", username, e.getMessage());
+            }
+        } finally {
+            connectionLost();
         }
     }
 
-    // Cleanup resources and remove client from server
-    private void cleanup() {
-        // Prevent duplicate cleanup (can be called multiple times)
-        if (cleanedUp) {
-            return;
+    private void startWriter() {
+        if (server.getMode() == ChatServer.ServerMode.VIRTUAL_THREADS) {
+            writerThread = VirtualThreads.start("client-writer", this::writeLoop);
+        } else {
+            writerThread = new Thread(this::writeLoop, "client-writer");
+            writerThread.setDaemon(true);
+            writerThread.start();
         }
-        cleanedUp = true;
+    }
 
+    @Override
+    protected void closeTransport() {
+        discardOutbound();
+        if (writerThread != null && writerThread != Thread.currentThread()) {
+            writerThread.interrupt();
+        }
         try {
-            if (username != null) {
-                server.removeClient(username);
-
-                // Notify all users that someone left
-                Message leaveNotification = new Message(Message.MessageType.BROADCAST, "System", "Broadcast", username + " has left the chat");
-                server.broadcast(leaveNotification);
-
-                server.broadcastUserList();
-                System.out.println(username + " removed from server");
-            }
-            if (in != null) {
-                in.close();
-            }
-            if (out != null) {
-                out.close();
-            }
             if (socket != null && !socket.isClosed()) {
                 socket.close();
             }
         } catch (IOException e) {
-            System.err.println("Error during cleanup: " + e.getMessage());
+            Log.warn("Error during cleanup: {}", e.getMessage());
         }
     }
 
-    public String getUsername() {
-        return username;
+    @Override
+    protected String getRemoteAddress() {
+        return String.valueOf(socket.getInetAddress());
+    }
+
+    @Override
+    public long getBufferedBytes() {
+        return (out != null ? 2L * BUFFER_SIZE : 0) + outbound.getQueuedBytes();
+    }
+
+    // Counts raw bytes read from the socket
+    private class CountingInputStream extends FilterInputStream {
+
+        CountingInputStream(InputStream in) {
+            super(in);
+        }
+
+        @Override
+        public int read() throws IOException {
+            int b = super.read();
+            if (b != -1) {
+                recordBytesIn(1);
+            }
+            return b;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            int n = super.read(b, off, len);
+            if (n > 0) {
+                recordBytesIn(n);
+            }
+            return n;
+        }
     }
 }
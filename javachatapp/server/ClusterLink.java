@@ -0,0 +1,143 @@
+package javachatapp.server;
+
+import javachatapp.shared.Log;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.StreamCorruptedException;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.security.MessageDigest;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+/**
+ * ClusterLink is a ClusterNode's outgoing connection to one peer. It dials
+ * the peer (again and again, with backoff, while the peer is down),
+ * exchanges HELLO frames, checks the peer's proof of the shared secret and
+ * sends its own, and then writes queued frames on its own thread,
+ * flushing once per burst, so routing threads never wait for a peer.
+ *
+ * Frames offered while the link is down are refused (and counted as
+ * dropped by the node): chat messages are not held for a peer that is
+ * gone, and the user directory is replayed when the link comes back.
+ */
+class ClusterLink {
+
+    // Frames waiting for the writer before further frames are refused
+    static final int QUEUE_CAPACITY = 65536;
+
+    private static final int CONNECT_TIMEOUT_MILLIS = 2000;
+    private static final long MIN_BACKOFF_MILLIS = 100;
+    private static final long MAX_BACKOFF_MILLIS = 2000;
+
+    private final ClusterNode node;
+    private final InetSocketAddress address;
+    private final BlockingQueue<byte[]> queue = new ArrayBlockingQueue<>(QUEUE_CAPACITY);
+    private volatile String peerId;
+    private volatile boolean connected;
+    private volatile Socket socket;
+    private Thread thread;
+
+    ClusterLink(ClusterNode node, InetSocketAddress address) {
+        this.node = node;
+        this.address = address;
+    }
+
+    void start() {
+        thread = new Thread(this::run, "cluster-link-" + address.getPort());
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    void stop() {
+        connected = false;
+        Socket current = socket;
+        if (current != null) {
+            ClusterNode.closeQuietly(current);
+        }
+        if (thread != null) {
+            thread.interrupt();
+        }
+    }
+
+    // Queue a frame for the peer, false if the link is down or backed up
+    boolean offer(byte[] frame) {
+        return connected && queue.offer(frame);
+    }
+
+    // The peer's node id, known once the link has connected
+    String getPeerId() {
+        return peerId;
+    }
+
+    private void run() {
+        long backoff = MIN_BACKOFF_MILLIS;
+        while (node.isRunning()) {
+            try (Socket current = new Socket()) {
+                socket = current;
+                current.connect(new InetSocketAddress(address.getHostString(), address.getPort()),
+                        CONNECT_TIMEOUT_MILLIS);
+                current.setTcpNoDelay(true);
+                current.setKeepAlive(true);
+                current.setSoTimeout(ClusterNode.HANDSHAKE_TIMEOUT_MILLIS);
+                DataOutputStream out = new DataOutputStream(new BufferedOutputStream(current.getOutputStream()));
+                DataInputStream in = new DataInputStream(new BufferedInputStream(current.getInputStream()));
+                byte[] nonce = ClusterNode.newNonce();
+                ClusterNode.writeFrame(out, ClusterNode.helloFrame(node.getNodeId(), nonce, null));
+                out.flush();
+                ClusterNode.Hello hello = ClusterNode.readHello(in);
+                byte[] expected = node.proof(ClusterNode.Role.ACCEPTOR, nonce, hello.nonce);
+                if (!MessageDigest.isEqual(expected, hello.proof)) {
+                    Log.warn("Cluster peer at {}:{} refused: wrong secret", address.getHostString(),
+                            address.getPort());
+                    throw new StreamCorruptedException("Cluster peer failed authentication");
+                }
+                byte[] proof = node.proof(ClusterNode.Role.DIALER, nonce, hello.nonce);
+                ClusterNode.writeFrame(out, ClusterNode.authFrame(proof));
+                out.flush();
+                current.setSoTimeout(0);
+                peerId = hello.nodeId;
+
+                // Anything left from the last connection is stale, the node replays the directory
+                queue.clear();
+                connected = true;
+                node.linkUp(this);
+                backoff = MIN_BACKOFF_MILLIS;
+                writeLoop(out);
+            } catch (IOException e) {
+                if (node.isRunning() && connected) {
+                    Log.warn("Cluster link to {} lost: {}", peerId, e.getMessage());
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            } finally {
+                connected = false;
+                node.linkDown(this);
+            }
+            if (!node.isRunning() || Thread.currentThread().isInterrupted()) {
+                return;
+            }
+            try {
+                Thread.sleep(backoff);
+            } catch (InterruptedException e) {
+                return;
+            }
+            backoff = Math.min(backoff * 2, MAX_BACKOFF_MILLIS);
+        }
+    }
+
+    // Write frames as they are queued, one flush for everything that is waiting
+    private void writeLoop(DataOutputStream out) throws IOException, InterruptedException {
+        while (node.isRunning()) {
+            byte[] frame = queue.take();
+            do {
+                ClusterNode.writeFrame(out, frame);
+                frame = queue.poll();
+            } while (frame != null);
+            out.flush();
+        }
+    }
+}
@@ -0,0 +1,659 @@
+package javachatapp.server;
+
+import javachatapp.shared.BinaryMessageCodec;
+import javachatapp.shared.Log;
+import javachatapp.shared.Message;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.StreamCorruptedException;
+import java.lang.management.ManagementFactory;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+
+/**
+ * ClusterNode joins a ChatServer to other chat servers, so users logged in
+ * on different nodes can talk to each other.
+ *
+ * Every node keeps its own client map. What it shares is a replicated user
+ * directory (username to the node it is logged in on) and a link to every
+ * peer: a private message for a user on another node is forwarded to that
+ * node only, broadcasts and room messages go to every peer once, and each
+ * node fans them out to its own clients.
+ *
+ * Each node dials every configured peer and sends over that connection
+ * only; what it receives arrives on the connections its peers dialed. A
+ * node that dials in (again) first replays the usernames it owns, and when
+ * its connection drops its users are removed from the directory.
+ *
+ * The directory is eventually consistent: a node checks it before taking a
+ * username and then announces its claim. Two nodes that accept the same
+ * name at the same moment both find out when the other's claim arrives and
+ * settle it the same way: the claim with the smaller Lamport stamp (then
+ * the smaller node id) keeps the name and the other node sends its client
+ * USERNAME_TAKEN. Stamps come from a counter every claim sent or received
+ * moves past, not from the clock, so skew between hosts cannot let a claim
+ * made after this node saw another win over it.
+ *
+ * Frames on a link are an int length and a payload starting with an op
+ * byte; chat messages travel as BinaryMessageCodec payloads. Both ends of
+ * a link prove they know the cluster's shared secret before any other
+ * frame is read.
+ */
+public class ClusterNode {
+
+    // Frame ops
+    private static final byte HELLO = 1;     // node id, nonce (and the answer's proof): first frame each way
+    private static final byte CLAIM = 2;     // username, Lamport stamp: the user is logged in on the sender
+    private static final byte RELEASE = 3;   // username: the user logged out of the sender
+    private static final byte DIRECT = 4;    // private message for a user on the receiver
+    private static final byte BROADCAST = 5; // broadcast for the receiver's clients
+    private static final byte ROOM = 6;      // room message for the receiver's members of the room
+    private static final byte AUTH = 7;      // proof of the dialer, after the HELLOs
+
+    // Random bytes each side of a handshake sends for the other to prove the secret over
+    private static final int NONCE_LENGTH = 16;
+    private static final SecureRandom RANDOM = new SecureRandom();
+
+    // An unauthenticated peer gets this long to finish the handshake, in frames of at most this length
+    static final int HANDSHAKE_TIMEOUT_MILLIS = 5000;
+    private static final int MAX_HANDSHAKE_FRAME_LENGTH = 1024;
+
+    // Larger frames mean a broken or foreign peer
+    static final int MAX_FRAME_LENGTH = 16 * 1024 * 1024;
+
+    private final String nodeId;
+    private final InetAddress bindAddress;
+    private final int port;
+    private final SecretKeySpec secret;
+    private final List<InetSocketAddress> peerAddresses;
+    private volatile ChatServer server;
+    private volatile boolean running;
+    private ServerSocket listener;
+    private final List<ClusterLink> dialers = new ArrayList<>();
+
+    // Guards the directory, so claims, releases and link replays apply in order
+    private final Object directoryLock = new Object();
+    private final Map<String, Owner> remoteUsers = new ConcurrentHashMap<>(); // Users on other nodes
+    private final Map<String, Long> localClaims = new ConcurrentHashMap<>();  // Users on this node
+    private long clock; // Lamport clock of claims, past every stamp sent or received
+
+    // Connected links by peer node id: outgoing (dialed) and incoming (accepted)
+    private final Map<String, ClusterLink> links = new ConcurrentHashMap<>();
+    private final Map<String, Socket> inbound = new ConcurrentHashMap<>();
+
+    private final AtomicLong forwarded = new AtomicLong();
+    private final AtomicLong received = new AtomicLong();
+    private final AtomicLong dropped = new AtomicLong();
+    private final AtomicLong conflicts = new AtomicLong();
+
+    // Which node a remote user is on, and the stamp of its claim
+    private static final class Owner {
+        final String node;
+        final long stamp;
+
+        Owner(String node, long stamp) {
+            this.node = node;
+            this.stamp = stamp;
+        }
+    }
+
+    /**
+     * @param nodeId Name of this node, unique in the cluster
+     * @param bindAddress Address the cluster port listens on (peers on other
+     * hosts need an address they can reach)
+     * @param port Port the peers dial
+     * @param peers Addresses of the other nodes
+     * @param secret Shared by every node of the cluster; peers that cannot
+     * prove they know it are refused
+     */
+    public ClusterNode(String nodeId, InetAddress bindAddress, int port, List<InetSocketAddress> peers,
+            String secret) {
+        if (secret == null || secret.isEmpty()) {
+            throw new IllegalArgumentException("A cluster needs a shared secret");
+        }
+        this.nodeId = nodeId;
+        this.bindAddress = bindAddress;
+        this.port = port;
+        this.peerAddresses = new ArrayList<>(peers);
+        this.secret = new SecretKeySpec(secret.getBytes(StandardCharsets.UTF_8), "HmacSHA256");
+    }
+
+    /**
+     * The node configured by chat.cluster.port, chat.cluster.peers
+     * (host:port,...), chat.cluster.secret, chat.cluster.bind (loopback if
+     * not set) and chat.cluster.node, or null if chat.cluster.port is not
+     * set
+     */
+    static ClusterNode fromProperties() {
+        int port = Integer.getInteger("chat.cluster.port", 0);
+        if (port <= 0) {
+            return null;
+        }
+        String secret = System.getProperty("chat.cluster.secret", "");
+        if (secret.isEmpty()) {
+            Log.error("chat.cluster.secret is not set, running without the cluster");
+            return null;
+        }
+        String bind = System.getProperty("chat.cluster.bind");
+        InetAddress bindAddress;
+        try {
+            bindAddress = bind != null ? InetAddress.getByName(bind) : InetAddress.getLoopbackAddress();
+        } catch (IOException e) {
+            Log.error("Cannot bind the cluster port to {}: {}", bind, e.getMessage());
+            return null;
+        }
+        String id = System.getProperty("chat.cluster.node",
+                ManagementFactory.getRuntimeMXBean().getName() + ":" + port);
+        return new ClusterNode(id, bindAddress, port, parsePeers(System.getProperty("chat.cluster.peers", "")),
+                secret);
+    }
+
+    // "host:port,host:port" to addresses
+    public static List<InetSocketAddress> parsePeers(String peers) {
+        List<InetSocketAddress> addresses = new ArrayList<>();
+        for (String peer : peers.split(",")) {
+            peer = peer.trim();
+            if (peer.isEmpty()) {
+                continue;
+            }
+            int colon = peer.lastIndexOf(':');
+            if (colon <= 0) {
+                throw new IllegalArgumentException("Peer must be host:port: " + peer);
+            }
+            addresses.add(InetSocketAddress.createUnresolved(peer.substring(0, colon),
+                    Integer.parseInt(peer.substring(colon + 1))));
+        }
+        return addresses;
+    }
+
+    // Listen for peers and start dialing them
+    void start(ChatServer server) throws IOException {
+        this.server = server;
+        listener = new ServerSocket(port, 50, bindAddress);
+        running = true;
+        Thread acceptor = new Thread(this::acceptLoop, "cluster-accept");
+        acceptor.setDaemon(true);
+        acceptor.start();
+        for (InetSocketAddress address : peerAddresses) {
+            ClusterLink link = new ClusterLink(this, address);
+            dialers.add(link);
+            link.start();
+        }
+        Log.info("Cluster node {} on {} with {} peers", nodeId, listener.getLocalSocketAddress(),
+                peerAddresses.size());
+    }
+
+    void stop() {
+        running = false;
+        try {
+            if (listener != null) {
+                listener.close();
+            }
+        } catch (IOException e) {
+            // Closing anyway
+        }
+        for (ClusterLink link : dialers) {
+            link.stop();
+        }
+        for (Socket socket : inbound.values()) {
+            closeQuietly(socket);
+        }
+        links.clear();
+    }
+
+    boolean isRunning() {
+        return running;
+    }
+
+    public String getNodeId() {
+        return nodeId;
+    }
+
+    public int getPort() {
+        return port;
+    }
+
+    /**
+     * Claim a username for a client logging in here
+     *
+     * @return false if the directory has the user on another node
+     */
+    boolean claim(String username) {
+        synchronized (directoryLock) {
+            if (remoteUsers.containsKey(username)) {
+                return false;
+            }
+            long stamp = ++clock;
+            localClaims.put(username, stamp);
+            sendToAll(claimFrame(username, stamp));
+        }
+        return true;
+    }
+
+    // A local user logged out (nothing to tell if another node had already won the name)
+    void release(String username) {
+        synchronized (directoryLock) {
+            if (localClaims.remove(username) != null) {
+                sendToAll(userFrame(RELEASE, username));
+            }
+        }
+    }
+
+    // True if the user is logged in on another node
+    boolean isRemote(String username) {
+        return remoteUsers.containsKey(username);
+    }
+
+    public int getRemoteUserCount() {
+        return remoteUsers.size();
+    }
+
+    // A peer claimed a username; both sides settle a clash the same way
+    private void onClaim(String peer, String username, long stamp) {
+        boolean revoke = false;
+        synchronized (directoryLock) {
+            clock = Math.max(clock, stamp);
+            Long local = localClaims.get(username);
+            if (local != null) {
+                conflicts.incrementAndGet();
+                if (wins(local, nodeId, stamp, peer)) {
+                    return;
+                }
+                localClaims.remove(username);
+                revoke = true;
+            }
+            Owner current = remoteUsers.get(username);
+            if (current != null && !current.node.equals(peer) && wins(current.stamp, current.node, stamp, peer)) {
+                return;
+            }
+            remoteUsers.put(username, new Owner(peer, stamp));
+        }
+        if (revoke) {
+            Log.info("{} was claimed first on {}, revoking the login here", username, peer);
+            server.revokeUsername(username);
+        }
+        server.remotePresenceChanged(username);
+    }
+
+    private void onRelease(String peer, String username) {
+        boolean removed;
+        synchronized (directoryLock) {
+            Owner current = remoteUsers.get(username);
+            removed = current != null && current.node.equals(peer) && remoteUsers.remove(username, current);
+        }
+        if (removed) {
+            server.remotePresenceChanged(username);
+        }
+    }
+
+    // Forget every user of a peer whose link went away (they come back with its next replay)
+    private void forgetPeer(String peer) {
+        List<String> gone = new ArrayList<>();
+        synchronized (directoryLock) {
+            remoteUsers.entrySet().removeIf(entry -> {
+                if (entry.getValue().node.equals(peer)) {
+                    gone.add(entry.getKey());
+                    return true;
+                }
+                return false;
+            });
+        }
+        for (String username : gone) {
+            server.remotePresenceChanged(username);
+        }
+        if (!gone.isEmpty()) {
+            Log.info("Cluster peer {} left, {} users removed", peer, gone.size());
+        }
+    }
+
+    // Smaller stamp wins, the smaller node id breaks a tie
+    private static boolean wins(long stamp, String node, long otherStamp, String otherNode) {
+        return stamp < otherStamp || (stamp == otherStamp && node.compareTo(otherNode) < 0);
+    }
+
+    /**
+     * Forward a private message to the node its recipient is on
+     *
+     * @return false if the recipient is not on another (reachable) node
+     */
+    boolean forward(Message message) {
+        Owner owner = remoteUsers.get(message.getRecipient());
+        if (owner == null) {
+            return false;
+        }
+        ClusterLink link = links.get(owner.node);
+        if (link == null || !link.offer(messageFrame(DIRECT, message))) {
+            dropped.incrementAndGet();
+            return false;
+        }
+        forwarded.incrementAndGet();
+        return true;
+    }
+
+    // Send a broadcast to every peer, encoded once
+    void publishBroadcast(Message message) {
+        publish(BROADCAST, message);
+    }
+
+    // Send a room message to every peer; each delivers it to its own members
+    void publishRoomMessage(Message message) {
+        publish(ROOM, message);
+    }
+
+    private void publish(byte op, Message message) {
+        if (links.isEmpty()) {
+            return;
+        }
+        byte[] frame = messageFrame(op, message);
+        for (ClusterLink link : links.values()) {
+            if (link.offer(frame)) {
+                forwarded.incrementAndGet();
+            } else {
+                dropped.incrementAndGet();
+            }
+        }
+    }
+
+    // Directory updates go to every connected peer
+    private void sendToAll(byte[] frame) {
+        for (ClusterLink link : links.values()) {
+            if (!link.offer(frame)) {
+                dropped.incrementAndGet();
+            }
+        }
+    }
+
+    /**
+     * A dialed link is connected: register it and replay the users logged
+     * in here, under the directory lock so no claim or release slips in
+     * between
+     */
+    void linkUp(ClusterLink link) {
+        synchronized (directoryLock) {
+            links.put(link.getPeerId(), link);
+            for (Map.Entry<String, Long> claim : localClaims.entrySet()) {
+                link.offer(claimFrame(claim.getKey(), claim.getValue()));
+            }
+        }
+        Log.info("Cluster link to {} up", link.getPeerId());
+    }
+
+    void linkDown(ClusterLink link) {
+        String peer = link.getPeerId();
+        if (peer != null && links.remove(peer, link)) {
+            Log.info("Cluster link to {} down", peer);
+        }
+    }
+
+    private void acceptLoop() {
+        while (running) {
+            try {
+                Socket socket = listener.accept();
+                Thread reader = new Thread(() -> serve(socket), "cluster-reader");
+                reader.setDaemon(true);
+                reader.start();
+            } catch (IOException e) {
+                if (running) {
+                    Log.warn("Error accepting cluster connection: {}", e.getMessage());
+                }
+            }
+        }
+    }
+
+    // Read what a peer sends on the link it dialed
+    private void serve(Socket socket) {
+        String peer = null;
+        try {
+            socket.setTcpNoDelay(true);
+            socket.setSoTimeout(HANDSHAKE_TIMEOUT_MILLIS);
+            DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+            Hello hello = readHello(in);
+            byte[] nonce = newNonce();
+            writeFrame(out, helloFrame(nodeId, nonce, proof(Role.ACCEPTOR, hello.nonce, nonce)));
+            out.flush();
+            byte[] auth = readFrame(in, MAX_HANDSHAKE_FRAME_LENGTH);
+            if (auth[0] != AUTH || !MessageDigest.isEqual(proof(Role.DIALER, hello.nonce, nonce),
+                    Arrays.copyOfRange(auth, 1, auth.length))) {
+                Log.warn("Cluster connection from {} refused: wrong secret", socket.getRemoteSocketAddress());
+                return;
+            }
+            socket.setSoTimeout(0);
+            peer = hello.nodeId;
+
+            // A peer dialing again replays its users, drop what we had from it
+            Socket previous = inbound.put(peer, socket);
+            if (previous != null) {
+                closeQuietly(previous);
+            }
+            forgetPeer(peer);
+
+            while (running) {
+                dispatch(peer, readFrame(in));
+            }
+        } catch (IOException e) {
+            if (running && peer != null) {
+                Log.debug("Cluster peer {} disconnected: {}", peer, e.getMessage());
+            }
+        } finally {
+            closeQuietly(socket);
+            if (peer != null && inbound.remove(peer, socket)) {
+                forgetPeer(peer);
+            }
+        }
+    }
+
+    private void dispatch(String peer, byte[] frame) throws IOException {
+        received.incrementAndGet();
+        byte op = frame[0];
+        switch (op) {
+            case CLAIM:
+            case RELEASE: {
+                DataInputStream in = new DataInputStream(new ByteArrayInputStream(frame, 1, frame.length - 1));
+                String username = in.readUTF();
+                if (op == CLAIM) {
+                    onClaim(peer, username, in.readLong());
+                } else {
+                    onRelease(peer, username);
+                }
+                break;
+            }
+            case DIRECT:
+                server.deliverFromPeer(decode(frame));
+                break;
+            case BROADCAST:
+                server.broadcastFromPeer(decode(frame));
+                break;
+            case ROOM:
+                server.roomMessageFromPeer(decode(frame));
+                break;
+            default:
+                throw new StreamCorruptedException("Unknown cluster op " + op);
+        }
+    }
+
+    // Which end of a link a proof comes from, so one end's proof never passes for the other's
+    enum Role {
+        DIALER,
+        ACCEPTOR
+    }
+
+    // A peer's HELLO: its node id, its nonce and (from the accepting end) its proof
+    static final class Hello {
+        final String nodeId;
+        final byte[] nonce;
+        final byte[] proof;
+
+        Hello(String nodeId, byte[] nonce, byte[] proof) {
+            this.nodeId = nodeId;
+            this.nonce = nonce;
+            this.proof = proof;
+        }
+    }
+
+    static byte[] newNonce() {
+        byte[] nonce = new byte[NONCE_LENGTH];
+        RANDOM.nextBytes(nonce);
+        return nonce;
+    }
+
+    /**
+     * HMAC-SHA256 under the shared secret of the role and both nonces: only
+     * a node that knows the secret can send it, and it is only good for
+     * this connection
+     */
+    byte[] proof(Role role, byte[] dialerNonce, byte[] acceptorNonce) {
+        try {
+            Mac mac = Mac.getInstance("HmacSHA256");
+            mac.init(secret);
+            mac.update((byte) role.ordinal());
+            mac.update(dialerNonce);
+            mac.update(acceptorNonce);
+            return mac.doFinal();
+        } catch (GeneralSecurityException e) {
+            throw new IllegalStateException("HmacSHA256 not available", e);
+        }
+    }
+
+    static Hello readHello(DataInputStream in) throws IOException {
+        byte[] frame = readFrame(in, MAX_HANDSHAKE_FRAME_LENGTH);
+        if (frame[0] != HELLO) {
+            throw new StreamCorruptedException("Expected HELLO from cluster peer");
+        }
+        DataInputStream hello = new DataInputStream(new ByteArrayInputStream(frame, 1, frame.length - 1));
+        String id = hello.readUTF();
+        byte[] nonce = new byte[NONCE_LENGTH];
+        hello.readFully(nonce);
+        byte[] proof = hello.readAllBytes();
+        return new Hello(id, nonce, proof);
+    }
+
+    static byte[] readFrame(DataInputStream in) throws IOException {
+        return readFrame(in, MAX_FRAME_LENGTH);
+    }
+
+    private static byte[] readFrame(DataInputStream in, int maxLength) throws IOException {
+        int length = in.readInt();
+        if (length < 1 || length > maxLength) {
+            throw new StreamCorruptedException("Bad cluster frame length " + length);
+        }
+        byte[] frame = new byte[length];
+        in.readFully(frame);
+        return frame;
+    }
+
+    static void writeFrame(DataOutputStream out, byte[] frame) throws IOException {
+        out.writeInt(frame.length);
+        out.write(frame);
+    }
+
+    static byte[] helloFrame(String nodeId, byte[] nonce, byte[] proof) {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(64);
+        try (DataOutputStream out = new DataOutputStream(bytes)) {
+            out.writeByte(HELLO);
+            out.writeUTF(nodeId);
+            out.write(nonce);
+            if (proof != null) {
+                out.write(proof);
+            }
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+        return bytes.toByteArray();
+    }
+
+    static byte[] authFrame(byte[] proof) {
+        byte[] frame = new byte[proof.length + 1];
+        frame[0] = AUTH;
+        System.arraycopy(proof, 0, frame, 1, proof.length);
+        return frame;
+    }
+
+    private static byte[] userFrame(byte op, String name) {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(32);
+        try (DataOutputStream out = new DataOutputStream(bytes)) {
+            out.writeByte(op);
+            out.writeUTF(name);
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+        return bytes.toByteArray();
+    }
+
+    private static byte[] claimFrame(String username, long stamp) {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(40);
+        try (DataOutputStream out = new DataOutputStream(bytes)) {
+            out.writeByte(CLAIM);
+            out.writeUTF(username);
+            out.writeLong(stamp);
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+        return bytes.toByteArray();
+    }
+
+    private static byte[] messageFrame(byte op, Message message) {
+        byte[] payload = BinaryMessageCodec.encode(message);
+        byte[] frame = new byte[payload.length + 1];
+        frame[0] = op;
+        System.arraycopy(payload, 0, frame, 1, payload.length);
+        return frame;
+    }
+
+    private static Message decode(byte[] frame) throws StreamCorruptedException {
+        return BinaryMessageCodec.decode(frame, 1, frame.length - 1);
+    }
+
+    static void closeQuietly(Socket socket) {
+        try {
+            socket.close();
+        } catch (IOException e) {
+            // Already closed
+        }
+    }
+
+    // Peers this node currently has a link to
+    public List<String> getConnectedPeers() {
+        List<String> peers = new ArrayList<>(links.keySet());
+        Collections.sort(peers);
+        return peers;
+    }
+
+    // Frames queued to peers, and frames dropped because a link was down or full
+    public long getForwardedCount() {
+        return forwarded.get();
+    }
+
+    public long getReceivedCount() {
+        return received.get();
+    }
+
+    public long getDroppedCount() {
+        return dropped.get();
+    }
+
+    // Claims that clashed with a login here (one side keeps the name)
+    public long getConflictCount() {
+        return conflicts.get();
+    }
+}
@@ -0,0 +1,112 @@
+package javachatapp.server;
+
+import javachatapp.shared.Message;
+import javachatapp.shared.MessageCodec;
+import java.io.IOException;
+import java.util.concurrent.atomic.AtomicIntegerFieldUpdater;
+
+/**
+ * EncodedMessage wraps a Message that is about to be fanned out and caches
+ * its wire frame per protocol version. A broadcast encodes the message once
+ * (at most once per protocol version in use) and every recipient writes the
+ * same immutable bytes.
+ *
+ * A message read from a client also carries the time it was decoded. Every
+ * queued copy counts as a pending write, and the fan-out itself holds one
+ * more; whoever finishes last (the last recipient's writer, or the sender
+ * after the fan-out loop) records the route latency. Copies that are dropped
+ * or evicted never complete, so their message is simply not sampled.
+ */
+public final class EncodedMessage {
+
+    private final Message message;
+
+    // Cached frames per protocol version. Benign race: two threads may both
+    // encode, both results are identical.
+    private volatile byte[] serializedFrame;
+    private volatile byte[] binaryFrame;
+    private volatile byte[] legacyFrame;
+
+    // Route latency tracking, receivedAt is 0 for untracked messages
+    private static final AtomicIntegerFieldUpdater<EncodedMessage> PENDING =
+            AtomicIntegerFieldUpdater.newUpdater(EncodedMessage.class, "pending");
+    private final long receivedAt;
+    private volatile int pending;
+
+    public EncodedMessage(Message message) {
+        this(message, 0);
+    }
+
+    /**
+     * @param receivedAt System.nanoTime() when the message was decoded from
+     * its sender, or 0 to skip route latency tracking
+     */
+    public EncodedMessage(Message message, long receivedAt) {
+        this.message = message;
+        this.receivedAt = receivedAt;
+        this.pending = receivedAt != 0 ? 1 : 0; // The fan-out's own hold
+    }
+
+    public Message getMessage() {
+        return message;
+    }
+
+    // A copy was queued for a recipient
+    void writeQueued() {
+        if (receivedAt != 0) {
+            PENDING.incrementAndGet(this);
+        }
+    }
+
+    // A recipient's writer has written its copy
+    void writeCompleted(ServerMetrics metrics) {
+        release(metrics);
+    }
+
+    // A copy could not be queued
+    void writeDropped() {
+        if (receivedAt != 0) {
+            PENDING.decrementAndGet(this);
+        }
+    }
+
+    // The sender has queued every copy
+    void fanoutCompleted(ServerMetrics metrics) {
+        release(metrics);
+    }
+
+    private void release(ServerMetrics metrics) {
+        if (receivedAt != 0 && PENDING.decrementAndGet(this) == 0) {
+            metrics.recordRouteLatency(System.nanoTime() - receivedAt);
+        }
+    }
+
+    /**
+     * The complete frame (length prefix + payload) for a protocol version.
+     * The array is shared by all recipients and must not be modified.
+     */
+    public byte[] frameBytes(int version) throws IOException {
+        if (version == MessageCodec.VERSION_LEGACY_STREAM) {
+            byte[] frame = legacyFrame;
+            if (frame == null) {
+                frame = MessageCodec.encodeFrame(message, version);
+                legacyFrame = frame;
+            }
+            return frame;
+        }
+        if (version == MessageCodec.VERSION_SERIALIZED) {
+            byte[] frame = serializedFrame;
+            if (frame == null) {
+                frame = MessageCodec.encodeFrame(message, version);
+                serializedFrame = frame;
+            }
+            return frame;
+        }
+        byte[] frame = binaryFrame;
+        if (frame == null) {
+            frame = MessageCodec.encodeFrame(message, version);
+            binaryFrame = frame;
+        }
+        return frame;
+    }
+}
@@ -0,0 +1,160 @@
+package javachatapp.server;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Histogram is a lock-free log-linear histogram of non-negative long values
+ * (latencies in nanoseconds, queue depths). Values below 32 are exact; above
+ * that every power of two is split into 32 buckets, so a reported percentile
+ * is within about 3% of the true value. Recording is one array increment, a
+ * counter add and (rarely) a max update, with no locks and no allocation.
+ *
+ * Counts are cumulative. A reader that wants a recent view keeps its last
+ * Snapshot and asks for since(previous).
+ */
+public class Histogram {
+
+    private static final int SUB_BITS = 5;
+    private static final int SUB_COUNT = 1 << SUB_BITS;
+    // Index of the largest positive long, plus one
+    private static final int BUCKETS = (63 - SUB_BITS + 1) * SUB_COUNT;
+
+    private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+    private final LongAdder count = new LongAdder();
+    private final LongAdder sum = new LongAdder();
+    private final AtomicLong max = new AtomicLong();
+
+    public void record(long value) {
+        if (value < 0) {
+            value = 0;
+        }
+        counts.incrementAndGet(bucketIndex(value));
+        count.increment();
+        sum.add(value);
+        long currentMax = max.get();
+        while (value > currentMax && !max.compareAndSet(currentMax, value)) {
+            currentMax = max.get();
+        }
+    }
+
+    public long getCount() {
+        return count.sum();
+    }
+
+    public Snapshot snapshot() {
+        long[] copy = new long[BUCKETS];
+        long total = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            copy[i] = counts.get(i);
+            total += copy[i];
+        }
+        return new Snapshot(copy, total, sum.sum(), max.get());
+    }
+
+    static int bucketIndex(long value) {
+        if (value < SUB_COUNT) {
+            return (int) value;
+        }
+        int msb = 63 - Long.numberOfLeadingZeros(value);
+        int shift = msb - SUB_BITS;
+        int top = (int) (value >>> shift); // 32..63
+        return (shift + 1) * SUB_COUNT + (top - SUB_COUNT);
+    }
+
+    // Largest value that falls into a bucket
+    static long bucketUpperBound(int index) {
+        if (index < SUB_COUNT) {
+            return index;
+        }
+        int shift = index / SUB_COUNT - 1;
+        long top = SUB_COUNT + index % SUB_COUNT;
+        return ((top + 1) << shift) - 1;
+    }
+
+    /**
+     * Immutable copy of the histogram at one point in time
+     */
+    public static final class Snapshot {
+
+        private final long[] counts;
+        private final long count;
+        private final long sum;
+        private final long max;
+
+        private Snapshot(long[] counts, long count, long sum, long max) {
+            this.counts = counts;
+            this.count = count;
+            this.sum = sum;
+            this.max = max;
+        }
+
+        /**
+         * Values recorded between an earlier snapshot of the same histogram
+         * and this one. The max is estimated from the highest bucket used.
+         */
+        public Snapshot since(Snapshot earlier) {
+            if (earlier == null) {
+                return this;
+            }
+            long[] delta = new long[BUCKETS];
+            long total = 0;
+            int highest = -1;
+            for (int i = 0; i < BUCKETS; i++) {
+                delta[i] = counts[i] - earlier.counts[i];
+                total += delta[i];
+                if (delta[i] > 0) {
+                    highest = i;
+                }
+            }
+            long deltaMax = highest < 0 ? 0 : Math.min(max, bucketUpperBound(highest));
+            return new Snapshot(delta, total, sum - earlier.sum, deltaMax);
+        }
+
+        public long getCount() {
+            return count;
+        }
+
+        public long getMax() {
+            return max;
+        }
+
+        public double getMean() {
+            return count == 0 ? 0 : (double) sum / count;
+        }
+
+        /**
+         * Value at a percentile, e.g. 0.99 for p99 (0 if nothing was recorded)
+         */
+        public long getPercentile(double percentile) {
+            if (count == 0) {
+                return 0;
+            }
+            long rank = (long) Math.ceil(percentile * count);
+            if (rank < 1) {
+                rank = 1;
+            }
+            long seen = 0;
+            for (int i = 0; i < counts.length; i++) {
+                seen += counts[i];
+                if (seen >= rank) {
+                    return Math.min(bucketUpperBound(i), max);
+                }
+            }
+            return max;
+        }
+
+        public long getP50() {
+            return getPercentile(0.50);
+        }
+
+        public long getP99() {
+            return getPercentile(0.99);
+        }
+
+        public long getP999() {
+            return getPercentile(0.999);
+        }
+    }
+}
@@ -0,0 +1,293 @@
+package javachatapp.server;
+
+import javachatapp.shared.Log;
+import javachatapp.shared.Message;
+import javachatapp.shared.Message.MessageType;
+import javachatapp.shared.MessageCodec;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * HistoryReplay sends stored public messages back to clients, oldest first
+ * in HISTORY_PAGE frames: the last K right after a client joins, and older
+ * pages when it sends HISTORY_REQUEST. Every frame but the last of a page has
+ * content MORE, and historyOffset is where the client asks for older
+ * messages next (0 = nothing older).
+ */
+class HistoryReplay {
+
+    // Stored messages a joining client gets by default
+    static final int DEFAULT_REPLAY_COUNT = 50;
+
+    // Largest page a HISTORY_REQUEST can ask for
+    static final int MAX_PAGE = 200;
+
+    static final int MAX_FRAME_MESSAGES = 100;
+    static final int MAX_FRAME_BYTES = 32 * 1024;
+
+    // Content of every frame of a page except the last
+    static final String MORE = "MORE";
+
+    private final ChatServer server;
+    private volatile int replayCount = Integer.getInteger("chat.history.replay", DEFAULT_REPLAY_COUNT);
+
+    // Frames of the latest join replay, rebuilt when the history grows
+    private volatile Replay latest;
+    private final ReentrantLock buildLock = new ReentrantLock(); // Not a monitor: held by virtual threads
+    private Build building; // Guarded by buildLock
+    private final AtomicLong replays = new AtomicLong();
+    private final AtomicLong builds = new AtomicLong();
+    private final AtomicLong pages = new AtomicLong();
+
+    // Reads the pages HISTORY_REQUESTs ask for, in arrival order
+    private final ExecutorService pageReader = Executors.newSingleThreadExecutor(task -> {
+        Thread thread = new Thread(task, "history-pages");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    private static final class Replay {
+
+        final long endOffset;
+        final int count;
+        final List<EncodedMessage> frames;
+
+        Replay(long endOffset, int count, List<EncodedMessage> frames) {
+            this.endOffset = endOffset;
+            this.count = count;
+            this.frames = frames;
+        }
+    }
+
+    // A join replay being read; clients joining meanwhile wait for it
+    private static final class Build {
+
+        final long endOffset;
+        final int count;
+        final CompletableFuture<List<EncodedMessage>> frames = new CompletableFuture<>();
+
+        Build(long endOffset, int count) {
+            this.endOffset = endOffset;
+            this.count = count;
+        }
+
+        List<EncodedMessage> await() throws IOException {
+            try {
+                return frames.get();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted waiting for the history replay");
+            } catch (ExecutionException e) {
+                if (e.getCause() instanceof IOException) {
+                    throw (IOException) e.getCause();
+                }
+                throw new IOException("History replay failed", e.getCause());
+            }
+        }
+    }
+
+    HistoryReplay(ChatServer server) {
+        this.server = server;
+    }
+
+    // Only messages everyone could see are replayed, private ones stay private
+    static boolean isPublic(Message message) {
+        String recipient = message.getRecipient();
+        return recipient == null || recipient.equals("Broadcast");
+    }
+
+    // Queue the last K stored messages for a client that just joined
+    void replayTo(ClientConnection client) {
+        HistoryStore store = server.getHistory();
+        // Older clients do not know HISTORY_PAGE
+        if (store == null || replayCount <= 0 || !MessageCodec.isBinary(client.getProtocolVersion())) {
+            return;
+        }
+        List<EncodedMessage> frames;
+        try {
+            frames = joinFrames(store);
+        } catch (IOException e) {
+            Log.warn("Could not read history for {}: {}", client.getUsername(), e.getMessage());
+            return;
+        }
+        for (EncodedMessage frame : frames) {
+            client.send(frame);
+        }
+        replays.incrementAndGet();
+    }
+
+    private List<EncodedMessage> joinFrames(HistoryStore store) throws IOException {
+        int count = replayCount;
+        long end = store.getEndOffset();
+        Replay replay = latest;
+        if (replay != null && replay.endOffset == end && replay.count == count) {
+            return replay.frames;
+        }
+        // One joining client builds, the others of a storm wait for its result
+        Build build;
+        boolean mine;
+        buildLock.lock();
+        try {
+            build = building;
+            mine = build == null || build.endOffset != end || build.count != count;
+            if (mine) {
+                build = new Build(end, count);
+                building = build;
+            }
+        } finally {
+            buildLock.unlock();
+        }
+        if (!mine) {
+            return build.await();
+        }
+
+        // The read runs without the lock held, so it never pins a virtual thread
+        try {
+            HistoryStore.Page page = store.readBefore(end, count, HistoryReplay::isPublic);
+            List<EncodedMessage> frames = page.getRecords().isEmpty()
+                    ? Collections.emptyList()
+                    : frames(page);
+            builds.incrementAndGet();
+            build.frames.complete(frames);
+            buildLock.lock();
+            try {
+                if (latest == null || latest.endOffset <= end) {
+                    latest = new Replay(end, count, frames);
+                }
+            } finally {
+                buildLock.unlock();
+            }
+            return frames;
+        } catch (IOException | RuntimeException e) {
+            build.frames.completeExceptionally(e);
+            throw e;
+        } finally {
+            buildLock.lock();
+            try {
+                if (building == build) {
+                    building = null;
+                }
+            } finally {
+                buildLock.unlock();
+            }
+        }
+    }
+
+    /**
+     * Answer a HISTORY_REQUEST on the page reader thread: up to max public messages
+     * (content, default the replay count) before historyOffset (0 = newest)
+     */
+    void answer(ClientConnection client, Message request) {
+        HistoryStore store = server.getHistory();
+        int max = pageSize(request.getContent());
+        long before = Math.max(0, request.getHistoryOffset());
+        Runnable read = () -> {
+            if (!server.isRunning()) {
+                return;
+            }
+            HistoryStore.Page page = new HistoryStore.Page(Collections.emptyList(), 0);
+            if (store != null) {
+                try {
+                    page = store.readBefore(before, max, HistoryReplay::isPublic);
+                } catch (IOException e) {
+                    Log.warn("Could not read history for {}: {}", client.getUsername(), e.getMessage());
+                }
+            }
+            for (EncodedMessage frame : frames(page)) {
+                client.send(frame);
+            }
+            pages.incrementAndGet();
+        };
+        try {
+            pageReader.execute(read);
+        } catch (RejectedExecutionException e) {
+            // Server is shutting down
+        }
+    }
+
+    // The server stopped (not interrupted: an interrupt during a FileChannel read closes the channel)
+    void stop() {
+        pageReader.shutdown();
+    }
+
+    private int pageSize(String content) {
+        int max = replayCount > 0 ? replayCount : DEFAULT_REPLAY_COUNT;
+        if (content != null) {
+            try {
+                max = Integer.parseInt(content.trim());
+            } catch (NumberFormatException e) {
+                // Keep the default
+            }
+        }
+        return Math.max(1, Math.min(max, MAX_PAGE));
+    }
+
+    // Split a page into bounded HISTORY_PAGE frames (at least one, possibly empty)
+    private static List<EncodedMessage> frames(HistoryStore.Page page) {
+        List<EncodedMessage> frames = new ArrayList<>();
+        List<Message> batch = new ArrayList<>();
+        int bytes = 0;
+        for (HistoryStore.Record record : page.getRecords()) {
+            Message message = record.getMessage();
+            int size = maxEncodedSize(message);
+            if (!batch.isEmpty() && (batch.size() == MAX_FRAME_MESSAGES || bytes + size > MAX_FRAME_BYTES)) {
+                frames.add(frame(batch, MORE, page.getNext()));
+                batch.clear();
+                bytes = 0;
+            }
+            batch.add(message);
+            bytes += size;
+        }
+        frames.add(frame(batch, null, page.getNext()));
+        return frames;
+    }
+
+    private static EncodedMessage frame(List<Message> batch, String content, long next) {
+        Message frame = new Message(MessageType.HISTORY_PAGE, "Server", null, content);
+        frame.setHistory(batch.toArray(new Message[0]));
+        frame.setHistoryOffset(next);
+        return new EncodedMessage(frame);
+    }
+
+    // Upper bound of a message's binary size (3 UTF-8 bytes per char plus headers)
+    private static int maxEncodedSize(Message message) {
+        return 3 * (length(message.getSender()) + length(message.getRecipient()) + length(message.getContent())) + 32;
+    }
+
+    private static int length(String s) {
+        return s != null ? s.length() : 0;
+    }
+
+    void setReplayCount(int count) {
+        this.replayCount = count;
+    }
+
+    int getReplayCount() {
+        return replayCount;
+    }
+
+    // Join replays sent
+    long getReplaysSent() {
+        return replays.get();
+    }
+
+    // Join replays that had to read and encode the history (the rest shared one)
+    long getReplaysBuilt() {
+        return builds.get();
+    }
+
+    // HISTORY_REQUESTs answered
+    long getPagesServed() {
+        return pages.get();
+    }
+}
@@ -0,0 +1,285 @@
+package javachatapp.server;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.zip.CRC32C;
+
+/**
+ * One segment of the history log: a .log file of records and a .idx file of
+ * their positions (one int per record), both named after the offset of the
+ * segment's first record.
+ *
+ * Record layout: int payload length, int CRC32C of timestamp and payload,
+ * long timestamp (epoch millis), payload (BinaryMessageCodec).
+ *
+ * Only the HistoryStore writer thread appends. Readers use positional reads
+ * and only look at records below the published count, so they never wait
+ * for the writer and never see a partial batch.
+ */
+class HistorySegment {
+
+    static final int HEADER_LENGTH = 16;
+
+    private final long baseOffset;
+    private final File logFile;
+    private final File indexFile;
+    private final FileChannel log;
+    private FileChannel index; // Open for writing while the segment is active
+
+    // Published by the writer: positions first, then size, then count
+    private volatile int[] positions;
+    private volatile long size;
+    private volatile int count;
+    private final ReentrantLock loadLock = new ReentrantLock(); // Loads positions once after a restart
+
+    private HistorySegment(long baseOffset, File logFile, File indexFile, FileChannel log) {
+        this.baseOffset = baseOffset;
+        this.logFile = logFile;
+        this.indexFile = indexFile;
+        this.log = log;
+    }
+
+    static String fileName(long baseOffset, String suffix) {
+        return String.format("%020d%s", baseOffset, suffix);
+    }
+
+    // A new, empty active segment
+    static HistorySegment create(File dir, long baseOffset) throws IOException {
+        File logFile = new File(dir, fileName(baseOffset, ".log"));
+        File indexFile = new File(dir, fileName(baseOffset, ".idx"));
+        HistorySegment segment = new HistorySegment(baseOffset, logFile, indexFile, open(logFile, true));
+        segment.positions = new int[1024];
+        segment.index = open(indexFile, true);
+        segment.index.truncate(0);
+        segment.log.truncate(0);
+        return segment;
+    }
+
+    /**
+     * A segment written before a restart. Its index is loaded on first read;
+     * only its record count is needed now, so opening a large history is
+     * cheap.
+     */
+    static HistorySegment openSealed(File dir, long baseOffset) throws IOException {
+        File logFile = new File(dir, fileName(baseOffset, ".log"));
+        File indexFile = new File(dir, fileName(baseOffset, ".idx"));
+        if (!indexFile.exists() || indexFile.length() % 4 != 0) {
+            HistorySegment segment = recover(dir, baseOffset);
+            segment.seal();
+            return segment;
+        }
+        HistorySegment segment = new HistorySegment(baseOffset, logFile, indexFile, open(logFile, false));
+        segment.size = logFile.length();
+        segment.count = (int) (indexFile.length() / 4);
+        return segment;
+    }
+
+    /**
+     * The segment that was active when the server stopped: scan it, keep every
+     * record whose checksum matches, cut off a torn tail and rewrite the index
+     */
+    static HistorySegment recover(File dir, long baseOffset) throws IOException {
+        File logFile = new File(dir, fileName(baseOffset, ".log"));
+        File indexFile = new File(dir, fileName(baseOffset, ".idx"));
+        HistorySegment segment = new HistorySegment(baseOffset, logFile, indexFile, open(logFile, true));
+
+        long length = segment.log.size();
+        ByteBuffer data = ByteBuffer.allocate((int) Math.min(length, Integer.MAX_VALUE));
+        readFully(segment.log, data, 0);
+        data.flip();
+
+        int[] found = new int[1024];
+        int records = 0;
+        int validLength = 0;
+        CRC32C crc = new CRC32C();
+        while (data.limit() - validLength >= HEADER_LENGTH) {
+            int payloadLength = data.getInt(validLength);
+            int checksum = data.getInt(validLength + 4);
+            if (payloadLength < 0 || payloadLength > data.limit() - validLength - HEADER_LENGTH) {
+                break;
+            }
+            crc.reset();
+            crc.update(data.array(), validLength + 8, 8 + payloadLength);
+            if ((int) crc.getValue() != checksum) {
+                break;
+            }
+            if (records == found.length) {
+                found = Arrays.copyOf(found, records * 2);
+            }
+            found[records++] = validLength;
+            validLength += HEADER_LENGTH + payloadLength;
+        }
+        segment.log.truncate(validLength);
+
+        segment.index = open(indexFile, true);
+        segment.index.truncate(0);
+        ByteBuffer entries = ByteBuffer.allocate(records * 4);
+        for (int i = 0; i < records; i++) {
+            entries.putInt(found[i]);
+        }
+        entries.flip();
+        writeFully(segment.index, entries, 0);
+
+        segment.positions = found;
+        segment.size = validLength;
+        segment.count = records;
+        return segment;
+    }
+
+    private static FileChannel open(File file, boolean write) throws IOException {
+        return write
+                ? FileChannel.open(file.toPath(), StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE)
+                : FileChannel.open(file.toPath(), StandardOpenOption.READ);
+    }
+
+    /**
+     * Append a batch of encoded records (writer thread only). The records are
+     * visible to readers once this returns.
+     *
+     * @param records Encoded records, between position 0 and limit
+     * @param starts Start of each record within records
+     * @param n Number of records
+     * @param fsync Force both files to disk before publishing
+     */
+    void append(ByteBuffer records, int[] starts, int n, boolean fsync) throws IOException {
+        long base = size;
+        int[] current = positions;
+        if (count + n > current.length) {
+            current = Arrays.copyOf(current, Math.max(count + n, current.length * 2));
+        }
+        ByteBuffer entries = ByteBuffer.allocate(n * 4);
+        for (int i = 0; i < n; i++) {
+            int position = (int) (base + starts[i]);
+            current[count + i] = position;
+            entries.putInt(position);
+        }
+        entries.flip();
+
+        int length = records.remaining();
+        writeFully(log, records, base);
+        writeFully(index, entries, (long) count * 4);
+        if (fsync) {
+            log.force(false);
+            index.force(false);
+        }
+
+        positions = current;
+        size = base + length;
+        count += n;
+    }
+
+    // No more appends: close the index for writing (the log stays open for reads)
+    void seal() throws IOException {
+        if (index != null) {
+            log.force(false);
+            index.force(false);
+            index.close();
+            index = null;
+        }
+    }
+
+    /**
+     * Read records [first, first + n) relative to this segment into one
+     * buffer, positioned at the first record
+     */
+    ByteBuffer read(int first, int n) throws IOException {
+        // Count first: the positions array published with it covers every counted record
+        int published = count;
+        int[] at = loadPositions();
+        if (first < 0 || first + n > published || n <= 0) {
+            throw new IllegalArgumentException("Records " + first + "+" + n + " not in segment of " + published);
+        }
+        long start = at[first];
+        long end = first + n < published ? at[first + n] : size;
+        ByteBuffer buffer = ByteBuffer.allocate((int) (end - start));
+        readFully(log, buffer, start);
+        buffer.flip();
+        return buffer;
+    }
+
+    // Positions of a segment opened after a restart are read from the .idx file once
+    private int[] loadPositions() throws IOException {
+        int[] at = positions;
+        if (at != null) {
+            return at;
+        }
+        // A lock rather than a monitor: the read must not pin a virtual thread
+        loadLock.lock();
+        try {
+            if (positions == null) {
+                int records = count;
+                ByteBuffer entries = ByteBuffer.allocate(records * 4);
+                try (FileChannel channel = open(indexFile, false)) {
+                    readFully(channel, entries, 0);
+                }
+                entries.flip();
+                int[] loaded = new int[records];
+                entries.asIntBuffer().get(loaded);
+                positions = loaded;
+            }
+            return positions;
+        } finally {
+            loadLock.unlock();
+        }
+    }
+
+    private static void readFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            int n = channel.read(buffer, position);
+            if (n < 0) {
+                throw new IOException("Unexpected end of history segment");
+            }
+            position += n;
+        }
+    }
+
+    private static void writeFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            position += channel.write(buffer, position);
+        }
+    }
+
+    void delete() {
+        try {
+            if (index != null) {
+                index.close();
+            }
+            log.close();
+        } catch (IOException e) {
+            // Deleting anyway
+        }
+        logFile.delete();
+        indexFile.delete();
+    }
+
+    void close() throws IOException {
+        seal();
+        log.close();
+    }
+
+    long getBaseOffset() {
+        return baseOffset;
+    }
+
+    // Offset the next record appended to this segment would get
+    long getEndOffset() {
+        return baseOffset + count;
+    }
+
+    int getCount() {
+        return count;
+    }
+
+    long getSize() {
+        return size;
+    }
+
+    long getLastModified() {
+        return logFile.lastModified();
+    }
+}
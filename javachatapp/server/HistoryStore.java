@@ -0,0 +1,585 @@
+package javachatapp.server;
+
+import javachatapp.shared.BinaryMessageCodec;
+import javachatapp.shared.Log;
+import javachatapp.shared.Message;
+import java.io.File;
+import java.io.IOException;
+import java.io.StreamCorruptedException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Predicate;
+import java.util.zip.CRC32C;
+
+/**
+ * HistoryStore is the server's append-only chat history: every routed
+ * message, in order, with a sequential offset and the time it was stored.
+ *
+ * append() only puts the message on a bounded queue, so routing never waits
+ * for the disk (a full queue drops the message and counts it). A single
+ * "history-writer" thread drains the queue in batches and writes each batch
+ * with one write per file and, if enabled, one fsync (group commit). The log
+ * is split into segments of a fixed size; the oldest segments are deleted
+ * once the history exceeds its size or age limit.
+ *
+ * Every segment keeps an offset index, so read(offset, n) is one positional
+ * read. Readers see a batch only after it is fully written and never take a
+ * lock the writer needs.
+ */
+public class HistoryStore {
+
+    public static final long DEFAULT_SEGMENT_BYTES = 16L * 1024 * 1024;
+    public static final long DEFAULT_RETENTION_BYTES = 1024L * 1024 * 1024;
+    public static final long DEFAULT_RETENTION_MILLIS = TimeUnit.DAYS.toMillis(7);
+
+    // Messages waiting for the writer before append() starts dropping
+    private static final int QUEUE_CAPACITY = 64 * 1024;
+
+    // Most messages written (and fsynced) as one batch
+    private static final int MAX_BATCH = 4096;
+
+    // Records read per disk access when paging backwards
+    private static final int READ_CHUNK = 256;
+
+    // Most recent records kept in memory for reads
+    private static final int TAIL_CACHE_SIZE = 4096;
+
+    // Records scanned by one readBefore() call at most, however few match
+    private static final int MAX_SCAN = 16 * 1024;
+
+    // How often an idle writer checks the age limit
+    private static final long RETENTION_CHECK_MILLIS = 60_000;
+
+    /**
+     * A stored message and its place in the history
+     */
+    public static final class Record {
+
+        private final long offset;
+        private final long timestamp;
+        private final Message message;
+
+        Record(long offset, long timestamp, Message message) {
+            this.offset = offset;
+            this.timestamp = timestamp;
+            this.message = message;
+        }
+
+        public long getOffset() {
+            return offset;
+        }
+
+        // Epoch millis when the message was written
+        public long getTimestamp() {
+            return timestamp;
+        }
+
+        public Message getMessage() {
+            return message;
+        }
+    }
+
+    private final File directory;
+    private final long segmentBytes;
+    private final long retentionBytes;
+    private final long retentionMillis;
+    private final boolean fsync;
+
+    private final BlockingQueue<Message> queue = new ArrayBlockingQueue<>(QUEUE_CAPACITY);
+    private volatile HistorySegment[] segments; // Oldest first, last one is active
+    private Thread writer;
+    private volatile boolean running;
+
+    // Ring of recent records, slot = offset % size. Written by the writer
+    // only; a reader uses a slot only if it holds the offset it wants.
+    private final Record[] tail = new Record[TAIL_CACHE_SIZE];
+    private final AtomicLong cacheReads = new AtomicLong();
+    private final AtomicLong diskReads = new AtomicLong();
+
+    private final AtomicLong dropped = new AtomicLong();
+    private final AtomicLong batches = new AtomicLong();
+    private final AtomicLong writeErrors = new AtomicLong();
+    private volatile int largestBatch;
+
+    public HistoryStore(File directory) throws IOException {
+        this(directory, DEFAULT_SEGMENT_BYTES, DEFAULT_RETENTION_BYTES, DEFAULT_RETENTION_MILLIS, true);
+    }
+
+    /**
+     * Open (or create) the history in a directory. The active segment of an
+     * earlier run is checked record by record and a torn tail is cut off.
+     *
+     * @param segmentBytes Size at which the active segment is rolled
+     * @param retentionBytes Delete the oldest segments beyond this total size
+     * @param retentionMillis Delete segments last written longer ago than this
+     * @param fsync Force every batch to disk before it becomes readable
+     */
+    public HistoryStore(File directory, long segmentBytes, long retentionBytes, long retentionMillis, boolean fsync)
+            throws IOException {
+        if (segmentBytes < 1024 || segmentBytes > Integer.MAX_VALUE) {
+            throw new IllegalArgumentException("Segment size must be between 1 KB and 2 GB");
+        }
+        this.directory = directory;
+        this.segmentBytes = segmentBytes;
+        this.retentionBytes = retentionBytes;
+        this.retentionMillis = retentionMillis;
+        this.fsync = fsync;
+
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IOException("Cannot create history directory " + directory);
+        }
+        long[] bases = segmentBases(directory);
+        List<HistorySegment> opened = new ArrayList<>();
+        for (int i = 0; i < bases.length; i++) {
+            boolean last = i == bases.length - 1;
+            opened.add(last ? HistorySegment.recover(directory, bases[i]) : HistorySegment.openSealed(directory, bases[i]));
+        }
+        if (opened.isEmpty()) {
+            opened.add(HistorySegment.create(directory, 0));
+        }
+        segments = opened.toArray(new HistorySegment[0]);
+    }
+
+    private static long[] segmentBases(File directory) {
+        File[] files = directory.listFiles((dir, name) -> name.endsWith(".log"));
+        if (files == null) {
+            return new long[0];
+        }
+        long[] bases = new long[files.length];
+        int n = 0;
+        for (File file : files) {
+            String name = file.getName();
+            try {
+                bases[n++] = Long.parseLong(name.substring(0, name.length() - 4));
+            } catch (NumberFormatException e) {
+                // Not a segment
+            }
+        }
+        bases = Arrays.copyOf(bases, n);
+        Arrays.sort(bases);
+        return bases;
+    }
+
+    // Start the writer thread
+    public synchronized void start() {
+        if (running) {
+            return;
+        }
+        running = true;
+        writer = new Thread(this::writeLoop, "history-writer");
+        writer.setDaemon(true);
+        writer.start();
+    }
+
+    /**
+     * Queue a message for the history. Never blocks: returns false and counts
+     * a drop if the writer is too far behind.
+     */
+    public boolean append(Message message) {
+        if (queue.offer(message)) {
+            return true;
+        }
+        dropped.incrementAndGet();
+        return false;
+    }
+
+    /**
+     * Write everything queued so far, then stop the writer and close the
+     * files
+     */
+    public void close() {
+        synchronized (this) {
+            running = false;
+        }
+        // Not interrupted: an interrupt during a FileChannel write closes the channel
+        if (writer != null) {
+            try {
+                writer.join(10_000);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        for (HistorySegment segment : segments) {
+            try {
+                segment.close();
+            } catch (IOException e) {
+                Log.warn("Error closing history segment: {}", e.getMessage());
+            }
+        }
+    }
+
+    private void writeLoop() {
+        List<Message> batch = new ArrayList<>(MAX_BATCH);
+        Encoder encoder = new Encoder();
+        long lastRetentionCheck = System.currentTimeMillis();
+        while (running || !queue.isEmpty()) {
+            try {
+                Message first = queue.poll(100, TimeUnit.MILLISECONDS);
+                if (first != null) {
+                    batch.add(first);
+                    queue.drainTo(batch, MAX_BATCH - 1);
+                    write(batch, encoder);
+                    batch.clear();
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                break;
+            } catch (IOException e) {
+                writeErrors.incrementAndGet();
+                Log.error("History write failed, {} messages lost: {}", batch.size(), e.getMessage());
+                batch.clear();
+            }
+            long now = System.currentTimeMillis();
+            if (now - lastRetentionCheck >= RETENTION_CHECK_MILLIS) {
+                lastRetentionCheck = now;
+                applyRetention();
+            }
+        }
+    }
+
+    // Encode and append one batch, rolling the segment where it fills up
+    private void write(List<Message> batch, Encoder encoder) throws IOException {
+        long timestamp = System.currentTimeMillis();
+        List<Record> written = new ArrayList<>(batch.size());
+        encoder.reset();
+        for (Message message : batch) {
+            byte[] payload = BinaryMessageCodec.encode(message);
+            HistorySegment active = segments[segments.length - 1];
+            long recordLength = HistorySegment.HEADER_LENGTH + payload.length;
+            if (active.getSize() + encoder.length() + recordLength > segmentBytes
+                    && active.getCount() + encoder.count() > 0) {
+                encoder.appendTo(active, fsync);
+                cache(written);
+                roll();
+                active = segments[segments.length - 1];
+            }
+            written.add(new Record(active.getEndOffset() + encoder.count(), timestamp, message));
+            encoder.add(timestamp, payload);
+        }
+        encoder.appendTo(segments[segments.length - 1], fsync);
+        cache(written);
+        batches.incrementAndGet();
+        if (batch.size() > largestBatch) {
+            largestBatch = batch.size();
+        }
+    }
+
+    // Keep just-written records in the tail cache (writer thread only)
+    private void cache(List<Record> written) {
+        for (Record record : written) {
+            tail[(int) (record.getOffset() % TAIL_CACHE_SIZE)] = record;
+        }
+        written.clear();
+    }
+
+    // Seal the active segment and start a new one at the next offset
+    private void roll() throws IOException {
+        HistorySegment[] current = segments;
+        HistorySegment active = current[current.length - 1];
+        active.seal();
+        HistorySegment next = HistorySegment.create(directory, active.getEndOffset());
+        HistorySegment[] rolled = Arrays.copyOf(current, current.length + 1);
+        rolled[current.length] = next;
+        segments = rolled;
+        applyRetention();
+    }
+
+    // Delete the oldest sealed segments beyond the size or age limit
+    private void applyRetention() {
+        HistorySegment[] current = segments;
+        long total = 0;
+        for (HistorySegment segment : current) {
+            total += segment.getSize();
+        }
+        long now = System.currentTimeMillis();
+        int remove = 0;
+        while (remove < current.length - 1) {
+            HistorySegment oldest = current[remove];
+            if (total <= retentionBytes && now - oldest.getLastModified() <= retentionMillis) {
+                break;
+            }
+            total -= oldest.getSize();
+            remove++;
+        }
+        if (remove == 0) {
+            return;
+        }
+        segments = Arrays.copyOfRange(current, remove, current.length);
+        for (int i = 0; i < remove; i++) {
+            current[i].delete();
+        }
+        Log.info("History retention deleted {} segments, history now starts at offset {}",
+                remove, segments[0].getBaseOffset());
+    }
+
+    /**
+     * Read up to max records starting at an offset. Offsets that have been
+     * deleted by retention are skipped; reading at or past getEndOffset()
+     * returns an empty list.
+     */
+    public List<Record> read(long fromOffset, int max) throws IOException {
+        List<Record> cached = readCached(fromOffset, max);
+        if (cached != null) {
+            return cached;
+        }
+        diskReads.incrementAndGet();
+        HistorySegment[] current = segments;
+        List<Record> records = new ArrayList<>(Math.min(max, 1024));
+        long offset = Math.max(fromOffset, current[0].getBaseOffset());
+        int i = segmentFor(current, offset);
+        while (i < current.length && records.size() < max) {
+            HistorySegment segment = current[i];
+            int first = (int) (offset - segment.getBaseOffset());
+            int n = Math.min(segment.getCount() - first, max - records.size());
+            if (n > 0) {
+                try {
+                    decode(segment.read(first, n), offset, n, records);
+                } catch (ClosedChannelException e) {
+                    // Deleted by retention while we were reading; carry on with what is left
+                    records.addAll(read(offset, max - records.size()));
+                    return records;
+                }
+                offset += n;
+            }
+            i++;
+        }
+        return records;
+    }
+
+    // The whole range from the tail cache, or null if any of it is not there
+    private List<Record> readCached(long fromOffset, int max) {
+        long end = getEndOffset();
+        long from = Math.max(fromOffset, getStartOffset());
+        int n = (int) Math.max(0, Math.min(max, end - from));
+        List<Record> records = new ArrayList<>(n);
+        for (long offset = from; offset < from + n; offset++) {
+            Record record = tail[(int) (offset % TAIL_CACHE_SIZE)];
+            if (record == null || record.getOffset() != offset) {
+                return null;
+            }
+            records.add(record);
+        }
+        cacheReads.incrementAndGet();
+        return records;
+    }
+
+    /**
+     * A page of history read backwards: the newest records before an offset
+     * that match a filter
+     */
+    public static final class Page {
+
+        private final List<Record> records;
+        private final long next;
+
+        Page(List<Record> records, long next) {
+            this.records = records;
+            this.next = next;
+        }
+
+        // Matching records, oldest first
+        public List<Record> getRecords() {
+            return records;
+        }
+
+        // Offset to continue reading backwards from, 0 if nothing older is left
+        public long getNext() {
+            return next;
+        }
+    }
+
+    /**
+     * Up to max records matching the filter, the newest ones before an
+     * offset (0 = before the end of the history). Recent records come from
+     * the tail cache; older ones are read from disk in chunks. At most
+     * MAX_SCAN records are looked at, so a sparse filter may return a short
+     * page with a non-zero next offset.
+     */
+    public Page readBefore(long before, int max, Predicate<Message> filter) throws IOException {
+        long start = getStartOffset();
+        long position = before <= 0 ? getEndOffset() : Math.min(before, getEndOffset());
+        List<Record> newestFirst = new ArrayList<>(max);
+        int scanned = 0;
+        while (position > start && newestFirst.size() < max && scanned < MAX_SCAN) {
+            int chunk = (int) Math.min(READ_CHUNK, position - start);
+            List<Record> records = read(position - chunk, chunk);
+            if (records.isEmpty()) {
+                break;
+            }
+            for (int i = records.size() - 1; i >= 0 && newestFirst.size() < max; i--) {
+                Record record = records.get(i);
+                if (filter.test(record.getMessage())) {
+                    newestFirst.add(record);
+                }
+                position = record.getOffset();
+            }
+            scanned += chunk;
+            // Retention may have moved the start past what we asked for
+            start = Math.max(start, getStartOffset());
+        }
+        Collections.reverse(newestFirst);
+        return new Page(newestFirst, position > start ? position : 0);
+    }
+
+    /**
+     * The newest count records (fewer if the history is shorter)
+     */
+    public List<Record> readTail(int count) throws IOException {
+        long end = getEndOffset();
+        long from = Math.max(getStartOffset(), end - count);
+        return end > from ? read(from, (int) (end - from)) : Collections.emptyList();
+    }
+
+    // Index of the segment holding an offset (the active one past the end)
+    private static int segmentFor(HistorySegment[] current, long offset) {
+        int low = 0;
+        int high = current.length - 1;
+        while (low < high) {
+            int mid = (low + high + 1) >>> 1;
+            if (current[mid].getBaseOffset() <= offset) {
+                low = mid;
+            } else {
+                high = mid - 1;
+            }
+        }
+        return low;
+    }
+
+    private static void decode(ByteBuffer data, long offset, int n, List<Record> into) throws IOException {
+        byte[] bytes = data.array();
+        int position = data.position();
+        for (int i = 0; i < n; i++) {
+            int payloadLength = data.getInt(position);
+            long timestamp = data.getLong(position + 8);
+            Message message = BinaryMessageCodec.decode(bytes, position + HistorySegment.HEADER_LENGTH, payloadLength);
+            into.add(new Record(offset + i, timestamp, message));
+            position += HistorySegment.HEADER_LENGTH + payloadLength;
+        }
+        if (position > data.limit()) {
+            throw new StreamCorruptedException("History record runs past its segment");
+        }
+    }
+
+    // Oldest offset still stored
+    public long getStartOffset() {
+        return segments[0].getBaseOffset();
+    }
+
+    // Offset the next stored message will get (everything below is readable)
+    public long getEndOffset() {
+        HistorySegment[] current = segments;
+        return current[current.length - 1].getEndOffset();
+    }
+
+    public long getSizeBytes() {
+        long total = 0;
+        for (HistorySegment segment : segments) {
+            total += segment.getSize();
+        }
+        return total;
+    }
+
+    public int getSegmentCount() {
+        return segments.length;
+    }
+
+    // Messages append() had to drop because the writer was behind
+    public long getDroppedCount() {
+        return dropped.get();
+    }
+
+    // Group commits so far (one write, and fsync if enabled, per batch)
+    public long getBatchCount() {
+        return batches.get();
+    }
+
+    public int getLargestBatch() {
+        return largestBatch;
+    }
+
+    // read() calls answered from the tail cache and from the segment files
+    public long getCacheReads() {
+        return cacheReads.get();
+    }
+
+    public long getDiskReads() {
+        return diskReads.get();
+    }
+
+    public long getWriteErrors() {
+        return writeErrors.get();
+    }
+
+    public int getQueueDepth() {
+        return queue.size();
+    }
+
+    public File getDirectory() {
+        return directory;
+    }
+
+    /**
+     * Reusable buffer that collects the records of one batch (writer thread
+     * only)
+     */
+    private static final class Encoder {
+
+        private ByteBuffer buffer = ByteBuffer.allocate(64 * 1024);
+        private int[] starts = new int[MAX_BATCH];
+        private int count;
+        private final CRC32C crc = new CRC32C();
+
+        void reset() {
+            buffer.clear();
+            count = 0;
+        }
+
+        int length() {
+            return buffer.position();
+        }
+
+        int count() {
+            return count;
+        }
+
+        void add(long timestamp, byte[] payload) {
+            int recordLength = HistorySegment.HEADER_LENGTH + payload.length;
+            if (buffer.remaining() < recordLength) {
+                ByteBuffer bigger = ByteBuffer.allocate(Math.max(buffer.capacity() * 2, buffer.position() + recordLength));
+                buffer.flip();
+                bigger.put(buffer);
+                buffer = bigger;
+            }
+            if (count == starts.length) {
+                starts = Arrays.copyOf(starts, count * 2);
+            }
+            int start = buffer.position();
+            starts[count++] = start;
+            buffer.putInt(payload.length);
+            buffer.putInt(0); // Checksum, filled in below
+            buffer.putLong(timestamp);
+            buffer.put(payload);
+            crc.reset();
+            crc.update(buffer.array(), start + 8, 8 + payload.length);
+            buffer.putInt(start + 4, (int) crc.getValue());
+        }
+
+        // Write the collected records to a segment and start over
+        void appendTo(HistorySegment segment, boolean fsync) throws IOException {
+            if (count == 0) {
+                return;
+            }
+            buffer.flip();
+            segment.append(buffer, starts, count, fsync);
+            reset();
+        }
+    }
+}
@@ -1,5 +1,7 @@
 package javachatapp.server;
 
+import javachatapp.shared.Log;
+
 /**
  * HostServer - Backend logic for server interface. The frontend developer will
  * add JavaFX UI components.
@@ -11,6 +13,7 @@ public class HostServer {
 
     private ChatServer server;
     private int currentPort;
+    private ChatServer.SlowConsumerPolicy slowConsumerPolicy = ChatServer.SlowConsumerPolicy.DROP_NEWEST;
 
     /**
      * Start the server on the specified port
@@ -19,14 +22,26 @@ public class HostServer {
      * @return true if started successfully, false otherwise
      */
     public boolean startServer(int port) {
+        return startServer(port, ChatServer.ServerMode.THREAD_PER_CLIENT);
+    }
+
+    /**
+     * Start the server on the specified port with the given connection engine
+     *
+     * @param port The port number (should be 1024-65535)
+     * @param mode Connection engine (thread-per-client, virtual threads or NIO)
+     * @return true if started successfully, false otherwise
+     */
+    public boolean startServer(int port, ChatServer.ServerMode mode) {
         // Validate port range
         if (port < 1024 || port > 65535) {
-            System.err.println("Invalid port. Must be between 1024 and 65535.");
+            Log.warn("Invalid port. Must be between 1024 and 65535.");
             return false;
         }
 
         try {
-            server = new ChatServer(port);
+            server = new ChatServer(port, mode);
+            server.setSlowConsumerPolicy(slowConsumerPolicy, ChatServer.DEFAULT_SLOW_CONSUMER_THRESHOLD);
             currentPort = port;
 
             // Run server in a separate thread
@@ -40,15 +55,15 @@ public class HostServer {
 
             // Check if server is actually running
             if (!server.isRunning()) {
-                System.err.println("Failed to start server on port " + port);
+                Log.error("Failed to start server on port {}", port);
                 return false;
             }
 
-            System.out.println("Server started successfully on port " + port);
+            Log.info("Server started successfully on port {} ({})", port, mode);
             return true;
 
         } catch (Exception e) {
-            System.err.println("Failed to start server: " + e.getMessage());
+            Log.error("Failed to start server: {}", e.getMessage());
             return false;
         }
     }
@@ -57,7 +72,7 @@ public class HostServer {
     public void stopServer() {
         if (server != null && server.isRunning()) {
             server.stop();
-            System.out.println("Server stopped");
+            Log.info("Server stopped");
         }
     }
 
@@ -74,6 +89,28 @@ public class HostServer {
         return server != null ? server.getClientCount() : 0;
     }
 
+    // Policy applied to the next server started
+    public void setSlowConsumerPolicy(ChatServer.SlowConsumerPolicy policy) {
+        this.slowConsumerPolicy = policy;
+    }
+
+    public long getSlowConsumerEvents() {
+        return server != null ? server.getSlowConsumerEvents() : 0;
+    }
+
+    public long getSlowConsumerDisconnects() {
+        return server != null ? server.getSlowConsumerDisconnects() : 0;
+    }
+
+    // Metrics of the running server, null if none was started
+    public ServerMetrics getMetrics() {
+        return server != null ? server.getMetrics() : null;
+    }
+
+    public Histogram.Snapshot getQueueDepths() {
+        return server != null ? server.getQueueDepths() : null;
+    }
+
     /**
      * Validate port number
      *
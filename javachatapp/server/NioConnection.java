@@ -0,0 +1,221 @@
+package javachatapp.server;
+
+import javachatapp.shared.Log;
+import javachatapp.shared.Message;
+import javachatapp.shared.MessageCodec;
+import java.io.IOException;
+import java.io.StreamCorruptedException;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * NioConnection is a client session driven by an event loop of the
+ * NioServerEngine. Reads and frame decoding happen on the owning loop thread;
+ * send() may be called from any thread and only queues the encoded frame,
+ * the owning loop drains the outbound queue and performs the socket write.
+ */
+class NioConnection extends ClientConnection {
+
+    private static final int INITIAL_READ_BUFFER = 8 * 1024;
+
+    private final SocketChannel channel;
+    private final NioServerEngine.EventLoop loop;
+    private SelectionKey key;
+
+    private ByteBuffer readBuffer = ByteBuffer.allocate(INITIAL_READ_BUFFER);
+    private int partialFrameLength; // Length of the frame waiting for more bytes, 0 if none
+
+    // Frame currently being written (may be partially written)
+    private OutboundQueue.Entry currentEntry;
+    private ByteBuffer currentWrite;
+    private final AtomicBoolean flushScheduled = new AtomicBoolean(false);
+
+    NioConnection(SocketChannel channel, NioServerEngine.EventLoop loop, ChatServer server) {
+        super(server);
+        this.channel = channel;
+        this.loop = loop;
+    }
+
+    void setKey(SelectionKey key) {
+        this.key = key;
+    }
+
+    SocketChannel getChannel() {
+        return channel;
+    }
+
+    @Override
+    protected void onQueued() {
+        if (flushScheduled.compareAndSet(false, true)) {
+            loop.scheduleFlush(this);
+        }
+    }
+
+    // Called by the loop when the channel is readable
+    void handleRead() {
+        try {
+            int read = channel.read(readBuffer);
+            if (read == -1) {
+                Log.info("{} disconnected (EOF)", username);
+                connectionLost();
+                return;
+            }
+            recordBytesIn(read);
+            readBuffer.flip();
+            decodeFrames();
+            readBuffer.compact();
+            shrinkReadBuffer();
+        } catch (IOException e) {
+            if (!isClosed()) {
+                Log.warn("IO Error with client {}: {}", username, e.getMessage());
+            }
+            connectionLost();
+        } catch (RuntimeException e) {
+            failed(e);
+        }
+    }
+
+    // A bug handling one client must not take down the loop and every other connection on it
+    private void failed(RuntimeException e) {
+        Log.error("Error handling client {}, closing the connection: {}", username, e);
+        cleanup();
+    }
+
+    // Decode every complete frame currently in the read buffer
+    private void decodeFrames() throws IOException {
+        if (protocolVersion == 0) {
+            if (!readBuffer.hasRemaining()) {
+                return;
+            }
+            int version = readBuffer.get() & 0xFF;
+            if (version == MessageCodec.VERSION_LEGACY_STREAM) {
+                // One object stream per connection does not split into frames
+                throw new StreamCorruptedException("Client predates framed messages,"
+                        + " it can only connect to the thread-per-client or virtual thread engine");
+            }
+            MessageCodec.checkVersion(version);
+            protocolVersion = version;
+        }
+
+        partialFrameLength = 0;
+        while (!isClosed()) {
+            int headerLength = MessageCodec.peekHeaderLength(readBuffer, protocolVersion);
+            if (headerLength == 0) {
+                return;
+            }
+            int length = MessageCodec.peekFrameLength(readBuffer, protocolVersion);
+
+            int frameLength = headerLength + length;
+            if (readBuffer.remaining() < frameLength) {
+                ensureCapacity(frameLength);
+                partialFrameLength = frameLength;
+                return;
+            }
+
+            int payloadStart = readBuffer.position() + headerLength;
+            Message message = MessageCodec.decode(readBuffer.array(), readBuffer.arrayOffset() + payloadStart,
+                    length, protocolVersion);
+            readBuffer.position(payloadStart + length);
+            onMessage(message);
+        }
+    }
+
+    // Grow the read buffer so a large frame can be fully buffered
+    private void ensureCapacity(int frameLength) {
+        if (readBuffer.capacity() < frameLength) {
+            ByteBuffer bigger = ByteBuffer.allocate(frameLength);
+            bigger.put(readBuffer);
+            bigger.flip();
+            readBuffer = bigger;
+        }
+    }
+
+    // Return to the default buffer size once an oversized frame has been consumed,
+    // but not while the buffered part of a frame still needs the larger buffer
+    private void shrinkReadBuffer() {
+        if (readBuffer.capacity() > INITIAL_READ_BUFFER && partialFrameLength <= INITIAL_READ_BUFFER
+                && readBuffer.position() <= INITIAL_READ_BUFFER) {
+            ByteBuffer smaller = ByteBuffer.allocate(INITIAL_READ_BUFFER);
+            readBuffer.flip();
+            smaller.put(readBuffer);
+            readBuffer = smaller;
+        }
+    }
+
+    // Called on the loop thread: write as much queued data as the socket accepts
+    void flush() {
+        flushScheduled.set(false);
+        if (key == null || !key.isValid()) {
+            discardOutbound();
+            currentEntry = null;
+            currentWrite = null;
+            return;
+        }
+        try {
+            while (true) {
+                if (currentWrite == null) {
+                    currentEntry = outbound.poll();
+                    if (currentEntry == null) {
+                        break;
+                    }
+                    if (!frameTaken(currentEntry)) {
+                        continue;
+                    }
+                    currentWrite = ByteBuffer.wrap(currentEntry.frame);
+                }
+                channel.write(currentWrite);
+                if (currentWrite.hasRemaining()) {
+                    // Socket buffer is full - wait for OP_WRITE
+                    key.interestOps(key.interestOps() | SelectionKey.OP_WRITE);
+                    return;
+                }
+                recordFrameOut(currentEntry);
+                currentWrite = null;
+                if (currentEntry.closeAfter) {
+                    cleanup();
+                    return;
+                }
+            }
+            if (key.isValid()) {
+                key.interestOps(key.interestOps() & ~SelectionKey.OP_WRITE);
+            }
+        } catch (IOException e) {
+            Log.warn("Error sending message to {}: {}", username, e.getMessage());
+            connectionLost();
+        } catch (RuntimeException e) {
+            failed(e);
+        }
+    }
+
+    boolean hasPendingOutput() {
+        return currentWrite != null || !outbound.isEmpty();
+    }
+
+    @Override
+    protected void closeTransport() {
+        discardOutbound();
+        try {
+            if (key != null) {
+                key.cancel();
+            }
+            channel.close();
+        } catch (IOException e) {
+            Log.warn("Error during cleanup: {}", e.getMessage());
+        }
+    }
+
+    @Override
+    public long getBufferedBytes() {
+        ByteBuffer pending = currentWrite;
+        return readBuffer.capacity() + outbound.getQueuedBytes() + (pending != null ? pending.remaining() : 0);
+    }
+
+    @Override
+    protected String getRemoteAddress() {
+        Socket socket = channel.socket();
+        return String.valueOf(socket.getInetAddress());
+    }
+}
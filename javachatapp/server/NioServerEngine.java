@@ -0,0 +1,191 @@
+package javachatapp.server;
+
+import javachatapp.shared.Log;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * NioServerEngine accepts connections on a ServerSocketChannel and spreads them
+ * over a small, fixed pool of event loops. Each loop owns a Selector and does
+ * read, decode, route and write for all of its connections, so the number of
+ * server threads no longer grows with the number of clients.
+ */
+public class NioServerEngine {
+
+    private final ChatServer server;
+    private final int port;
+    private final EventLoop[] loops;
+    private ServerSocketChannel serverChannel;
+    private volatile boolean running;
+
+    public NioServerEngine(ChatServer server, int port, int loopCount) {
+        this.server = server;
+        this.port = port;
+        this.loops = new EventLoop[Math.max(1, loopCount)];
+    }
+
+    // Bind the listening socket and start the event loops
+    public void bind() throws IOException {
+        serverChannel = ServerSocketChannel.open();
+        serverChannel.bind(new InetSocketAddress(port));
+        running = true;
+
+        for (int i = 0; i < loops.length; i++) {
+            loops[i] = new EventLoop(i);
+            loops[i].start();
+        }
+    }
+
+    // Accept connections until stopped, handing them to the loops round-robin
+    public void acceptLoop() {
+        int next = 0;
+        while (running) {
+            try {
+                SocketChannel channel = serverChannel.accept();
+                Log.info("New connection from: {}", channel.socket().getInetAddress());
+                channel.configureBlocking(false);
+                channel.socket().setTcpNoDelay(true);
+
+                loops[next].register(channel);
+                next = (next + 1) % loops.length;
+            } catch (IOException e) {
+                if (running) {
+                    Log.warn("Error accepting client connection: {}", e.getMessage());
+                }
+            }
+        }
+    }
+
+    // Stop accepting, flush what is queued and close every connection
+    public void stop() {
+        running = false;
+        try {
+            if (serverChannel != null && serverChannel.isOpen()) {
+                serverChannel.close();
+            }
+        } catch (IOException e) {
+            Log.warn("Error closing server channel: {}", e.getMessage());
+        }
+        for (EventLoop loop : loops) {
+            if (loop != null) {
+                loop.shutdown();
+            }
+        }
+    }
+
+    public int getLoopCount() {
+        return loops.length;
+    }
+
+    /**
+     * A single selector thread. Other threads only talk to it through the
+     * registration and flush queues followed by a selector wakeup.
+     */
+    class EventLoop extends Thread {
+
+        private final Selector selector;
+        private final Queue<SocketChannel> pendingRegistrations = new ConcurrentLinkedQueue<>();
+        private final Queue<NioConnection> pendingFlushes = new ConcurrentLinkedQueue<>();
+        private volatile boolean loopRunning = true;
+
+        EventLoop(int index) throws IOException {
+            super("nio-loop-" + index);
+            setDaemon(true);
+            this.selector = Selector.open();
+        }
+
+        void register(SocketChannel channel) {
+            pendingRegistrations.add(channel);
+            selector.wakeup();
+        }
+
+        // Ask the loop to write a connection's queued frames
+        void scheduleFlush(NioConnection connection) {
+            pendingFlushes.add(connection);
+            if (Thread.currentThread() != this) {
+                selector.wakeup();
+            }
+        }
+
+        void shutdown() {
+            loopRunning = false;
+            selector.wakeup();
+        }
+
+        @Override
+        public void run() {
+            try {
+                while (loopRunning) {
+                    selector.select();
+                    processRegistrations();
+                    processSelectedKeys();
+                    processFlushes();
+                }
+                // Give queued DISCONNECT notifications a last chance to go out
+                processFlushes();
+            } catch (IOException e) {
+                Log.error("Event loop {} failed: {}", getName(), e.getMessage());
+            } finally {
+                closeAll();
+            }
+        }
+
+        private void processRegistrations() {
+            SocketChannel channel;
+            while ((channel = pendingRegistrations.poll()) != null) {
+                NioConnection connection = new NioConnection(channel, this, server);
+                try {
+                    SelectionKey key = channel.register(selector, SelectionKey.OP_READ, connection);
+                    connection.setKey(key);
+                } catch (ClosedChannelException e) {
+                    connection.cleanup();
+                }
+            }
+        }
+
+        private void processSelectedKeys() {
+            Iterator<SelectionKey> it = selector.selectedKeys().iterator();
+            while (it.hasNext()) {
+                SelectionKey key = it.next();
+                it.remove();
+
+                NioConnection connection = (NioConnection) key.attachment();
+                if (key.isValid() && key.isReadable()) {
+                    connection.handleRead();
+                }
+                if (key.isValid() && key.isWritable()) {
+                    connection.flush();
+                }
+            }
+        }
+
+        private void processFlushes() {
+            NioConnection connection;
+            while ((connection = pendingFlushes.poll()) != null) {
+                connection.flush();
+            }
+        }
+
+        private void closeAll() {
+            for (SelectionKey key : selector.keys()) {
+                Object attachment = key.attachment();
+                if (attachment instanceof NioConnection) {
+                    ((NioConnection) attachment).closeTransport();
+                }
+            }
+            try {
+                selector.close();
+            } catch (IOException e) {
+                Log.warn("Error closing selector: {}", e.getMessage());
+            }
+        }
+    }
+}
@@ -0,0 +1,455 @@
+package javachatapp.server;
+
+import javachatapp.shared.BinaryMessageCodec;
+import javachatapp.shared.Log;
+import javachatapp.shared.Message;
+import javachatapp.shared.Message.MessageType;
+import java.io.File;
+import java.io.IOException;
+import java.io.StreamCorruptedException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Function;
+import java.util.zip.CRC32C;
+
+/**
+ * OfflineMailbox keeps private messages for users who are not connected and
+ * hands them over, in the order they were sent, when the user next logs in.
+ * All file work runs on the one "mailbox-io" thread; live private messages
+ * for a user whose stored ones are still being delivered are held back until
+ * they are out, so nothing new overtakes older mail.
+ */
+public class OfflineMailbox {
+
+    public static final int DEFAULT_MAX_MESSAGES = 200;
+    public static final long DEFAULT_MAX_BYTES = 256 * 1024;
+    public static final long DEFAULT_TTL_MILLIS = TimeUnit.DAYS.toMillis(7);
+
+    // How often mailbox files past their TTL are deleted
+    private static final long SWEEP_INTERVAL_MILLIS = TimeUnit.HOURS.toMillis(1);
+
+    private static final int HEADER_LENGTH = HistorySegment.HEADER_LENGTH;
+    private static final String SUFFIX = ".box";
+
+    private final File directory;
+    private final int maxMessages;
+    private final long maxBytes;
+    private final long ttlMillis;
+    private final boolean fsync;
+    private final ScheduledExecutorService io;
+    private volatile Function<String, ClientConnection> online = name -> null;
+
+    // Live messages held back per user until that user's stored messages are delivered
+    private final ConcurrentMap<String, List<Message>> held = new ConcurrentHashMap<>();
+
+    // Size of every mailbox touched since start (io thread only), counted on first use
+    private final Map<String, Usage> usage = new HashMap<>();
+
+    private final AtomicLong stored = new AtomicLong();
+    private final AtomicLong delivered = new AtomicLong();
+    private final AtomicLong rejected = new AtomicLong();
+    private final AtomicLong expired = new AtomicLong();
+
+    private static final class Usage {
+        int count;
+        long bytes;
+    }
+
+    public OfflineMailbox(File directory) throws IOException {
+        this(directory, DEFAULT_MAX_MESSAGES, DEFAULT_MAX_BYTES, DEFAULT_TTL_MILLIS, true);
+    }
+
+    /**
+     * @param maxMessages Messages a mailbox holds before refusing more
+     * @param maxBytes Bytes a mailbox file may grow to
+     * @param ttlMillis Messages older than this are dropped instead of delivered
+     * @param fsync Force every stored message to disk
+     */
+    public OfflineMailbox(File directory, int maxMessages, long maxBytes, long ttlMillis, boolean fsync)
+            throws IOException {
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IOException("Cannot create mailbox directory " + directory);
+        }
+        this.directory = directory;
+        this.maxMessages = maxMessages;
+        this.maxBytes = maxBytes;
+        this.ttlMillis = ttlMillis;
+        this.fsync = fsync;
+        this.io = Executors.newSingleThreadScheduledExecutor(task -> {
+            Thread thread = new Thread(task, "mailbox-io");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    /**
+     * Start delivering and sweeping
+     *
+     * @param online Looks up the connection of a logged-in user (null if offline)
+     */
+    public void start(Function<String, ClientConnection> online) {
+        this.online = online;
+        io.scheduleWithFixedDelay(this::sweep, SWEEP_INTERVAL_MILLIS, SWEEP_INTERVAL_MILLIS, TimeUnit.MILLISECONDS);
+    }
+
+    // Keep a private message for its (offline) recipient
+    public void store(Message message) {
+        long storedAt = System.currentTimeMillis();
+        submit(() -> write(message, storedAt));
+    }
+
+    /**
+     * Start holding back live messages to a user; call before the user can
+     * be found as logged in, then deliver() (or release() if the login fails)
+     */
+    public void hold(String username) {
+        // A hold left by a login that just ended keeps its messages
+        held.putIfAbsent(username, new ArrayList<>());
+    }
+
+    /**
+     * Hold back a live private message while its recipient's stored messages
+     * are being delivered
+     *
+     * @return false if the recipient is not being held; send it directly
+     */
+    public boolean holdBack(Message message) {
+        String recipient = message.getRecipient();
+        // Checked first so routing to everyone else never locks a map bin
+        return held.containsKey(recipient) && held.computeIfPresent(recipient, (name, messages) -> {
+            messages.add(message);
+            return messages;
+        }) != null;
+    }
+
+    // Hand a user's waiting messages over, then the held ones; call once the user is logged in
+    public void deliver(String username) {
+        try {
+            io.execute(() -> {
+                try {
+                    deliverNow(username);
+                } finally {
+                    release(username);
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            // Closed: nothing stored will be delivered, so stop holding
+            release(username);
+        }
+    }
+
+    private void submit(Runnable task) {
+        try {
+            io.execute(task);
+        } catch (RejectedExecutionException e) {
+            // Closed
+        }
+    }
+
+    // Finish pending work and stop (not interrupted: that would close a FileChannel mid-write)
+    public void close() {
+        io.shutdown();
+        try {
+            io.awaitTermination(10, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void write(Message message, long storedAt) {
+        String recipient = message.getRecipient();
+        File file = fileFor(recipient);
+        if (file == null) {
+            Log.warn("Cannot keep messages for {}: name too long for a mailbox file", recipient);
+            return;
+        }
+        byte[] record = encode(message, storedAt);
+        try {
+            Usage box = usageOf(recipient, file);
+            if (isFull(box, record.length) && file.exists()) {
+                // Expired messages may be taking the room
+                compact(file, box);
+            }
+            if (isFull(box, record.length)) {
+                rejected.incrementAndGet();
+                Log.info("Mailbox of {} is full, message from {} refused", recipient, message.getSender());
+                ClientConnection sender = online.apply(message.getSender());
+                if (sender != null) {
+                    sender.sendMessage(new Message(MessageType.ERROR, "Server", message.getSender(), "MAILBOX_FULL"));
+                }
+                return;
+            }
+            try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.CREATE,
+                    StandardOpenOption.WRITE, StandardOpenOption.APPEND)) {
+                ByteBuffer buffer = ByteBuffer.wrap(record);
+                while (buffer.hasRemaining()) {
+                    channel.write(buffer);
+                }
+                if (fsync) {
+                    channel.force(false);
+                }
+            }
+            box.count++;
+            box.bytes += record.length;
+            stored.incrementAndGet();
+        } catch (IOException e) {
+            Log.error("Could not store message for {}: {}", recipient, e.getMessage());
+            return;
+        }
+        // The recipient may have logged in while this was queued (if still held, their deliver() is queued behind)
+        if (online.apply(recipient) != null && !held.containsKey(recipient)) {
+            deliverNow(recipient);
+        }
+    }
+
+    /**
+     * Stop holding: the held messages go to the user, or back into the
+     * mailbox if the user is not logged in. Sending runs inside the map's
+     * compute, so holdBack() waits and a message routed after this is sent
+     * after the held ones.
+     */
+    public void release(String username) {
+        List<Message> offline = new ArrayList<>();
+        held.computeIfPresent(username, (name, messages) -> {
+            ClientConnection connection = online.apply(name);
+            if (connection != null) {
+                for (Message message : messages) {
+                    connection.sendMessage(message);
+                }
+            } else {
+                // Logged out again before delivery finished
+                offline.addAll(messages);
+            }
+            return null;
+        });
+        for (Message message : offline) {
+            store(message);
+        }
+    }
+
+    private boolean isFull(Usage box, int recordLength) {
+        return box.count >= maxMessages || box.bytes + recordLength > maxBytes;
+    }
+
+    private void deliverNow(String username) {
+        File file = fileFor(username);
+        ClientConnection connection = online.apply(username);
+        if (file == null || connection == null || !file.exists()) {
+            return;
+        }
+        List<Message> messages;
+        try {
+            messages = readLive(file);
+        } catch (IOException e) {
+            Log.error("Could not read mailbox of {}: {}", username, e.getMessage());
+            return;
+        }
+        for (Message message : messages) {
+            connection.sendMessage(message);
+        }
+        delivered.addAndGet(messages.size());
+        usage.remove(username);
+        if (!file.delete()) {
+            Log.warn("Could not delete delivered mailbox {}", file);
+        }
+        Log.info("Delivered {} stored messages to {}", messages.size(), username);
+    }
+
+    // Rewrite a mailbox without its expired messages
+    private void compact(File file, Usage box) throws IOException {
+        List<Message> live = new ArrayList<>();
+        List<Long> times = new ArrayList<>();
+        readRecords(file, live, times);
+        long now = System.currentTimeMillis();
+        File temp = new File(directory, file.getName() + ".tmp");
+        Usage kept = new Usage();
+        try (FileChannel channel = FileChannel.open(temp.toPath(), StandardOpenOption.CREATE,
+                StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            for (int i = 0; i < live.size(); i++) {
+                if (now - times.get(i) > ttlMillis) {
+                    expired.incrementAndGet();
+                    continue;
+                }
+                ByteBuffer buffer = ByteBuffer.wrap(encode(live.get(i), times.get(i)));
+                kept.bytes += buffer.remaining();
+                kept.count++;
+                while (buffer.hasRemaining()) {
+                    channel.write(buffer);
+                }
+            }
+            channel.force(false);
+        }
+        Files.move(temp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING,
+                StandardCopyOption.ATOMIC_MOVE);
+        box.count = kept.count;
+        box.bytes = kept.bytes;
+    }
+
+    // Messages within their TTL, in the order they were stored
+    private List<Message> readLive(File file) throws IOException {
+        List<Message> messages = new ArrayList<>();
+        List<Long> times = new ArrayList<>();
+        readRecords(file, messages, times);
+        long now = System.currentTimeMillis();
+        List<Message> live = new ArrayList<>(messages.size());
+        for (int i = 0; i < messages.size(); i++) {
+            if (now - times.get(i) > ttlMillis) {
+                expired.incrementAndGet();
+            } else {
+                live.add(messages.get(i));
+            }
+        }
+        return live;
+    }
+
+    /**
+     * Size of a mailbox, counted from its file the first time it is used in
+     * this run. A torn record left by a crash is cut off here, before
+     * anything is appended after it.
+     */
+    private Usage usageOf(String username, File file) throws IOException {
+        Usage box = usage.get(username);
+        if (box != null) {
+            return box;
+        }
+        box = new Usage();
+        if (file.exists()) {
+            List<Message> messages = new ArrayList<>();
+            long validLength = readRecords(file, messages, new ArrayList<>());
+            if (validLength < file.length()) {
+                Log.warn("Mailbox {} has a torn record, cutting it off", file.getName());
+                try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.WRITE)) {
+                    channel.truncate(validLength);
+                }
+            }
+            box.count = messages.size();
+            box.bytes = validLength;
+        }
+        usage.put(username, box);
+        return box;
+    }
+
+    /**
+     * Read every intact record of a mailbox file
+     *
+     * @return Length of the file up to the end of the last intact record
+     */
+    private static long readRecords(File file, List<Message> messages, List<Long> times) throws IOException {
+        byte[] data = Files.readAllBytes(file.toPath());
+        ByteBuffer buffer = ByteBuffer.wrap(data);
+        CRC32C crc = new CRC32C();
+        int position = 0;
+        while (data.length - position >= HEADER_LENGTH) {
+            int payloadLength = buffer.getInt(position);
+            int checksum = buffer.getInt(position + 4);
+            if (payloadLength < 0 || payloadLength > data.length - position - HEADER_LENGTH) {
+                break;
+            }
+            crc.reset();
+            crc.update(data, position + 8, 8 + payloadLength);
+            if ((int) crc.getValue() != checksum) {
+                break;
+            }
+            try {
+                messages.add(BinaryMessageCodec.decode(data, position + HEADER_LENGTH, payloadLength));
+            } catch (StreamCorruptedException e) {
+                break;
+            }
+            times.add(buffer.getLong(position + 8));
+            position += HEADER_LENGTH + payloadLength;
+        }
+        return position;
+    }
+
+    private static byte[] encode(Message message, long storedAt) {
+        byte[] payload = BinaryMessageCodec.encode(message);
+        ByteBuffer record = ByteBuffer.allocate(HEADER_LENGTH + payload.length);
+        record.putInt(payload.length);
+        record.putInt(0); // Checksum, filled in below
+        record.putLong(storedAt);
+        record.put(payload);
+        CRC32C crc = new CRC32C();
+        crc.update(record.array(), 8, 8 + payload.length);
+        record.putInt(4, (int) crc.getValue());
+        return record.array();
+    }
+
+    // Delete mailboxes whose newest message is past the TTL
+    private void sweep() {
+        File[] files = directory.listFiles((dir, name) -> name.endsWith(SUFFIX));
+        if (files == null) {
+            return;
+        }
+        long now = System.currentTimeMillis();
+        int deleted = 0;
+        for (File file : files) {
+            if (now - file.lastModified() > ttlMillis && file.delete()) {
+                deleted++;
+                String name = usernameOf(file);
+                if (name != null) {
+                    usage.remove(name);
+                }
+            }
+        }
+        if (deleted > 0) {
+            Log.info("Deleted {} expired mailboxes", deleted);
+        }
+    }
+
+    // Mailbox file of a user: the name in URL-safe Base64 (any username is a valid file name)
+    private File fileFor(String username) {
+        if (username == null) {
+            return null;
+        }
+        String name = Base64.getUrlEncoder().withoutPadding()
+                .encodeToString(username.getBytes(StandardCharsets.UTF_8));
+        return name.length() + SUFFIX.length() <= 255 ? new File(directory, name + SUFFIX) : null;
+    }
+
+    private static String usernameOf(File file) {
+        String name = file.getName();
+        try {
+            byte[] bytes = Base64.getUrlDecoder().decode(name.substring(0, name.length() - SUFFIX.length()));
+            return new String(bytes, StandardCharsets.UTF_8);
+        } catch (IllegalArgumentException e) {
+            return null;
+        }
+    }
+
+    public File getDirectory() {
+        return directory;
+    }
+
+    // Messages stored, delivered, refused because a mailbox was full, and dropped after their TTL
+    public long getStoredCount() {
+        return stored.get();
+    }
+
+    public long getDeliveredCount() {
+        return delivered.get();
+    }
+
+    public long getRejectedCount() {
+        return rejected.get();
+    }
+
+    public long getExpiredCount() {
+        return expired.get();
+    }
+}
@@ -0,0 +1,202 @@
+package javachatapp.server;
+
+import javachatapp.shared.Message.MessageType;
+import java.util.Iterator;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * OutboundQueue is the bounded per-connection queue of frames waiting to be
+ * written. Senders (routeMessage, broadcast) only enqueue and return; the
+ * connection's writer (a writer thread or the NIO event loop) drains it.
+ *
+ * Depth, enqueue latency and drop counts are tracked per connection. The
+ * eviction helpers are used by the server's SlowConsumerPolicy.
+ */
+public class OutboundQueue {
+
+    /**
+     * A queued frame: the shared encoded message plus the frame bytes for this
+     * connection's protocol version.
+     */
+    public static final class Entry {
+
+        final EncodedMessage message;
+        final byte[] frame;
+        final long enqueuedAt;
+        final boolean closeAfter; // Close the connection once this frame is written
+
+        Entry(EncodedMessage message, byte[] frame, long enqueuedAt, boolean closeAfter) {
+            this.message = message;
+            this.frame = frame;
+            this.enqueuedAt = enqueuedAt;
+            this.closeAfter = closeAfter;
+        }
+
+        MessageType type() {
+            return message.getMessage().getType();
+        }
+    }
+
+    private final ArrayBlockingQueue<Entry> queue;
+    private final int capacity;
+
+    private final AtomicLong queuedBytes = new AtomicLong();
+    private final AtomicLong enqueued = new AtomicLong();
+    private final AtomicLong dropped = new AtomicLong();
+    private final AtomicLong enqueueNanosTotal = new AtomicLong();
+    private volatile long enqueueNanosMax;
+    private volatile int maxDepth;
+
+    public OutboundQueue(int capacity) {
+        this.capacity = capacity;
+        this.queue = new ArrayBlockingQueue<>(capacity);
+    }
+
+    /**
+     * Add a frame without blocking
+     *
+     * @return false if the queue was full and the frame was dropped
+     */
+    public boolean offer(EncodedMessage message, byte[] frame) {
+        return offer(message, frame, false);
+    }
+
+    /**
+     * Add a frame without blocking
+     *
+     * @param closeAfter true if the writer should close the connection after
+     * writing this frame
+     * @return false if the queue was full and the frame was dropped
+     */
+    public boolean offer(EncodedMessage message, byte[] frame, boolean closeAfter) {
+        long start = System.nanoTime();
+        boolean added = queue.offer(new Entry(message, frame, start, closeAfter));
+        long elapsed = System.nanoTime() - start;
+
+        if (!added) {
+            dropped.incrementAndGet();
+            return false;
+        }
+
+        queuedBytes.addAndGet(frame.length);
+        enqueued.incrementAndGet();
+        enqueueNanosTotal.addAndGet(elapsed);
+        if (elapsed > enqueueNanosMax) {
+            enqueueNanosMax = elapsed;
+        }
+        int depth = queue.size();
+        if (depth > maxDepth) {
+            maxDepth = depth;
+        }
+        return true;
+    }
+
+    // Block until a frame is available (writer thread)
+    public Entry take() throws InterruptedException {
+        return removed(queue.take());
+    }
+
+    // Next frame or null if empty (event loop)
+    public Entry poll() {
+        return removed(queue.poll());
+    }
+
+    private Entry removed(Entry entry) {
+        if (entry != null) {
+            queuedBytes.addAndGet(-entry.frame.length);
+        }
+        return entry;
+    }
+
+    /**
+     * Evict the oldest queued chat message (TEXT, PRIVATE_MESSAGE, BROADCAST).
+     * Control frames such as USER_LIST or ERROR are never evicted.
+     *
+     * @return true if a frame was evicted
+     */
+    public boolean dropOldestChat() {
+        Iterator<Entry> it = queue.iterator();
+        while (it.hasNext()) {
+            Entry entry = it.next();
+            // remove() re-checks under the queue lock, the writer may have taken it already
+            if (isChat(entry.type()) && queue.remove(entry)) {
+                queuedBytes.addAndGet(-entry.frame.length);
+                dropped.incrementAndGet();
+                return true;
+            }
+        }
+        return false;
+    }
+
+    // Remove every queued roster frame (snapshots and deltas), they are about
+    // to be superseded by a fresh snapshot
+    public int removeRosterUpdates() {
+        int removed = 0;
+        Iterator<Entry> it = queue.iterator();
+        while (it.hasNext()) {
+            Entry entry = it.next();
+            if (isRosterUpdate(entry.type()) && queue.remove(entry)) {
+                queuedBytes.addAndGet(-entry.frame.length);
+                removed++;
+            }
+        }
+        return removed;
+    }
+
+    // Count a frame that a policy decided not to queue
+    public void recordDrop() {
+        dropped.incrementAndGet();
+    }
+
+    public static boolean isChat(MessageType type) {
+        return type == MessageType.TEXT || type == MessageType.PRIVATE_MESSAGE || type == MessageType.BROADCAST
+                || type == MessageType.ROOM_MESSAGE;
+    }
+
+    public static boolean isRosterUpdate(MessageType type) {
+        return type == MessageType.USER_LIST || type == MessageType.USER_JOINED || type == MessageType.USER_LEFT;
+    }
+
+    public boolean isEmpty() {
+        return queue.isEmpty();
+    }
+
+    public void clear() {
+        queue.clear();
+        queuedBytes.set(0);
+    }
+
+    public int getDepth() {
+        return queue.size();
+    }
+
+    public int getCapacity() {
+        return capacity;
+    }
+
+    public int getMaxDepth() {
+        return maxDepth;
+    }
+
+    public long getQueuedBytes() {
+        return queuedBytes.get();
+    }
+
+    public long getEnqueuedCount() {
+        return enqueued.get();
+    }
+
+    public long getDroppedCount() {
+        return dropped.get();
+    }
+
+    public long getMaxEnqueueNanos() {
+        return enqueueNanosMax;
+    }
+
+    public double getAverageEnqueueNanos() {
+        long count = enqueued.get();
+        return count == 0 ? 0 : (double) enqueueNanosTotal.get() / count;
+    }
+}
@@ -0,0 +1,134 @@
+package javachatapp.server;
+
+import javachatapp.shared.Message;
+import javachatapp.shared.Message.MessageType;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * PresenceAggregator batches join/leave events. The first event of a window
+ * schedules a flush on the server timer; everything recorded until then goes
+ * out as one roster update and one "System" notification, instead of one
+ * of each per user. During a reconnect storm of N users that is a handful of
+ * frames per client per window rather than N.
+ *
+ * A window of 0 publishes every event immediately.
+ *
+ * Recording takes no lock, so logins on many threads do not queue up here:
+ * events go into a lock-free queue and a compare-and-set decides which
+ * event schedules the flush.
+ */
+class PresenceAggregator {
+
+    // Names listed in a notification before it switches to "and N others"
+    private static final int MAX_NAMES_IN_NOTIFICATION = 5;
+
+    private final ChatServer server;
+    private final ConcurrentLinkedQueue<String> pending = new ConcurrentLinkedQueue<>();
+    private final AtomicBoolean flushScheduled = new AtomicBoolean();
+    private volatile long windowMillis;
+    private final AtomicLong notifications = new AtomicLong();
+
+    PresenceAggregator(ChatServer server, long windowMillis) {
+        this.server = server;
+        this.windowMillis = windowMillis;
+    }
+
+    // A user joined or left; the client map already reflects the change
+    void record(String username) {
+        long window = windowMillis;
+        if (window <= 0) {
+            publish(Collections.singleton(username));
+            return;
+        }
+        pending.add(username);
+        if (flushScheduled.compareAndSet(false, true)) {
+            server.schedule(this::flush, window);
+        }
+    }
+
+    // Publish everything recorded in the current window
+    void flush() {
+        // Cleared first: an event the drain below misses schedules the next flush
+        flushScheduled.set(false);
+        Set<String> batch = new LinkedHashSet<>();
+        String username;
+        while ((username = pending.poll()) != null) {
+            batch.add(username);
+        }
+        if (!batch.isEmpty()) {
+            publish(batch);
+        }
+    }
+
+    private void publish(Set<String> usernames) {
+        List<String> joined = new ArrayList<>();
+        List<String> left = new ArrayList<>();
+        server.publishPresence(usernames, joined, left);
+
+        String text = describe(joined, left);
+        if (text != null) {
+            notifications.incrementAndGet();
+            server.broadcastNotice(new Message(MessageType.BROADCAST, "System", "Broadcast", text));
+        }
+    }
+
+    /**
+     * Notification text for one window, e.g. "alice has joined the chat" or
+     * "alice, bob and 48 others have joined the chat; carol has left the chat"
+     *
+     * @return null if nothing changed
+     */
+    static String describe(List<String> joined, List<String> left) {
+        StringBuilder text = new StringBuilder();
+        if (!joined.isEmpty()) {
+            appendNames(text, joined);
+            text.append(joined.size() == 1 ? " has" : " have").append(" joined the chat");
+        }
+        if (!left.isEmpty()) {
+            if (text.length() > 0) {
+                text.append("; ");
+            }
+            appendNames(text, left);
+            text.append(left.size() == 1 ? " has" : " have").append(" left the chat");
+        }
+        return text.length() > 0 ? text.toString() : null;
+    }
+
+    private static void appendNames(StringBuilder text, List<String> names) {
+        int listed = names.size() > MAX_NAMES_IN_NOTIFICATION ? MAX_NAMES_IN_NOTIFICATION : names.size() - 1;
+        for (int i = 0; i < listed; i++) {
+            if (i > 0) {
+                text.append(", ");
+            }
+            text.append(names.get(i));
+        }
+        if (listed > 0) {
+            text.append(" and ");
+        }
+        int rest = names.size() - listed;
+        text.append(rest == 1 ? names.get(listed) : rest + " others");
+    }
+
+    void setWindowMillis(long millis) {
+        if (millis < 0) {
+            throw new IllegalArgumentException("Presence window must not be negative: " + millis);
+        }
+        this.windowMillis = millis;
+    }
+
+    long getWindowMillis() {
+        return windowMillis;
+    }
+
+    // Combined join/leave notifications sent so far
+    long getNotificationCount() {
+        return notifications.get();
+    }
+}
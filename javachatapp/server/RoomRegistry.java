@@ -0,0 +1,110 @@
+package javachatapp.server;
+
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * RoomRegistry is the routing index for rooms: room name to the
+ * connections of its members.
+ *
+ * Each room's members are a copy-on-write array. Joining or leaving copies
+ * the array (under the map's per-key lock, so concurrent changes to one room
+ * never lose each other); sending reads the current array without locking
+ * or allocating, so a room message costs O(members) whatever the size of
+ * the server. Joins and leaves are rare next to messages, which is what
+ * copy-on-write is for.
+ *
+ * A room exists while it has members: the first join creates it and the
+ * last leave removes it.
+ */
+class RoomRegistry {
+
+    private static final ClientConnection[] EMPTY = new ClientConnection[0];
+
+    private final ConcurrentMap<String, Room> rooms = new ConcurrentHashMap<>();
+
+    static final class Room {
+
+        private final String name;
+        private volatile ClientConnection[] members = EMPTY;
+
+        Room(String name) {
+            this.name = name;
+        }
+
+        String getName() {
+            return name;
+        }
+
+        // Current members; the array is never modified, only replaced
+        ClientConnection[] getMembers() {
+            return members;
+        }
+
+        boolean contains(ClientConnection connection) {
+            for (ClientConnection member : members) {
+                if (member == connection) {
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        // Writers run inside ConcurrentHashMap.compute for this room's key
+        private boolean add(ClientConnection connection) {
+            if (contains(connection)) {
+                return false;
+            }
+            ClientConnection[] current = members;
+            ClientConnection[] next = Arrays.copyOf(current, current.length + 1);
+            next[current.length] = connection;
+            members = next;
+            return true;
+        }
+
+        private boolean remove(ClientConnection connection) {
+            ClientConnection[] current = members;
+            for (int i = 0; i < current.length; i++) {
+                if (current[i] == connection) {
+                    ClientConnection[] next = new ClientConnection[current.length - 1];
+                    System.arraycopy(current, 0, next, 0, i);
+                    System.arraycopy(current, i + 1, next, i, current.length - i - 1);
+                    members = next;
+                    return true;
+                }
+            }
+            return false;
+        }
+    }
+
+    // Add a connection to a room, creating it; false if it was already a member
+    boolean join(String name, ClientConnection connection) {
+        boolean[] added = new boolean[1];
+        rooms.compute(name, (key, room) -> {
+            Room target = room != null ? room : new Room(key);
+            added[0] = target.add(connection);
+            return target;
+        });
+        return added[0];
+    }
+
+    // Remove a connection from a room, dropping the room once it is empty
+    boolean leave(String name, ClientConnection connection) {
+        boolean[] removed = new boolean[1];
+        rooms.computeIfPresent(name, (key, room) -> {
+            removed[0] = room.remove(connection);
+            return room.members.length == 0 ? null : room;
+        });
+        return removed[0];
+    }
+
+    // The room, or null if nobody is in it
+    Room get(String name) {
+        return rooms.get(name);
+    }
+
+    int getRoomCount() {
+        return rooms.size();
+    }
+}
@@ -1,5 +1,6 @@
 package javachatapp.server;
 
+import javachatapp.shared.Message.MessageType;
 import javafx.animation.KeyFrame;
 import javafx.animation.Timeline;
 import javafx.application.Application;
@@ -9,9 +10,12 @@ import javafx.geometry.Pos;
 import javafx.scene.Scene;
 import javafx.scene.control.Alert;
 import javafx.scene.control.Button;
+import javafx.scene.control.ComboBox;
 import javafx.scene.control.Label;
 import javafx.scene.control.Separator;
 import javafx.scene.control.TextField;
+import javafx.scene.control.TitledPane;
+import javafx.scene.layout.GridPane;
 import javafx.scene.layout.HBox;
 import javafx.scene.layout.Priority;
 import javafx.scene.layout.VBox;
@@ -26,20 +30,40 @@ public class ServerFXApp extends Application {
     private HostServer serverGUI;
 
     private TextField portField;
+    private ComboBox<ChatServer.ServerMode> modeBox;
+    private ComboBox<ChatServer.SlowConsumerPolicy> policyBox;
     private Label statusLabel;
     private Label clientCountLabel;
+    private Label slowConsumerLabel;
     private Button startButton;
     private Button stopButton;
 
     private Timeline clientCountTimeline;
 
+    // Metrics dashboard, refreshed at a throttled rate while running
+    private static final Duration METRICS_REFRESH = Duration.millis(500);
+    private Timeline metricsTimeline;
+    private Label messagesLabel;
+    private Label bytesLabel;
+    private Label typesLabel;
+    private Label routeLatencyLabel;
+    private Label fanoutLabel;
+    private Label queueDepthLabel;
+    private long lastMessagesIn;
+    private long lastMessagesOut;
+    private long lastBytesIn;
+    private long lastBytesOut;
+    private long lastRefreshNanos;
+    private Histogram.Snapshot lastRouteLatency;
+    private Histogram.Snapshot lastFanoutTime;
+
     @Override
     public void start(Stage primaryStage) {
         this.serverGUI = new HostServer();
 
         VBox root = buildLayout();
 
-        Scene scene = new Scene(root, 420, 200);
+        Scene scene = new Scene(root, 520, 480);
         primaryStage.setTitle("Java Chat Server");
         primaryStage.setScene(scene);
         primaryStage.setMinWidth(380);
@@ -49,6 +73,7 @@ public class ServerFXApp extends Application {
         primaryStage.setOnCloseRequest(event -> {
             stopServer();
             stopClientCountUpdater();
+            stopMetricsUpdater();
             Platform.exit();
         });
 
@@ -74,6 +99,22 @@ public class ServerFXApp extends Application {
         HBox.setHgrow(portField, Priority.NEVER);
         portBox.getChildren().addAll(portLabel, portField);
 
+        // Connection engine selection
+        modeBox = new ComboBox<>();
+        modeBox.getItems().setAll(ChatServer.ServerMode.values());
+        modeBox.setValue(ChatServer.ServerMode.THREAD_PER_CLIENT);
+
+        HBox modeRow = new HBox(10, new Label("Engine:"), modeBox);
+        modeRow.setAlignment(Pos.CENTER_LEFT);
+
+        // What to do with clients that stop reading
+        policyBox = new ComboBox<>();
+        policyBox.getItems().setAll(ChatServer.SlowConsumerPolicy.values());
+        policyBox.setValue(ChatServer.SlowConsumerPolicy.DROP_NEWEST);
+
+        HBox policyRow = new HBox(10, new Label("Slow clients:"), policyBox);
+        policyRow.setAlignment(Pos.CENTER_LEFT);
+
         // Start / Stop buttons
         startButton = new Button("Start Server");
         stopButton = new Button("Stop Server");
@@ -88,13 +129,38 @@ public class ServerFXApp extends Application {
         // Status labels
         statusLabel = new Label("Status: Stopped");
         clientCountLabel = new Label("Connected clients: 0");
+        slowConsumerLabel = new Label("Slow consumers: 0 (disconnected: 0)");
 
-        VBox infoBox = new VBox(5, statusLabel, clientCountLabel);
+        VBox infoBox = new VBox(5, statusLabel, clientCountLabel, slowConsumerLabel);
 
-        root.getChildren().addAll(portBox, buttonBox, new Separator(), infoBox);
+        root.getChildren().addAll(portBox, modeRow, policyRow, buttonBox, new Separator(), infoBox, buildMetricsPanel());
         return root;
     }
 
+    // Live metrics: rates over the last refresh interval, percentiles over the same window
+    private TitledPane buildMetricsPanel() {
+        messagesLabel = new Label("-");
+        bytesLabel = new Label("-");
+        typesLabel = new Label("-");
+        routeLatencyLabel = new Label("-");
+        fanoutLabel = new Label("-");
+        queueDepthLabel = new Label("-");
+
+        GridPane grid = new GridPane();
+        grid.setHgap(10);
+        grid.setVgap(4);
+        grid.addRow(0, new Label("Messages/s:"), messagesLabel);
+        grid.addRow(1, new Label("Bytes/s:"), bytesLabel);
+        grid.addRow(2, new Label("By type:"), typesLabel);
+        grid.addRow(3, new Label("Route latency:"), routeLatencyLabel);
+        grid.addRow(4, new Label("Fan-out time:"), fanoutLabel);
+        grid.addRow(5, new Label("Queue depth:"), queueDepthLabel);
+
+        TitledPane panel = new TitledPane("Metrics", grid);
+        panel.setCollapsible(false);
+        return panel;
+    }
+
     // Attempt to start the server using the port in the text field.
     private void startServer() {
         String portText = portField.getText() != null
@@ -113,7 +179,8 @@ public class ServerFXApp extends Application {
 
         int port = Integer.parseInt(portText);
 
-        boolean started = serverGUI.startServer(port);
+        serverGUI.setSlowConsumerPolicy(policyBox.getValue());
+        boolean started = serverGUI.startServer(port, modeBox.getValue());
         if (!started) {
             showError("Start Failed", "Could not start server on port " + port + ".\n"
                     + "The port might already be in use or unavailable.");
@@ -121,12 +188,16 @@ public class ServerFXApp extends Application {
         }
 
         // Update UI state
-        statusLabel.setText("Status: Running on port " + serverGUI.getCurrentPort());
+        statusLabel.setText("Status: Running on port " + serverGUI.getCurrentPort()
+                + " (" + modeBox.getValue() + ")");
         startButton.setDisable(true);
         portField.setDisable(true);
+        modeBox.setDisable(true);
+        policyBox.setDisable(true);
         stopButton.setDisable(false);
 
         startClientCountUpdater();
+        startMetricsUpdater();
 
         // Show success message
         showInfo("Server Started", "Server successfully started on port " + port);
@@ -140,12 +211,17 @@ public class ServerFXApp extends Application {
             wasRunning = true;
         }
 
+        stopMetricsUpdater();
+
         // Reset labels even if it wasn't running
         statusLabel.setText("Status: Stopped");
         clientCountLabel.setText("Connected clients: 0");
+        slowConsumerLabel.setText("Slow consumers: 0 (disconnected: 0)");
 
         startButton.setDisable(false);
         portField.setDisable(false);
+        modeBox.setDisable(false);
+        policyBox.setDisable(false);
         stopButton.setDisable(true);
 
         // Show confirmation if server was actually running
@@ -181,11 +257,94 @@ public class ServerFXApp extends Application {
         if (serverGUI != null && serverGUI.isServerRunning()) {
             int clientCount = serverGUI.getClientCount();
             clientCountLabel.setText("Connected clients: " + clientCount);
+            slowConsumerLabel.setText("Slow consumers: " + serverGUI.getSlowConsumerEvents()
+                    + " (disconnected: " + serverGUI.getSlowConsumerDisconnects() + ")");
         } else {
             clientCountLabel.setText("Connected clients: 0");
         }
     }
 
+    private void startMetricsUpdater() {
+        stopMetricsUpdater();
+
+        ServerMetrics metrics = serverGUI.getMetrics();
+        lastMessagesIn = metrics.getMessagesIn();
+        lastMessagesOut = metrics.getMessagesOut();
+        lastBytesIn = metrics.getBytesIn();
+        lastBytesOut = metrics.getBytesOut();
+        lastRouteLatency = metrics.getRouteLatency().snapshot();
+        lastFanoutTime = metrics.getFanoutTime().snapshot();
+        lastRefreshNanos = System.nanoTime();
+
+        metricsTimeline = new Timeline(new KeyFrame(METRICS_REFRESH, event -> updateMetrics()));
+        metricsTimeline.setCycleCount(Timeline.INDEFINITE);
+        metricsTimeline.play();
+    }
+
+    private void stopMetricsUpdater() {
+        if (metricsTimeline != null) {
+            metricsTimeline.stop();
+            metricsTimeline = null;
+        }
+        for (Label label : new Label[]{messagesLabel, bytesLabel, typesLabel, routeLatencyLabel, fanoutLabel, queueDepthLabel}) {
+            label.setText("-");
+        }
+    }
+
+    // Read a metrics snapshot and render the interval since the previous one
+    private void updateMetrics() {
+        ServerMetrics metrics = serverGUI.getMetrics();
+        if (metrics == null || !serverGUI.isServerRunning()) {
+            return;
+        }
+        long now = System.nanoTime();
+        double seconds = Math.max(1e-3, (now - lastRefreshNanos) / 1e9);
+        lastRefreshNanos = now;
+
+        long messagesIn = metrics.getMessagesIn();
+        long messagesOut = metrics.getMessagesOut();
+        long bytesIn = metrics.getBytesIn();
+        long bytesOut = metrics.getBytesOut();
+        messagesLabel.setText(String.format("in %,.0f  out %,.0f",
+                (messagesIn - lastMessagesIn) / seconds, (messagesOut - lastMessagesOut) / seconds));
+        bytesLabel.setText(String.format("in %,.0f  out %,.0f",
+                (bytesIn - lastBytesIn) / seconds, (bytesOut - lastBytesOut) / seconds));
+        lastMessagesIn = messagesIn;
+        lastMessagesOut = messagesOut;
+        lastBytesIn = bytesIn;
+        lastBytesOut = bytesOut;
+
+        StringBuilder types = new StringBuilder();
+        for (MessageType type : MessageType.values()) {
+            long in = metrics.getMessagesIn(type);
+            long out = metrics.getMessagesOut(type);
+            if (in > 0 || out > 0) {
+                types.append(String.format("%s %,d/%,d  ", type, in, out));
+            }
+        }
+        typesLabel.setText(types.length() > 0 ? types.toString().trim() : "-");
+
+        Histogram.Snapshot route = metrics.getRouteLatency().snapshot();
+        routeLatencyLabel.setText(formatLatency(route.since(lastRouteLatency)));
+        lastRouteLatency = route;
+
+        Histogram.Snapshot fanout = metrics.getFanoutTime().snapshot();
+        fanoutLabel.setText(formatLatency(fanout.since(lastFanoutTime)));
+        lastFanoutTime = fanout;
+
+        Histogram.Snapshot depths = serverGUI.getQueueDepths();
+        queueDepthLabel.setText(String.format("p50 %d  p99 %d  max %d frames",
+                depths.getP50(), depths.getP99(), depths.getMax()));
+    }
+
+    private static String formatLatency(Histogram.Snapshot snapshot) {
+        if (snapshot.getCount() == 0) {
+            return "-";
+        }
+        return String.format("p50 %.2f  p99 %.2f  p999 %.2f ms (%,d)",
+                snapshot.getP50() / 1e6, snapshot.getP99() / 1e6, snapshot.getP999() / 1e6, snapshot.getCount());
+    }
+
     // Show an error dialog with the given title and message.
     private void showError(String title, String message) {
         Alert alert = new Alert(Alert.AlertType.ERROR);
@@ -0,0 +1,124 @@
+package javachatapp.server;
+
+import javachatapp.shared.Message.MessageType;
+import java.util.Collection;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * ServerMetrics is the server-wide instrumentation registry: message and
+ * byte counters per direction and type, and histograms for route latency
+ * (frame decoded to the last recipient's write, for a sample of messages)
+ * and broadcast fan-out time (enqueueing to every recipient). All recording is lock-free; counters are
+ * striped LongAdders so concurrent connections do not contend.
+ *
+ * Readers take snapshots; nothing is aggregated on the message path.
+ */
+public class ServerMetrics {
+
+    private static final MessageType[] TYPES = MessageType.values();
+
+    private final LongAdder[] messagesIn = newCounters();
+    private final LongAdder[] messagesOut = newCounters();
+    private final LongAdder bytesIn = new LongAdder();
+    private final LongAdder bytesOut = new LongAdder();
+    private final LongAdder dropped = new LongAdder();
+    private final Histogram routeLatency = new Histogram();
+    private final Histogram fanoutTime = new Histogram();
+    private final long startedAt = System.currentTimeMillis();
+
+    private static LongAdder[] newCounters() {
+        LongAdder[] counters = new LongAdder[TYPES.length];
+        for (int i = 0; i < counters.length; i++) {
+            counters[i] = new LongAdder();
+        }
+        return counters;
+    }
+
+    void recordMessageIn(MessageType type) {
+        messagesIn[type.ordinal()].increment();
+    }
+
+    void recordBytesIn(long bytes) {
+        bytesIn.add(bytes);
+    }
+
+    void recordFrameOut(MessageType type, int frameLength) {
+        messagesOut[type.ordinal()].increment();
+        bytesOut.add(frameLength);
+    }
+
+    // A frame was dropped or evicted from a client's outbound queue
+    void recordDrop() {
+        dropped.increment();
+    }
+
+    void recordRouteLatency(long nanos) {
+        routeLatency.record(nanos);
+    }
+
+    void recordFanoutTime(long nanos) {
+        fanoutTime.record(nanos);
+    }
+
+    public long getMessagesIn(MessageType type) {
+        return messagesIn[type.ordinal()].sum();
+    }
+
+    public long getMessagesOut(MessageType type) {
+        return messagesOut[type.ordinal()].sum();
+    }
+
+    public long getMessagesIn() {
+        return total(messagesIn);
+    }
+
+    public long getMessagesOut() {
+        return total(messagesOut);
+    }
+
+    public long getBytesIn() {
+        return bytesIn.sum();
+    }
+
+    public long getBytesOut() {
+        return bytesOut.sum();
+    }
+
+    // Frames dropped by full queues and slow-consumer policies, all connections
+    public long getDroppedFrames() {
+        return dropped.sum();
+    }
+
+    // Frame decoded to last recipient write, in nanoseconds
+    public Histogram getRouteLatency() {
+        return routeLatency;
+    }
+
+    // Time to enqueue a broadcast for every recipient, in nanoseconds
+    public Histogram getFanoutTime() {
+        return fanoutTime;
+    }
+
+    public long getStartedAt() {
+        return startedAt;
+    }
+
+    /**
+     * Outbound queue depths across connections right now (values are frames)
+     */
+    public static Histogram.Snapshot queueDepths(Collection<ClientConnection> connections) {
+        Histogram depths = new Histogram();
+        for (ClientConnection connection : connections) {
+            depths.record(connection.getOutboundQueue().getDepth());
+        }
+        return depths.snapshot();
+    }
+
+    private static long total(LongAdder[] counters) {
+        long total = 0;
+        for (LongAdder counter : counters) {
+            total += counter.sum();
+        }
+        return total;
+    }
+}
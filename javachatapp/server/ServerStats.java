@@ -0,0 +1,281 @@
+package javachatapp.server;
+
+import javachatapp.shared.Message.MessageType;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.Locale;
+
+/**
+ * ServerStats exports a ChatServer's runtime statistics for headless
+ * monitoring: as a platform MBean (ServerStatsMBean) and as plain text
+ * ("name value" lines, Prometheus style) for the StatsListener.
+ *
+ * sample() runs on the server timer once per interval and computes the
+ * message rates and the fan-out/route latency percentiles of that interval;
+ * readers only see the latest sample, so scraping costs the server nothing
+ * on the message path.
+ */
+public class ServerStats implements ServerStatsMBean {
+
+    // Interval over which rates and percentiles are computed
+    public static final long INTERVAL_MILLIS = 5000;
+
+    private final ChatServer server;
+    private final ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+
+    // State of the previous sample
+    private long lastSampleNanos = System.nanoTime();
+    private long lastMessagesIn;
+    private long lastMessagesOut;
+    private Histogram.Snapshot lastFanout;
+    private Histogram.Snapshot lastRoute;
+
+    // Latest sample, read by JMX and the text listener
+    private volatile double messagesInPerSecond;
+    private volatile double messagesOutPerSecond;
+    private volatile Histogram.Snapshot fanout;
+    private volatile Histogram.Snapshot route;
+    private volatile int serverThreads;
+
+    public ServerStats(ChatServer server) {
+        this.server = server;
+        sample();
+    }
+
+    // Take a new interval sample (server timer thread; callers may also close an interval early)
+    public synchronized void sample() {
+        ServerMetrics metrics = server.getMetrics();
+        long now = System.nanoTime();
+        double seconds = Math.max(1e-3, (now - lastSampleNanos) / 1e9);
+
+        long messagesIn = metrics.getMessagesIn();
+        long messagesOut = metrics.getMessagesOut();
+        messagesInPerSecond = (messagesIn - lastMessagesIn) / seconds;
+        messagesOutPerSecond = (messagesOut - lastMessagesOut) / seconds;
+
+        Histogram.Snapshot fanoutNow = metrics.getFanoutTime().snapshot();
+        Histogram.Snapshot routeNow = metrics.getRouteLatency().snapshot();
+        fanout = fanoutNow.since(lastFanout);
+        route = routeNow.since(lastRoute);
+
+        serverThreads = countServerThreads();
+
+        lastSampleNanos = now;
+        lastMessagesIn = messagesIn;
+        lastMessagesOut = messagesOut;
+        lastFanout = fanoutNow;
+        lastRoute = routeNow;
+    }
+
+    // Platform threads the connection engine is using (virtual threads are not listed)
+    private static int countServerThreads() {
+        int count = 0;
+        for (Thread thread : Thread.getAllStackTraces().keySet()) {
+            String name = thread.getName();
+            if (name.startsWith("client-handler") || name.startsWith("client-writer")
+                    || name.startsWith("nio-loop")) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    @Override
+    public String getMode() {
+        return server.getMode().name();
+    }
+
+    @Override
+    public int getPort() {
+        return server.getPort();
+    }
+
+    @Override
+    public long getUptimeSeconds() {
+        return (System.currentTimeMillis() - server.getMetrics().getStartedAt()) / 1000;
+    }
+
+    @Override
+    public int getConnectedClients() {
+        return server.getClientCount();
+    }
+
+    @Override
+    public int getOpenConnections() {
+        return server.getConnectionCount();
+    }
+
+    @Override
+    public long getMessagesIn() {
+        return server.getMetrics().getMessagesIn();
+    }
+
+    @Override
+    public long getMessagesOut() {
+        return server.getMetrics().getMessagesOut();
+    }
+
+    @Override
+    public double getMessagesInPerSecond() {
+        return messagesInPerSecond;
+    }
+
+    @Override
+    public double getMessagesOutPerSecond() {
+        return messagesOutPerSecond;
+    }
+
+    @Override
+    public long getBytesIn() {
+        return server.getMetrics().getBytesIn();
+    }
+
+    @Override
+    public long getBytesOut() {
+        return server.getMetrics().getBytesOut();
+    }
+
+    @Override
+    public long getDroppedMessages() {
+        return server.getMetrics().getDroppedFrames();
+    }
+
+    @Override
+    public long getSlowConsumerEvents() {
+        return server.getSlowConsumerEvents();
+    }
+
+    @Override
+    public long getSlowConsumerDisconnects() {
+        return server.getSlowConsumerDisconnects();
+    }
+
+    @Override
+    public double getFanoutP50Micros() {
+        return fanout.getP50() / 1e3;
+    }
+
+    @Override
+    public double getFanoutP99Micros() {
+        return fanout.getP99() / 1e3;
+    }
+
+    @Override
+    public double getFanoutP999Micros() {
+        return fanout.getP999() / 1e3;
+    }
+
+    @Override
+    public double getRouteLatencyP50Micros() {
+        return route.getP50() / 1e3;
+    }
+
+    @Override
+    public double getRouteLatencyP99Micros() {
+        return route.getP99() / 1e3;
+    }
+
+    @Override
+    public double getRouteLatencyP999Micros() {
+        return route.getP999() / 1e3;
+    }
+
+    @Override
+    public long getQueueDepthP99() {
+        return server.getQueueDepths().getP99();
+    }
+
+    @Override
+    public long getQueueDepthMax() {
+        return server.getQueueDepths().getMax();
+    }
+
+    @Override
+    public int getThreadCount() {
+        return threads.getThreadCount();
+    }
+
+    @Override
+    public int getServerThreadCount() {
+        return serverThreads;
+    }
+
+    /**
+     * All statistics as "name value" lines, plus per-type message counters
+     * as name{type="TEXT"} value
+     */
+    public String toText() {
+        ServerMetrics metrics = server.getMetrics();
+        Histogram.Snapshot depths = server.getQueueDepths();
+        StringBuilder text = new StringBuilder(2048);
+
+        line(text, "chat_uptime_seconds", getUptimeSeconds());
+        line(text, "chat_connected_clients", getConnectedClients());
+        line(text, "chat_open_connections", getOpenConnections());
+        line(text, "chat_messages_in_total", getMessagesIn());
+        line(text, "chat_messages_out_total", getMessagesOut());
+        line(text, "chat_messages_in_per_second", messagesInPerSecond);
+        line(text, "chat_messages_out_per_second", messagesOutPerSecond);
+        for (MessageType type : MessageType.values()) {
+            long in = metrics.getMessagesIn(type);
+            long out = metrics.getMessagesOut(type);
+            if (in > 0) {
+                line(text, "chat_messages_in_total{type=\"" + type + "\"}", in);
+            }
+            if (out > 0) {
+                line(text, "chat_messages_out_total{type=\"" + type + "\"}", out);
+            }
+        }
+        line(text, "chat_bytes_in_total", getBytesIn());
+        line(text, "chat_bytes_out_total", getBytesOut());
+        line(text, "chat_dropped_messages_total", getDroppedMessages());
+        line(text, "chat_slow_consumer_events_total", getSlowConsumerEvents());
+        line(text, "chat_slow_consumer_disconnects_total", getSlowConsumerDisconnects());
+        line(text, "chat_fanout_p50_micros", getFanoutP50Micros());
+        line(text, "chat_fanout_p99_micros", getFanoutP99Micros());
+        line(text, "chat_fanout_p999_micros", getFanoutP999Micros());
+        line(text, "chat_route_latency_p50_micros", getRouteLatencyP50Micros());
+        line(text, "chat_route_latency_p99_micros", getRouteLatencyP99Micros());
+        line(text, "chat_route_latency_p999_micros", getRouteLatencyP999Micros());
+        line(text, "chat_queue_depth_p99", depths.getP99());
+        line(text, "chat_queue_depth_max", depths.getMax());
+        line(text, "chat_jvm_threads", getThreadCount());
+        line(text, "chat_server_threads", getServerThreadCount());
+        line(text, "chat_rooms", server.getRoomCount());
+        HistoryStore history = server.getHistory();
+        if (history != null) {
+            line(text, "chat_history_end_offset", history.getEndOffset());
+            line(text, "chat_history_bytes", history.getSizeBytes());
+            line(text, "chat_history_dropped_total", history.getDroppedCount());
+            line(text, "chat_history_batches_total", history.getBatchCount());
+            line(text, "chat_history_cache_reads_total", history.getCacheReads());
+            line(text, "chat_history_disk_reads_total", history.getDiskReads());
+            line(text, "chat_history_replays_total", server.getHistoryReplaysSent());
+        }
+        OfflineMailbox mailbox = server.getMailbox();
+        if (mailbox != null) {
+            line(text, "chat_mailbox_stored_total", mailbox.getStoredCount());
+            line(text, "chat_mailbox_delivered_total", mailbox.getDeliveredCount());
+            line(text, "chat_mailbox_rejected_total", mailbox.getRejectedCount());
+            line(text, "chat_mailbox_expired_total", mailbox.getExpiredCount());
+        }
+        ClusterNode cluster = server.getCluster();
+        if (cluster != null) {
+            line(text, "chat_cluster_peers", cluster.getConnectedPeers().size());
+            line(text, "chat_cluster_remote_users", cluster.getRemoteUserCount());
+            line(text, "chat_cluster_forwarded_total", cluster.getForwardedCount());
+            line(text, "chat_cluster_received_total", cluster.getReceivedCount());
+            line(text, "chat_cluster_dropped_total", cluster.getDroppedCount());
+            line(text, "chat_cluster_conflicts_total", cluster.getConflictCount());
+        }
+        return text.toString();
+    }
+
+    private static void line(StringBuilder text, String name, long value) {
+        text.append(name).append(' ').append(value).append('\n');
+    }
+
+    private static void line(StringBuilder text, String name, double value) {
+        text.append(name).append(' ').append(String.format(Locale.ROOT, "%.3f", value)).append('\n');
+    }
+}
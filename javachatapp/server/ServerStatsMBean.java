@@ -0,0 +1,57 @@
+package javachatapp.server;
+
+/**
+ * JMX view of a running ChatServer, registered as
+ * javachatapp:type=ChatServer,port=&lt;port&gt;. Rates and percentiles cover the
+ * last stats interval; counters are totals since the server started.
+ */
+public interface ServerStatsMBean {
+
+    String getMode();
+
+    int getPort();
+
+    long getUptimeSeconds();
+
+    int getConnectedClients();
+
+    int getOpenConnections();
+
+    long getMessagesIn();
+
+    long getMessagesOut();
+
+    double getMessagesInPerSecond();
+
+    double getMessagesOutPerSecond();
+
+    long getBytesIn();
+
+    long getBytesOut();
+
+    long getDroppedMessages();
+
+    long getSlowConsumerEvents();
+
+    long getSlowConsumerDisconnects();
+
+    double getFanoutP50Micros();
+
+    double getFanoutP99Micros();
+
+    double getFanoutP999Micros();
+
+    double getRouteLatencyP50Micros();
+
+    double getRouteLatencyP99Micros();
+
+    double getRouteLatencyP999Micros();
+
+    long getQueueDepthP99();
+
+    long getQueueDepthMax();
+
+    int getThreadCount();
+
+    int getServerThreadCount();
+}
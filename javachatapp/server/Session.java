@@ -0,0 +1,313 @@
+package javachatapp.server;
+
+import javachatapp.shared.Log;
+import javachatapp.shared.Message;
+import javachatapp.shared.Message.MessageType;
+import javachatapp.shared.MessageCodec;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Base64;
+
+/**
+ * Session keeps a login alive across a lost connection: the session is parked
+ * for the grace period, and a connection that sends RESUME with its token
+ * takes over without a leave or join being announced. The n-th chat frame
+ * (MessageCodec.isSequenced) the writer takes after SESSION is sequence n,
+ * which is how the client counts them too; RESUME names the last one it got.
+ */
+class Session {
+
+    // How long a parked session waits for its client (0 = no sessions)
+    static final long DEFAULT_GRACE_MILLIS = 30_000;
+
+    // Chat frames kept for replay after they were written
+    static final int DEFAULT_REPLAY_FRAMES = 256;
+
+    private static final SecureRandom RANDOM = new SecureRandom();
+
+    final ClientConnection owner; // Logged in; stays in the client map and rooms while the session lives
+    private final String token;
+    private final ChatServer server;
+    private final EncodedMessage started; // The SESSION frame sent on login
+
+    // Last numbered chat frames, the newest is sequence sent
+    private final EncodedMessage[] replay;
+    private int replayHead;
+    private int replayCount;
+    private long sent;
+    private boolean counting; // The writer took the SESSION frame, chat frames are numbered
+
+    // Frames that arrived while parked, at most pendingLimit of them
+    private final ArrayDeque<EncodedMessage> pending = new ArrayDeque<>();
+    private final int pendingLimit;
+    private boolean overflowed;
+
+    private volatile ClientConnection carrier; // Transport writing the frames now, null while parked
+    private boolean ended;
+    private int generation; // Bumped on every park and resume, stale expiry tasks see it
+
+    Session(ClientConnection owner, ChatServer server) {
+        this.owner = owner;
+        this.server = server;
+        byte[] bytes = new byte[18];
+        RANDOM.nextBytes(bytes);
+        this.token = Base64.getUrlEncoder().withoutPadding().encodeToString(bytes);
+        this.carrier = owner;
+
+        // A resume queues the replay and the pending frames at once, both must fit the queue
+        int capacity = server.getOutboundQueueCapacity();
+        this.replay = new EncodedMessage[Math.max(1, Math.min(server.getResumeReplayFrames(), capacity / 4))];
+        this.pendingLimit = Math.max(1, capacity / 2);
+
+        Message session = new Message(MessageType.SESSION, "Server", owner.getUsername(), token);
+        this.started = new EncodedMessage(session);
+    }
+
+    // Send the token; numbering starts once the writer takes it
+    void start() {
+        owner.queue(started, false);
+    }
+
+    boolean matches(String candidate) {
+        return candidate != null && MessageDigest.isEqual(token.getBytes(StandardCharsets.UTF_8),
+                candidate.getBytes(StandardCharsets.UTF_8));
+    }
+
+    /**
+     * Queue a frame for the session's client: on the carrier, or held until
+     * the client resumes. The common case takes no lock.
+     */
+    void deliver(EncodedMessage message) {
+        ClientConnection target = carrier;
+        if (target == null) {
+            synchronized (this) {
+                forward(message);
+            }
+            return;
+        }
+        target.queue(message, true);
+        if (target.isDetached()) {
+            // Parked or superseded while queueing: the frame must not stay behind
+            synchronized (this) {
+                rescue(target);
+            }
+        }
+    }
+
+    /**
+     * The writer of conn took a frame. Numbers it if it is a chat frame of
+     * the current carrier; a frame taken by a connection the session has
+     * moved away from goes where the session is now instead.
+     *
+     * @return true if the writer should write the frame
+     */
+    synchronized boolean taken(ClientConnection conn, OutboundQueue.Entry entry) {
+        if (conn != carrier) {
+            if (!entry.closeAfter && !ended) {
+                if (carrier != null) {
+                    carrier.queue(entry.message, false);
+                } else {
+                    // Taken before the rest of the queue moved, so it goes first
+                    pending.addFirst(entry.message);
+                }
+            }
+            return false;
+        }
+        if (!counting) {
+            counting = entry.message == started;
+        } else if (MessageCodec.isSequenced(entry.type())) {
+            replay[(replayHead + replayCount) % replay.length] = entry.message;
+            if (replayCount < replay.length) {
+                replayCount++;
+            } else {
+                replayHead = (replayHead + 1) % replay.length;
+            }
+            sent++;
+        }
+        return true;
+    }
+
+    /**
+     * The transport of conn failed. If it carries this session, the session
+     * is parked: frames queued on it are kept and the grace period starts.
+     *
+     * @return false if the user should be logged out instead (the session
+     * has ended, or the client never got its token)
+     */
+    boolean park(ClientConnection conn) {
+        int expiry;
+        synchronized (this) {
+            if (ended) {
+                return false;
+            }
+            if (conn != carrier) {
+                // Already resumed on another connection
+                return true;
+            }
+            if (!counting) {
+                return false;
+            }
+            carrier = null;
+            conn.detach();
+            rescue(conn);
+            expiry = ++generation;
+        }
+        long grace = server.getResumeGraceMillis();
+        Log.info("{} lost its connection, session kept for {} ms", owner.getUsername(), grace);
+        server.schedule(() -> expire(expiry), grace);
+        return true;
+    }
+
+    /**
+     * Move the session onto conn, whose client received ack chat frames:
+     * it gets a SESSION frame, the frames after ack again and then
+     * everything that was waiting. A carrier that is still attached (the
+     * old connection has not noticed it is dead) is closed.
+     *
+     * @return false if the session cannot resume from ack, or the frames to
+     * catch up on do not fit the new connection's queue (the session is
+     * then over and the client must log in again)
+     */
+    boolean resume(ClientConnection conn, long ack) {
+        ClientConnection previous;
+        boolean logout = false;
+        int replayed = 0;
+        int held = 0;
+        synchronized (this) {
+            if (ended) {
+                return false;
+            }
+            previous = carrier;
+            if (overflowed || !counting || ack > sent || ack < sent - replayCount) {
+                logout = true;
+            } else if (previous != null) {
+                // Nothing more is queued on it from here on, its frames move to conn
+                previous.detach();
+            }
+            // Replay, moved and held frames must all fit conn's queue, or the stream has a gap.
+            // One more for a frame the previous writer took just now and hands over in taken()
+            int backlog = 2 + (int) (sent - ack) + (previous != null ? previous.outbound.getDepth() : 0)
+                    + pending.size();
+            if (!logout && backlog > conn.outbound.getCapacity() - conn.outbound.getDepth()) {
+                Log.info("{} has {} frames to catch up on, more than a queue holds", owner.getUsername(), backlog);
+                logout = true;
+            }
+            if (!logout) {
+                // The writer of conn waits in taken() until carrier is set below
+                conn.attach(this);
+
+                Message session = new Message(MessageType.SESSION, "Server", owner.getUsername(), token);
+                session.setSequence(ack);
+                conn.queue(new EncodedMessage(session), false);
+
+                // Frames after ack are numbered again as they are written
+                replayed = (int) (sent - ack);
+                int keep = replayCount - replayed;
+                for (int i = keep; i < replayCount; i++) {
+                    int slot = (replayHead + i) % replay.length;
+                    conn.queue(replay[slot], false);
+                    replay[slot] = null;
+                }
+                replayCount = keep;
+                sent = ack;
+
+                if (previous != null) {
+                    held += moveQueued(previous, conn);
+                }
+                held += pending.size();
+                for (EncodedMessage message : pending) {
+                    conn.queue(message, false);
+                }
+                pending.clear();
+                carrier = conn;
+                generation++;
+            }
+        }
+        if (logout) {
+            Log.info("{} cannot resume from {}, ending the session", owner.getUsername(), ack);
+            owner.logout();
+            return false;
+        }
+        if (previous != null) {
+            previous.releaseTransport();
+        }
+        Log.info("{} resumed its session: {} frames written again, {} held meanwhile", owner.getUsername(), replayed,
+                held);
+        return true;
+    }
+
+    // The owner logged out: nothing is delivered any more. Returns the carrier, if any
+    synchronized ClientConnection end() {
+        ended = true;
+        ClientConnection last = carrier;
+        carrier = null;
+        pending.clear();
+        Arrays.fill(replay, null);
+        replayCount = 0;
+        return last;
+    }
+
+    boolean isCarrier(ClientConnection conn) {
+        return carrier == conn;
+    }
+
+    synchronized boolean isEnded() {
+        return ended;
+    }
+
+    // The grace period of a park ran out
+    private void expire(int expiry) {
+        synchronized (this) {
+            if (ended || carrier != null || expiry != generation) {
+                return;
+            }
+        }
+        Log.info("{} did not come back, ending the session", owner.getUsername());
+        owner.logout();
+    }
+
+    // Everything queued on a detached connection goes where the session is now
+    private void rescue(ClientConnection from) {
+        OutboundQueue.Entry entry;
+        while ((entry = from.outbound.poll()) != null) {
+            if (!entry.closeAfter) {
+                forward(entry.message);
+            }
+        }
+    }
+
+    private int moveQueued(ClientConnection from, ClientConnection to) {
+        int moved = 0;
+        OutboundQueue.Entry entry;
+        while ((entry = from.outbound.poll()) != null) {
+            if (!entry.closeAfter) {
+                to.queue(entry.message, false);
+                moved++;
+            }
+        }
+        return moved;
+    }
+
+    private void forward(EncodedMessage message) {
+        if (ended) {
+            return;
+        }
+        ClientConnection target = carrier;
+        if (target != null) {
+            target.queue(message, false);
+        } else if (!overflowed) {
+            if (pending.size() < pendingLimit) {
+                pending.add(message);
+            } else {
+                // Too much missed to catch up: end the session now rather than at expiry
+                overflowed = true;
+                pending.clear();
+                Log.info("{} missed more than {} frames while away", owner.getUsername(), pendingLimit);
+                server.schedule(owner::logout, 0);
+            }
+        }
+    }
+}
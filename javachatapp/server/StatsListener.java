@@ -0,0 +1,94 @@
+package javachatapp.server;
+
+import javachatapp.shared.Log;
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * StatsListener serves ServerStats as plain text on a local port, one
+ * response per connection. A client that sends an HTTP GET gets an HTTP
+ * response (for scrapers and curl); anything else, including a client that
+ * sends nothing (nc), gets the bare text. Binds to the loopback address only.
+ */
+class StatsListener implements Runnable {
+
+    // How long to wait for a request line before answering with bare text
+    private static final int REQUEST_TIMEOUT_MILLIS = 300;
+
+    private final ServerStats stats;
+    private final ServerSocket serverSocket;
+    private volatile boolean running = true;
+
+    StatsListener(ServerStats stats, int port) throws IOException {
+        this.stats = stats;
+        this.serverSocket = new ServerSocket(port, 16, InetAddress.getLoopbackAddress());
+    }
+
+    void start() {
+        Thread thread = new Thread(this, "stats-listener");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    int getPort() {
+        return serverSocket.getLocalPort();
+    }
+
+    @Override
+    public void run() {
+        while (running) {
+            try (Socket socket = serverSocket.accept()) {
+                respond(socket);
+            } catch (IOException e) {
+                if (running) {
+                    Log.warn("Stats listener error: {}", e.getMessage());
+                }
+            }
+        }
+    }
+
+    private void respond(Socket socket) throws IOException {
+        socket.setSoTimeout(REQUEST_TIMEOUT_MILLIS);
+        String requestLine = null;
+        try {
+            BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream(), StandardCharsets.US_ASCII));
+            requestLine = in.readLine();
+            if (requestLine != null && requestLine.startsWith("GET ")) {
+                // Skip the headers
+                String header;
+                while ((header = in.readLine()) != null && !header.isEmpty()) {
+                }
+            }
+        } catch (SocketTimeoutException e) {
+            // Plain text client that sends nothing
+        }
+
+        byte[] body = stats.toText().getBytes(StandardCharsets.UTF_8);
+        OutputStream out = socket.getOutputStream();
+        if (requestLine != null && requestLine.startsWith("GET ")) {
+            String head = "HTTP/1.0 200 OK\r\n"
+                    + "Content-Type: text/plain; charset=utf-8\r\n"
+                    + "Content-Length: " + body.length + "\r\n"
+                    + "Connection: close\r\n\r\n";
+            out.write(head.getBytes(StandardCharsets.US_ASCII));
+        }
+        out.write(body);
+        out.flush();
+    }
+
+    void stop() {
+        running = false;
+        try {
+            serverSocket.close();
+        } catch (IOException e) {
+            Log.warn("Error closing stats listener: {}", e.getMessage());
+        }
+    }
+}
@@ -0,0 +1,185 @@
+package javachatapp.server;
+
+import java.util.AbstractCollection;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReferenceFieldUpdater;
+
+/**
+ * UsernameRegistry maps usernames to the connections logged in under them,
+ * with no lock shared between logins.
+ *
+ * A login reserves its name with one putIfAbsent, which either wins the
+ * name or finds it in use, so two connects with the same name cannot both
+ * succeed and connects with different names never wait for each other.
+ * Each entry then moves through its states with compare-and-set:
+ *
+ * PENDING  reserved, not yet logged in (e.g. waiting for the cluster claim):
+ *          the name is taken but nothing is routed to the connection
+ * ACTIVE   logged in: returned by get(), counted and iterated
+ * LEAVING  logging out: the name stays taken until the logout has been
+ *          published, so a reconnect under the same name cannot overlap it
+ *
+ * A PENDING entry can also be cancelled straight to LEAVING, after which
+ * activate() fails and the login is refused.
+ */
+class UsernameRegistry {
+
+    enum State {
+        PENDING,
+        ACTIVE,
+        LEAVING
+    }
+
+    static final class Entry {
+
+        private static final AtomicReferenceFieldUpdater<Entry, State> STATE =
+                AtomicReferenceFieldUpdater.newUpdater(Entry.class, State.class, "state");
+
+        final ClientConnection connection;
+        private volatile State state = State.PENDING;
+
+        Entry(ClientConnection connection) {
+            this.connection = connection;
+        }
+
+        State getState() {
+            return state;
+        }
+
+        private boolean transition(State from, State to) {
+            return STATE.compareAndSet(this, from, to);
+        }
+    }
+
+    private final ConcurrentHashMap<String, Entry> entries = new ConcurrentHashMap<>();
+    private final AtomicInteger active = new AtomicInteger();
+    private final Collection<ClientConnection> activeView = new ActiveConnections();
+
+    /**
+     * Reserve a username for a connection
+     *
+     * @return the PENDING entry, or null if the name is taken (in any state)
+     */
+    Entry reserve(String username, ClientConnection connection) {
+        Entry entry = new Entry(connection);
+        return entries.putIfAbsent(username, entry) == null ? entry : null;
+    }
+
+    // PENDING to ACTIVE; false if the reservation was cancelled meanwhile
+    boolean activate(Entry entry) {
+        if (entry.transition(State.PENDING, State.ACTIVE)) {
+            active.incrementAndGet();
+            return true;
+        }
+        return false;
+    }
+
+    // Cancel a reservation that has not been activated; false if it already was
+    boolean cancel(Entry entry) {
+        return entry.transition(State.PENDING, State.LEAVING);
+    }
+
+    /**
+     * ACTIVE to LEAVING for the entry of this connection (any connection
+     * if null); only one caller gets the entry
+     *
+     * @return the entry, now LEAVING, or null if there was nothing to leave
+     */
+    Entry beginLeave(String username, ClientConnection connection) {
+        Entry entry = entries.get(username);
+        if (entry == null || (connection != null && entry.connection != connection)
+                || !entry.transition(State.ACTIVE, State.LEAVING)) {
+            return null;
+        }
+        active.decrementAndGet();
+        return entry;
+    }
+
+    // Free the name of a LEAVING (or cancelled) entry
+    void finishLeave(String username, Entry entry) {
+        entries.remove(username, entry);
+    }
+
+    // The entry under a name in any state, or null
+    Entry entry(String username) {
+        return entries.get(username);
+    }
+
+    // The logged-in connection for a name, or null
+    ClientConnection get(String username) {
+        Entry entry = entries.get(username);
+        return entry != null && entry.state == State.ACTIVE ? entry.connection : null;
+    }
+
+    boolean isActive(String username) {
+        return get(username) != null;
+    }
+
+    // True while the name is reserved, logged in or logging out
+    boolean isTaken(String username) {
+        return entries.containsKey(username);
+    }
+
+    // Logged-in connections
+    int size() {
+        return active.get();
+    }
+
+    /**
+     * Live view of the logged-in connections. Iteration is weakly consistent,
+     * like the map's, and takes no lock.
+     */
+    Collection<ClientConnection> connections() {
+        return activeView;
+    }
+
+    void clear() {
+        entries.clear();
+        active.set(0);
+    }
+
+    private final class ActiveConnections extends AbstractCollection<ClientConnection> {
+
+        @Override
+        public Iterator<ClientConnection> iterator() {
+            Iterator<Entry> all = entries.values().iterator();
+            return new Iterator<ClientConnection>() {
+                private ClientConnection next = advance();
+
+                private ClientConnection advance() {
+                    while (all.hasNext()) {
+                        Entry entry = all.next();
+                        if (entry.state == State.ACTIVE) {
+                            return entry.connection;
+                        }
+                    }
+                    return null;
+                }
+
+                @Override
+                public boolean hasNext() {
+                    return next != null;
+                }
+
+                @Override
+                public ClientConnection next() {
+                    if (next == null) {
+                        throw new NoSuchElementException();
+                    }
+                    ClientConnection current = next;
+                    next = advance();
+                    return current;
+                }
+            };
+        }
+
+        @Override
+        public int size() {
+            return active.get();
+        }
+    }
+}
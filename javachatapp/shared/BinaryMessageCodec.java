@@ -0,0 +1,322 @@
+package javachatapp.shared;
+
+import java.io.StreamCorruptedException;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * Hand-written compact encoding of a Message (protocol version 2).
+ *
+ * Payload layout:
+ *
+ * [type: byte][flags: byte][sender][recipient][content][userList][rosterVersion]
+ * [history][historyOffset][sequence]
+ *
+ * Flags mark which fields are present; absent (null) fields take no bytes.
+ * Strings are a varint byte length followed by UTF-8 bytes, the user list is
+ * a varint count followed by that many strings. The roster version is a
+ * varint (64-bit) and is only sent when non-zero. History is a varint count
+ * of nested messages, each a varint length followed by its own payload
+ * (nested messages carry no history of their own); the history offset is a
+ * 64-bit varint, sent when non-zero, and so is the sequence.
+ */
+public final class BinaryMessageCodec {
+
+    private static final int HAS_SENDER = 1;
+    private static final int HAS_RECIPIENT = 1 << 1;
+    private static final int HAS_CONTENT = 1 << 2;
+    private static final int HAS_USER_LIST = 1 << 3;
+    private static final int HAS_ROSTER_VERSION = 1 << 4;
+    private static final int HAS_HISTORY = 1 << 5;
+    private static final int HAS_HISTORY_OFFSET = 1 << 6;
+    private static final int HAS_SEQUENCE = 1 << 7;
+
+    private static final Message.MessageType[] TYPES = Message.MessageType.values();
+
+    private BinaryMessageCodec() {
+    }
+
+    public static byte[] encode(Message message) {
+        Writer out = new Writer(64);
+        int flags = 0;
+        if (message.getSender() != null) {
+            flags |= HAS_SENDER;
+        }
+        if (message.getRecipient() != null) {
+            flags |= HAS_RECIPIENT;
+        }
+        if (message.getContent() != null) {
+            flags |= HAS_CONTENT;
+        }
+        if (message.getUserList() != null) {
+            flags |= HAS_USER_LIST;
+        }
+        if (message.getRosterVersion() != 0) {
+            flags |= HAS_ROSTER_VERSION;
+        }
+        if (message.getHistory() != null) {
+            flags |= HAS_HISTORY;
+        }
+        if (message.getHistoryOffset() != 0) {
+            flags |= HAS_HISTORY_OFFSET;
+        }
+        if (message.getSequence() != 0) {
+            flags |= HAS_SEQUENCE;
+        }
+
+        out.writeByte(message.getType().ordinal());
+        out.writeByte(flags);
+        if ((flags & HAS_SENDER) != 0) {
+            out.writeString(message.getSender());
+        }
+        if ((flags & HAS_RECIPIENT) != 0) {
+            out.writeString(message.getRecipient());
+        }
+        if ((flags & HAS_CONTENT) != 0) {
+            out.writeString(message.getContent());
+        }
+        if ((flags & HAS_USER_LIST) != 0) {
+            String[] users = message.getUserList();
+            out.writeVarint(users.length);
+            for (String user : users) {
+                out.writeString(user != null ? user : "");
+            }
+        }
+        if ((flags & HAS_ROSTER_VERSION) != 0) {
+            out.writeVarlong(message.getRosterVersion());
+        }
+        if ((flags & HAS_HISTORY) != 0) {
+            Message[] history = message.getHistory();
+            out.writeVarint(history.length);
+            for (Message stored : history) {
+                if (stored.getHistory() != null) {
+                    throw new IllegalArgumentException("Nested history in a history message");
+                }
+                out.writeBytes(encode(stored));
+            }
+        }
+        if ((flags & HAS_HISTORY_OFFSET) != 0) {
+            out.writeVarlong(message.getHistoryOffset());
+        }
+        if ((flags & HAS_SEQUENCE) != 0) {
+            out.writeVarlong(message.getSequence());
+        }
+        return out.toByteArray();
+    }
+
+    public static Message decode(byte[] data, int offset, int length) throws StreamCorruptedException {
+        return decode(data, offset, length, false);
+    }
+
+    private static Message decode(byte[] data, int offset, int length, boolean nested)
+            throws StreamCorruptedException {
+        Reader in = new Reader(data, offset, length);
+
+        int typeCode = in.readByte();
+        if (typeCode >= TYPES.length) {
+            throw new StreamCorruptedException("Unknown message type: " + typeCode);
+        }
+        int flags = in.readByte();
+
+        Message message = new Message(TYPES[typeCode], (String) null);
+        if ((flags & HAS_SENDER) != 0) {
+            message.setSender(in.readString());
+        }
+        if ((flags & HAS_RECIPIENT) != 0) {
+            message.setRecipient(in.readString());
+        }
+        if ((flags & HAS_CONTENT) != 0) {
+            message.setContent(in.readString());
+        }
+        if ((flags & HAS_USER_LIST) != 0) {
+            int count = in.readVarint();
+            if (count > in.remaining()) {
+                // Every entry takes at least one byte
+                throw new StreamCorruptedException("Invalid user list size: " + count);
+            }
+            String[] users = new String[count];
+            for (int i = 0; i < count; i++) {
+                users[i] = in.readString();
+            }
+            message.setUserList(users);
+        }
+        if ((flags & HAS_ROSTER_VERSION) != 0) {
+            message.setRosterVersion(in.readVarlong());
+        }
+        if ((flags & HAS_HISTORY) != 0) {
+            if (nested) {
+                throw new StreamCorruptedException("Nested history in a history message");
+            }
+            int count = in.readVarint();
+            if (count > in.remaining()) {
+                throw new StreamCorruptedException("Invalid history size: " + count);
+            }
+            Message[] history = new Message[count];
+            for (int i = 0; i < count; i++) {
+                int size = in.readVarint();
+                if (size > in.remaining()) {
+                    throw new StreamCorruptedException("Truncated history message");
+                }
+                history[i] = decode(data, in.position(), size, true);
+                in.skip(size);
+            }
+            message.setHistory(history);
+        }
+        if ((flags & HAS_HISTORY_OFFSET) != 0) {
+            message.setHistoryOffset(in.readVarlong());
+        }
+        if ((flags & HAS_SEQUENCE) != 0) {
+            message.setSequence(in.readVarlong());
+        }
+        if (in.remaining() != 0) {
+            throw new StreamCorruptedException("Trailing bytes in message: " + in.remaining());
+        }
+        return message;
+    }
+
+    // Number of bytes writeVarint() uses for a value
+    public static int varintSize(int value) {
+        int size = 1;
+        while ((value & ~0x7F) != 0) {
+            value >>>= 7;
+            size++;
+        }
+        return size;
+    }
+
+    // Write an unsigned LEB128 varint into the array, returns the new offset
+    public static int putVarint(byte[] target, int offset, int value) {
+        while ((value & ~0x7F) != 0) {
+            target[offset++] = (byte) ((value & 0x7F) | 0x80);
+            value >>>= 7;
+        }
+        target[offset++] = (byte) value;
+        return offset;
+    }
+
+    /**
+     * Growable byte array for encoding
+     */
+    private static final class Writer {
+
+        private byte[] buf;
+        private int count;
+
+        Writer(int capacity) {
+            buf = new byte[capacity];
+        }
+
+        void writeByte(int b) {
+            ensure(1);
+            buf[count++] = (byte) b;
+        }
+
+        void writeVarint(int value) {
+            ensure(5);
+            count = putVarint(buf, count, value);
+        }
+
+        void writeVarlong(long value) {
+            ensure(10);
+            while ((value & ~0x7FL) != 0) {
+                buf[count++] = (byte) ((value & 0x7F) | 0x80);
+                value >>>= 7;
+            }
+            buf[count++] = (byte) value;
+        }
+
+        void writeString(String s) {
+            writeBytes(s.getBytes(StandardCharsets.UTF_8));
+        }
+
+        // Varint length followed by the bytes
+        void writeBytes(byte[] bytes) {
+            writeVarint(bytes.length);
+            ensure(bytes.length);
+            System.arraycopy(bytes, 0, buf, count, bytes.length);
+            count += bytes.length;
+        }
+
+        private void ensure(int extra) {
+            if (count + extra > buf.length) {
+                buf = Arrays.copyOf(buf, Math.max(buf.length * 2, count + extra));
+            }
+        }
+
+        byte[] toByteArray() {
+            return Arrays.copyOf(buf, count);
+        }
+    }
+
+    /**
+     * Bounds-checked reader over a payload slice
+     */
+    private static final class Reader {
+
+        private final byte[] data;
+        private int pos;
+        private final int end;
+
+        Reader(byte[] data, int offset, int length) {
+            this.data = data;
+            this.pos = offset;
+            this.end = offset + length;
+        }
+
+        int remaining() {
+            return end - pos;
+        }
+
+        int position() {
+            return pos;
+        }
+
+        void skip(int n) {
+            pos += n;
+        }
+
+        int readByte() throws StreamCorruptedException {
+            if (pos >= end) {
+                throw new StreamCorruptedException("Truncated message");
+            }
+            return data[pos++] & 0xFF;
+        }
+
+        int readVarint() throws StreamCorruptedException {
+            int value = 0;
+            for (int shift = 0; shift < 32; shift += 7) {
+                int b = readByte();
+                value |= (b & 0x7F) << shift;
+                if ((b & 0x80) == 0) {
+                    if (value < 0) {
+                        break;
+                    }
+                    return value;
+                }
+            }
+            throw new StreamCorruptedException("Malformed varint");
+        }
+
+        long readVarlong() throws StreamCorruptedException {
+            long value = 0;
+            for (int shift = 0; shift < 64; shift += 7) {
+                int b = readByte();
+                value |= (long) (b & 0x7F) << shift;
+                if ((b & 0x80) == 0) {
+                    return value;
+                }
+            }
+            throw new StreamCorruptedException("Malformed varint");
+        }
+
+        String readString() throws StreamCorruptedException {
+            int length = readVarint();
+            if (length > remaining()) {
+                throw new StreamCorruptedException("Truncated string");
+            }
+            String s = new String(data, pos, length, StandardCharsets.UTF_8);
+            pos += length;
+            return s;
+        }
+    }
+}
@@ -0,0 +1,333 @@
+package javachatapp.shared;
+
+import java.io.PrintStream;
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Log is a small asynchronous logger for the server hot paths.
+ *
+ * A call checks the level first, so a disabled debug() costs one volatile
+ * read. An enabled call copies the format string and up to three argument
+ * references into a slot of a fixed-size lock-free ring buffer and returns;
+ * nothing is formatted on the calling thread. A single "log-drainer" thread
+ * formats the entries ("{}" placeholders) and writes them in batches to
+ * System.out (DEBUG, INFO) or System.err (WARN, ERROR).
+ *
+ * When the ring is full new entries are dropped and counted, so logging
+ * never blocks a sender and its memory stays bounded. The drainer reports
+ * the number of dropped entries.
+ *
+ * A Throwable passed as the last argument is written with its stack trace.
+ *
+ * The level can be set with -Dchat.log.level=DEBUG or setLevel(), and the
+ * DEBUG/INFO stream replaced with setOutput().
+ */
+public final class Log {
+
+    public enum Level {
+        DEBUG, INFO, WARN, ERROR, OFF
+    }
+
+    private static final int CAPACITY = 1 << 14;
+    private static final int MASK = CAPACITY - 1;
+
+    // Largest batch written to a stream in one call
+    private static final int MAX_BATCH_CHARS = 16 * 1024;
+
+    // Ring buffer (bounded MPSC queue with per-slot sequence numbers): a slot
+    // is free for producer position p when its sequence is p, and readable by
+    // the drainer when it is p + 1
+    private static final AtomicLongArray sequences = new AtomicLongArray(CAPACITY);
+    private static final Level[] levels = new Level[CAPACITY];
+    private static final String[] formats = new String[CAPACITY];
+    private static final Object[] args0 = new Object[CAPACITY];
+    private static final Object[] args1 = new Object[CAPACITY];
+    private static final Object[] args2 = new Object[CAPACITY];
+
+    private static final AtomicLong tail = new AtomicLong(); // Next producer position
+    private static volatile long head; // Next drainer position, written by the drainer only
+    private static volatile long written; // Entries before this position have reached the stream
+    private static final AtomicLong dropped = new AtomicLong();
+
+    private static volatile int threshold = parseLevel(System.getProperty("chat.log.level")).ordinal();
+    private static volatile boolean drainerParked;
+    private static volatile PrintStream output; // null: System.out at the time of writing
+    private static final Thread drainer;
+
+    static {
+        for (int i = 0; i < CAPACITY; i++) {
+            sequences.set(i, i);
+        }
+        drainer = new Thread(Log::drainLoop, "log-drainer");
+        drainer.setDaemon(true);
+        drainer.start();
+        Runtime.getRuntime().addShutdownHook(new Thread(() -> flush(1000), "log-flush"));
+    }
+
+    private Log() {
+    }
+
+    public static void setLevel(Level level) {
+        threshold = level.ordinal();
+    }
+
+    /**
+     * Write DEBUG and INFO entries to the given stream instead of System.out
+     * (null goes back to System.out). WARN and ERROR still go to System.err.
+     */
+    public static void setOutput(PrintStream stream) {
+        output = stream;
+    }
+
+    public static Level getLevel() {
+        return Level.values()[threshold];
+    }
+
+    public static boolean isEnabled(Level level) {
+        return level.ordinal() >= threshold;
+    }
+
+    public static void debug(String format) {
+        log(Level.DEBUG, format, null, null, null);
+    }
+
+    public static void debug(String format, Object arg0) {
+        log(Level.DEBUG, format, arg0, null, null);
+    }
+
+    public static void debug(String format, Object arg0, Object arg1) {
+        log(Level.DEBUG, format, arg0, arg1, null);
+    }
+
+    public static void debug(String format, Object arg0, Object arg1, Object arg2) {
+        log(Level.DEBUG, format, arg0, arg1, arg2);
+    }
+
+    public static void info(String format) {
+        log(Level.INFO, format, null, null, null);
+    }
+
+    public static void info(String format, Object arg0) {
+        log(Level.INFO, format, arg0, null, null);
+    }
+
+    public static void info(String format, Object arg0, Object arg1) {
+        log(Level.INFO, format, arg0, arg1, null);
+    }
+
+    public static void info(String format, Object arg0, Object arg1, Object arg2) {
+        log(Level.INFO, format, arg0, arg1, arg2);
+    }
+
+    public static void warn(String format) {
+        log(Level.WARN, format, null, null, null);
+    }
+
+    public static void warn(String format, Object arg0) {
+        log(Level.WARN, format, arg0, null, null);
+    }
+
+    public static void warn(String format, Object arg0, Object arg1) {
+        log(Level.WARN, format, arg0, arg1, null);
+    }
+
+    public static void warn(String format, Object arg0, Object arg1, Object arg2) {
+        log(Level.WARN, format, arg0, arg1, arg2);
+    }
+
+    public static void error(String format) {
+        log(Level.ERROR, format, null, null, null);
+    }
+
+    public static void error(String format, Object arg0) {
+        log(Level.ERROR, format, arg0, null, null);
+    }
+
+    public static void error(String format, Object arg0, Object arg1) {
+        log(Level.ERROR, format, arg0, arg1, null);
+    }
+
+    public static void error(String format, Object arg0, Object arg1, Object arg2) {
+        log(Level.ERROR, format, arg0, arg1, arg2);
+    }
+
+    private static void log(Level level, String format, Object arg0, Object arg1, Object arg2) {
+        if (level.ordinal() < threshold) {
+            return;
+        }
+
+        // Claim a slot
+        long pos = tail.get();
+        int index;
+        while (true) {
+            index = (int) pos & MASK;
+            long diff = sequences.get(index) - pos;
+            if (diff == 0) {
+                if (tail.compareAndSet(pos, pos + 1)) {
+                    break;
+                }
+                pos = tail.get();
+            } else if (diff < 0) {
+                // Full: the drainer is a whole ring behind
+                dropped.incrementAndGet();
+                return;
+            } else {
+                pos = tail.get();
+            }
+        }
+
+        levels[index] = level;
+        formats[index] = format;
+        args0[index] = arg0;
+        args1[index] = arg1;
+        args2[index] = arg2;
+        sequences.set(index, pos + 1); // Publish to the drainer
+
+        if (drainerParked) {
+            LockSupport.unpark(drainer);
+        }
+    }
+
+    /**
+     * Wait until everything logged so far has been written
+     *
+     * @return false if the timeout expired first
+     */
+    public static boolean flush(long timeoutMillis) {
+        long target = tail.get();
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeoutMillis);
+        while (written < target) {
+            // Entries claimed but never published (a producer died) would stall us; the timeout covers it
+            if (System.nanoTime() > deadline) {
+                return false;
+            }
+            LockSupport.unpark(drainer);
+            LockSupport.parkNanos(100_000);
+        }
+        return true;
+    }
+
+    // Entries the ring holds before new ones are dropped
+    public static int getCapacity() {
+        return CAPACITY;
+    }
+
+    // Entries dropped because the ring was full
+    public static long getDroppedCount() {
+        return dropped.get();
+    }
+
+    private static void drainLoop() {
+        StringBuilder out = new StringBuilder(MAX_BATCH_CHARS);
+        StringBuilder err = new StringBuilder(1024);
+        long reportedDrops = 0;
+
+        while (true) {
+            long pos = head;
+            int index = (int) pos & MASK;
+            if (sequences.get(index) != pos + 1) {
+                // Empty: write the batch, then sleep until a producer wakes us
+                long drops = dropped.get();
+                if (drops != reportedDrops) {
+                    err.append("Log ring buffer full, dropped ").append(drops - reportedDrops).append(" entries\n");
+                    reportedDrops = drops;
+                }
+                write(out, err);
+                written = pos;
+                drainerParked = true;
+                if (sequences.get(index) != pos + 1) {
+                    LockSupport.parkNanos(10_000_000);
+                }
+                drainerParked = false;
+                continue;
+            }
+
+            Level level = levels[index];
+            StringBuilder target = level.ordinal() >= Level.WARN.ordinal() ? err : out;
+            int start = target.length();
+            try {
+                format(target, formats[index], args0[index], args1[index], args2[index]);
+                appendStackTrace(target, args0[index], args1[index], args2[index]);
+            } catch (RuntimeException e) {
+                // An argument's toString() threw; the drainer must live on and free the slot
+                target.setLength(start);
+                target.append(formats[index]).append(" [arguments could not be formatted: ")
+                        .append(e.getClass().getName()).append(']');
+            }
+            target.append('\n');
+
+            // Release the slot for the producer one lap ahead
+            formats[index] = null;
+            args0[index] = null;
+            args1[index] = null;
+            args2[index] = null;
+            sequences.set(index, pos + CAPACITY);
+            head = pos + 1;
+
+            if (out.length() >= MAX_BATCH_CHARS || err.length() >= MAX_BATCH_CHARS) {
+                write(out, err);
+                written = pos + 1;
+            }
+        }
+    }
+
+    private static void write(StringBuilder out, StringBuilder err) {
+        if (out.length() > 0) {
+            PrintStream stream = output != null ? output : System.out;
+            stream.print(out);
+            stream.flush();
+            out.setLength(0);
+        }
+        if (err.length() > 0) {
+            PrintStream stream = System.err;
+            stream.print(err);
+            stream.flush();
+            err.setLength(0);
+        }
+    }
+
+    // Substitute up to three "{}" placeholders in order
+    static void format(StringBuilder target, String format, Object arg0, Object arg1, Object arg2) {
+        if (format == null) {
+            target.append("null");
+            return;
+        }
+        int argIndex = 0;
+        int start = 0;
+        int at;
+        while (argIndex < 3 && (at = format.indexOf("{}", start)) >= 0) {
+            target.append(format, start, at);
+            Object arg = argIndex == 0 ? arg0 : argIndex == 1 ? arg1 : arg2;
+            target.append(arg);
+            argIndex++;
+            start = at + 2;
+        }
+        target.append(format, start, format.length());
+    }
+
+    // A Throwable as the last argument gets its stack trace on the lines after the entry
+    private static void appendStackTrace(StringBuilder target, Object arg0, Object arg1, Object arg2) {
+        Object last = arg2 != null ? arg2 : arg1 != null ? arg1 : arg0;
+        if (last instanceof Throwable) {
+            StringWriter trace = new StringWriter();
+            ((Throwable) last).printStackTrace(new PrintWriter(trace));
+            target.append('\n').append(trace.toString().stripTrailing());
+        }
+    }
+
+    private static Level parseLevel(String name) {
+        if (name != null) {
+            try {
+                return Level.valueOf(name.trim().toUpperCase());
+            } catch (IllegalArgumentException e) {
+                System.err.println("Unknown log level " + name + ", using INFO");
+            }
+        }
+        return Level.INFO;
+    }
+}
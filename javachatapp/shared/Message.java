@@ -10,7 +10,7 @@ public class Message implements Serializable {
 
     private static final long serialVersionUID = 1L;
 
-    // Message types
+    // Message types (append new types at the end: the binary codec sends the ordinal)
     public enum MessageType {
         CONNECT, // Client connecting with username
         DISCONNECT, // Client disconnecting
@@ -18,7 +18,17 @@ public class Message implements Serializable {
         USER_LIST, // Server sending list of connected users
         PRIVATE_MESSAGE, // Direct message to specific user
         BROADCAST, // Message to all users
-        ERROR              // Error message from server
+        ERROR, // Error message from server
+        USER_JOINED, // Roster delta: users in userList joined
+        USER_LEFT, // Roster delta: users in userList left
+        USER_LIST_REQUEST, // Client asking for a full USER_LIST snapshot
+        HISTORY_REQUEST, // Client asking for older messages (historyOffset, content = max count)
+        HISTORY_PAGE, // Stored messages in history, oldest first
+        JOIN_ROOM, // Join the room named in recipient (the server's reply lists the members)
+        LEAVE_ROOM, // Leave the room named in recipient
+        ROOM_MESSAGE, // Message to every member of the room named in recipient
+        SESSION, // Resumable session: content = token, sequence = chat frames the client already has
+        RESUME // First frame of a reconnect: sender = username, content = token, sequence = chat frames received
     }
 
     private MessageType type;
@@ -26,6 +36,10 @@ public class Message implements Serializable {
     private String recipient;  // null for broadcast, username for private
     private String content;
     private String[] userList; // For USER_LIST type
+    private long rosterVersion; // For USER_LIST, USER_JOINED and USER_LEFT
+    private Message[] history; // For HISTORY_PAGE
+    private long historyOffset; // HISTORY_REQUEST: read before this, HISTORY_PAGE: next offset to ask for
+    private long sequence; // For SESSION and RESUME
 
     // Constructor for text messages
     public Message(MessageType type, String sender, String recipient, String content) {
@@ -68,6 +82,22 @@ public class Message implements Serializable {
         return userList;
     }
 
+    public long getRosterVersion() {
+        return rosterVersion;
+    }
+
+    public Message[] getHistory() {
+        return history;
+    }
+
+    public long getHistoryOffset() {
+        return historyOffset;
+    }
+
+    public long getSequence() {
+        return sequence;
+    }
+
     // Setters
     public void setType(MessageType type) {
         this.type = type;
@@ -89,6 +119,22 @@ public class Message implements Serializable {
         this.userList = userList;
     }
 
+    public void setRosterVersion(long rosterVersion) {
+        this.rosterVersion = rosterVersion;
+    }
+
+    public void setHistory(Message[] history) {
+        this.history = history;
+    }
+
+    public void setHistoryOffset(long historyOffset) {
+        this.historyOffset = historyOffset;
+    }
+
+    public void setSequence(long sequence) {
+        this.sequence = sequence;
+    }
+
     @Override
     public String toString() {
         return "Message{"
@@ -0,0 +1,287 @@
+package javachatapp.shared;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+
+/**
+ * MessageCodec defines the wire format shared by the client and every server
+ * engine. A connection starts with a single protocol version byte sent by the
+ * client, followed by length-prefixed frames [length][payload]:
+ *
+ * - Version 1: 4-byte int length, payload is one self-contained serialized
+ *   Message. Still accepted so older clients can connect during rollout.
+ * - Version 2: varint length, payload is the compact BinaryMessageCodec
+ *   encoding. Used by current clients.
+ *
+ * Every frame can be decoded on its own without any stream state (needed by
+ * the NIO engine).
+ *
+ * Clients built before framing open with the ObjectOutputStream magic 0xACED
+ * and keep one object stream for the whole connection. The blocking engines
+ * still serve them (VERSION_LEGACY_STREAM): the server answers with a stream
+ * header, and every message it sends starts with TC_RESET so it stands alone
+ * inside the client's single stream.
+ */
+public final class MessageCodec {
+
+    public static final int VERSION_SERIALIZED = 1;
+    public static final int VERSION_BINARY = 2;
+
+    // First byte of a pre-framing client: the high byte of ObjectStreamConstants.STREAM_MAGIC
+    public static final int VERSION_LEGACY_STREAM = 0xAC;
+
+    // Version sent by current clients
+    public static final int PROTOCOL_VERSION = VERSION_BINARY;
+
+    // CONNECT content of a client that can resume: the server answers with a SESSION token
+    public static final String CONNECT_RESUMABLE = "resume";
+
+    // Upper bound for a single frame, protects the server from bogus lengths
+    public static final int MAX_FRAME_LENGTH = 1024 * 1024;
+
+    // Size of the version 1 length prefix
+    private static final int INT_HEADER_LENGTH = 4;
+
+    // A varint up to MAX_FRAME_LENGTH never needs more than this
+    private static final int MAX_VARINT_HEADER_LENGTH = 3;
+
+    // What a version 1 payload or a legacy client's object stream may contain (arrays are checked by their element type)
+    private static final ObjectInputFilter LEGACY_FILTER = ObjectInputFilter.Config.createFilter(
+            "maxdepth=4;maxarray=" + MAX_FRAME_LENGTH + ";javachatapp.shared.Message;"
+                    + "javachatapp.shared.Message$MessageType;java.lang.Enum;java.lang.String;!*");
+
+    private MessageCodec() {
+    }
+
+    // Roster deltas, history, rooms and sessions came with the binary codec
+    public static boolean isBinary(int version) {
+        return version == VERSION_BINARY;
+    }
+
+    /**
+     * The frames a resumable session numbers: the n-th of them the server
+     * writes after SESSION is sequence n, and RESUME names the last one the
+     * client received.
+     */
+    public static boolean isSequenced(Message.MessageType type) {
+        return type == Message.MessageType.TEXT || type == Message.MessageType.PRIVATE_MESSAGE
+                || type == Message.MessageType.BROADCAST || type == Message.MessageType.ROOM_MESSAGE;
+    }
+
+    /**
+     * Encode a message payload (without the length prefix)
+     *
+     * @param message The message to encode
+     * @param version Protocol version of the receiving connection
+     */
+    public static byte[] encode(Message message, int version) throws IOException {
+        if (version == VERSION_LEGACY_STREAM) {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream(256);
+            try (ObjectOutputStream out = new LegacyFrameOutputStream(bytes)) {
+                out.writeObject(message);
+            }
+            return bytes.toByteArray();
+        }
+        if (version == VERSION_SERIALIZED) {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream(256);
+            try (ObjectOutputStream out = new ObjectOutputStream(bytes)) {
+                out.writeObject(message);
+            }
+            return bytes.toByteArray();
+        }
+        return BinaryMessageCodec.encode(message);
+    }
+
+    /**
+     * Decode a payload produced by encode() with the same version
+     */
+    public static Message decode(byte[] data, int offset, int length, int version) throws IOException {
+        if (version == VERSION_SERIALIZED) {
+            try (ObjectInputStream in = new ObjectInputStream(new ByteArrayInputStream(data, offset, length))) {
+                in.setObjectInputFilter(LEGACY_FILTER);
+                return (Message) in.readObject();
+            } catch (ClassNotFoundException | ClassCastException e) {
+                throw new StreamCorruptedException("Invalid message format: " + e.getMessage());
+            }
+        }
+        return BinaryMessageCodec.decode(data, offset, length);
+    }
+
+    /**
+     * Encode a message as a complete frame (length prefix + payload)
+     */
+    public static byte[] encodeFrame(Message message, int version) throws IOException {
+        byte[] payload = encode(message, version);
+        int length = payload.length;
+
+        if (version == VERSION_LEGACY_STREAM) {
+            // The object stream delimits itself
+            return payload;
+        }
+
+        if (version == VERSION_SERIALIZED) {
+            byte[] frame = new byte[INT_HEADER_LENGTH + length];
+            frame[0] = (byte) (length >>> 24);
+            frame[1] = (byte) (length >>> 16);
+            frame[2] = (byte) (length >>> 8);
+            frame[3] = (byte) length;
+            System.arraycopy(payload, 0, frame, INT_HEADER_LENGTH, length);
+            return frame;
+        }
+
+        byte[] frame = new byte[BinaryMessageCodec.varintSize(length) + length];
+        int offset = BinaryMessageCodec.putVarint(frame, 0, length);
+        System.arraycopy(payload, 0, frame, offset, length);
+        return frame;
+    }
+
+    // Write the protocol version byte that opens every connection
+    public static void writeHandshake(OutputStream out) throws IOException {
+        out.write(PROTOCOL_VERSION);
+        out.flush();
+    }
+
+    // Read and validate the protocol version byte sent by the client
+    public static int readHandshake(InputStream in) throws IOException {
+        int version = in.read();
+        if (version == -1) {
+            throw new EOFException();
+        }
+        checkVersion(version);
+        return version;
+    }
+
+    public static void checkVersion(int version) throws IOException {
+        if (version != VERSION_SERIALIZED && version != VERSION_BINARY && version != VERSION_LEGACY_STREAM) {
+            throw new StreamCorruptedException("Unsupported protocol version: " + version);
+        }
+    }
+
+    public static void checkFrameLength(int length) throws IOException {
+        if (length < 0 || length > MAX_FRAME_LENGTH) {
+            throw new StreamCorruptedException("Invalid frame length: " + length);
+        }
+    }
+
+    /**
+     * Inspect the frame header at the buffer's position without consuming it
+     *
+     * @return number of header bytes, or 0 if the header is not complete yet
+     */
+    public static int peekHeaderLength(ByteBuffer buffer, int version) throws IOException {
+        int pos = buffer.position();
+        int available = buffer.remaining();
+
+        if (version == VERSION_SERIALIZED) {
+            return available >= INT_HEADER_LENGTH ? INT_HEADER_LENGTH : 0;
+        }
+
+        for (int i = 0; i < available; i++) {
+            if ((buffer.get(pos + i) & 0x80) == 0) {
+                return i + 1;
+            }
+            if (i + 1 >= MAX_VARINT_HEADER_LENGTH) {
+                throw new StreamCorruptedException("Frame length too large");
+            }
+        }
+        return 0;
+    }
+
+    /**
+     * Payload length of the frame at the buffer's position. The header must be
+     * complete (see peekHeaderLength).
+     */
+    public static int peekFrameLength(ByteBuffer buffer, int version) throws IOException {
+        int pos = buffer.position();
+        int length;
+        if (version == VERSION_SERIALIZED) {
+            length = buffer.getInt(pos);
+        } else {
+            length = 0;
+            int shift = 0;
+            int b;
+            do {
+                b = buffer.get(pos++);
+                length |= (b & 0x7F) << shift;
+                shift += 7;
+            } while ((b & 0x80) != 0);
+        }
+        checkFrameLength(length);
+        return length;
+    }
+
+    // Write a single message frame and flush it
+    public static void writeFrame(DataOutputStream out, Message message, int version) throws IOException {
+        out.write(encodeFrame(message, version));
+        out.flush();
+    }
+
+    // Block until a complete frame has been read and decode it
+    public static Message readFrame(DataInputStream in, int version) throws IOException {
+        int length;
+        if (version == VERSION_SERIALIZED) {
+            length = in.readInt();
+        } else {
+            length = readVarint(in);
+        }
+        checkFrameLength(length);
+        byte[] payload = new byte[length];
+        in.readFully(payload);
+        return decode(payload, 0, length, version);
+    }
+
+    // The stream header a legacy client waits for before anything else
+    public static void writeLegacyHeader(OutputStream out) throws IOException {
+        DataOutputStream data = new DataOutputStream(out);
+        data.writeShort(ObjectStreamConstants.STREAM_MAGIC);
+        data.writeShort(ObjectStreamConstants.STREAM_VERSION);
+        data.flush();
+    }
+
+    /**
+     * Open the object stream of a legacy client whose first byte was read
+     * as its version. Only Message objects (and what they contain) are
+     * accepted.
+     */
+    public static ObjectInputStream openLegacyStream(InputStream in) throws IOException {
+        InputStream whole = new SequenceInputStream(
+                new ByteArrayInputStream(new byte[] {(byte) VERSION_LEGACY_STREAM}), in);
+        ObjectInputStream stream = new ObjectInputStream(whole);
+        stream.setObjectInputFilter(LEGACY_FILTER);
+        return stream;
+    }
+
+    public static Message readLegacy(ObjectInputStream in) throws IOException {
+        try {
+            return (Message) in.readObject();
+        } catch (ClassNotFoundException | ClassCastException e) {
+            throw new StreamCorruptedException("Invalid message format: " + e.getMessage());
+        }
+    }
+
+    // Writes TC_RESET where the stream header would go, so the message does
+    // not refer back to anything the client's stream read before
+    private static final class LegacyFrameOutputStream extends ObjectOutputStream {
+
+        LegacyFrameOutputStream(OutputStream out) throws IOException {
+            super(out);
+        }
+
+        @Override
+        protected void writeStreamHeader() throws IOException {
+            writeByte(TC_RESET);
+        }
+    }
+
+    private static int readVarint(DataInputStream in) throws IOException {
+        int value = 0;
+        for (int i = 0; i < MAX_VARINT_HEADER_LENGTH; i++) {
+            int b = in.readUnsignedByte();
+            value |= (b & 0x7F) << (7 * i);
+            if ((b & 0x80) == 0) {
+                return value;
+            }
+        }
+        throw new StreamCorruptedException("Frame length too large");
+    }
+}
@@ -0,0 +1,31 @@
+package javachatapp.shared;
+
+/**
+ * RoomNames holds the room name rule shared by the client (checks before
+ * sending JOIN_ROOM) and the server (checks every room frame it gets),
+ * and keeps usernames out of the room namespace.
+ */
+public final class RoomNames {
+
+    private RoomNames() {
+    }
+
+    // Room names: '#' followed by 1 to 31 letters, digits, '-' or '_'
+    public static boolean isValid(String room) {
+        if (room == null || room.length() < 2 || room.length() > 32 || room.charAt(0) != '#') {
+            return false;
+        }
+        for (int i = 1; i < room.length(); i++) {
+            char c = room.charAt(i);
+            if (!Character.isLetterOrDigit(c) && c != '-' && c != '_') {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    // A leading '#' marks a room wherever a recipient is named, so no username may have one
+    public static boolean isReservedUsername(String username) {
+        return username != null && username.startsWith("#");
+    }
+}
@@ -0,0 +1,72 @@
+package javachatapp.shared;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+
+/**
+ * VirtualThreads creates virtual threads when the running JVM supports them
+ * (Java 21+) and falls back to daemon platform threads otherwise. The
+ * Thread.ofVirtual() API is looked up reflectively so the project still
+ * compiles and runs on older JDKs.
+ */
+public final class VirtualThreads {
+
+    private static final MethodHandle OF_VIRTUAL;   // Thread.ofVirtual()
+    private static final MethodHandle NAME;         // Thread.Builder.name(String)
+    private static final MethodHandle UNSTARTED;    // Thread.Builder.unstarted(Runnable)
+
+    static {
+        MethodHandle ofVirtual = null;
+        MethodHandle name = null;
+        MethodHandle unstarted = null;
+        try {
+            MethodHandles.Lookup lookup = MethodHandles.publicLookup();
+            Class<?> builder = Class.forName("java.lang.Thread$Builder");
+            Class<?> ofVirtualType = Class.forName("java.lang.Thread$Builder$OfVirtual");
+            ofVirtual = lookup.findStatic(Thread.class, "ofVirtual", MethodType.methodType(ofVirtualType));
+            name = lookup.findVirtual(builder, "name", MethodType.methodType(builder, String.class));
+            unstarted = lookup.findVirtual(builder, "unstarted", MethodType.methodType(Thread.class, Runnable.class));
+        } catch (ReflectiveOperationException e) {
+            // Not available on this JVM - platform threads will be used
+            ofVirtual = null;
+        }
+        OF_VIRTUAL = ofVirtual;
+        NAME = name;
+        UNSTARTED = unstarted;
+    }
+
+    private VirtualThreads() {
+    }
+
+    // Check if this JVM can create virtual threads
+    public static boolean isSupported() {
+        return OF_VIRTUAL != null;
+    }
+
+    /**
+     * Create (but do not start) a thread for the task: virtual if supported,
+     * otherwise a daemon platform thread.
+     */
+    public static Thread newThread(String name, Runnable task) {
+        if (OF_VIRTUAL != null) {
+            try {
+                Object builder = OF_VIRTUAL.invoke();
+                builder = NAME.invoke(builder, name);
+                return (Thread) UNSTARTED.invoke(builder, task);
+            } catch (Throwable e) {
+                System.err.println("Could not create virtual thread: " + e.getMessage());
+            }
+        }
+        Thread thread = new Thread(task, name);
+        thread.setDaemon(true);
+        return thread;
+    }
+
+    // Create and start a thread for the task
+    public static Thread start(String name, Runnable task) {
+        Thread thread = newThread(name, task);
+        thread.start();
+        return thread;
+    }
+}